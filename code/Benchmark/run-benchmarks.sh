@@ -0,0 +1,37 @@
+#!/bin/sh
+# Compila ed esegue le suite di micro benchmark, salvando i risultati in JSON in results/.
+#
+#   ./run-benchmarks.sh [client|server|all] [argomenti di MicroBenchmark...]
+#
+# Esempi:
+#   ./run-benchmarks.sh client --filter=RSA --time=2000
+#   ./run-benchmarks.sh server --threads=1,4,8 --baseline=results/server-20240101-120000.json
+#
+# Il server usa i thread virtuali, quindi serve un JDK 21 o successivo.
+# Con JAVA_HOME impostata vengono usati i suoi javac e java.
+set -e
+
+cd "$(dirname "$0")"
+BIN="${JAVA_HOME:+$JAVA_HOME/bin/}"
+SUITE="${1:-all}"
+[ $# -gt 0 ] && shift
+STAMP="$(date +%Y%m%d-%H%M%S)"
+mkdir -p results
+
+run() {
+    name="$1"; sources="$2"; main="$3"; shift 3
+    classes="$(mktemp -d)"
+    "${BIN}javac" -encoding UTF-8 -d "$classes" $sources src/MicroBenchmark.java "src/$main.java"
+    "${BIN}java" -cp "$classes" "$main" --json="results/$name-$STAMP.json" "$@"
+    rm -rf "$classes"
+}
+
+case "$SUITE" in
+    client) run client "../Client/src/*.java" ClientMicroBenchmarks "$@" ;;
+    server) run server "../Server/src/*.java" ServerMicroBenchmarks "$@" ;;
+    all)
+        run client "../Client/src/*.java" ClientMicroBenchmarks "$@"
+        run server "../Server/src/*.java" ServerMicroBenchmarks "$@"
+    ;;
+    *) echo "Uso: $0 [client|server|all] [argomenti...]"; exit 1 ;;
+esac
@@ -0,0 +1,84 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.IOException;                     //Errori di connessione
+import java.net.InetSocketAddress;              //Indirizzo del server
+import java.net.Socket;                         //Socket
+import java.util.concurrent.atomic.LongAdder;   //Contatori condivisi tra i thread
+
+/**
+ * La classe {@code AcceptRateBenchmark} misura quante connessioni al secondo un {@link Server} gia' avviato riesce ad accettare.
+ * <p>
+ * Piu' thread aprono e chiudono connessioni in un ciclo per la durata indicata, contando le connessioni riuscite 
+ * e quelle rifiutate. Per confrontare due versioni del server si avvia il benchmark contro ognuna con gli stessi argomenti.
+ * <blockquote><pre>
+ *    java AcceptRateBenchmark [host] [porta] [thread] [secondi]
+ * </pre></blockquote>
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class AcceptRateBenchmark {
+
+    /**
+     * Avvia il benchmark e stampa il numero di connessioni accettate al secondo.
+     * @param args host (default localhost), porta (default 65535), numero di thread (default 8), durata in secondi (default 10).
+     * @throws InterruptedException Se il thread principale viene interrotto mentre aspetta i thread del benchmark.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String hostName = args.length > 0 ? args[0] : "localhost";
+        int portNumber = args.length > 1 ? Integer.parseInt(args[1]) : 65535;
+        int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        InetSocketAddress address = new InetSocketAddress(hostName, portNumber);
+        LongAdder accepted = new LongAdder(); //Connessioni riuscite
+        LongAdder refused = new LongAdder();  //Connessioni rifiutate o fallite
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+
+        Thread[] threads = new Thread[numThreads];
+        for(int i = 0; i < numThreads; i++) {
+            threads[i] = new Thread(() -> {
+                while(System.nanoTime() < end) {
+                    try (
+                        Socket s = new Socket();
+                    ) {
+                        s.setSoLinger(true, 0); //Chiude con RST per non esaurire le porte locali in TIME_WAIT
+                        s.connect(address, 1000);
+                        accepted.increment();
+                    } catch (IOException e) {
+                        refused.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread t : threads)
+            t.join();
+
+        System.out.println("Connessioni accettate: " + accepted.sum() + " (" + (accepted.sum() / seconds) + "/s)");
+        System.out.println("Connessioni rifiutate: " + refused.sum() + " (" + (refused.sum() / seconds) + "/s)");
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * La classe {@code ClientMicroBenchmarks} misura con {@link MicroBenchmark} le operazioni crittografiche del client:
+ * <ul>
+ *    <li>{@code RSA.encrypt}, {@code RSA.decrypt} e {@code RSA.maxChars} con chiavi a 1024, 2048 e 4096 bit</li>
+ *    <li>{@code KeyGenerator.generateKeys} a 1024 e 2048 bit</li>
+ *    <li>{@code KeyGenerator.getFirstPrime} partendo da numeri casuali a 512 e 1024 bit</li>
+ * </ul>
+ * Va compilata insieme ai sorgenti del client, di solito con {@code run-benchmarks.sh}. 
+ * Accetta gli argomenti descritti in {@link MicroBenchmark}.
+ * <blockquote><pre>
+ *    java ClientMicroBenchmarks [--iterations=N] [--time=MS] [--filter=REGEX] [--json=FILE] [--baseline=FILE]
+ * </pre></blockquote>
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class ClientMicroBenchmarks {
+    private static final int[] KEY_BITS = {1024, 2048, 4096};
+    private static final int[] GENERATE_BITS = {1024, 2048};
+    private static final int[] PRIME_BITS = {512, 1024};
+    private static final int INPUTS = 64; //Input diversi usati a rotazione, per non misurare sempre lo stesso caso
+
+    /**
+     * Avvia i benchmark.
+     * @param args Gli argomenti descritti in {@link MicroBenchmark}.
+     * @throws Exception Errori dei benchmark o nel salvataggio dei risultati.
+     */
+    public static void main(String[] args) throws Exception {
+        MicroBenchmark bench = new MicroBenchmark(args);
+        KeyGenerator generator = new KeyGenerator();
+
+        for(int bits : KEY_BITS) {
+            if(!bench.selected("RSA.encrypt") && !bench.selected("RSA.decrypt") && !bench.selected("RSA.maxChars"))
+                break; //Evita di generare le chiavi se non servono
+            KeyPair pair = generator.generateKeys(bits);
+            PublicKey publicKey = pair.getPublicKey();
+            PrivateKey privateKey = pair.getPrivateKey();
+
+            //Messaggi lunghi quasi quanto il massimo, come quelli degli utenti, e gli stessi gia' criptati
+            int maxChars = RSA.maxChars(publicKey);
+            String[] messages = new String[INPUTS];
+            String[] encrypted = new String[INPUTS];
+            for(int i = 0; i < INPUTS; i++) {
+                StringBuilder sb = new StringBuilder("messaggio " + i + " ");
+                while(sb.length() < maxChars - 1)
+                    sb.append((char)('a' + sb.length() % 26));
+                messages[i] = sb.toString();
+                encrypted[i] = RSA.encrypt(messages[i], publicKey);
+                if(!RSA.decrypt(encrypted[i], privateKey).equals(messages[i]))
+                    throw new IllegalStateException("Messaggio decriptato diverso dall'originale a " + bits + " bit");
+            }
+
+            int[] next = new int[1];
+            String bitsParam = String.valueOf(bits);
+            bench.run("RSA.encrypt", MicroBenchmark.params("bits", bitsParam), 1, 
+                    thread -> RSA.encrypt(messages[next[0]++ & (INPUTS - 1)], publicKey));
+            bench.run("RSA.decrypt", MicroBenchmark.params("bits", bitsParam), 1, 
+                    thread -> RSA.decrypt(encrypted[next[0]++ & (INPUTS - 1)], privateKey));
+            bench.run("RSA.maxChars", MicroBenchmark.params("bits", bitsParam), 1, 
+                    thread -> RSA.maxChars(publicKey));
+        }
+
+        for(int bits : GENERATE_BITS)
+            bench.run("KeyGenerator.generateKeys", MicroBenchmark.params("bits", String.valueOf(bits)), 1, 
+                    thread -> generator.generateKeys(bits));
+
+        Random rnd = new Random(42);
+        for(int bits : PRIME_BITS) {
+            BigInteger[] starts = new BigInteger[INPUTS];
+            for(int i = 0; i < INPUTS; i++)
+                starts[i] = new BigInteger(bits, rnd).setBit(bits - 1);
+            int[] next = new int[1];
+            bench.run("KeyGenerator.getFirstPrime", MicroBenchmark.params("bits", String.valueOf(bits)), 1, 
+                    thread -> generator.getFirstPrime(starts[next[0]++ & (INPUTS - 1)]));
+        }
+
+        bench.finish();
+    }
+}
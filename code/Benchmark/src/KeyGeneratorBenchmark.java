@@ -0,0 +1,104 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * La classe {@code KeyGeneratorBenchmark} confronta la velocita' di {@link KeyGenerator#generateKeys} con la generazione 
+ * delle chiavi precedente: {@code p}, {@code q} ed {@code e} cercati uno dopo l'altro con il test di Fermat 
+ * ({@link KeyGenerator#getFirstPrimeFermat}) su ogni candidato dispari, partendo da numeri casuali presi da 
+ * {@link SecureRandom#getInstanceStrong()}.
+ * <p>
+ * Per ogni numero di bit genera le chiavi con entrambi i metodi per il numero di giri indicato, dopo un giro 
+ * di riscaldamento che non viene contato, e controlla che le chiavi nuove cifrino e decifrino correttamente. 
+ * Il tempo di una chiave varia molto con la distanza del primo dal numero casuale di partenza, quindi servono piu' giri.
+ * <blockquote><pre>
+ *    java KeyGeneratorBenchmark [giri] [bit...]
+ * </pre></blockquote>
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class KeyGeneratorBenchmark {
+
+    /**
+     * Avvia il benchmark e stampa il tempo medio per chiave con i due metodi.
+     * @param args Giri (default 5), poi i bit del modulo (default 2048 e 4096).
+     */
+    public static void main(String[] args) throws NoSuchAlgorithmException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int[] sizes = {2048, 4096};
+        if(args.length > 1) {
+            sizes = new int[args.length - 1];
+            for(int i = 1; i < args.length; i++)
+                sizes[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        KeyGenerator generator = new KeyGenerator();
+        SecureRandom strong = SecureRandom.getInstanceStrong();
+        boolean ok = true;
+        for(int numBits : sizes) {
+            double fermatTime = 0, fastTime = 0;
+            for(int round = 0; round <= rounds; round++) {
+                long start = System.nanoTime();
+                fermatKeys(generator, strong, numBits);
+                long fermat = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                KeyPair pair = generator.generateKeys(numBits, true); //Tre primi come prima, anche l'esponente
+                long fast = System.nanoTime() - start;
+
+                String msg = "messaggio " + round;
+                ok &= RSA.decrypt(RSA.encrypt(msg, pair.getPublicKey()), pair.getPrivateKey()).equals(msg);
+                if(round == 0) //Riscaldamento
+                    continue;
+                fermatTime += fermat / 1e6 / rounds;
+                fastTime += fast / 1e6 / rounds;
+            }
+            System.out.printf("%d bit%n", numBits);
+            System.out.printf("  %-36s %10.1f ms/chiave%n", "Fermat, sequenziale:", fermatTime);
+            System.out.printf("  %-36s %10.1f ms/chiave%n", "Crivello e Miller-Rabin, parallelo:", fastTime);
+            System.out.printf("  Accelerazione: %.2fx%n", fermatTime / fastTime);
+        }
+        System.out.println(ok ? "Chiavi corrette" : "ERRORE: messaggi decriptati diversi dagli originali");
+        if(!ok)
+            System.exit(1);
+    }
+
+    /**
+     * Cerca i numeri primi di una chiave come faceva {@link KeyGenerator#generateKeys} prima del crivello: 
+     * uno dopo l'altro, con il test di Fermat. Il resto della chiave costa poco e non viene calcolato.
+     * @param generator Il generatore.
+     * @param strong Il generatore di numeri casuali usato prima.
+     * @param numBits Bit del modulo.
+     */
+    private static void fermatKeys(KeyGenerator generator, SecureRandom strong, int numBits) {
+        int primeBits = numBits / 2;
+        for(int i = 0; i < 3; i++) //p, q ed e
+            generator.getFirstPrimeFermat(new BigInteger(primeBits - 1, strong).setBit(primeBits - 1));
+    }
+}
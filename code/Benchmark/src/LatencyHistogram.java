@@ -0,0 +1,118 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray; //Contatori dei bucket aggiornati da piu' thread
+import java.util.concurrent.atomic.LongAccumulator;  //Valore massimo registrato
+
+/**
+ * La classe {@code LatencyHistogram} registra latenze in microsecondi con la stessa struttura di HdrHistogram: 
+ * i valori sotto 2048 hanno un bucket ciascuno, quelli piu' grandi stanno in bucket larghi quanto 1/1024 della 
+ * loro potenza di due. L'errore di ogni percentile e' quindi sotto lo 0.1% del valore, con una memoria fissa 
+ * e senza allocazioni durante la registrazione.
+ * <p>
+ * Piu' thread possono registrare valori contemporaneamente senza lock.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 11;                          //Bit significativi conservati di ogni valore
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;            //Valori registrati esattamente
+    private static final int HALF = SUB_BUCKETS / 2;                        //Bucket per ogni potenza di due successiva
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Registra un valore.
+     * @param value Il valore, i negativi vengono registrati come 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(index(value));
+        max.accumulate(value);
+    }
+
+    /**
+     * @return Il numero di valori registrati.
+     */
+    public long getCount() {
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    /**
+     * @return Il valore piu' grande registrato.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Calcola un percentile dei valori registrati.
+     * @param percentile Il percentile, da 0 a 100.
+     * @return Il valore piu' grande equivalente a quello del percentile, 0 se non ci sono valori.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++)
+            total += snapshot[i] = counts.get(i);
+        long target = Math.max(1, (long)Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if(seen >= target)
+                return Math.min(highestEquivalent(i), getMax());
+        }
+        return 0;
+    }
+
+    /**
+     * @param value Un valore non negativo.
+     * @return L'indice del bucket del valore.
+     */
+    private static int index(long value) {
+        if(value < SUB_BUCKETS)
+            return (int)value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1); //Almeno 1
+        return SUB_BUCKETS + (shift - 1) * HALF + (int)(value >>> shift) - HALF;
+    }
+
+    /**
+     * @param index L'indice di un bucket.
+     * @return Il valore piu' grande che finisce nel bucket.
+     */
+    private static long highestEquivalent(int index) {
+        if(index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long top = (index - SUB_BUCKETS) % HALF + HALF;
+        return (top << shift) + (1L << shift) - 1;
+    }
+}
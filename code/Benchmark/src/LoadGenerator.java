@@ -0,0 +1,637 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.BufferedReader;                      //Lettura delle righe del server
+import java.io.BufferedWriter;                      //Scrittura delle righe verso il server
+import java.io.EOFException;                        //Connessione chiusa dal server
+import java.io.IOException;                         //Errori di connessione
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;                  //Indirizzo del server
+import java.net.Socket;                             //Socket
+import java.net.SocketTimeoutException;             //Risposta non arrivata in tempo
+import java.nio.charset.StandardCharsets;           //Codifica UTF-8
+import java.util.ArrayList;
+import java.util.Base64;                            //Chiave e messaggi finti
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;              //Risposte ai comandi
+import java.util.concurrent.ThreadLocalRandom;      //Scelta dei comandi e dei destinatari
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;   //Sessioni connesse
+import java.util.concurrent.atomic.LongAdder;       //Contatori condivisi tra le sessioni
+import java.util.concurrent.locks.LockSupport;      //Attesa fino all'istante del prossimo comando
+
+/**
+ * La classe {@code LoadGenerator} simula migliaia di client collegati a un {@link Server} gia' avviato, 
+ * per riprodurre il carico reale su una sola macchina.
+ * <p>
+ * Ogni sessione apre una connessione, completa il log in come il client (username, poi la chiave pubblica dopo 
+ * {@code SENDKEY}) e poi invia comandi {@code send}, {@code receive}, {@code getkey} e {@code list} mescolati 
+ * secondo {@code --mix}, a un ritmo fisso per sessione. I comandi partono all'istante programmato anche se il server 
+ * e' in ritardo, e le latenze sono misurate da quell'istante: un server lento non riduce il carico ne' nasconde i ritardi. 
+ * Le sessioni non criptano: la chiave e i messaggi sono stringhe casuali in Base64 lunghe quanto quelle vere, 
+ * con all'inizio di ogni messaggio l'istante di invio, da cui il destinatario calcola la latenza di consegna.
+ * <p>
+ * Per ogni fase dello scenario stampa il throughput e i percentili p50, p99 e p99.9 della latenza dei comandi 
+ * (dall'invio all'{@code INPUTC} di risposta), della consegna dei messaggi (dall'invio del mittente alla lettura 
+ * del destinatario) e delle connessioni, registrate in un {@link LatencyHistogram}. Scenari disponibili:
+ * <ul>
+ *    <li>{@code steady} - Le sessioni si connettono in {@code --ramp} secondi, poi il carico resta costante per {@code --duration} secondi</li>
+ *    <li>{@code ramp} - Le sessioni si connettono in {@code --ramp} secondi mentre quelle gia' connesse inviano comandi, 
+ *        per vedere come cresce la latenza con le connessioni</li>
+ *    <li>{@code storm} - Dopo meta' di {@code --duration} a carico costante una parte delle sessioni cade insieme 
+ *        e si riconnette subito, poi il carico continua per l'altra meta'</li>
+ * </ul>
+ * Argomenti, tutti facoltativi:
+ * <ul>
+ *    <li>{@code --host=HOST} - Host del server (default: localhost)</li>
+ *    <li>{@code --port=N} - Porta del server (default: 65535)</li>
+ *    <li>{@code --scenario=steady|ramp|storm} - Scenario (default: steady)</li>
+ *    <li>{@code --sessions=N} - Numero di client simulati (default: 1000)</li>
+ *    <li>{@code --ramp=S} - Secondi in cui si connettono tutte le sessioni (default: 10)</li>
+ *    <li>{@code --duration=S} - Secondi di carico costante dopo la connessione (default: 30)</li>
+ *    <li>{@code --rate=N} - Comandi al secondo di ogni sessione (default: 1)</li>
+ *    <li>{@code --fanout=N} - Destinatari di ogni {@code send}, che diventa un comando per destinatario (default: 1)</li>
+ *    <li>{@code --mix=send:N,receive:N,getkey:N,list:N} - Pesi dei comandi (default: send:50,receive:30,getkey:10,list:10)</li>
+ *    <li>{@code --push} - Attiva la consegna immediata dei messaggi invece di aspettare i {@code receive}</li>
+ *    <li>{@code --message-bytes=N} - Lunghezza dei messaggi inviati (default: 344, un blocco a 2048 bit in Base64)</li>
+ *    <li>{@code --storm-fraction=F} - Frazione delle sessioni che cadono nello scenario storm (default: 0.5)</li>
+ *    <li>{@code --timeout=S} - Secondi di attesa massima di una risposta, poi la sessione viene chiusa (default: 10)</li>
+ *    <li>{@code --prefix=NOME} - Inizio degli username, per avviare piu' generatori sullo stesso server (default: load)</li>
+ * </ul>
+ * Usa i thread virtuali, quindi serve un JDK 21 come per il server. Il server stampa ogni comando ricevuto, 
+ * conviene redirigere il suo output.
+ * <blockquote><pre>
+ *    java LoadGenerator --scenario=storm --sessions=5000 --rate=2
+ * </pre></blockquote>
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class LoadGenerator {
+    private static final String[] COMMANDS = {"send", "receive", "getkey", "list"};
+
+    private String hostName = "localhost";
+    private int portNumber = 65535;
+    private String scenario = "steady";
+    private int numSessions = 1000;
+    private int rampSeconds = 10;
+    private int durationSeconds = 30;
+    private double rate = 1;
+    private int fanout = 1;
+    private int[] weights = {50, 30, 10, 10};   //Pesi dei comandi, nell'ordine di COMMANDS
+    private boolean push = false;
+    private int messageBytes = 344;
+    private double stormFraction = 0.5;
+    private int timeoutMillis = 10_000;
+    private String prefix = "load";
+
+    private InetSocketAddress address;
+    private String key;                         //Chiave pubblica finta, uguale per tutte le sessioni
+    private String filler;                      //Contenuto dei messaggi dopo l'istante di invio
+    private Session[] sessions;
+    private volatile boolean running = true;
+    private volatile Phase phase;               //Fase in cui vengono registrate le misure
+    private final List<Phase> phases = Collections.synchronizedList(new ArrayList<Phase>());
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger reconnecting = new AtomicInteger(); //Sessioni fatte cadere non ancora riconnesse
+    private final long origin = System.nanoTime(); //Istante di avvio, per i tempi stampati
+
+    /**
+     * Le misure di una fase dello scenario.
+     */
+    private static class Phase {
+        private final String name;
+        private final long start = System.nanoTime();
+        private volatile long end = 0;
+        private final LatencyHistogram commandLatency = new LatencyHistogram();    //Microsecondi
+        private final LatencyHistogram deliveryLatency = new LatencyHistogram();   //Microsecondi
+        private final LatencyHistogram connectLatency = new LatencyHistogram();    //Microsecondi
+        private final LongAdder commands = new LongAdder();
+        private final LongAdder deliveries = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return La durata della fase in secondi, fino ad ora se non e' finita.
+         */
+        private double seconds() {
+            return ((end == 0 ? System.nanoTime() : end) - start) / 1e9;
+        }
+    }
+
+    /**
+     * Avvia lo scenario e stampa i risultati.
+     * @param args Gli argomenti descritti sopra.
+     * @throws InterruptedException Se il thread principale viene interrotto.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        for(String arg : args) {
+            String argArray[] = arg.split("=", 2);
+            String value = argArray.length > 1 ? argArray[1] : "";
+            switch (argArray[0]) {
+                case "--host":
+                    generator.hostName = value;
+                break;
+
+                case "--port":
+                    generator.portNumber = Integer.parseInt(value);
+                break;
+
+                case "--scenario":
+                    generator.scenario = value;
+                break;
+
+                case "--sessions":
+                    generator.numSessions = Math.max(2, Integer.parseInt(value));
+                break;
+
+                case "--ramp":
+                    generator.rampSeconds = Integer.parseInt(value);
+                break;
+
+                case "--duration":
+                    generator.durationSeconds = Integer.parseInt(value);
+                break;
+
+                case "--rate":
+                    generator.rate = Double.parseDouble(value);
+                break;
+
+                case "--fanout":
+                    generator.fanout = Math.max(1, Integer.parseInt(value));
+                break;
+
+                case "--mix":
+                    generator.weights = new int[COMMANDS.length];
+                    for(String entry : value.split(",")) {
+                        String[] pair = entry.split(":", 2);
+                        int command = List.of(COMMANDS).indexOf(pair[0].trim().toLowerCase());
+                        if(command < 0 || pair.length < 2) {
+                            System.out.println("Comando del mix non riconosciuto: " + entry);
+                            return;
+                        }
+                        generator.weights[command] = Integer.parseInt(pair[1].trim());
+                    }
+                break;
+
+                case "--push":
+                    generator.push = true;
+                break;
+
+                case "--message-bytes":
+                    generator.messageBytes = Integer.parseInt(value);
+                break;
+
+                case "--storm-fraction":
+                    generator.stormFraction = Double.parseDouble(value);
+                break;
+
+                case "--timeout":
+                    generator.timeoutMillis = Integer.parseInt(value) * 1000;
+                break;
+
+                case "--prefix":
+                    generator.prefix = value;
+                break;
+
+                default:
+                    System.out.println("Argomento non riconosciuto: " + arg);
+                break;
+            }
+        }
+        if(!List.of("steady", "ramp", "storm").contains(generator.scenario)) {
+            System.out.println("Scenario non riconosciuto: " + generator.scenario);
+            return;
+        }
+        generator.run();
+    }
+
+    /**
+     * Esegue lo scenario: connette le sessioni, cambia fase agli istanti previsti, poi chiude tutto e stampa le fasi.
+     * @throws InterruptedException Se il thread principale viene interrotto.
+     */
+    private void run() throws InterruptedException {
+        address = new InetSocketAddress(hostName, portNumber);
+        Random rnd = new Random();
+        byte[] keyBytes = new byte[256];
+        rnd.nextBytes(keyBytes);
+        key = "3." + Base64.getEncoder().encodeToString(keyBytes);
+        byte[] fillerBytes = new byte[messageBytes];
+        rnd.nextBytes(fillerBytes);
+        filler = Base64.getEncoder().encodeToString(fillerBytes).substring(0, messageBytes);
+
+        System.out.println("Scenario " + scenario + ": " + numSessions + " sessioni verso " + address + ", " 
+                + rate + " comandi/s per sessione");
+        Thread reporter = Thread.ofPlatform().daemon().name("load-reporter").start(this::report);
+
+        //Le sessioni partono distribuite uniformemente nei secondi di ramp up
+        startPhase("ramp-up");
+        sessions = new Session[numSessions];
+        long rampNanos = TimeUnit.SECONDS.toNanos(rampSeconds);
+        long rampStart = System.nanoTime();
+        for(int i = 0; i < numSessions; i++) {
+            sleepUntil(rampStart + rampNanos * i / numSessions);
+            sessions[i] = new Session(i);
+            sessions[i].thread = Thread.ofVirtual().name("load-" + i).start(sessions[i]::run);
+        }
+        sleepUntil(rampStart + rampNanos);
+
+        if(!scenario.equals("ramp")) {
+            //Aspetta che le ultime sessioni completino il log in prima di misurare il carico costante
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while(connected.get() < numSessions && System.nanoTime() < deadline)
+                Thread.sleep(10);
+
+            long steadyNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+            if(scenario.equals("storm"))
+                steadyNanos /= 2;
+            startPhase("steady");
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(steadyNanos));
+
+            if(scenario.equals("storm")) {
+                //Fa cadere insieme una parte delle sessioni connesse, che si riconnettono subito
+                startPhase("storm");
+                List<Session> victims = new ArrayList<Session>(List.of(sessions));
+                Collections.shuffle(victims);
+                int dropped = 0;
+                for(Session session : victims) {
+                    if(dropped >= numSessions * stormFraction)
+                        break;
+                    if(session.drop())
+                        dropped++;
+                }
+                System.out.println("Disconnesse " + dropped + " sessioni");
+
+                //La tempesta finisce quando tutte sono tornate, o dopo il timeout
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while(reconnecting.get() > 0 && System.nanoTime() < deadline)
+                    Thread.sleep(1);
+                startPhase("recovery");
+                Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds) - TimeUnit.NANOSECONDS.toMillis(steadyNanos));
+            }
+        }
+
+        phase.end = System.nanoTime();
+        running = false;
+        reporter.interrupt();
+        for(Session session : sessions)
+            session.close();
+        for(Session session : sessions)
+            session.thread.join(timeoutMillis);
+
+        for(Phase p : phases)
+            print(p);
+    }
+
+    /**
+     * Chiude la fase attuale e ne inizia una nuova.
+     * @param name Nome della nuova fase.
+     */
+    private void startPhase(String name) {
+        Phase next = new Phase(name);
+        if(phase != null)
+            phase.end = next.start;
+        phases.add(next);
+        phase = next;
+    }
+
+    /**
+     * Stampa ogni secondo le sessioni connesse e il throughput dell'ultimo secondo.
+     */
+    private void report() {
+        long lastCommands = 0, lastDeliveries = 0, lastErrors = 0;
+        Phase last = null;
+        while(running) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Phase p = phase;
+            if(p != last) { //I contatori della nuova fase partono da zero
+                lastCommands = lastDeliveries = lastErrors = 0;
+                last = p;
+            }
+            long commands = p.commands.sum(), deliveries = p.deliveries.sum(), errors = p.errors.sum();
+            System.out.printf("%6.1fs %-9s sessioni %6d  comandi %8d/s  messaggi %8d/s  errori %d%n", 
+                    (System.nanoTime() - origin) / 1e9, p.name, connected.get(), 
+                    commands - lastCommands, deliveries - lastDeliveries, errors - lastErrors);
+            lastCommands = commands;
+            lastDeliveries = deliveries;
+            lastErrors = errors;
+        }
+    }
+
+    /**
+     * Stampa il throughput e le latenze di una fase.
+     * @param p La fase.
+     */
+    private static void print(Phase p) {
+        double seconds = p.seconds();
+        System.out.printf("%n== %s (%.1f s) ==%n", p.name, seconds);
+        System.out.printf("comandi    %10d  %10.1f/s  %s%n", p.commands.sum(), p.commands.sum() / seconds, percentiles(p.commandLatency));
+        System.out.printf("consegne   %10d  %10.1f/s  %s%n", p.deliveries.sum(), p.deliveries.sum() / seconds, percentiles(p.deliveryLatency));
+        System.out.printf("connessioni %9d  %10.1f/s  %s%n", p.connectLatency.getCount(), p.connectLatency.getCount() / seconds, percentiles(p.connectLatency));
+        System.out.printf("errori     %10d%n", p.errors.sum());
+    }
+
+    /**
+     * @param histogram Latenze in microsecondi.
+     * @return I percentili principali in millisecondi.
+     */
+    private static String percentiles(LatencyHistogram histogram) {
+        if(histogram.getCount() == 0)
+            return "";
+        return String.format("p50 %.3f ms  p99 %.3f ms  p99.9 %.3f ms  max %.3f ms", 
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0, 
+                histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0);
+    }
+
+    /**
+     * Aspetta fino a un istante di {@link System#nanoTime()}, o finche' il thread non viene interrotto.
+     * @param deadline L'istante.
+     */
+    private static void sleepUntil(long deadline) {
+        long wait;
+        while((wait = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted())
+            LockSupport.parkNanos(wait);
+    }
+
+    /**
+     * Un client simulato. Il suo thread virtuale si connette, completa il log in e invia i comandi, 
+     * un secondo thread virtuale legge le risposte e i messaggi.
+     */
+    private class Session {
+        private final int id;
+        private final String userName;
+        private Thread thread;
+        private volatile Socket socket;
+        private volatile boolean closed;        //Connessione attuale chiusa
+        private volatile boolean dropped;       //Chiusa dallo scenario storm, si deve riconnettere
+        private volatile long dropTime;
+        private BufferedWriter out;
+        private final Semaphore replies = new Semaphore(0); //Un permesso per ogni INPUTC ricevuto
+
+        private Session(int id) {
+            this.id = id;
+            this.userName = prefix + id;
+        }
+
+        /**
+         * Connette la sessione e invia comandi fino alla fine dello scenario, riconnettendosi se viene fatta cadere.
+         */
+        private void run() {
+            long connectStart = System.nanoTime();
+            boolean reconnect = false;
+            while(running) {
+                boolean loggedIn = false;
+                try {
+                    login(connectStart);
+                    loggedIn = true;
+                    if(reconnect) {
+                        reconnect = false;
+                        reconnecting.decrementAndGet();
+                    }
+                    traffic();
+                } catch (IOException | InterruptedException e) {
+                    if(running && !dropped) //Errore vero, la sessione termina
+                        phase.errors.increment();
+                } finally {
+                    closeSocket();
+                    if(loggedIn)
+                        connected.decrementAndGet();
+                }
+                if(!dropped)
+                    break;
+                connectStart = dropTime;
+                dropped = false;
+                reconnect = true;
+            }
+            if(reconnect || dropped)
+                reconnecting.decrementAndGet();
+        }
+
+        /**
+         * Apre la connessione e completa il log in, poi avvia il thread che legge dal server.
+         * @param start Istante da cui misurare la latenza della connessione.
+         * @throws IOException Errori di connessione, o se il server non risponde in tempo.
+         */
+        private void login(long start) throws IOException {
+            Socket s = new Socket();
+            socket = s;
+            closed = false;
+            replies.drainPermits();
+            s.setTcpNoDelay(true);
+            s.connect(address, timeoutMillis);
+            s.setSoTimeout(timeoutMillis);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+
+            //Risponde alle richieste del server finche' non chiede il primo comando
+            int attempts = 0;
+            String line;
+            while(!"INPUTC".equals(line = in.readLine())) {
+                if(line == null)
+                    throw new EOFException("Connessione chiusa durante il log in");
+                if(line.equals("INPUT")) {
+                    //Dopo una caduta il server puo' non aver ancora chiuso la vecchia sessione con lo stesso username
+                    if(attempts++ > 0)
+                        sleepUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(100, 5 * attempts)));
+                    write(userName);
+                }
+                else if(line.equals("SENDKEY")) {
+                    write(key);
+                }
+            }
+            s.setSoTimeout(0);
+            phase.connectLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            connected.incrementAndGet();
+            Thread.ofVirtual().name("load-reader-" + id).start(() -> read(in));
+        }
+
+        /**
+         * Legge le righe del server: conta le risposte ai comandi e misura la latenza dei messaggi consegnati.
+         * @param in Lo stream della connessione.
+         */
+        private void read(BufferedReader in) {
+            try {
+                String line;
+                while((line = in.readLine()) != null) {
+                    if(line.equals("INPUTC")) {
+                        replies.release();
+                    }
+                    else if(line.equals("DECRYPT")) {
+                        //Il messaggio e' "[HH:mm]<mandante> istante.contenuto"
+                        String message = in.readLine();
+                        int start = message == null ? -1 : message.indexOf("> ");
+                        int dot = start < 0 ? -1 : message.indexOf('.', start);
+                        if(dot > 0) {
+                            try {
+                                long sent = Long.parseLong(message.substring(start + 2, dot));
+                                if(sent < origin) //Inviato a questo username da un'esecuzione precedente
+                                    continue;
+                                Phase p = phase;
+                                p.deliveryLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent));
+                                p.deliveries.increment();
+                            } catch (NumberFormatException e) {
+                                //Messaggio non inviato da questo generatore
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                //Connessione chiusa
+            } finally {
+                closed = true;
+                replies.release(); //Sveglia il thread dei comandi
+            }
+        }
+
+        /**
+         * Invia i comandi al ritmo previsto finche' la connessione resta aperta.
+         * @throws IOException Errori di connessione, o se il server non risponde in tempo.
+         * @throws InterruptedException Se il thread viene interrotto.
+         */
+        private void traffic() throws IOException, InterruptedException {
+            if(push)
+                command("push on");
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            long interval = (long)(1e9 / rate);
+            long next = System.nanoTime() + rnd.nextLong(Math.max(1, interval)); //Sessioni sfasate tra loro
+            int totalWeight = 0;
+            for(int weight : weights)
+                totalWeight += weight;
+
+            while(running && !closed) {
+                sleepUntil(next);
+                long intended = next;
+                next += interval;
+
+                //Sceglie il comando in base ai pesi del mix
+                int pick = rnd.nextInt(Math.max(1, totalWeight));
+                int command = 0;
+                while(command < COMMANDS.length - 1 && pick >= weights[command])
+                    pick -= weights[command++];
+
+                int sent = 1;
+                switch (COMMANDS[command]) {
+                    case "send":
+                        sent = fanout;
+                        for(int i = 0; i < fanout; i++)
+                            command("send " + randomPeer(rnd) + " " + intended + "." + filler);
+                    break;
+
+                    case "getkey":
+                        command("getkey " + randomPeer(rnd));
+                    break;
+
+                    default:
+                        command(COMMANDS[command]);
+                    break;
+                }
+                //La latenza parte dall'istante programmato, anche se il comando e' partito in ritardo
+                Phase p = phase;
+                p.commandLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended));
+                p.commands.add(sent);
+            }
+        }
+
+        /**
+         * @param rnd Sorgente random.
+         * @return Lo username di un'altra sessione.
+         */
+        private String randomPeer(ThreadLocalRandom rnd) {
+            int peer = rnd.nextInt(numSessions - 1);
+            return prefix + (peer >= id ? peer + 1 : peer);
+        }
+
+        /**
+         * Invia un comando e aspetta la sua risposta.
+         * @param command Il comando.
+         * @throws IOException Errori di connessione, o se il server non risponde in tempo.
+         * @throws InterruptedException Se il thread viene interrotto.
+         */
+        private void command(String command) throws IOException, InterruptedException {
+            write(command);
+            if(!replies.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+                throw new SocketTimeoutException("Nessuna risposta a " + command.split(" ", 2)[0]);
+            if(closed)
+                throw new EOFException("Connessione chiusa");
+        }
+
+        private void write(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+
+        /**
+         * Fa cadere la connessione senza chiuderla correttamente, come un client che perde la rete.
+         * @return {@code true} se la sessione era connessa.
+         */
+        private boolean drop() {
+            Socket s = socket;
+            if(s == null || closed || dropped)
+                return false;
+            dropTime = System.nanoTime();
+            reconnecting.incrementAndGet();
+            dropped = true;
+            try {
+                s.setSoLinger(true, 0); //Chiude con RST
+            } catch (IOException e) {
+                //Viene chiuso comunque
+            }
+            closeSocket();
+            return true;
+        }
+
+        /**
+         * Chiude la connessione alla fine dello scenario.
+         */
+        private void close() {
+            closeSocket();
+            if(thread != null)
+                thread.interrupt();
+        }
+
+        private void closeSocket() {
+            Socket s = socket;
+            if(s == null)
+                return;
+            try {
+                s.close();
+            } catch (IOException e) {
+                //Gia' chiuso
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.util.Arrays;                             //Inizializzazione degli array
+import java.util.concurrent.CountDownLatch;         //Partenza contemporanea dei thread
+import java.util.concurrent.atomic.AtomicBoolean;   //Errore trovato da un ricevente
+import java.util.concurrent.atomic.AtomicLong;      //Messaggi ricevuti in totale
+
+/**
+ * La classe {@code MessageBoxStressBenchmark} misura quanti {@link MessageBox#send} al secondo si riescono a fare 
+ * al crescere del numero di mandanti e controlla che nessun messaggio vada perso o venga consegnato due volte.
+ * <p>
+ * Per ogni numero di mandanti (1, 2, 4, ... fino al massimo indicato) crea una nuova {@link MessageBox} con alcuni riceventi.
+ * Ogni mandante invia lo stesso numero di messaggi numerati, a turno a tutti i riceventi, mentre un thread per ricevente 
+ * li legge con {@link MessageBox#getLastMessageFor}. Ogni ricevente controlla che i messaggi di uno stesso mandante 
+ * arrivino in ordine crescente, quindi senza duplicati, e alla fine il totale deve essere uguale al numero di messaggi inviati.
+ * <blockquote><pre>
+ *    java MessageBoxStressBenchmark [mandantiMassimi] [messaggiPerMandante] [riceventi]
+ * </pre></blockquote>
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class MessageBoxStressBenchmark {
+
+    /**
+     * Avvia il benchmark per ogni numero di mandanti e stampa i risultati.
+     * @param args Numero massimo di mandanti (default: numero di processori), messaggi per mandante (default 1000000), 
+     *             numero di riceventi (default 4).
+     * @throws InterruptedException Se il thread principale viene interrotto.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int maxSenders = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int perSender = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int receivers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        boolean ok = true;
+        for(int senders = 1; senders <= maxSenders; senders *= 2)
+            ok &= run(senders, perSender, receivers);
+        if(!ok)
+            System.exit(1);
+    }
+
+    /**
+     * Esegue una prova con {@code senders} mandanti.
+     * @return {@code true} se tutti i messaggi sono arrivati una sola volta e in ordine.
+     */
+    private static boolean run(int senders, int perSender, int receivers) throws InterruptedException {
+        MessageBox mBox = new MessageBox();
+        for(int r = 0; r < receivers; r++)
+            mBox.newUser("r" + r, "key");
+
+        long total = (long)senders * perSender;
+        AtomicLong received = new AtomicLong();
+        AtomicBoolean failed = new AtomicBoolean();
+        CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] consumers = new Thread[receivers];
+        for(int r = 0; r < receivers; r++) {
+            String userName = "r" + r;
+            consumers[r] = new Thread(() -> {
+                long[] lastSeq = new long[senders]; //Ultimo numero ricevuto da ogni mandante
+                Arrays.fill(lastSeq, -1);
+                while(received.get() < total && !failed.get()) {
+                    Message message = mBox.getLastMessageFor(userName);
+                    if(message == null) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    int sender = Integer.parseInt(message.getSender());
+                    long seq = Long.parseLong(message.getMsg());
+                    if(seq <= lastSeq[sender]) { //Duplicato o fuori ordine
+                        System.out.println("Errore: " + userName + " ha ricevuto " + seq + " da " + sender + " dopo " + lastSeq[sender]);
+                        failed.set(true);
+                    }
+                    lastSeq[sender] = seq;
+                    received.incrementAndGet();
+                }
+            });
+            consumers[r].start();
+        }
+
+        Thread[] producers = new Thread[senders];
+        for(int p = 0; p < senders; p++) {
+            String sender = Integer.toString(p);
+            producers[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(int i = 0; i < perSender; i++)
+                    mBox.send("r" + (i % receivers), sender, Integer.toString(i));
+            });
+            producers[p].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Thread t : producers)
+            t.join();
+        long sendNanos = System.nanoTime() - begin;
+        for(Thread t : consumers)
+            t.join(60_000);
+
+        boolean ok = !failed.get() && received.get() == total;
+        System.out.printf("mandanti=%d send/s=%,d ricevuti=%d/%d %s%n", 
+                senders, (long)(total / (sendNanos / 1e9)), received.get(), total, ok ? "OK" : "ERRORE");
+        return ok;
+    }
+}
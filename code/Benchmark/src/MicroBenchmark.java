@@ -0,0 +1,302 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.IOException;                         //Errori nella scrittura dei risultati
+import java.io.PrintStream;                         //Console, anche se il codice misurato cambia System.out
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;                         //File JSON dei risultati
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;                     //Parametri in ordine di inserimento
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;          //Partenza contemporanea dei thread di una iterazione
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * La classe {@code MicroBenchmark} e' un piccolo harness per misurare il throughput di singole operazioni, 
+ * usato da {@link ClientMicroBenchmarks} e {@link ServerMicroBenchmarks}. Il progetto non ha un sistema di build 
+ * con cui scaricare JMH, quindi l'harness riprende le sue parti essenziali:
+ * <ul>
+ *    <li>Iterazioni di riscaldamento non contate, poi iterazioni di misura di durata fissa</li>
+ *    <li>In ogni iterazione tutti i thread partono insieme e ripetono l'operazione fino alla scadenza</li>
+ *    <li>Il risultato di ogni operazione viene consumato, cosi' il JIT non puo' eliminare il lavoro misurato</li>
+ *    <li>Il punteggio e' la media delle iterazioni in operazioni al secondo, con l'errore dell'intervallo di confidenza al 99.9%</li>
+ *    <li>I risultati vengono salvati in JSON nello stesso formato di JMH, una riga per benchmark, 
+ *        e possono essere confrontati con quelli di un'esecuzione precedente</li>
+ * </ul>
+ * Argomenti riconosciuti da tutte le suite:
+ * <ul>
+ *    <li>{@code --warmup=N} - Iterazioni di riscaldamento (default: 3)</li>
+ *    <li>{@code --iterations=N} - Iterazioni di misura (default: 5)</li>
+ *    <li>{@code --time=MS} - Durata di ogni iterazione in millisecondi (default: 1000)</li>
+ *    <li>{@code --threads=N,N,...} - Numeri di thread dei benchmark concorrenti (default: 1, 2, 4 ... fino ai processori)</li>
+ *    <li>{@code --filter=REGEX} - Esegue solo i benchmark il cui nome contiene l'espressione</li>
+ *    <li>{@code --json=FILE} - Salva i risultati in formato JSON</li>
+ *    <li>{@code --baseline=FILE} - Confronta i risultati con quelli salvati da un'esecuzione precedente</li>
+ * </ul>
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public final class MicroBenchmark {
+    /** Quantili della t di Student per l'intervallo di confidenza al 99.9%, per 1-30 gradi di liberta'. */
+    private static final double[] T_999 = {636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587, 
+            4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 
+            3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646};
+    private static final Pattern RESULT = Pattern.compile(
+            "\"benchmark\" : \"([^\"]*)\".*\"threads\" : (\\d+).*\"params\" : (\\{[^}]*\\}).*\"score\" : ([0-9.Ee+-]+)");
+
+    /**
+     * Un'operazione misurata. Il valore ritornato viene consumato dall'harness.
+     */
+    public interface Operation {
+        /**
+         * Esegue una volta l'operazione.
+         * @param thread Indice del thread che la esegue, da 0.
+         * @return Un risultato dell'operazione.
+         * @throws Exception Errori dell'operazione, che interrompono il benchmark.
+         */
+        Object run(int thread) throws Exception;
+    }
+
+    private final PrintStream console = System.out; //Console presa all'avvio
+    private int warmup = 3;
+    private int iterations = 5;
+    private long timeMillis = 1000;
+    private int[] threads;
+    private Pattern filter = null;
+    private Path json = null;
+    private Map<String, Double> baseline = new HashMap<String, Double>(); //Punteggi precedenti per benchmark, thread e parametri
+    private List<String> results = new ArrayList<String>();               //Risultati in JSON, uno per benchmark
+    private volatile Object sink;                                         //Risultati consumati
+
+    /**
+     * Legge gli argomenti comuni a tutte le suite.
+     * @param args Gli argomenti della linea di comando.
+     * @throws IOException Se il file di confronto non e' leggibile.
+     */
+    public MicroBenchmark(String[] args) throws IOException {
+        List<Integer> defaultThreads = new ArrayList<Integer>();
+        for(int t = 1; t <= Runtime.getRuntime().availableProcessors(); t *= 2)
+            defaultThreads.add(t);
+        threads = defaultThreads.stream().mapToInt(Integer::intValue).toArray();
+
+        for(String arg : args) {
+            String argArray[] = arg.split("=", 2);
+            String value = argArray.length > 1 ? argArray[1] : "";
+            switch (argArray[0]) {
+                case "--warmup":
+                    warmup = Integer.parseInt(value);
+                break;
+
+                case "--iterations":
+                    iterations = Math.max(1, Integer.parseInt(value));
+                break;
+
+                case "--time":
+                    timeMillis = Long.parseLong(value);
+                break;
+
+                case "--threads":
+                    String[] list = value.split(",");
+                    threads = new int[list.length];
+                    for(int i = 0; i < list.length; i++)
+                        threads[i] = Integer.parseInt(list[i].trim());
+                break;
+
+                case "--filter":
+                    filter = Pattern.compile(value);
+                break;
+
+                case "--json":
+                    json = Paths.get(value);
+                break;
+
+                case "--baseline":
+                    for(String line : Files.readAllLines(Paths.get(value), StandardCharsets.UTF_8)) {
+                        Matcher m = RESULT.matcher(line);
+                        if(m.find())
+                            baseline.put(m.group(1) + " " + m.group(2) + " " + m.group(3), Double.parseDouble(m.group(4)));
+                    }
+                break;
+
+                default:
+                    console.println("Argomento non riconosciuto: " + arg);
+            }
+        }
+    }
+
+    /**
+     * @return I numeri di thread dei benchmark concorrenti.
+     */
+    public int[] getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param name Nome di un benchmark.
+     * @return {@code true} se il benchmark va eseguito.
+     */
+    public boolean selected(String name) {
+        return filter == null || filter.matcher(name).find();
+    }
+
+    /**
+     * @return La console, da usare per i messaggi delle suite anche se il codice misurato cambia {@code System.out}.
+     */
+    public PrintStream console() {
+        return console;
+    }
+
+    /**
+     * Crea una mappa di parametri di un benchmark.
+     * @param keyValues Nomi e valori alternati.
+     * @return I parametri, in ordine.
+     */
+    public static Map<String, String> params(String... keyValues) {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        for(int i = 0; i + 1 < keyValues.length; i += 2)
+            params.put(keyValues[i], keyValues[i + 1]);
+        return params;
+    }
+
+    /**
+     * Misura un'operazione e stampa il risultato, se il benchmark e' selezionato.
+     * @param name Nome del benchmark.
+     * @param params Parametri del benchmark, come i bit della chiave.
+     * @param numThreads Numero di thread che eseguono l'operazione insieme.
+     * @param op L'operazione.
+     * @throws Exception Errori dell'operazione.
+     */
+    public void run(String name, Map<String, String> params, int numThreads, Operation op) throws Exception {
+        if(!selected(name))
+            return;
+        double[] scores = new double[iterations];
+        for(int i = 0; i < warmup + iterations; i++) {
+            double score = iteration(numThreads, op);
+            if(i >= warmup)
+                scores[i - warmup] = score;
+        }
+
+        double mean = 0;
+        for(double s : scores)
+            mean += s / scores.length;
+        double variance = 0;
+        for(double s : scores)
+            variance += (s - mean) * (s - mean) / Math.max(1, scores.length - 1);
+        double error = scores.length < 2 ? Double.NaN 
+                : (scores.length - 1 <= T_999.length ? T_999[scores.length - 2] : 3.291) * Math.sqrt(variance / scores.length);
+
+        String paramsJson = paramsJson(params);
+        StringBuilder raw = new StringBuilder();
+        for(int i = 0; i < scores.length; i++)
+            raw.append(i > 0 ? ", " : "").append(scores[i]);
+        results.add("{ \"benchmark\" : \"" + name + "\", \"mode\" : \"thrpt\", \"threads\" : " + numThreads 
+                + ", \"warmupIterations\" : " + warmup + ", \"measurementIterations\" : " + iterations 
+                + ", \"measurementTime\" : \"" + timeMillis + " ms\", \"params\" : " + paramsJson 
+                + ", \"primaryMetric\" : { \"score\" : " + mean + ", \"scoreError\" : " + (Double.isNaN(error) ? "\"NaN\"" : error) 
+                + ", \"scoreUnit\" : \"ops/s\", \"rawData\" : [ [ " + raw + " ] ] } }");
+
+        String label = name + (params.isEmpty() ? "" : " " + params) + " x" + numThreads;
+        String line = String.format("%-64s %14.1f +- %10.1f ops/s", label, mean, Double.isNaN(error) ? 0 : error);
+        Double previous = baseline.get(name + " " + numThreads + " " + paramsJson);
+        if(previous != null)
+            line += String.format("  (%+.1f%%)", (mean / previous - 1) * 100);
+        console.println(line);
+    }
+
+    /**
+     * Esegue un'iterazione: tutti i thread partono insieme e ripetono l'operazione fino alla scadenza.
+     * @param numThreads Numero di thread.
+     * @param op L'operazione.
+     * @return Operazioni al secondo di tutti i thread.
+     * @throws Exception Il primo errore di un thread.
+     */
+    private double iteration(int numThreads, Operation op) throws Exception {
+        long[] counts = new long[numThreads];
+        long[] times = new long[numThreads];
+        Exception[] errors = new Exception[1];
+        CyclicBarrier start = new CyclicBarrier(numThreads);
+        Thread[] workers = new Thread[numThreads];
+        for(int t = 0; t < numThreads; t++) {
+            final int thread = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    long begin = System.nanoTime();
+                    long deadline = begin + timeMillis * 1_000_000L;
+                    long count = 0;
+                    Object last = null;
+                    do { //Almeno un'operazione, anche se dura piu' dell'iterazione
+                        last = op.run(thread);
+                        count++;
+                    } while(System.nanoTime() < deadline);
+                    times[thread] = System.nanoTime() - begin;
+                    counts[thread] = count;
+                    sink = last;
+                } catch (Exception e) {
+                    synchronized(errors) {
+                        if(errors[0] == null)
+                            errors[0] = e;
+                    }
+                }
+            }, "benchmark-" + t);
+            workers[t].start();
+        }
+        for(Thread worker : workers)
+            worker.join();
+        if(errors[0] != null)
+            throw errors[0];
+
+        double rate = 0;
+        for(int t = 0; t < numThreads; t++)
+            rate += counts[t] * 1e9 / Math.max(1, times[t]);
+        return rate;
+    }
+
+    /**
+     * Salva i risultati in JSON, se e' stato indicato un file.
+     * @throws IOException Se non e' possibile scrivere il file.
+     */
+    public void finish() throws IOException {
+        if(json == null)
+            return;
+        if(json.getParent() != null)
+            Files.createDirectories(json.getParent());
+        Files.write(json, ("[\n" + String.join(",\n", results) + "\n]\n").getBytes(StandardCharsets.UTF_8));
+        console.println("Risultati salvati in " + json);
+    }
+
+    private static String paramsJson(Map<String, String> params) {
+        StringBuilder sb = new StringBuilder("{");
+        for(Map.Entry<String, String> param : params.entrySet())
+            sb.append(sb.length() > 1 ? ", " : " ").append('"').append(param.getKey()).append("\" : \"").append(param.getValue()).append('"');
+        return sb.append(params.isEmpty() ? "}" : " }").toString();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+/**
+ * La classe {@code RsaDecryptBenchmark} confronta la velocita' di {@link RSA#decrypt} con una chiave privata con solo 
+ * {@code d} e {@code n} e con la stessa chiave con i valori per il teorema cinese del resto.
+ * <p>
+ * Simula quello che fa il client dopo un {@code receive}: genera un paio di chiavi, cripta un gruppo di messaggi 
+ * e li decripta tutti con entrambe le chiavi, per il numero di giri indicato. Il primo giro serve a scaldare la JVM 
+ * e non viene contato. Alla fine controlla che entrambe le chiavi restituiscano i messaggi originali.
+ * <blockquote><pre>
+ *    java RsaDecryptBenchmark [bit] [messaggi] [giri]
+ * </pre></blockquote>
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class RsaDecryptBenchmark {
+
+    /**
+     * Avvia il benchmark e stampa i messaggi decriptati al secondo con le due chiavi.
+     * @param args Bit del modulo (default 2048), messaggi per giro (default 200), giri (default 5).
+     */
+    public static void main(String[] args) {
+        int numBits = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int numMessages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.println("Generazione delle chiavi RSA a " + numBits + " bit...");
+        KeyPair pair = new KeyGenerator().generateKeys(numBits);
+        PrivateKey crtKey = pair.getPrivateKey();
+        String[] parts = crtKey.toString().split("-");
+        PrivateKey plainKey = PrivateKey.parse(parts[0] + "-" + parts[1]); //Stessa chiave senza i fattori del modulo
+
+        //Messaggi lunghi quasi quanto il massimo, come quelli degli utenti
+        int maxChars = RSA.maxChars(pair.getPublicKey());
+        String[] messages = new String[numMessages];
+        String[] encrypted = new String[numMessages];
+        for(int i = 0; i < numMessages; i++) {
+            StringBuilder sb = new StringBuilder("messaggio " + i + " ");
+            while(sb.length() < maxChars - 1)
+                sb.append((char)('a' + sb.length() % 26));
+            messages[i] = sb.toString();
+            encrypted[i] = RSA.encrypt(messages[i], pair.getPublicKey());
+        }
+
+        boolean ok = true;
+        double plainRate = 0, crtRate = 0;
+        for(int round = 0; round <= rounds; round++) {
+            long plainTime = decryptAll(encrypted, plainKey, messages);
+            long crtTime = decryptAll(encrypted, crtKey, messages);
+            if(plainTime < 0 || crtTime < 0)
+                ok = false;
+            if(round == 0) //Riscaldamento
+                continue;
+            plainRate += numMessages * 1e9 / Math.abs(plainTime) / rounds;
+            crtRate += numMessages * 1e9 / Math.abs(crtTime) / rounds;
+        }
+
+        System.out.printf("%-27s %10.1f messaggi/s%n", "Chiave d-n:", plainRate);
+        System.out.printf("%-27s %10.1f messaggi/s%n", "Chiave d-n-p-q-dP-dQ-qInv:", crtRate);
+        System.out.printf("Accelerazione: %.2fx%n", crtRate / plainRate);
+        System.out.println(ok ? "Messaggi decriptati correttamente" : "ERRORE: messaggi decriptati diversi dagli originali");
+        if(!ok)
+            System.exit(1);
+    }
+
+    /**
+     * Decripta tutti i messaggi con una chiave e controlla il risultato.
+     * @param encrypted I messaggi criptati.
+     * @param key La chiave privata.
+     * @param messages I messaggi originali.
+     * @return I nanosecondi impiegati, negativi se un messaggio decriptato e' diverso dall'originale.
+     */
+    private static long decryptAll(String[] encrypted, PrivateKey key, String[] messages) {
+        boolean ok = true;
+        long start = System.nanoTime();
+        for(int i = 0; i < encrypted.length; i++)
+            ok &= RSA.decrypt(encrypted[i], key).equals(messages[i]);
+        long time = Math.max(1, System.nanoTime() - start);
+        return ok ? time : -time;
+    }
+}
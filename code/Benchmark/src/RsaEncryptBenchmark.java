@@ -0,0 +1,106 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+/**
+ * La classe {@code RsaEncryptBenchmark} confronta la velocita' di {@link RSA#encrypt} con una chiave con l'esponente 
+ * pubblico standard {@link PublicKey#STANDARD_EXPONENT} e con una chiave con l'esponente primo casuale a meta' dei bit 
+ * del modulo, come quelle generate prima.
+ * <p>
+ * Simula quello che fa il client ad ogni {@code send}: cripta un gruppo di messaggi lunghi quasi quanto il massimo 
+ * con entrambe le chiavi, per il numero di giri indicato. Il primo giro serve a scaldare la JVM e non viene contato. 
+ * Alla fine controlla che i messaggi criptati con entrambe le chiavi vengano decriptati correttamente.
+ * <blockquote><pre>
+ *    java RsaEncryptBenchmark [bit] [messaggi] [giri]
+ * </pre></blockquote>
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class RsaEncryptBenchmark {
+
+    /**
+     * Avvia il benchmark e stampa i messaggi criptati al secondo con le due chiavi.
+     * @param args Bit del modulo (default 2048), messaggi per giro (default 200), giri (default 5).
+     */
+    public static void main(String[] args) {
+        int numBits = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int numMessages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.println("Generazione delle chiavi RSA a " + numBits + " bit...");
+        KeyGenerator generator = new KeyGenerator();
+        KeyPair standardPair = generator.generateKeys(numBits);
+        KeyPair randomPair = generator.generateKeys(numBits, true);
+
+        //Messaggi lunghi quasi quanto il massimo, come quelli degli utenti
+        int maxChars = RSA.maxChars(standardPair.getPublicKey());
+        String[] messages = new String[numMessages];
+        for(int i = 0; i < numMessages; i++) {
+            StringBuilder sb = new StringBuilder("messaggio " + i + " ");
+            while(sb.length() < maxChars - 1)
+                sb.append((char)('a' + sb.length() % 26));
+            messages[i] = sb.toString();
+        }
+
+        boolean ok = true;
+        double randomRate = 0, standardRate = 0;
+        for(int round = 0; round <= rounds; round++) {
+            long randomTime = encryptAll(messages, randomPair);
+            long standardTime = encryptAll(messages, standardPair);
+            if(randomTime < 0 || standardTime < 0)
+                ok = false;
+            if(round == 0) //Riscaldamento
+                continue;
+            randomRate += numMessages * 1e9 / Math.abs(randomTime) / rounds;
+            standardRate += numMessages * 1e9 / Math.abs(standardTime) / rounds;
+        }
+
+        System.out.printf("%-30s %12.1f messaggi/s%n", "Esponente casuale (versione 2):", randomRate);
+        System.out.printf("%-30s %12.1f messaggi/s%n", "Esponente " + PublicKey.STANDARD_EXPONENT + " (versione 3):", standardRate);
+        System.out.printf("Accelerazione: %.1fx%n", standardRate / randomRate);
+        System.out.println(ok ? "Messaggi criptati correttamente" : "ERRORE: messaggi decriptati diversi dagli originali");
+        if(!ok)
+            System.exit(1);
+    }
+
+    /**
+     * Cripta tutti i messaggi con la chiave pubblica, poi controlla il primo decriptandolo con la chiave privata.
+     * @param messages I messaggi.
+     * @param pair Le chiavi.
+     * @return I nanosecondi impiegati a criptare, negativi se il messaggio decriptato e' diverso dall'originale.
+     */
+    private static long encryptAll(String[] messages, KeyPair pair) {
+        String first = null;
+        long start = System.nanoTime();
+        for(int i = 0; i < messages.length; i++) {
+            String encrypted = RSA.encrypt(messages[i], pair.getPublicKey());
+            if(i == 0)
+                first = encrypted;
+        }
+        long time = Math.max(1, System.nanoTime() - start);
+        boolean ok = RSA.decrypt(first, pair.getPrivateKey()).equals(messages[0]);
+        return ok ? time : -time;
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * La classe {@code ServerMicroBenchmarks} misura con {@link MicroBenchmark} le operazioni del server:
+ * <ul>
+ *    <li>{@code MessageBox.send} seguito da {@code getLastMessageFor}, con ogni thread che usa la sua mailbox 
+ *        oppure con tutti i thread sulla stessa mailbox</li>
+ *    <li>{@code Message.getFormattedMessage} con i frame dei due protocolli, e la costruzione di un {@code Message} con il suo frame</li>
+ *    <li>{@code UserDirectory.page} con {@link #DIRECTORY_USERS} utenti online: la prima pagina, una pagina in mezzo all'elenco 
+ *        e una ricerca per prefisso</li>
+ *    <li>Il percorso di un comando, da {@code ServerProtocol.handleLine} alla risposta scritta sullo stream: 
+ *        {@code send} seguito da {@code receive} del destinatario, e {@code list}</li>
+ * </ul>
+ * I benchmark concorrenti vengono ripetuti per ogni numero di thread di {@code --threads}. 
+ * Va compilata insieme ai sorgenti del server, di solito con {@code run-benchmarks.sh}. 
+ * Accetta gli argomenti descritti in {@link MicroBenchmark}.
+ * <blockquote><pre>
+ *    java ServerMicroBenchmarks [--threads=N,N,...] [--iterations=N] [--time=MS] [--filter=REGEX] [--json=FILE]
+ * </pre></blockquote>
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class ServerMicroBenchmarks {
+    private static final int MESSAGE_BYTES = 256; //Un blocco criptato con una chiave a 2048 bit
+    private static final int USERS = 32;          //Utenti registrati oltre a quelli dei benchmark, come in un server in uso
+    private static final int DIRECTORY_USERS = 50000; //Utenti online nei benchmark della UserDirectory
+
+    /**
+     * Avvia i benchmark.
+     * @param args Gli argomenti descritti in {@link MicroBenchmark}.
+     * @throws Exception Errori dei benchmark o nel salvataggio dei risultati.
+     */
+    public static void main(String[] args) throws Exception {
+        MicroBenchmark bench = new MicroBenchmark(args);
+        byte[] block = new byte[MESSAGE_BYTES];
+        new Random(42).nextBytes(block);
+        String msg = Base64.getEncoder().encodeToString(block);
+
+        for(int threads : bench.getThreads()) {
+            //Ogni thread manda i messaggi a se stesso, come utenti diversi che parlano tra loro
+            MessageBox mBox = newMessageBox(threads);
+            bench.run("MessageBox.send+getLastMessageFor", MicroBenchmark.params("receiver", "own"), threads, thread -> {
+                String user = "user" + thread;
+                mBox.send(user, user, msg);
+                return mBox.getLastMessageFor(user);
+            });
+
+            //Tutti i thread mandano i messaggi allo stesso utente e li leggono
+            MessageBox shared = newMessageBox(threads);
+            bench.run("MessageBox.send+getLastMessageFor", MicroBenchmark.params("receiver", "shared"), threads, thread -> {
+                shared.send("user0", "user" + thread, msg);
+                return shared.getLastMessageFor("user0");
+            });
+        }
+
+        for(boolean binary : new boolean[] {false, true}) {
+            Message message = new Message("alice", msg, System.currentTimeMillis(), binary);
+            bench.run("Message.getFormattedMessage", MicroBenchmark.params("frame", binary ? "binary" : "text"), 1, 
+                    thread -> message.getFormattedMessage());
+        }
+        bench.run("Message.new", MicroBenchmark.params(), 1, thread -> new Message("alice", msg, System.currentTimeMillis(), true));
+
+        UserDirectory directory = new UserDirectory();
+        for(int u = 0; u < DIRECTORY_USERS; u++)
+            directory.join("user" + u);
+        int pageSize = UserDirectory.DEFAULT_PAGE_SIZE;
+        bench.run("UserDirectory.page", MicroBenchmark.params("page", "first"), 1, thread -> directory.page("", null, pageSize));
+        bench.run("UserDirectory.page", MicroBenchmark.params("page", "middle"), 1, thread -> directory.page("", "user25000", pageSize));
+        bench.run("UserDirectory.page", MicroBenchmark.params("page", "prefix"), 1, thread -> directory.page("user4999", null, pageSize));
+
+        //Il server stampa ogni comando ricevuto: durante questi benchmark la stampa viene scartata
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for(int threads : bench.getThreads()) {
+                MessageBox mBox = newMessageBox(0);
+                FileRelay relay = new FileRelay(0, null);
+                ServerMetrics metrics = new ServerMetrics(mBox, null);
+                ServerProtocol[] senders = new ServerProtocol[threads];
+                ServerProtocol[] receivers = new ServerProtocol[threads];
+                for(int t = 0; t < threads; t++) {
+                    senders[t] = login(mBox, relay, metrics, "sender" + t);
+                    receivers[t] = login(mBox, relay, metrics, "receiver" + t);
+                }
+                bench.run("ServerProtocol.send+receive", MicroBenchmark.params(), threads, thread -> {
+                    senders[thread].handleLine("send receiver" + thread + " " + msg);
+                    receivers[thread].handleLine("receive");
+                    return receivers[thread];
+                });
+                bench.run("ServerProtocol.list", MicroBenchmark.params(), threads, thread -> {
+                    senders[thread].handleLine("list");
+                    return senders[thread];
+                });
+            }
+        } finally {
+            System.setOut(console);
+        }
+
+        bench.finish();
+    }
+
+    /**
+     * Crea una {@code MessageBox} senza limiti con gli utenti dei benchmark e altri {@link #USERS} utenti.
+     * @param threads Numero di utenti dei benchmark, chiamati {@code user0}, {@code user1}...
+     * @return La {@code MessageBox}.
+     */
+    private static MessageBox newMessageBox(int threads) {
+        MessageBox mBox = new MessageBox();
+        for(int t = 0; t < threads; t++)
+            mBox.newUser("user" + t, "chiave");
+        for(int u = 0; u < USERS; u++)
+            mBox.newUser("idle" + u, "chiave");
+        return mBox;
+    }
+
+    /**
+     * Crea una sessione che scarta le risposte e completa il log in come farebbe un client.
+     * @param mBox La {@code MessageBox} del server.
+     * @param relay Il {@code FileRelay} del server.
+     * @param metrics Le {@code ServerMetrics} del server.
+     * @param userName Lo username.
+     * @return La sessione pronta a ricevere comandi.
+     */
+    private static ServerProtocol login(MessageBox mBox, FileRelay relay, ServerMetrics metrics, String userName) {
+        ServerProtocol session = new ServerProtocol(mBox, relay, metrics, new HashMap<String, String>(), 
+                OutputStream.nullOutputStream(), Runnable::run, true, 16);
+        session.start();
+        session.handleLine(userName);
+        session.handleLine("chiave");
+        return session;
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+import java.io.BufferedReader;                      //Righe del server
+import java.io.IOException;                         //Errori di connessione
+import java.io.InputStreamReader;
+import java.io.OutputStream;                        //Log in delle sessioni
+import java.lang.management.ManagementFactory;      //Proxy dei MXBean del server
+import java.lang.management.MemoryMXBean;           //Heap del server
+import java.lang.management.ThreadMXBean;           //Thread del server
+import java.net.InetSocketAddress;                  //Indirizzo del server
+import java.net.Socket;                             //Socket
+import java.nio.charset.StandardCharsets;           //Codifica UTF-8
+import java.nio.file.Files;                         //Memoria residente da /proc
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;                         //Sessioni aperte
+import java.util.List;
+import javax.management.MBeanServerConnection;      //Connessione JMX al server
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * La classe {@code SessionScalingBenchmark} misura quante sessioni inattive un {@link Server} riesce a tenere aperte 
+ * con ogni motore, e quanta memoria e quanti thread gli costano.
+ * <p>
+ * Per ogni motore indicato avvia un {@link Server} come processo figlio, con l'agente JMX attivo su {@code --jmx-port}, 
+ * poi apre una alla volta fino a {@code --sessions} connessioni con il protocollo di testo, completa il log in 
+ * e le lascia inattive. Ogni {@code --step} sessioni, e quando una sessione non si apre, legge dal server via JMX 
+ * l'heap occupato dopo una garbage collection e il numero di thread di piattaforma, e su Linux la memoria residente 
+ * del processo, che comprende anche gli stack dei thread. Alla fine stampa le sessioni raggiunte per ogni motore.
+ * <p>
+ * Con {@code --engine=thread} ogni sessione ha un thread di piattaforma, con {@code --engine=virtual} un virtual thread 
+ * che non compare tra i thread di piattaforma, e con {@code --engine=nio} le sessioni sono servite da pochi event loop. 
+ * Il benchmark tiene aperto un socket per sessione, quindi il limite di file aperti ({@code ulimit -n}) 
+ * dell'utente deve essere piu' alto di {@code --sessions}, sia per il benchmark che per il server.
+ * <p>
+ * Argomenti, tutti facoltativi:
+ * <ul>
+ *    <li>{@code --port=N} - Porta del server avviato dal benchmark (default: 65490)</li>
+ *    <li>{@code --jmx-port=N} - Porta dell'agente JMX del server (default: 65491)</li>
+ *    <li>{@code --engines=E1,E2,...} - Motori da confrontare, tra thread, virtual e nio (default: thread,virtual)</li>
+ *    <li>{@code --sessions=N} - Numero massimo di sessioni da aprire (default: 5000)</li>
+ *    <li>{@code --step=N} - Sessioni tra due misure (default: 1000)</li>
+ *    <li>{@code --heap=SIZE} - Heap massimo del server, passato come {@code -Xmx} (default: quello della JVM)</li>
+ * </ul>
+ * Va compilata insieme ai sorgenti del server, che viene avviato con lo stesso classpath:
+ * <blockquote><pre>
+ *    javac -d classes ../Server/src/*.java src/SessionScalingBenchmark.java
+ *    java -cp classes SessionScalingBenchmark --sessions=10000 --heap=256m
+ * </pre></blockquote>
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class SessionScalingBenchmark {
+    private static final int TIMEOUT_MILLIS = 10_000; //Attesa massima del log in e dell'avvio del server
+
+    private int portNumber = 65490;
+    private int jmxPort = 65491;
+    private String[] engines = {"thread", "virtual"};
+    private int maxSessions = 5000;
+    private int step = 1000;
+    private String heap = null;
+
+    /**
+     * Avvia il benchmark.
+     * @param args Gli argomenti descritti nella classe.
+     * @throws Exception Errori di avvio del server o della connessione JMX.
+     */
+    public static void main(String[] args) throws Exception {
+        SessionScalingBenchmark benchmark = new SessionScalingBenchmark();
+        for(String arg : args) {
+            String argArray[] = arg.split("=", 2);
+            String value = argArray.length > 1 ? argArray[1] : "";
+            switch (argArray[0]) {
+                case "--port":
+                    benchmark.portNumber = Integer.parseInt(value);
+                break;
+
+                case "--jmx-port":
+                    benchmark.jmxPort = Integer.parseInt(value);
+                break;
+
+                case "--engines":
+                    benchmark.engines = value.split(",");
+                break;
+
+                case "--sessions":
+                    benchmark.maxSessions = Math.max(1, Integer.parseInt(value));
+                break;
+
+                case "--step":
+                    benchmark.step = Math.max(1, Integer.parseInt(value));
+                break;
+
+                case "--heap":
+                    benchmark.heap = value;
+                break;
+
+                default:
+                    System.out.println("Argomento non riconosciuto: " + arg);
+                break;
+            }
+        }
+
+        List<String> summary = new ArrayList<String>();
+        for(String engine : benchmark.engines)
+            summary.add(engine + ": " + benchmark.run(engine));
+        System.out.println();
+        System.out.println("Sessioni raggiunte");
+        for(String line : summary)
+            System.out.println("  " + line);
+    }
+
+    /**
+     * Avvia il server con un motore, apre le sessioni e stampa le misure.
+     * @param engine Il motore del server.
+     * @return Le sessioni aperte e, se non sono arrivate a {@code --sessions}, il motivo.
+     * @throws Exception Errori di avvio del server o della connessione JMX.
+     */
+    private String run(String engine) throws Exception {
+        System.out.println("Motore " + engine);
+        Process server = startServer(engine);
+        List<Socket> sessions = new ArrayList<Socket>();
+        String stopped = null; //Motivo per cui una sessione non si e' aperta
+        JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:" + jmxPort + "/jmxrmi");
+        JMXConnector connector = null;
+        try {
+            connector = JMXConnectorFactory.connect(url);
+            MBeanServerConnection connection = connector.getMBeanServerConnection();
+            MemoryMXBean memory = ManagementFactory.newPlatformMXBeanProxy(connection, ManagementFactory.MEMORY_MXBEAN_NAME, MemoryMXBean.class);
+            ThreadMXBean threads = ManagementFactory.newPlatformMXBeanProxy(connection, ManagementFactory.THREAD_MXBEAN_NAME, ThreadMXBean.class);
+            long baseHeap = sample(server, memory, threads, 0, 0, 0);
+
+            long start = System.nanoTime();
+            while(sessions.size() < maxSessions) {
+                try {
+                    sessions.add(open("idle" + sessions.size()));
+                } catch (IOException e) {
+                    stopped = server.isAlive() ? e.getMessage() : "il server e' terminato";
+                    break;
+                }
+                if(sessions.size() % step == 0 && sample(server, memory, threads, sessions.size(), System.nanoTime() - start, baseHeap) < 0) {
+                    stopped = "il server non risponde via JMX";
+                    break;
+                }
+            }
+            if(sessions.size() % step != 0 && server.isAlive())
+                sample(server, memory, threads, sessions.size(), System.nanoTime() - start, baseHeap);
+        } finally {
+            for(Socket socket : sessions) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    //Gia' chiuso
+                }
+            }
+            if(connector != null) {
+                try {
+                    connector.close();
+                } catch (IOException e) {
+                    //Il server ha gia' chiuso la connessione JMX
+                }
+            }
+            server.destroyForcibly().waitFor();
+        }
+        if(stopped != null)
+            System.out.println("  Fermo a " + sessions.size() + " sessioni: " + stopped);
+        return sessions.size() + (stopped == null ? "" : " (" + stopped + ")");
+    }
+
+    /**
+     * Stampa l'heap, i thread e la memoria residente del server con un certo numero di sessioni aperte.
+     * @param server Il processo del server.
+     * @param memory Il {@link MemoryMXBean} del server.
+     * @param threads Il {@link ThreadMXBean} del server.
+     * @param sessions Le sessioni aperte.
+     * @param elapsedNanos Tempo impiegato ad aprirle.
+     * @param baseHeap Heap occupato senza sessioni, per calcolare quello di una sessione.
+     * @return L'heap occupato in byte, -1 se il server non ha risposto, ad esempio perche' ha esaurito l'heap.
+     */
+    private long sample(Process server, MemoryMXBean memory, ThreadMXBean threads, int sessions, long elapsedNanos, long baseHeap) {
+        long used;
+        int threadCount;
+        int peakThreadCount;
+        try {
+            memory.gc();
+            used = memory.getHeapMemoryUsage().getUsed();
+            threadCount = threads.getThreadCount();
+            peakThreadCount = threads.getPeakThreadCount();
+        } catch (RuntimeException e) { //Gli errori JMX arrivano dal proxy come UndeclaredThrowableException
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.out.println(String.format("  %7d sessioni  misura non riuscita: %s", sessions, cause.getClass().getSimpleName()));
+            return -1;
+        }
+        StringBuilder line = new StringBuilder();
+        line.append(String.format("  %7d sessioni  heap %7.1f MB", sessions, used / 1048576.0));
+        if(sessions > 0)
+            line.append(String.format(" (%5d B/sessione)", (used - baseHeap) / sessions));
+        line.append(String.format("  thread %5d (picco %5d)", threadCount, peakThreadCount));
+        long rss = residentBytes(server.pid());
+        if(rss >= 0)
+            line.append(String.format("  RSS %7.1f MB", rss / 1048576.0));
+        if(sessions > 0)
+            line.append(String.format("  %6.0f sessioni/s", sessions / (elapsedNanos / 1e9)));
+        System.out.println(line);
+        return used;
+    }
+
+    /**
+     * Apre una sessione e completa il log in con il protocollo di testo.
+     * @param userName Lo username della sessione.
+     * @return Il socket della sessione, che resta aperto e inattivo.
+     * @throws IOException Se la connessione o il log in non riescono entro {@link #TIMEOUT_MILLIS}.
+     */
+    private Socket open(String userName) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress("localhost", portNumber), TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            expect(in, "INPUT");
+            out.write((userName + "\n").getBytes(StandardCharsets.UTF_8));
+            expect(in, "SENDKEY");
+            out.write(("chiave-" + userName + "\n").getBytes(StandardCharsets.UTF_8));
+            expect(in, "INPUTC");
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static void expect(BufferedReader in, String keyword) throws IOException {
+        String line;
+        while((line = in.readLine()) != null) {
+            if(line.equals(keyword))
+                return;
+        }
+        throw new IOException("connessione chiusa");
+    }
+
+    /**
+     * Avvia il server con l'agente JMX e aspetta che accetti connessioni. L'output del server viene scartato.
+     * @param engine Il motore del server.
+     * @return Il processo del server.
+     * @throws IOException Se il server non si avvia entro {@link #TIMEOUT_MILLIS}.
+     * @throws InterruptedException Se il thread viene interrotto mentre aspetta.
+     */
+    private Process startServer(String engine) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if(heap != null)
+            command.add("-Xmx" + heap);
+        command.add("-Dcom.sun.management.jmxremote.port=" + jmxPort);
+        command.add("-Dcom.sun.management.jmxremote.rmi.port=" + jmxPort);
+        command.add("-Dcom.sun.management.jmxremote.authenticate=false");
+        command.add("-Dcom.sun.management.jmxremote.ssl=false");
+        command.add("-Djava.rmi.server.hostname=localhost");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Server");
+        command.add("--port=" + portNumber);
+        command.add("--engine=" + engine);
+        Process server = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", portNumber), 200);
+                return server;
+            } catch (IOException e) {
+                if(!server.isAlive() || System.currentTimeMillis() > deadline) {
+                    server.destroyForcibly();
+                    throw new IOException("il server (" + engine + ") non si e' avviato");
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Legge la memoria residente di un processo da {@code /proc}, che esiste solo su Linux.
+     * @param pid Il processo.
+     * @return La memoria residente in byte, -1 se non e' disponibile.
+     */
+    private static long residentBytes(long pid) {
+        Path status = Paths.get("/proc", Long.toString(pid), "status");
+        try {
+            for(String line : Files.readAllLines(status, StandardCharsets.UTF_8)) {
+                if(line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        } catch (IOException | NumberFormatException e) {
+            //Non e' Linux o il processo e' terminato
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,412 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.BufferedReader;                      //Righe del server
+import java.io.File;
+import java.io.IOException;                         //Errori di connessione e dei file
+import java.io.InputStreamReader;
+import java.io.OutputStream;                        //Comandi verso il server
+import java.net.InetSocketAddress;                  //Indirizzo del server
+import java.net.Socket;                             //Socket
+import java.nio.charset.StandardCharsets;           //Codifica UTF-8
+import java.nio.file.DirectoryStream;               //Segmenti rimasti nel log
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;                         //Righe di una risposta
+import java.util.Comparator;                        //Eliminazione della cartella temporanea
+import java.util.HashMap;                           //Messaggi ricevuti
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;      //Messaggi inviati, scritti dai thread dei mandanti
+import java.util.concurrent.ThreadLocalRandom;      //Durata delle raffiche e destinatari
+import java.util.concurrent.atomic.AtomicLong;      //Id dei messaggi
+import java.util.stream.Stream;
+
+/**
+ * La classe {@code WalCrashHarness} controlla che il {@link MessageLog} non perda e non duplichi messaggi 
+ * quando il server viene terminato di colpo.
+ * <p>
+ * Avvia un {@link Server} come processo figlio con {@code --wal-dir} e segmenti piccoli, che si riempiono in fretta, 
+ * poi ripete per {@code --crashes} volte:
+ * <ol>
+ *    <li>il destinatario {@code rx} legge tutti i messaggi in attesa, quindi il log riceve gli ACK</li>
+ *    <li>un messaggio viene inviato all'utente {@code idle}, che non si connette fino alla fine: 
+ *        il suo messaggio tiene sul disco il segmento in cui e' stato scritto, insieme a quelli successivi</li>
+ *    <li>{@code --senders} mandanti inviano messaggi numerati, uno alla volta, a {@code rx} e ogni tanto a {@code idle}</li>
+ *    <li>dopo un tempo casuale fino a {@code --burst} millisecondi, durante la raffica, il server viene terminato 
+ *        con {@link Process#destroyForcibly()} (SIGKILL) e riavviato sullo stesso log</li>
+ * </ol>
+ * Alla fine {@code rx} e {@code idle} leggono tutto quello che resta. Un messaggio e' confermato quando il server 
+ * ha risposto al suo {@code send} senza errori: ogni messaggio confermato deve essere ricevuto esattamente una volta 
+ * e dal suo destinatario. I messaggi inviati ma non confermati prima del crash possono esserci o no, ma non due volte. 
+ * Se qualcosa non torna stampa gli id e termina con codice 1, lasciando nella cartella temporanea il log e l'output del server.
+ * <p>
+ * Il server viene terminato solo durante gli invii: un ACK viene scritto quando il messaggio esce dalla coda, 
+ * prima di essere inviato al client, quindi un crash durante un {@code receive} puo' perdere i messaggi 
+ * che stavano per essere inviati e non e' un errore del log.
+ * <p>
+ * Argomenti, tutti facoltativi:
+ * <ul>
+ *    <li>{@code --port=N} - Porta del server avviato dall'harness (default: 65500)</li>
+ *    <li>{@code --engine=thread|virtual|nio} - Motore del server (default: thread)</li>
+ *    <li>{@code --crashes=N} - Numero di crash (default: 5)</li>
+ *    <li>{@code --senders=N} - Numero di mandanti (default: 2)</li>
+ *    <li>{@code --burst=MS} - Durata massima di una raffica prima del crash (default: 1500)</li>
+ *    <li>{@code --segment-size=N} - Dimensione dei segmenti del log (default: 65536)</li>
+ *    <li>{@code --message-bytes=N} - Lunghezza dei messaggi (default: 200)</li>
+ * </ul>
+ * Va compilata insieme ai sorgenti del server, che viene avviato con lo stesso classpath:
+ * <blockquote><pre>
+ *    javac -d classes ../Server/src/*.java src/WalCrashHarness.java
+ *    java -cp classes WalCrashHarness --crashes=10
+ * </pre></blockquote>
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class WalCrashHarness {
+    private static final int TIMEOUT_MILLIS = 10_000; //Attesa massima di una risposta e dell'avvio del server
+
+    private int portNumber = 65500;
+    private String engine = "thread";
+    private int crashes = 5;
+    private int numSenders = 2;
+    private int burstMillis = 1500;
+    private int segmentSize = 64 << 10;
+    private int messageBytes = 200;
+
+    private Path workDir;                        //Cartella temporanea con il log e l'output del server
+    private Path walDir;                         //Cartella del log
+    private int starts = 0;                      //Avvii del server, per i file di output
+    private String filler;                       //Contenuto dei messaggi dopo l'id
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, String> attempted = new ConcurrentHashMap<Long, String>(); //Destinatario di ogni messaggio inviato
+    private final Map<Long, String> confirmed = new ConcurrentHashMap<Long, String>(); //Destinatario di ogni messaggio confermato
+    private final Map<Long, Integer> received = new HashMap<Long, Integer>();         //Volte in cui e' stato ricevuto ogni messaggio
+    private final List<String> wrongReceiver = new ArrayList<String>();                //Messaggi ricevuti dall'utente sbagliato
+
+    /**
+     * Una connessione al server con il protocollo di testo, dopo il log in.
+     */
+    private class Session implements AutoCloseable {
+        private final String userName;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream out;
+
+        Session(String userName) throws IOException {
+            this.userName = userName;
+            socket = new Socket();
+            socket.connect(new InetSocketAddress("localhost", portNumber), TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = socket.getOutputStream();
+            expect("INPUT");
+            line(userName);
+            expect("SENDKEY");
+            line("chiave-" + userName);
+            expect("INPUTC");
+        }
+
+        /**
+         * Invia un comando e legge la risposta fino all'{@code INPUTC}.
+         * @param command Il comando.
+         * @return Le righe della risposta.
+         * @throws IOException Se la connessione si chiude, ad esempio per il crash del server.
+         */
+        List<String> command(String command) throws IOException {
+            line(command);
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while(!(line = readLine()).equals("INPUTC"))
+                lines.add(line);
+            return lines;
+        }
+
+        /**
+         * Legge tutti i messaggi in attesa, con {@code receive} finche' il server non risponde che non ce ne sono altri.
+         * @throws IOException Errori di connessione.
+         */
+        void drain() throws IOException {
+            while(true) {
+                List<String> lines = command("receive");
+                boolean empty = true;
+                for(int i = 0; i < lines.size(); i++) {
+                    if(lines.get(i).equals("DECRYPT") && i + 1 < lines.size()) {
+                        delivered(userName, lines.get(++i));
+                        empty = false;
+                    }
+                }
+                if(empty)
+                    return;
+            }
+        }
+
+        private void expect(String keyword) throws IOException {
+            while(!readLine().equals(keyword));
+        }
+
+        private String readLine() throws IOException {
+            String line = in.readLine();
+            if(line == null)
+                throw new IOException("connessione chiusa");
+            return line;
+        }
+
+        private void line(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //Gia' chiuso
+            }
+        }
+    }
+
+    /**
+     * Avvia l'harness.
+     * @param args Gli argomenti descritti nella classe.
+     * @throws Exception Errori di avvio del server o dei file temporanei.
+     */
+    public static void main(String[] args) throws Exception {
+        WalCrashHarness harness = new WalCrashHarness();
+        for(String arg : args) {
+            String argArray[] = arg.split("=", 2);
+            String value = argArray.length > 1 ? argArray[1] : "";
+            switch (argArray[0]) {
+                case "--port":
+                    harness.portNumber = Integer.parseInt(value);
+                break;
+
+                case "--engine":
+                    harness.engine = value;
+                break;
+
+                case "--crashes":
+                    harness.crashes = Math.max(1, Integer.parseInt(value));
+                break;
+
+                case "--senders":
+                    harness.numSenders = Math.max(1, Integer.parseInt(value));
+                break;
+
+                case "--burst":
+                    harness.burstMillis = Math.max(1, Integer.parseInt(value));
+                break;
+
+                case "--segment-size":
+                    harness.segmentSize = Integer.parseInt(value);
+                break;
+
+                case "--message-bytes":
+                    harness.messageBytes = Integer.parseInt(value);
+                break;
+
+                default:
+                    System.out.println("Argomento non riconosciuto: " + arg);
+                break;
+            }
+        }
+        System.exit(harness.run() ? 0 : 1);
+    }
+
+    /**
+     * Esegue i crash e i riavvii, poi controlla i messaggi ricevuti.
+     * @return {@code true} se nessun messaggio confermato e' stato perso o duplicato.
+     * @throws Exception Errori di avvio del server o dei file temporanei.
+     */
+    private boolean run() throws Exception {
+        workDir = Files.createTempDirectory("wal-crash");
+        walDir = workDir.resolve("wal");
+        filler = "x".repeat(messageBytes);
+
+        //idle deve esistere per ricevere messaggi: fa il log in una volta e si disconnette
+        Process server = startServer();
+        new Session("idle").close();
+
+        for(int crash = 1; crash <= crashes; crash++) {
+            try (Session rx = new Session("rx")) {
+                rx.drain(); //Gli ACK di questi messaggi finiscono nei segmenti nuovi, insieme agli invii della raffica
+            }
+            try (Session pin = new Session("pin")) {
+                send(pin, "idle");
+            }
+
+            //Raffica di invii, interrotta dal crash
+            List<Thread> senders = new ArrayList<Thread>();
+            for(int s = 0; s < numSenders; s++) {
+                String userName = "tx" + s;
+                Thread sender = new Thread(() -> {
+                    try (Session tx = new Session(userName)) {
+                        while(true)
+                            send(tx, ThreadLocalRandom.current().nextInt(50) == 0 ? "idle" : "rx");
+                    } catch (IOException e) {
+                        //Il server e' stato terminato
+                    }
+                }, "sender-" + s);
+                sender.start();
+                senders.add(sender);
+            }
+            Thread.sleep(1 + ThreadLocalRandom.current().nextInt(burstMillis));
+            server.destroyForcibly().waitFor();
+            for(Thread sender : senders)
+                sender.join();
+            System.out.println("Crash " + crash + ": " + confirmed.size() + " messaggi confermati, " 
+                    + segments() + " segmenti nel log");
+            server = startServer();
+        }
+
+        //Ultimo avvio: i destinatari leggono tutto quello che resta
+        try (Session rx = new Session("rx"); Session idle = new Session("idle")) {
+            rx.drain();
+            idle.drain();
+        }
+        server.destroyForcibly().waitFor();
+        return check();
+    }
+
+    /**
+     * Invia un messaggio con un nuovo id e lo segna come confermato se il server non risponde con un errore.
+     * Un destinatario non connesso non e' un errore: il messaggio resta in coda.
+     * @param session La sessione del mandante.
+     * @param receiver Il destinatario.
+     * @throws IOException Se la connessione si chiude.
+     */
+    private void send(Session session, String receiver) throws IOException {
+        long id = nextId.incrementAndGet();
+        attempted.put(id, receiver);
+        for(String line : session.command("send " + receiver + " m" + id + "-" + filler)) {
+            if(!line.contains("non e' online"))
+                return;
+        }
+        confirmed.put(id, receiver);
+    }
+
+    /**
+     * Registra un messaggio ricevuto.
+     * @param userName Lo user che l'ha ricevuto.
+     * @param line La riga {@code [HH:mm]<mandante> m<id>-...} del messaggio.
+     */
+    private void delivered(String userName, String line) {
+        int start = line.indexOf("> m") + 3;
+        long id = Long.parseLong(line.substring(start, line.indexOf('-', start)));
+        received.merge(id, 1, Integer::sum);
+        String receiver = attempted.get(id);
+        if(receiver != null && !receiver.equals(userName))
+            wrongReceiver.add("m" + id + " per " + receiver + " ricevuto da " + userName);
+    }
+
+    /**
+     * Confronta i messaggi confermati con quelli ricevuti e stampa il risultato.
+     * @return {@code true} se non ci sono messaggi persi, duplicati, sconosciuti o ricevuti dall'utente sbagliato.
+     * @throws IOException Errori di eliminazione della cartella temporanea.
+     */
+    private boolean check() throws IOException {
+        List<Long> lost = new ArrayList<Long>();
+        List<Long> duplicated = new ArrayList<Long>();
+        List<Long> unknown = new ArrayList<Long>();
+        for(Long id : confirmed.keySet())
+            if(!received.containsKey(id))
+                lost.add(id);
+        for(Map.Entry<Long, Integer> entry : received.entrySet()) {
+            if(entry.getValue() > 1)
+                duplicated.add(entry.getKey());
+            if(!attempted.containsKey(entry.getKey()))
+                unknown.add(entry.getKey());
+        }
+        lost.sort(null);
+        duplicated.sort(null);
+
+        System.out.println("Crash: " + crashes + ", messaggi inviati: " + attempted.size() + ", confermati: " + confirmed.size() 
+                + ", ricevuti: " + received.size() + ", segmenti rimasti: " + segments());
+        System.out.println("Persi: " + lost.size() + (lost.isEmpty() ? "" : " " + head(lost)));
+        System.out.println("Duplicati: " + duplicated.size() + (duplicated.isEmpty() ? "" : " " + head(duplicated)));
+        if(!unknown.isEmpty())
+            System.out.println("Sconosciuti: " + head(unknown));
+        if(!wrongReceiver.isEmpty())
+            System.out.println("Destinatario sbagliato: " + head(wrongReceiver));
+
+        boolean ok = lost.isEmpty() && duplicated.isEmpty() && unknown.isEmpty() && wrongReceiver.isEmpty();
+        if(ok) {
+            try (Stream<Path> paths = Files.walk(workDir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        else {
+            System.out.println("Log e output del server in " + workDir);
+        }
+        return ok;
+    }
+
+    /**
+     * Avvia il server sul log e aspetta che accetti connessioni.
+     * @return Il processo del server.
+     * @throws IOException Se il server non si avvia entro {@link #TIMEOUT_MILLIS}.
+     * @throws InterruptedException Se il thread viene interrotto mentre aspetta.
+     */
+    private Process startServer() throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "Server", 
+                "--port=" + portNumber, "--engine=" + engine, "--wal-dir=" + walDir, "--wal-segment-size=" + segmentSize)
+                .redirectErrorStream(true)
+                .redirectOutput(workDir.resolve("server-" + (++starts) + ".log").toFile())
+                .start();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", portNumber), 200);
+                return server;
+            } catch (IOException e) {
+                if(!server.isAlive() || System.currentTimeMillis() > deadline) {
+                    server.destroyForcibly();
+                    throw new IOException("il server non si e' avviato, vedi " + workDir);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * @return Il numero di segmenti nella cartella del log.
+     * @throws IOException Errori di lettura della cartella.
+     */
+    private int segments() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(walDir, "segment-*.log")) {
+            for(Path path : stream)
+                count++;
+        }
+        return count;
+    }
+
+    private static String head(List<?> list) {
+        return list.size() <= 20 ? list.toString() : list.subList(0, 20) + "...";
+    }
+}
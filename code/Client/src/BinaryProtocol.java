@@ -0,0 +1,145 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.IOException;   //Errori di I/O
+import java.io.OutputStream;  //Flusso di byte verso il server
+
+/**
+ * La classe {@code BinaryProtocol} contiene le costanti del protocollo binario, 
+ * alternativo al protocollo a righe di testo. E' la stessa del server, senza la parte di negoziazione.
+ * <p>
+ * Appena connesso, un client che supporta il protocollo binario invia la riga {@code HELLO versione}, 
+ * con la versione piu' alta che conosce. Il server risponde con la riga {@code HELLO versione} 
+ * con la versione scelta, e da quel momento entrambi usano solo frame binari. 
+ * Un server che non conosce il protocollo binario tratta la riga come uno username non valido (contiene uno spazio) 
+ * e richiede lo username, quindi il client capisce che deve continuare con le righe di testo.
+ * <p>
+ * Ogni frame e' formato da:
+ * <ul>
+ *    <li>4 byte - Lunghezza del contenuto, big endian</li>
+ *    <li>1 byte - Opcode, ovvero il tipo di frame</li>
+ *    <li>Contenuto</li>
+ * </ul>
+ * Le stringhe sono in UTF-8. Dove un frame contiene piu' campi, quelli che precedono l'ultimo sono preceduti 
+ * dalla loro lunghezza in 2 byte, mentre l'ultimo occupa il resto del frame. Quindi i messaggi possono 
+ * contenere qualsiasi carattere, anche i caratteri di fine riga.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public final class BinaryProtocol {
+    /** Versione del protocollo binario supportata dal client. La versione 2 aggiunge i frame dei file. */
+    public static final int VERSION = 2;
+    /** Parola con cui inizia la riga di negoziazione della versione. */
+    public static final String HELLO = "HELLO";
+    /** Lunghezza dell'intestazione di un frame: lunghezza e opcode. */
+    public static final int HEADER_LENGTH = 5;
+    /** Lunghezza massima del contenuto di un frame. */
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    //Frame inviati dal client
+    /** Una riga, con lo stesso significato che ha nel protocollo di testo (username, chiave, risposte e comandi). */
+    public static final byte LINE = 0x01;
+    /** Invio di un messaggio: destinatario, messaggio criptato. */
+    public static final byte SEND = 0x02;
+    /** Richiesta dei messaggi ricevuti, senza contenuto. */
+    public static final byte RECEIVE = 0x03;
+    /** Invio di un messaggio solo se la chiave del destinatario non e' cambiata: destinatario, impronta della chiave, messaggio criptato. */
+    public static final byte SEND_CHECKED = 0x04;
+    /** Offerta di un file (versione 2): destinatario, impronta della chiave, nome del file, id scelto dal client (4 byte), 
+     *  dimensione in chiaro (8 byte), chiave di sessione criptata. Il server risponde come ad un comando. */
+    public static final byte FILE_OFFER = 0x05;
+    /** Byte criptati di un file in invio: id (4 byte), byte. Non ha risposta e va inviato solo entro il credito concesso dal server. */
+    public static final byte FILE_DATA = 0x06;
+    /** Fine di un file in invio: id (4 byte). Non ha risposta. */
+    public static final byte FILE_END = 0x07;
+    /** Annullamento di un file in invio: id (4 byte). Non ha risposta. */
+    public static final byte FILE_ABORT = 0x08;
+
+    //Frame inviati dal server
+    /** Testo da mostrare all'utente. */
+    public static final byte TEXT = 0x11;
+    /** Richiesta di un input dell'utente, senza contenuto. */
+    public static final byte INPUT = 0x12;
+    /** Richiesta di un comando, senza contenuto. */
+    public static final byte INPUTC = 0x13;
+    /** Richiesta della chiave pubblica del client, senza contenuto. */
+    public static final byte SENDKEY = 0x14;
+    /** Conferma dell'uscita, senza contenuto. */
+    public static final byte QUIT = 0x15;
+    /** Un messaggio criptato: ora di invio in millisecondi (8 byte), mandante, messaggio criptato. */
+    public static final byte MESSAGE = 0x16;
+    /** La chiave pubblica chiesta con {@code getkey}. */
+    public static final byte KEY = 0x17;
+    /** Piu' messaggi criptati: numero di messaggi (2 byte), poi per ognuno ora di invio (8 byte), mandante, 
+     *  lunghezza del messaggio criptato (4 byte) e messaggio criptato. */
+    public static final byte MESSAGES = 0x18;
+    /** La chiave pubblica attuale del destinatario di un invio condizionato, che non e' stato eseguito perche' la chiave e' cambiata. */
+    public static final byte NEWKEY = 0x19;
+    /** Inizio di un file in arrivo: id scelto dal server (4 byte), dimensione in chiaro (8 byte), mandante, nome del file, 
+     *  chiave di sessione criptata. */
+    public static final byte FILE_START = 0x1A;
+    /** Byte criptati di un file in arrivo: id (4 byte), byte. Il frame puo' dividere i blocchi criptati in qualsiasi punto. */
+    public static final byte FILE_CHUNK = 0x1B;
+    /** Fine di un file in arrivo: id (4 byte). */
+    public static final byte FILE_DONE = 0x1C;
+    /** Annullamento di un file in arrivo, il mandante si e' disconnesso o ha annullato l'invio: id (4 byte). */
+    public static final byte FILE_CANCEL = 0x1D;
+    /** Credito per un file in invio: id scelto dal client (4 byte), byte che il client puo' ancora inviare (4 byte). */
+    public static final byte FILE_CREDIT = 0x1E;
+    /** Fine forzata di un file in invio, il destinatario si e' disconnesso: id scelto dal client (4 byte). */
+    public static final byte FILE_STOP = 0x1F;
+    /** Un utente si e' connesso o disconnesso, solo dopo {@code presence on}: stato (1 byte, 1 se online, 0 se offline), userName. */
+    public static final byte PRESENCE = 0x20;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Scrive l'intestazione di un frame.
+     * @param out Il flusso su cui scrivere.
+     * @param opcode Il tipo di frame.
+     * @param length La lunghezza del contenuto.
+     * @throws IOException Errori di I/O.
+     */
+    public static void writeHeader(OutputStream out, byte opcode, int length) throws IOException {
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(opcode);
+    }
+
+    /**
+     * Scrive la lunghezza di un campo in 2 byte.
+     * @param out Il flusso su cui scrivere.
+     * @param length La lunghezza del campo, al massimo 65535.
+     * @throws IOException Errori di I/O.
+     */
+    public static void writeShort(OutputStream out, int length) throws IOException {
+        out.write(length >>> 8);
+        out.write(length);
+    }
+}
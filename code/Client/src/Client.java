@@ -24,16 +24,184 @@
  */
 
 import java.net.*; //Socket
-import java.io.*;  //PrintWriter|BufferedReader|InputStreamReader|IOException
+import java.io.*;  //DataInputStream|DataOutputStream|BufferedReader|InputStreamReader|IOException
+import java.nio.charset.StandardCharsets;        //Codifica UTF-8
+import java.nio.file.Files;                      //File da inviare
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;                        //Ora di invio dei messaggi
+import java.time.ZoneId;                         //Fuso orario
+import java.time.format.DateTimeFormatter;       //Formattazione dell'ora
+import java.util.ArrayDeque;                     //Comandi in attesa di risposta
+import java.util.ArrayList;                      //Righe trattenute durante la negoziazione
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;       //Code tra i thread del client
+import java.util.concurrent.CompletableFuture;   //Chiavi lette o generate in background
+import java.util.concurrent.ConcurrentHashMap;   //File in invio, usati dal lettore del socket
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * La classe {@code Client} rappresenta uno user del programma, riceve comandi di protocollo per la 
  * comunicazione dal server e quando consentito invia i suoi comandi del programma.
+ * <p>
+ * Il client e' formato da quattro thread collegati da code:
+ * <ul>
+ *    <li>Il lettore del socket, che legge righe o frame del server, mette i messaggi criptati nella coda da decriptare 
+ *        e tutto il resto nella coda degli eventi</li>
+ *    <li>Il decriptatore, che decripta e stampa i messaggi appena arrivano, in ordine, 
+ *        anche mentre l'utente sta scrivendo e anche in modalita' push</li>
+ *    <li>Il lettore della console, che mette nella coda degli eventi le righe scritte dall'utente</li>
+ *    <li>Il thread principale, che consuma la coda degli eventi, risponde al protocollo e invia i comandi</li>
+ * </ul>
+ * Dopo il log in i comandi vengono inviati appena l'utente li scrive, senza aspettare la richiesta INPUTC del comando precedente: 
+ * il server risponde ai comandi in ordine, quindi ogni INPUTC chiude il piu' vecchio dei comandi in attesa. 
+ * Solo dopo {@code quit} il client aspetta la conferma prima di inviare altri comandi.
+ * <p>
+ * Appena connesso il client chiede al server il {@link BinaryProtocol protocollo binario}. Se il server non lo conosce 
+ * continua con il protocollo a righe di testo, quindi funziona con entrambi i tipi di server.
+ * <p>
+ * Con il protocollo binario le chiavi dei destinatari restano in una {@link KeyCache}: i messaggi vengono criptati 
+ * con la chiave in cache e inviati con l'impronta della chiave, in un solo giro. Solo se la chiave e' cambiata il server 
+ * risponde con quella nuova e il messaggio viene criptato e inviato di nuovo.
+ * <p>
+ * I messaggi vengono criptati con la {@link HybridCipher modalita' ibrida}: una chiave di sessione AES-GCM per ogni destinatario, 
+ * criptata con l'RSA una volta per conversazione, quindi i messaggi possono superare il limite di {@link RSA#maxChars(PublicKey)}. 
+ * La modalita' viene scelta per ogni destinatario: a chi pubblica una chiave nel vecchio formato (versione 1), 
+ * che solo i client che non conoscono la modalita' ibrida usano ancora, i messaggi vengono criptati solo con l'RSA, 
+ * entro il limite della sua chiave. Con {@code --rsa} i messaggi vengono criptati solo con l'RSA per tutti i destinatari.
+ * La chiave del client usa l'esponente pubblico standard, quindi chi gli scrive cripta velocemente; 
+ * con {@code --random-exponent} usa un esponente casuale, in una chiave leggibile anche dai client che non conoscono 
+ * la versione 3 del formato delle chiavi.
+ * <p>
+ * I client che conoscono solo la versione 1 del formato delle chiavi terminano con un errore se chiedono con {@code getkey} 
+ * una chiave delle versioni 2 o 3. Durante la migrazione, con {@code --legacy-key} il client pubblica la propria chiave 
+ * nella versione 1: i client vecchi possono scrivergli e quelli nuovi gli scrivono solo con l'RSA, 
+ * quindi con messaggi non piu' lunghi di {@link RSA#maxChars(PublicKey)}.
+ * <p>
+ * Le chiavi vengono salvate in un {@link KeyStore} e riusate agli avvii successivi, quindi solo il primo avvio aspetta 
+ * la generazione. Con {@code --fresh-key} il client usa invece ogni volta una chiave nuova, presa da un pool di chiavi 
+ * generate in background dagli avvii precedenti.
+ * <p>
+ * Le chiavi vengono lette o generate in background fin dall'avvio: la connessione, la negoziazione del protocollo 
+ * e la scelta dello username non le aspettano, solo la risposta a {@code SENDKEY} e' ferma finche' non sono pronte.
+ * <p>
+ * Con la versione 2 del protocollo binario il comando {@code sendfile destinatario percorso} invia un file ad uno user connesso: 
+ * il file viene criptato a blocchi e inviato da un {@link FileSender} su un thread dedicato, mentre i file in arrivo 
+ * vengono decriptati e salvati da un {@link FileReceiver} man mano che arrivano.
  * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
  * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
  * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
  */
 public class Client {
+    private static final String EOF = new String("EOF"); //Segnala al thread principale che il server ha chiuso la connessione,
+                                                         //confrontato per riferimento
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault()); //Ora dei messaggi
+
+    /**
+     * Un evento per il thread principale: una riga del server o una riga scritta dall'utente.
+     */
+    private static final class Event {
+        private final boolean console; //true se la riga e' stata scritta dall'utente
+        private final String line;
+
+        Event(boolean console, String line) {
+            this.console = console;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Un messaggio ricevuto da decriptare.
+     */
+    private static final class Encrypted {
+        private final String header; //"[HH:mm]<mandante>"
+        private final String msg;    //Messaggio criptato
+
+        Encrypted(String header, String msg) {
+            this.header = header;
+            this.msg = msg;
+        }
+    }
+
+    /**
+     * Tipi di comandi inviati al server, che determinano come vengono gestite le risposte.
+     */
+    private enum Kind {
+        COMMAND,      //Comando qualsiasi, le risposte vengono stampate
+        GETKEY,       //Richiesta della chiave per un messaggio da inviare
+        SEND_CHECKED, //Invio condizionato dall'impronta della chiave in cache
+        FILE_GETKEY,  //Richiesta della chiave per un file da inviare
+        FILE_OFFER,   //Offerta di un file, condizionata dall'impronta della chiave in cache
+        QUIT          //Uscita, il server chiede conferma
+    }
+
+    /**
+     * Un comando inviato al server che aspetta ancora la sua INPUTC.
+     */
+    private static final class Request {
+        private final Kind kind;
+        private final String receiver; //Destinatario, per GETKEY, SEND_CHECKED e i file
+        private final String text;     //Messaggio in chiaro, per GETKEY e SEND_CHECKED, o percorso del file
+        private String key = null;     //Risposta alla GETKEY
+        private boolean resend = false; //true se il server ha risposto a SEND_CHECKED o FILE_OFFER con una chiave nuova
+        private FileSender file = null; //Il file offerto, per FILE_OFFER
+
+        Request(Kind kind, String receiver, String text) {
+            this.kind = kind;
+            this.receiver = receiver;
+            this.text = text;
+        }
+    }
+
+    private volatile boolean binary = false; //true se il server ha accettato il protocollo binario
+    private volatile int version = 0;        //Versione del protocollo binario scelta dal server
+    private DataOutputStream out;            //Scrive nel Buffer del Server, usato dal thread principale e da quelli che inviano file 
+                                             //tenendo il suo lock
+    private CompletableFuture<KeyPair> clientPair; //Paio di chiavi RSA del client, completato quando sono state lette o generate
+    private int maxChars;                    //Massimo numero di caratteri inviabili, calcolato alla richiesta della chiave
+    private boolean hybrid;                  //true se i messaggi vengono criptati con la modalita' ibrida, per chi la conosce
+    private boolean legacyKey;               //true se la chiave del client viene pubblicata nella versione 1 del formato
+    private HybridCipher cipher;             //Decripta i messaggi ricevuti, usato solo dal decriptatore e creato al primo messaggio
+    private int keyCacheSize;                //Numero massimo di chiavi in cache, anche quelle di sessione del decriptatore
+    private KeyCache keys;                   //Chiavi degli ultimi destinatari
+    private FileReceiver files;              //File in arrivo, usato solo dal lettore del socket e creato al primo file
+    private Path downloadDir;                //Cartella dei file ricevuti
+    private Map<Integer, FileSender> senders = new ConcurrentHashMap<Integer, FileSender>(); //File in invio per id
+    private int nextFileId = 0;              //Ultimo id dei file in invio
+    private boolean push;                    //true se il client deve attivare la modalita' push dopo il log in
+    private BlockingQueue<Event> events = new LinkedBlockingQueue<Event>();             //Righe del server e dell'utente
+    private BlockingQueue<Encrypted> encrypted = new LinkedBlockingQueue<Encrypted>();  //Messaggi da decriptare
+    private Deque<Request> pending = new ArrayDeque<Request>(); //Comandi inviati in attesa della loro INPUTC, in ordine
+    private Queue<String> typed = new ArrayDeque<String>();     //Righe dell'utente non ancora inviabili
+    private boolean loggedIn = false;        //true dopo la prima INPUTC
+    private boolean awaitingAnswer = false;  //true se il server ha chiesto un INPUT non ancora inviato
+    private boolean quitting = false;        //true dall'invio di quit alla risposta del server alla conferma
+    private boolean newKeyNext = false;      //true se la prossima riga del server e' la chiave dopo NEWKEY
+
+    /**
+     * Costruttore di {@code Client}.
+     * @param out Il flusso del socket.
+     * @param clientPair Le chiavi del client, anche non ancora pronte.
+     * @param keyCacheSize Numero massimo di chiavi in cache.
+     * @param push {@code true} se il client deve attivare la modalita' push dopo il log in.
+     * @param hybrid {@code true} se i messaggi vengono criptati con la modalita' ibrida.
+     * @param legacyKey {@code true} se la chiave del client viene pubblicata nella versione 1 del formato.
+     * @param downloadDir Cartella dei file ricevuti.
+     */
+    private Client(DataOutputStream out, CompletableFuture<KeyPair> clientPair, int keyCacheSize, boolean push, boolean hybrid, 
+            boolean legacyKey, Path downloadDir) {
+        this.out = out;
+        this.clientPair = clientPair;
+        this.keyCacheSize = keyCacheSize;
+        this.keys = new KeyCache(keyCacheSize);
+        this.push = push;
+        this.hybrid = hybrid;
+        this.legacyKey = legacyKey;
+        this.downloadDir = downloadDir;
+    }
 
     private static void printSafjNest() {
         System.out.println(""
@@ -46,109 +214,822 @@ public class Client {
     }
 
     /**
-     * Si connette al server, genera le chiavi per l'RSA
+     * Legge le righe inviate dal server finche' la connessione non viene chiusa.
+     * I messaggi criptati vengono messi nella coda da decriptare, le altre righe nella coda degli eventi.
+     * <p>
+     * Se il client ha chiesto il protocollo binario, prima aspetta la risposta del server: un server che lo supporta 
+     * risponde {@code HELLO}, da quel momento vengono letti frame. Un server che non lo supporta richiede lo username, 
+     * quindi le righe della prima richiesta vengono scartate e si continua con il testo.
+     * @param in Il flusso del socket.
+     * @param negotiating {@code true} se il client ha inviato la riga {@code HELLO}.
+     */
+    private void readServer(DataInputStream in, boolean negotiating) {
+        String line;
+        List<String> held = new ArrayList<String>(); //Righe ricevute durante la negoziazione
+        boolean firstInput = true;
+        try {
+            while(!binary && (line = readLine(in)) != null) {
+                if(negotiating) {
+                    if(line.startsWith(BinaryProtocol.HELLO + " ")) { //Il server ha accettato
+                        try {
+                            version = Integer.parseInt(line.substring(BinaryProtocol.HELLO.length() + 1).trim());
+                        } catch (NumberFormatException e) {
+                            version = 1;
+                        }
+                        binary = true;
+                    }
+                    else if(line.equals("INPUT") && firstInput) { //Prima richiesta dello username, prima della risposta
+                        held.clear();
+                        firstInput = false;
+                    }
+                    else if(line.equals("INPUT")) { //Seconda richiesta, il server non conosce il protocollo binario
+                        for(String h : held)
+                            fromServer(h);
+                        fromServer(line);
+                        negotiating = false;
+                    }
+                    else {
+                        held.add(line);
+                    }
+                }
+                //Il server avvisa il client che sta per arrivare un messaggio criptato
+                //Quindi lo legge e lo passa al decriptatore
+                //Il messaggio che arriva e' in formato "[data/ora]<mandante> contenuto criptato"
+                else if(line.equals("DECRYPT")) {
+                    line = readLine(in);
+                    if(line == null)
+                        break;
+                    String lineArray[] = line.split(" ", 2);
+                    encrypted.add(new Encrypted(lineArray[0], lineArray.length > 1 ? lineArray[1] : ""));
+                }
+                //Dopo presence on il server avvisa quando un utente si connette (+username) o si disconnette (-username)
+                else if(line.equals("PRESENCE")) {
+                    line = readLine(in);
+                    if(line == null)
+                        break;
+                    if(!line.isEmpty())
+                        presence(line.substring(1), line.charAt(0) == '+');
+                }
+                else {
+                    fromServer(line);
+                }
+            }
+            if(binary)
+                readFrames(in);
+        } catch (IOException e) {
+            //La connessione e' stata chiusa
+        }
+        fromServer(EOF);
+    }
+
+    /**
+     * Legge i frame inviati dal server con il protocollo binario finche' la connessione non viene chiusa.
+     * I comandi del protocollo vengono passati al thread principale come le righe del protocollo di testo.
+     * @param in Il flusso del socket.
+     * @throws IOException Errori di connessione socket.
+     */
+    private void readFrames(DataInputStream in) throws IOException {
+        byte[] payload = new byte[256];
+        while(true) {
+            int length = in.readInt();
+            byte opcode = in.readByte();
+            if(length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH)
+                throw new IOException("frame too long");
+            if(length > payload.length)
+                payload = new byte[length];
+            in.readFully(payload, 0, length);
+
+            switch (opcode) {
+                case BinaryProtocol.TEXT:
+                case BinaryProtocol.KEY:
+                    fromServer(new String(payload, 0, length, StandardCharsets.UTF_8));
+                break;
+
+                //Come nel protocollo di testo, una riga NEWKEY seguita dalla chiave
+                case BinaryProtocol.NEWKEY:
+                    fromServer("NEWKEY");
+                    fromServer(new String(payload, 0, length, StandardCharsets.UTF_8));
+                break;
+
+                case BinaryProtocol.INPUT:
+                    fromServer("INPUT");
+                break;
+
+                case BinaryProtocol.INPUTC:
+                    fromServer("INPUTC");
+                break;
+
+                case BinaryProtocol.SENDKEY:
+                    fromServer("SENDKEY");
+                break;
+
+                case BinaryProtocol.QUIT:
+                    fromServer("QUIT");
+                break;
+
+                //Ora di invio, mandante e messaggio criptato arrivano gia' separati
+                case BinaryProtocol.MESSAGE:
+                    int senderLength = readShort(payload, 8);
+                    encrypted.add(new Encrypted(header(readLong(payload, 0), new String(payload, 10, senderLength, StandardCharsets.UTF_8)), 
+                            new String(payload, 10 + senderLength, length - 10 - senderLength, StandardCharsets.UTF_8)));
+                break;
+
+                //Stato (1 se online) e userName di un utente che si e' connesso o disconnesso
+                case BinaryProtocol.PRESENCE:
+                    if(length > 0)
+                        presence(new String(payload, 1, length - 1, StandardCharsets.UTF_8), payload[0] != 0);
+                break;
+
+                //Piu' messaggi nello stesso frame, ognuno con la lunghezza del messaggio criptato
+                case BinaryProtocol.MESSAGES:
+                    int count = readShort(payload, 0);
+                    int i = 2;
+                    for(int n = 0; n < count; n++) {
+                        long sentAt = readLong(payload, i);
+                        senderLength = readShort(payload, i + 8);
+                        String sender = new String(payload, i + 10, senderLength, StandardCharsets.UTF_8);
+                        i += 10 + senderLength;
+                        int msgLength = (readShort(payload, i) << 16) | readShort(payload, i + 2);
+                        String msg = new String(payload, i + 4, msgLength, StandardCharsets.UTF_8);
+                        i += 4 + msgLength;
+                        encrypted.add(new Encrypted(header(sentAt, sender), msg));
+                    }
+                break;
+
+                //Credito per un file in invio, al primo credito l'invio inizia
+                case BinaryProtocol.FILE_CREDIT:
+                    FileSender fileSender = senders.get(readInt(payload, 0));
+                    if(fileSender != null)
+                        fileSender.grant(readInt(payload, 4));
+                break;
+
+                //Il destinatario non riceve piu' il file
+                case BinaryProtocol.FILE_STOP:
+                    fileSender = senders.remove(readInt(payload, 0));
+                    if(fileSender != null)
+                        fileSender.stop();
+                break;
+
+                //Id, dimensione, mandante e nome preceduti dalla lunghezza, poi la chiave di sessione criptata
+                case BinaryProtocol.FILE_START:
+                    senderLength = readShort(payload, 12);
+                    int nameLength = readShort(payload, 14 + senderLength);
+                    int keyStart = 16 + senderLength + nameLength;
+                    files().start(readInt(payload, 0), readLong(payload, 4), new String(payload, 14, senderLength, StandardCharsets.UTF_8), 
+                            new String(payload, 16 + senderLength, nameLength, StandardCharsets.UTF_8), 
+                            new String(payload, keyStart, length - keyStart, StandardCharsets.UTF_8));
+                break;
+
+                case BinaryProtocol.FILE_CHUNK:
+                    files().data(readInt(payload, 0), payload, 4, length - 4);
+                break;
+
+                case BinaryProtocol.FILE_DONE:
+                    files().done(readInt(payload, 0));
+                break;
+
+                case BinaryProtocol.FILE_CANCEL:
+                    files().cancel(readInt(payload, 0));
+                break;
+
+                default: //Frame sconosciuto, di una versione piu' recente del protocollo
+                break;
+            }
+        }
+    }
+
+    private void fromServer(String line) {
+        events.add(new Event(false, line));
+    }
+
+    /**
+     * Decripta e stampa i messaggi ricevuti, in ordine di arrivo. Viene eseguito da un thread dedicato, 
+     * cosi' la decriptazione non rallenta la lettura del socket.
+     * <p>
+     * Sono accettati sia i messaggi della modalita' ibrida sia quelli criptati solo con l'RSA.
+     */
+    private void decryptMessages() {
+        try {
+            while(true) {
+                Encrypted message = encrypted.take();
+                if(cipher == null) //I messaggi arrivano dopo il log in, quindi le chiavi sono pronte
+                    cipher = new HybridCipher(clientPair.join().getPrivateKey(), keyCacheSize);
+                try {
+                    System.out.println(message.header + " " + cipher.decrypt(message.msg));
+                } catch (IllegalArgumentException e) { //Messaggio modificato o criptato con un'altra chiave
+                    System.out.println(message.header + " Messaggio non decriptabile");
+                }
+            }
+        } catch (InterruptedException e) {
+            //Il client sta terminando
+        }
+    }
+
+    /**
+     * Legge le righe scritte dall'utente e le mette nella coda degli eventi, finche' l'input non finisce.
+     * @param stdIn Input da tastiera.
+     */
+    private void readConsole(BufferedReader stdIn) {
+        String line;
+        try {
+            while((line = stdIn.readLine()) != null)
+                events.add(new Event(true, line));
+        } catch (IOException e) {
+            //Input da tastiera non disponibile
+        }
+    }
+
+    /**
+     * Consuma la coda degli eventi: risponde al protocollo del server e invia i comandi dell'utente, 
+     * finche' il server non conferma l'uscita o chiude la connessione.
+     * @throws IOException Errori di connessione socket.
+     * @throws InterruptedException Se il thread viene interrotto.
+     */
+    private void run() throws IOException, InterruptedException {
+        while(true) {
+            Event event = events.take();
+            if(event.console) {
+                typed.add(event.line);
+            }
+            else {
+                if(event.line == EOF || (!newKeyNext && event.line.equals("QUIT")))
+                    return;
+                handleServerLine(event.line);
+            }
+            sendTyped();
+        }
+    }
+
+    /**
+     * Gestisce una riga del server che non e' un messaggio criptato.
+     * @param line La riga.
+     * @throws IOException Errori di connessione socket.
+     */
+    private void handleServerLine(String line) throws IOException {
+        //Chiave nuova del destinatario dell'invio condizionato in corso
+        if(newKeyNext) {
+            Request head = pending.peek();
+            try {
+                keys.put(head.receiver, line);
+                head.resend = true;
+            } catch (IllegalArgumentException e) { //Il messaggio non viene inviato di nuovo
+                keys.remove(head.receiver);
+                System.out.println("Chiave di " + head.receiver + " non valida");
+            }
+            newKeyNext = false;
+            return;
+        }
+
+        switch (line) {
+            //Il server vuole ricevere un input dall'utente
+            case "INPUT":
+                awaitingAnswer = true;
+                prompt();
+            break;
+
+            //Il server vuole ricevere la chiave pubblica del client
+            //E' l'unico punto in cui il client aspetta le chiavi
+            case "SENDKEY":
+                if(!clientPair.isDone())
+                    System.out.println("Attendo le chiavi RSA...");
+                KeyPair pair = clientPair.join();
+                maxChars = hybrid ? HybridCipher.MAX_CHARS : RSA.maxChars(pair.getPublicKey());
+                writeLine(legacyKey ? pair.getPublicKey().toLegacyString() : pair.getPublicKey().toString());
+            break;
+
+            //Il server ha finito di rispondere al comando piu' vecchio
+            case "INPUTC":
+                Request done = pending.poll();
+                if(done == null) { //Fine del log in
+                    loggedIn = true;
+                    //Al primo comando attiva la modalita' push, se richiesta
+                    if(push) {
+                        push = false;
+                        request(Kind.COMMAND, null, null);
+                        writeLine("push on");
+                    }
+                }
+                else {
+                    complete(done);
+                }
+                if(pending.isEmpty() && typed.isEmpty())
+                    prompt();
+            break;
+
+            //Il destinatario dell'invio condizionato ha cambiato chiave, la prossima riga e' la chiave nuova
+            case "NEWKEY":
+                newKeyNext = true;
+            break;
+
+            //Risposte del server che non sono comandi del protocollo
+            default:
+                Request head = pending.peek();
+                if(head != null && (head.kind == Kind.GETKEY || head.kind == Kind.FILE_GETKEY)) { //La chiave chiesta per un messaggio o un file
+                    head.key = line;
+                    break;
+                }
+                //Il destinatario di un invio condizionato non esiste piu'
+                if(head != null && (head.kind == Kind.SEND_CHECKED || head.kind == Kind.FILE_OFFER) && line.equals("<Server> username non trovato"))
+                    keys.remove(head.receiver);
+                System.out.println(line);
+            break;
+        }
+    }
+
+    /**
+     * Completa un comando a cui il server ha finito di rispondere.
+     * @param done Il comando.
+     * @throws IOException Errori di connessione socket.
+     */
+    private void complete(Request done) throws IOException {
+        switch (done.kind) {
+            //Arrivata la chiave del destinatario, cripta e invia il messaggio
+            case GETKEY:
+                KeyCache.Entry key = cacheKey(done);
+                if(key != null && fits(done.text, key)) {
+                    request(Kind.COMMAND, null, null);
+                    writeSend(done.receiver, encrypt(done.text, key));
+                }
+            break;
+
+            //Arrivata la chiave del destinatario, offre il file
+            case FILE_GETKEY:
+                key = cacheKey(done);
+                if(key != null)
+                    offerFile(done.receiver, done.text, key);
+            break;
+
+            //Se il destinatario ha cambiato chiave offre di nuovo il file con quella nuova, se il server l'ha rifiutato lo dimentica
+            case FILE_OFFER:
+                if(done.resend) {
+                    senders.remove(done.file.getId());
+                    offerFile(done.receiver, done.text, keys.get(done.receiver));
+                }
+                else if(!done.file.isStarted()) {
+                    senders.remove(done.file.getId());
+                }
+            break;
+
+            //Il destinatario ha cambiato chiave, quindi invia di nuovo il messaggio criptato con quella nuova
+            case SEND_CHECKED:
+                if(done.resend && fits(done.text, keys.get(done.receiver)))
+                    sendChecked(done.receiver, done.text, keys.get(done.receiver));
+            break;
+
+            //Il server ha chiesto conferma e l'utente ha risposto di no
+            case QUIT:
+                quitting = false;
+            break;
+
+            default:
+            break;
+        }
+    }
+
+    /**
+     * Mette in cache la chiave arrivata per un messaggio o un file, se e' diversa da quella gia' in cache. 
+     * Anche con il protocollo di testo la chiave resta in cache, per riusare la chiave di sessione.
+     * @param done La richiesta della chiave.
+     * @return La chiave in cache, {@code null} se lo user non esiste o la chiave non e' valida.
+     */
+    private KeyCache.Entry cacheKey(Request done) {
+        if(done.key == null || done.key.equals("<Server> username non trovato")) {
+            System.out.println("Username non trovato");
+            return null;
+        }
+        KeyCache.Entry key = keys.get(done.receiver);
+        try {
+            if(key == null || !key.getKey().equals(done.key))
+                key = keys.put(done.receiver, done.key);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Chiave di " + done.receiver + " non valida");
+            return null;
+        }
+        return key;
+    }
+
+    /**
+     * Invia le righe scritte dall'utente finche' e' possibile: la risposta ad un INPUT del server, 
+     * oppure dopo il log in qualsiasi comando, senza aspettare la risposta ai comandi precedenti.
+     * @throws IOException Errori di connessione socket.
+     */
+    private void sendTyped() throws IOException {
+        while(!typed.isEmpty()) {
+            if(awaitingAnswer) {
+                awaitingAnswer = false;
+                writeLine(typed.poll());
+            }
+            else if(loggedIn && !quitting) {
+                execute(typed.poll());
+            }
+            else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Invia un comando scritto dall'utente.
+     * <p>
+     * Se l'utente ha scritto il comando send ci sono un po' di controlli che il client 
+     * deve fare prima di mandare il messaggio al server: controlla se il messaggio e' abbastanza corto per essere criptato, 
+     * poi se la chiave del destinatario e' in cache invia subito il messaggio, altrimenti la chiede al server 
+     * e invia il messaggio quando arriva.
+     * @param command Il comando.
+     * @throws IOException Errori di connessione socket.
+     */
+    private void execute(String command) throws IOException {
+        //Invio di un file, solo con la versione 2 del protocollo binario
+        if(command.indexOf("sendfile ") == 0) {
+            String commandArray[] = command.split(" ", 3);
+            if(commandArray.length < 3) {
+                System.out.println("Sintassi: sendfile [destinatario] [percorso]");
+            }
+            else if(!binary || version < 2) {
+                System.out.println("Il server non supporta l'invio di file");
+            }
+            else if(!Files.isRegularFile(Paths.get(commandArray[2])) || !Files.isReadable(Paths.get(commandArray[2]))) {
+                System.out.println("File non trovato: " + commandArray[2]);
+            }
+            else if(keys.get(commandArray[1]) != null) {
+                offerFile(commandArray[1], commandArray[2], keys.get(commandArray[1]));
+                return;
+            }
+            else {
+                request(Kind.FILE_GETKEY, commandArray[1], commandArray[2]);
+                writeLine("getkey " + commandArray[1]);
+                return;
+            }
+            if(pending.isEmpty())
+                prompt();
+        }
+        else if(command.indexOf("send ") == 0) {
+            String commandArray[] = command.split(" ", 3);
+            if(commandArray.length < 3) {
+                request(Kind.COMMAND, null, null);
+                writeLine(command);
+            }
+            else if(commandArray[2].length() > maxChars) {
+                System.out.println("Il messaggio non puo' superare gli/i " + maxChars + " caratteri");
+                if(pending.isEmpty())
+                    prompt();
+            }
+            else if(binary && keys.get(commandArray[1]) != null) {
+                KeyCache.Entry key = keys.get(commandArray[1]);
+                if(fits(commandArray[2], key))
+                    sendChecked(commandArray[1], commandArray[2], key);
+                else if(pending.isEmpty())
+                    prompt();
+            }
+            else {
+                request(Kind.GETKEY, commandArray[1], commandArray[2]);
+                writeLine("getkey " + commandArray[1]);
+            }
+        }
+        //Con il protocollo binario receive ha un suo frame
+        else if(binary && command.equalsIgnoreCase("receive")) {
+            request(Kind.COMMAND, null, null);
+            synchronized(out) {
+                BinaryProtocol.writeHeader(out, BinaryProtocol.RECEIVE, 0);
+                out.flush();
+            }
+        }
+        //Dopo quit non invia altro finche' l'utente non ha risposto alla conferma
+        else if(command.split(" ", 2)[0].equalsIgnoreCase("quit")) {
+            request(Kind.QUIT, null, null);
+            quitting = true;
+            writeLine(command);
+        }
+        //Il resto dei comandi
+        else {
+            request(Kind.COMMAND, null, null);
+            writeLine(command);
+        }
+    }
+
+    private Request request(Kind kind, String receiver, String text) {
+        Request request = new Request(kind, receiver, text);
+        pending.add(request);
+        return request;
+    }
+
+    private static void prompt() {
+        System.out.print("\r\n>");
+    }
+
+    /**
+     * Mostra un utente che si e' connesso o disconnesso. Viene chiamato dal lettore del socket, 
+     * perche' gli avvisi arrivano in qualsiasi momento e non sono la risposta di un comando.
+     * @param userName UserName dell'utente.
+     * @param online {@code true} se l'utente si e' connesso.
+     */
+    private static void presence(String userName, boolean online) {
+        System.out.println("<Server> " + userName + (online ? " e' online" : " e' offline"));
+    }
+
+    private static String header(long sentAt, String sender) {
+        return "[" + TIME.format(Instant.ofEpochMilli(sentAt)) + "]<" + sender + ">";
+    }
+
+    /**
+     * Invia un messaggio criptato con una chiave in cache, insieme all'impronta della chiave. 
+     * Il server lo consegna solo se la chiave del destinatario e' ancora la stessa.
+     * @param receiver Il destinatario.
+     * @param text Il messaggio in chiaro.
+     * @param key La chiave del destinatario in cache.
+     * @throws IOException Errori di connessione socket.
+     */
+    private void sendChecked(String receiver, String text, KeyCache.Entry key) throws IOException {
+        request(Kind.SEND_CHECKED, receiver, text);
+        byte[] receiverBytes = receiver.getBytes(StandardCharsets.UTF_8);
+        byte[] fingerprintBytes = key.getFingerprint().getBytes(StandardCharsets.UTF_8);
+        byte[] msgBytes = encrypt(text, key).getBytes(StandardCharsets.UTF_8);
+        synchronized(out) {
+            BinaryProtocol.writeHeader(out, BinaryProtocol.SEND_CHECKED, 2 + receiverBytes.length + 2 + fingerprintBytes.length + msgBytes.length);
+            BinaryProtocol.writeShort(out, receiverBytes.length);
+            out.write(receiverBytes);
+            BinaryProtocol.writeShort(out, fingerprintBytes.length);
+            out.write(fingerprintBytes);
+            out.write(msgBytes);
+            out.flush();
+        }
+    }
+
+    /**
+     * Offre un file ad uno user con una chiave di sessione nuova, criptata con la sua chiave in cache, insieme all'impronta della chiave. 
+     * Se il server accetta il file concede il primo credito e il {@link FileSender} inizia l'invio.
+     * @param receiver Il destinatario.
+     * @param path Il percorso del file.
+     * @param key La chiave del destinatario in cache.
+     * @throws IOException Errori di connessione socket.
+     */
+    private void offerFile(String receiver, String path, KeyCache.Entry key) throws IOException {
+        Path file = Paths.get(path);
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            System.out.println("File non trovato: " + path);
+            if(pending.isEmpty())
+                prompt();
+            return;
+        }
+        int id = ++nextFileId;
+        HybridCipher.Session session = new HybridCipher.Session(key.getPublicKey());
+        FileSender sender = new FileSender(id, receiver, file, session, out, () -> senders.remove(id));
+        senders.put(id, sender);
+        request(Kind.FILE_OFFER, receiver, path).file = sender;
+
+        byte[] receiverBytes = receiver.getBytes(StandardCharsets.UTF_8);
+        byte[] fingerprintBytes = key.getFingerprint().getBytes(StandardCharsets.UTF_8);
+        byte[] nameBytes = file.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = session.getWrappedKey().getBytes(StandardCharsets.UTF_8);
+        synchronized(out) {
+            BinaryProtocol.writeHeader(out, BinaryProtocol.FILE_OFFER, 
+                    2 + receiverBytes.length + 2 + fingerprintBytes.length + 2 + nameBytes.length + 4 + 8 + keyBytes.length);
+            BinaryProtocol.writeShort(out, receiverBytes.length);
+            out.write(receiverBytes);
+            BinaryProtocol.writeShort(out, fingerprintBytes.length);
+            out.write(fingerprintBytes);
+            BinaryProtocol.writeShort(out, nameBytes.length);
+            out.write(nameBytes);
+            out.writeInt(id);
+            out.writeLong(size);
+            out.write(keyBytes);
+            out.flush();
+        }
+    }
+
+    /**
+     * Cripta un messaggio per un destinatario, con la modalita' ibrida o solo con l'RSA.
+     * @param text Il messaggio in chiaro.
+     * @param key La chiave del destinatario in cache.
+     * @return Il messaggio criptato.
+     */
+    private String encrypt(String text, KeyCache.Entry key) {
+        if(isHybrid(key))
+            return HybridCipher.encrypt(text, key.getSession());
+        return RSA.encrypt(text, key.getPublicKey());
+    }
+
+    /**
+     * Sceglie la modalita' con cui criptare i messaggi per un destinatario: una chiave nel vecchio formato 
+     * e' pubblicata da un client che non conosce la modalita' ibrida, quindi a lui si scrive solo con l'RSA.
+     * @param key La chiave del destinatario in cache.
+     * @return {@code true} se i messaggi per il destinatario vanno criptati con la modalita' ibrida.
+     */
+    private boolean isHybrid(KeyCache.Entry key) {
+        return hybrid && key.getPublicKey().isCompact();
+    }
+
+    /**
+     * Controlla che un messaggio possa essere criptato per un destinatario: solo con l'RSA il limite dipende dalla sua chiave. 
+     * Se il messaggio e' troppo lungo lo comunica all'utente.
+     * @param text Il messaggio in chiaro.
+     * @param key La chiave del destinatario in cache.
+     * @return {@code true} se il messaggio puo' essere criptato.
+     */
+    private boolean fits(String text, KeyCache.Entry key) {
+        if(isHybrid(key) || text.length() <= RSA.maxChars(key.getPublicKey()))
+            return true;
+        System.out.println("Il messaggio non puo' superare gli/i " + RSA.maxChars(key.getPublicKey()) + " caratteri");
+        return false;
+    }
+
+    private static int readShort(byte[] payload, int i) {
+        return ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+    }
+
+    /**
+     * @return Il ricevitore dei file, creato al primo file: i file arrivano dopo il log in, quindi le chiavi sono pronte.
+     */
+    private FileReceiver files() {
+        if(files == null)
+            files = new FileReceiver(downloadDir, clientPair.join().getPrivateKey());
+        return files;
+    }
+
+    private static int readInt(byte[] payload, int i) {
+        return (readShort(payload, i) << 16) | readShort(payload, i + 2);
+    }
+
+    private static long readLong(byte[] payload, int i) {
+        long value = 0;
+        for(int n = 0; n < 8; n++)
+            value = (value << 8) | (payload[i + n] & 0xFF);
+        return value;
+    }
+
+    /**
+     * Legge una riga, byte per byte dal flusso bufferizzato, togliendo il terminatore di riga.
+     * Non legge byte oltre la fine della riga, quindi dopo la negoziazione lo stesso flusso puo' essere usato per i frame.
+     * @param in Il flusso del socket.
+     * @return La riga letta, {@code null} se la connessione e' stata chiusa.
+     * @throws IOException Errori di connessione socket.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read()) != '\n') {
+            if(b < 0) {
+                if(line.size() == 0)
+                    return null;
+                break;
+            }
+            line.write(b);
+        }
+        String result = line.toString(StandardCharsets.UTF_8);
+        return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+    }
+
+    /**
+     * Invia una riga al server, come riga di testo o come frame a seconda del protocollo in uso.
+     * @param line La riga.
+     * @throws IOException Errori di connessione socket.
+     */
+    private void writeLine(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        synchronized(out) {
+            if(binary) {
+                BinaryProtocol.writeHeader(out, BinaryProtocol.LINE, bytes.length);
+                out.write(bytes);
+            }
+            else {
+                out.write(bytes);
+                out.write(System.lineSeparator().getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Invia un messaggio criptato al server. Con il protocollo binario destinatario e messaggio sono campi 
+     * separati, quindi il server non deve dividere la riga.
+     * @param receiver Il destinatario.
+     * @param msg Il messaggio criptato.
+     * @throws IOException Errori di connessione socket.
+     */
+    private void writeSend(String receiver, String msg) throws IOException {
+        if(!binary) {
+            writeLine("send " + receiver + " " + msg);
+            return;
+        }
+        byte[] receiverBytes = receiver.getBytes(StandardCharsets.UTF_8);
+        byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8);
+        synchronized(out) {
+            BinaryProtocol.writeHeader(out, BinaryProtocol.SEND, 2 + receiverBytes.length + msgBytes.length);
+            BinaryProtocol.writeShort(out, receiverBytes.length);
+            out.write(receiverBytes);
+            out.write(msgBytes);
+            out.flush();
+        }
+    }
+
+    /**
+     * Si connette al server, genera le chiavi per l'RSA, avvia i thread del client 
      * poi rispetta i comandi di protocollo del server.
+     * <p>
+     * Con l'argomento {@code --push} il client chiede al server di ricevere i messaggi appena arrivano, 
+     * con {@code --text} usa il protocollo a righe di testo senza chiedere quello binario, 
+     * con {@code --key-cache=N} cambia il numero massimo di chiavi in cache (default: 128), 
+     * con {@code --rsa} cripta i messaggi solo con l'RSA invece che con la modalita' ibrida anche per i destinatari che la conoscono, 
+     * con {@code --download-dir=CARTELLA} cambia la cartella in cui vengono salvati i file ricevuti (default: ricevuti), 
+     * con {@code --random-exponent} genera una chiave con l'esponente pubblico casuale invece di quello standard, 
+     * con {@code --legacy-key} pubblica la chiave nel vecchio formato, leggibile dai client che conoscono solo quello, 
+     * con {@code --keystore=CARTELLA} cambia la cartella in cui vengono salvate le chiavi (default: .safjnest nella home), 
+     * con {@code --fresh-key} usa una chiave nuova presa dal pool invece di quella salvata, 
+     * con {@code --key-pool=N} cambia il numero di chiavi tenute pronte nel pool con {@code --fresh-key} (default: 2).
      * @param args Argomenti della linea di comando.
      */
     public static void main(String[] args) {
         String hostName = "localhost";
         int portNumber = 65535;
         KeyGenerator generator = new KeyGenerator(); //Generatore di chiavi RSA
-        KeyPair clientPair;     //Paio di chiavi RSA del client
-        int maxChars = 0;       //Massimo numero di caratteri inviabili
-        String toSend = null;   //Stringa da mandare al server
-        String response = null; //Stringa della risposta del server
-        String key = null;      //Chiave pubblica dell'ultima persona a cui si e' mandato un messaggio
+        boolean push = false;     //true se il client deve attivare la modalita' push dopo il log in
+        boolean negotiate = true; //true se il client chiede il protocollo binario
+        int keyCacheSize = 128;   //Numero massimo di chiavi in cache
+        boolean hybrid = true;    //true se i messaggi vengono criptati con la modalita' ibrida
+        String downloadDir = "ricevuti"; //Cartella dei file ricevuti
+        boolean randomExponent = false;  //true se la chiave ha un esponente pubblico casuale
+        boolean legacyKey = false;       //true se la chiave viene pubblicata nel vecchio formato
+        Path keyStoreDir = KeyStore.DEFAULT_DIRECTORY; //Cartella delle chiavi salvate
+        boolean freshKey = false;        //true se il client usa una chiave nuova dal pool
+        int keyPoolSize = 2;             //Chiavi tenute pronte nel pool
+
+        for(String arg : args) {
+            if(arg.equals("--push"))
+                push = true;
+            else if(arg.equals("--text"))
+                negotiate = false;
+            else if(arg.equals("--rsa"))
+                hybrid = false;
+            else if(arg.equals("--random-exponent"))
+                randomExponent = true;
+            else if(arg.equals("--legacy-key"))
+                legacyKey = true;
+            else if(arg.startsWith("--keystore="))
+                keyStoreDir = Paths.get(arg.substring("--keystore=".length()));
+            else if(arg.equals("--fresh-key"))
+                freshKey = true;
+            else if(arg.startsWith("--key-pool="))
+                keyPoolSize = Integer.parseInt(arg.substring("--key-pool=".length()));
+            else if(arg.startsWith("--download-dir="))
+                downloadDir = arg.substring("--download-dir=".length());
+            else if(arg.startsWith("--key-cache="))
+                keyCacheSize = Integer.parseInt(arg.substring("--key-cache=".length()));
+            else
+                System.out.println("Argomento non riconosciuto: " + arg);
+        }
+
+        //Legge o genera le chiavi in background, mentre il client si connette e lo user sceglie lo username
+        KeyStore keyStore = new KeyStore(keyStoreDir, generator, 2048, randomExponent);
+        final boolean fresh = freshKey;
+        final int poolSize = keyPoolSize;
+        CompletableFuture<KeyPair> clientPair = CompletableFuture.supplyAsync(() -> {
+            if(!fresh)
+                return keyStore.loadIdentity();
+            KeyPair pair = keyStore.takeFromPool();
+            keyStore.fillPool(poolSize); //Prepara le chiavi dei prossimi avvii
+            return pair;
+        }, task -> startDaemon(task, "key-loader"));
 
         printSafjNest();
 
         try (
-            Socket echoSocket = new Socket(hostName, portNumber);                                       //Si connette al Server
-            PrintWriter out = new PrintWriter(echoSocket.getOutputStream(), true);                      //Scrive nel Buffer del Server
-            BufferedReader in = new BufferedReader(new InputStreamReader(echoSocket.getInputStream())); //Legge il Buffer del Client
-            BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));                //Input da tastiera
+            Socket echoSocket = new Socket(hostName, portNumber);                                                //Si connette al Server
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(echoSocket.getOutputStream())); //Scrive nel Buffer del Server
+            DataInputStream in = new DataInputStream(new BufferedInputStream(echoSocket.getInputStream()));       //Legge il Buffer del Client
+            BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));                         //Input da tastiera
         ) {
-            System.out.println("Generazioni delle chiavi RSA in corso...");
-            clientPair = generator.generateKeys(2048); //Genera le chiavi a bit specificati
-            maxChars = RSA.maxChars(clientPair.getPublicKey());
-
-            //Ciclo in cui il client risponde ai comandi di protocollo di comunicazione del server
-            //Continua finche' la risposta del server non è QUIT o nulla
-            while ((response = in.readLine()) != null && !response.equals("QUIT")) {
-                //Il server vuole ricevere un input dall'utente 
-                if(response.equals("INPUT")) {   
-                    System.out.print("\r\n>");
-                    toSend = stdIn.readLine();
-                    out.println(toSend);
-                }
+            Client client = new Client(out, clientPair, keyCacheSize, push, hybrid, legacyKey, Paths.get(downloadDir));
 
-                //Il server vuole ricevere un comando in input dall'utente
-                else if(response.equals("INPUTC")) {
-                    //Input da tastiera
-                    System.out.print("\r\n>");
-                    toSend = stdIn.readLine();
-
-                    //Se l'utente ha scritto il comando send ci sono un po' di controlli che il client 
-                    //deve fare prima di mandare il messaggio al server
-                    //Innanzitutto controlla se lo user a cui si vuole mandare un messaggio esiste
-                    //chiedendo la chiave pubblica dello user al server e vedendo la sua risposta
-                    //Se la sua risposta non e' "<Server> sintassi errata" allora controlla se il messaggio e' 
-                    //abbastanza corto per essere criptato, se si lo invia
-                    if(toSend.indexOf("send ") == 0) {
-                        String toSendArray[] = toSend.split(" ", 3);
-                        if(toSendArray.length == 3) {
-                            out.println("getkey " + toSendArray[1]);
-                            key = in.readLine();
-                            in.readLine();
-                            if(key.equals("<Server> username non trovato")) {
-                                System.out.println("Username non trovato");
-                                out.println("send ");
-                            }
-                            else if(toSendArray[2].length() <= maxChars) {
-                                toSendArray[2] = RSA.encrypt(toSendArray[2], key);
-                                toSend = String.join(" ", toSendArray);
-                                out.println(toSend);
-                            }
-                            else {
-                                System.out.println("Il messaggio non puo' superare gli/i " + maxChars + " caratteri");
-                                out.println("send ");
-                            }
-                        }
-                        else
-                            out.println(toSend);
-                    }
-                    //Il resto dei comandi
-                    else
-                        out.println(toSend);
-                }
-
-                //Il server avvisa il client che sta per arrivare un messaggio criptato
-                //Quindi lo legge e lo decripta
-                //Il messaggio che arriva e' in formato "[data/ora]<ricevente> contenuto criptato"
-                else if(response.equals("DECRYPT")) {
-                    response = in.readLine();
-                    String responseArray[] = response.split(" ", 2);
-                    responseArray[1] = RSA.decrypt(responseArray[1], clientPair.getPrivateKey());
-                    response = String.join(" ", responseArray);
-                    System.out.println(response);
-                }
+            //Chiede subito il protocollo binario
+            if(negotiate)
+                client.writeLine(BinaryProtocol.HELLO + " " + BinaryProtocol.VERSION);
 
-                //Il server vuole ricevere la chiave pubblica del client
-                else if(response.equals("SENDKEY")) {
-                    out.println(clientPair.getPublicKey());
-                }
+            //Avvia i thread che leggono dal server, decriptano i messaggi e leggono dalla console
+            final boolean negotiating = negotiate;
+            startDaemon(() -> client.readServer(in, negotiating), "server-reader");
+            startDaemon(client::decryptMessages, "decrypter");
+            startDaemon(() -> client.readConsole(stdIn), "console-reader");
 
-                //Risposte del server che non sono comandi del protocollo
-                else {
-                    System.out.println(response);
-                }
-            }
+            //Il thread principale risponde ai comandi di protocollo del server e invia i comandi dell'utente
+            //Continua finche' la risposta del server non è QUIT o la connessione non viene chiusa
+            client.run();
         } catch (UnknownHostException e) { //Non riesce a connettersi al server
             System.err.println("Don't know about host " + hostName);
             System.exit(1);
         } catch (IOException e) { //Altri problemi di connessione
             System.err.println("Couldn't get I/O for the connection to " + hostName);
             System.exit(1);
+        } catch (InterruptedException e) { //Interrotto mentre aspettava un evento
+            System.exit(1);
         }
     }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
 }
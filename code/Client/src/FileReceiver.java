@@ -0,0 +1,223 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;              //Blocchi decriptati
+import java.nio.channels.FileChannel;    //File ricevuti
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;                 //Crescita del buffer dei blocchi
+import java.util.HashMap;                //File in arrivo per id
+import java.util.Map;
+import javax.crypto.Cipher;              //AES-GCM dei blocchi
+import javax.crypto.SecretKey;
+
+/**
+ * La classe {@code FileReceiver} riceve i file inviati al client con {@code sendfile} e li salva in una cartella.
+ * <p>
+ * I byte arrivano nei frame {@link BinaryProtocol#FILE_CHUNK}, che il server puo' dividere in qualsiasi punto: 
+ * vengono accumulati finche' non e' completo un blocco, preceduto dalla sua lunghezza in 4 byte, 
+ * che viene decriptato con {@link HybridCipher#decryptBlock} e scritto subito nel file. 
+ * La chiave di sessione del file viene decriptata con l'RSA una volta sola, all'inizio.
+ * <p>
+ * Un file che non si riesce a decriptare o a scrivere viene eliminato e i suoi byte successivi vengono scartati. 
+ * Non e' thread safe, e' usata solo dal thread che legge dal socket.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class FileReceiver {
+    private static final int MAX_BLOCK_LENGTH = FileSender.BLOCK_SIZE + 64; //Lunghezza massima di un blocco criptato, IV e tag compresi
+
+    /**
+     * Un file in arrivo.
+     */
+    private static final class Incoming {
+        private final String sender;
+        private final String name;
+        private final long size;          //Dimensione in chiaro indicata dal mandante
+        private Path path = null;         //Dove viene salvato, null se il file e' stato scartato
+        private FileChannel file = null;
+        private SecretKey key = null;
+        private long index = 0;           //Numero d'ordine del prossimo blocco
+        private long received = 0;        //Byte in chiaro scritti nel file
+        private byte[] buffer = new byte[8192]; //Byte di un blocco non ancora completo
+        private int buffered = 0;
+
+        Incoming(String sender, String name, long size) {
+            this.sender = sender;
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    private final Path directory;        //Cartella dei file ricevuti
+    private final PrivateKey privateKey; //Chiave privata del client, per le chiavi di sessione
+    private final Cipher cipher = HybridCipher.newCipher();
+    private final Map<Integer, Incoming> files = new HashMap<Integer, Incoming>(); //File in arrivo per id del server
+
+    /**
+     * Costruttore di {@code FileReceiver}.
+     * @param directory Cartella in cui salvare i file, creata al primo file.
+     * @param privateKey Chiave privata del client.
+     */
+    public FileReceiver(Path directory, PrivateKey privateKey) {
+        this.directory = directory;
+        this.privateKey = privateKey;
+    }
+
+    /**
+     * Inizia a ricevere un file, creandolo nella cartella con un nome che non esiste ancora.
+     * @param id Id del trasferimento, scelto dal server.
+     * @param size Dimensione del file in chiaro.
+     * @param sender UserName del mandante.
+     * @param name Nome del file scelto dal mandante.
+     * @param wrappedKey Chiave di sessione criptata.
+     */
+    public void start(int id, long size, String sender, String name, String wrappedKey) {
+        Incoming incoming = new Incoming(sender, name, size);
+        files.put(id, incoming);
+        try {
+            incoming.key = HybridCipher.unwrapKey(wrappedKey, privateKey);
+            Files.createDirectories(directory);
+            Path path = directory.resolve(safeName(name, id));
+            for(int n = 1; Files.exists(path); n++)
+                path = directory.resolve(n + "-" + safeName(name, id));
+            incoming.file = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+            incoming.path = path; //Solo dopo averlo creato, per non eliminare un file che esisteva gia'
+            System.out.println("Ricezione di " + name + " da " + sender + " (" + size + " byte) in corso...");
+        } catch (IOException | IllegalArgumentException e) {
+            fail(incoming, e.getMessage());
+        }
+    }
+
+    /**
+     * Aggiunge dei byte criptati ad un file in arrivo, decriptando e scrivendo i blocchi completi.
+     * @param id Id del trasferimento.
+     * @param data Buffer con i byte.
+     * @param offset Posizione del primo byte nel buffer.
+     * @param length Numero di byte.
+     */
+    public void data(int id, byte[] data, int offset, int length) {
+        Incoming incoming = files.get(id);
+        if(incoming == null || incoming.file == null)
+            return;
+        if(incoming.buffered + length > incoming.buffer.length)
+            incoming.buffer = Arrays.copyOf(incoming.buffer, Math.max(incoming.buffer.length * 2, incoming.buffered + length));
+        System.arraycopy(data, offset, incoming.buffer, incoming.buffered, length);
+        incoming.buffered += length;
+
+        int i = 0;
+        try {
+            while(incoming.buffered - i >= 4) {
+                byte[] b = incoming.buffer;
+                int blockLength = ((b[i] & 0xFF) << 24) | ((b[i + 1] & 0xFF) << 16) | ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+                if(blockLength < 0 || blockLength > MAX_BLOCK_LENGTH)
+                    throw new IllegalArgumentException("Invalid block");
+                if(incoming.buffered - i - 4 < blockLength) //Blocco non ancora completo
+                    break;
+                ByteBuffer plain = ByteBuffer.wrap(HybridCipher.decryptBlock(b, i + 4, blockLength, incoming.index++, incoming.key, cipher));
+                incoming.received += plain.remaining();
+                while(plain.hasRemaining())
+                    incoming.file.write(plain);
+                i += 4 + blockLength;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            fail(incoming, e.getMessage());
+            return;
+        }
+        //Sposta all'inizio i byte del blocco non ancora completo
+        System.arraycopy(incoming.buffer, i, incoming.buffer, 0, incoming.buffered - i);
+        incoming.buffered -= i;
+    }
+
+    /**
+     * Completa un file, controllando che sia arrivato tutto.
+     * @param id Id del trasferimento.
+     */
+    public void done(int id) {
+        Incoming incoming = files.remove(id);
+        if(incoming == null || incoming.file == null)
+            return;
+        if(incoming.buffered != 0 || incoming.received != incoming.size) {
+            fail(incoming, "file incompleto");
+            return;
+        }
+        try {
+            incoming.file.close();
+            System.out.println("File " + incoming.name + " ricevuto da " + incoming.sender + ", salvato in " + incoming.path);
+        } catch (IOException e) {
+            fail(incoming, e.getMessage());
+        }
+    }
+
+    /**
+     * Annulla un file in arrivo ed elimina la parte gia' ricevuta.
+     * @param id Id del trasferimento.
+     */
+    public void cancel(int id) {
+        Incoming incoming = files.remove(id);
+        if(incoming != null && incoming.file != null)
+            fail(incoming, incoming.sender + " ha annullato l'invio");
+    }
+
+    /**
+     * Elimina un file che non puo' essere ricevuto.
+     * @param incoming Il file.
+     * @param reason Il motivo.
+     */
+    private void fail(Incoming incoming, String reason) {
+        try {
+            if(incoming.file != null)
+                incoming.file.close();
+            if(incoming.path != null)
+                Files.deleteIfExists(incoming.path);
+        } catch (IOException e) {
+            //Il file resta incompleto
+        }
+        incoming.file = null;
+        incoming.buffer = null;
+        System.out.println("Ricezione di " + incoming.name + " da " + incoming.sender + " non riuscita: " + reason);
+    }
+
+    /**
+     * Toglie dal nome scelto dal mandante le cartelle, cosi' il file non puo' essere scritto fuori dalla cartella dei file ricevuti.
+     * @param name Il nome scelto dal mandante.
+     * @param id Id del trasferimento, per i nomi non validi.
+     * @return Il nome del file.
+     */
+    private static String safeName(String name, int id) {
+        try {
+            Path fileName = Path.of(name).getFileName();
+            if(fileName != null && !fileName.toString().equals("..") && !fileName.toString().isEmpty())
+                return fileName.toString();
+        } catch (InvalidPathException e) {
+            //Nome non valido su questo sistema
+        }
+        return "file-" + id;
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.DataOutputStream;         //Flusso verso il server
+import java.io.IOException;
+import java.nio.ByteBuffer;              //Blocchi letti dal file
+import java.nio.channels.FileChannel;    //File da inviare
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * La classe {@code FileSender} invia un file ad uno user con il comando {@code sendfile}, da un thread dedicato, 
+ * cosi' il client continua a ricevere messaggi e comandi durante l'invio.
+ * <p>
+ * Il file viene letto a blocchi di {@link #BLOCK_SIZE} byte, ognuno criptato con {@link HybridCipher#encryptBlock} 
+ * con una chiave di sessione nuova per ogni file, e inviato in un frame {@link BinaryProtocol#FILE_DATA} 
+ * preceduto dalla sua lunghezza in 4 byte. Quindi il file non viene mai tenuto tutto in memoria.
+ * <p>
+ * Il server concede un credito in byte con i frame {@link BinaryProtocol#FILE_CREDIT}: il thread parte al primo credito 
+ * e si ferma quando lo ha esaurito, finche' il destinatario non ha ricevuto i byte gia' inviati. 
+ * Il frame {@link BinaryProtocol#FILE_STOP} interrompe l'invio.
+ * <p>
+ * I frame vengono scritti tenendo il lock del flusso verso il server, lo stesso usato dal thread principale del client.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class FileSender implements Runnable {
+    /** Byte in chiaro di ogni blocco criptato. */
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    private final int id;                       //Id del trasferimento, scelto dal client
+    private final String receiver;
+    private final Path path;
+    private final HybridCipher.Session session; //Chiave di sessione del file
+    private final DataOutputStream out;         //Flusso verso il server, condiviso con il thread principale
+    private final Runnable onFinish;            //Eseguita quando l'invio finisce, in qualsiasi modo
+
+    private long credit = 0;                    //Byte che possono ancora essere inviati
+    private boolean started = false;            //true dopo il primo credito
+    private boolean stopped = false;            //true se il server ha interrotto l'invio
+
+    /**
+     * Costruttore di {@code FileSender}.
+     * @param id Id del trasferimento.
+     * @param receiver UserName del destinatario.
+     * @param path Il file da inviare.
+     * @param session Chiave di sessione del file, criptata con la chiave pubblica del destinatario.
+     * @param out Il flusso verso il server.
+     * @param onFinish Azione eseguita quando l'invio finisce.
+     */
+    public FileSender(int id, String receiver, Path path, HybridCipher.Session session, DataOutputStream out, Runnable onFinish) {
+        this.id = id;
+        this.receiver = receiver;
+        this.path = path;
+        this.session = session;
+        this.out = out;
+        this.onFinish = onFinish;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return {@code true} se il server ha accettato il file e l'invio e' iniziato.
+     */
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Aggiunge del credito concesso dal server e, al primo credito, avvia il thread che invia il file.
+     * @param bytes Byte che possono essere inviati in piu'.
+     */
+    public synchronized void grant(int bytes) {
+        credit += bytes;
+        notifyAll();
+        if(!started && !stopped) {
+            started = true;
+            Thread thread = new Thread(this, "file-sender-" + id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Interrompe l'invio, su richiesta del server.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Aspetta di avere abbastanza credito e lo consuma.
+     * @param bytes Byte da inviare.
+     * @return {@code false} se nel frattempo l'invio e' stato interrotto.
+     * @throws InterruptedException Se il thread viene interrotto.
+     */
+    private synchronized boolean acquire(int bytes) throws InterruptedException {
+        while(credit < bytes && !stopped)
+            wait();
+        credit -= bytes;
+        return !stopped;
+    }
+
+    /**
+     * Legge, cripta e invia il file, poi invia la fine del file.
+     */
+    public void run() {
+        String name = path.getFileName().toString();
+        System.out.println("Invio di " + name + " a " + receiver + " in corso...");
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer plain = ByteBuffer.allocate(BLOCK_SIZE);
+            long index = 0;
+            while(true) {
+                //Riempie il blocco, tranne l'ultimo
+                plain.clear();
+                while(plain.hasRemaining() && file.read(plain) >= 0);
+                if(plain.position() == 0)
+                    break;
+                byte[] block = HybridCipher.encryptBlock(plain.array(), plain.position(), index++, session);
+                if(!acquire(4 + block.length)) {
+                    System.out.println("Invio di " + name + " a " + receiver + " interrotto");
+                    return;
+                }
+                synchronized(out) {
+                    BinaryProtocol.writeHeader(out, BinaryProtocol.FILE_DATA, 4 + 4 + block.length);
+                    out.writeInt(id);
+                    out.writeInt(block.length);
+                    out.write(block);
+                    out.flush();
+                }
+            }
+            synchronized(out) {
+                BinaryProtocol.writeHeader(out, BinaryProtocol.FILE_END, 4);
+                out.writeInt(id);
+                out.flush();
+            }
+            System.out.println("File " + name + " inviato a " + receiver);
+        } catch (IOException e) { //File non leggibile o connessione chiusa
+            System.out.println("Invio di " + name + " non riuscito: " + e.getMessage());
+            try {
+                synchronized(out) {
+                    BinaryProtocol.writeHeader(out, BinaryProtocol.FILE_ABORT, 4);
+                    out.writeInt(id);
+                    out.flush();
+                }
+            } catch (IOException e2) {
+                //La connessione e' chiusa, il server annulla il file da solo
+            }
+        } catch (InterruptedException e) {
+            //Il client sta terminando
+        } finally {
+            onFinish.run();
+        }
+    }
+}
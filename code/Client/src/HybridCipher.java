@@ -0,0 +1,263 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+import java.nio.charset.StandardCharsets;  //Codifica UTF-8 dei messaggi
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;         //Chiavi di sessione e IV
+import java.util.Base64;                   //Codifica delle parti del messaggio
+import java.util.LinkedHashMap;            //Chiavi di sessione in ordine di accesso
+import java.util.Map;
+import javax.crypto.Cipher;                //AES-GCM del JDK
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * La classe {@code HybridCipher} cripta i messaggi con una chiave di sessione AES-GCM, a sua volta criptata
+ * con la chiave pubblica RSA del destinatario. Il messaggio non e' piu' limitato da {@link RSA#maxChars(PublicKey)}
+ * e l'RSA viene usato solo per la chiave di sessione.
+ * <p>
+ * Il messaggio criptato e' formato da:
+ * <blockquote><pre>
+ *    messaggio = "3." + chiaveDiSessioneCriptata + "-" + ivInBase64 + "-" + messaggioAesInBase64;
+ * </pre></blockquote>
+ * La chiave di sessione criptata e' la chiave AES in Base64 criptata con {@link RSA#encrypt(String, PublicKey)},
+ * nel formato della chiave del destinatario. Il mandante tiene una {@link Session} per ogni destinatario e la riusa
+ * per tutti i messaggi, quindi cripta con l'RSA una volta per conversazione. Il destinatario tiene in cache le chiavi
+ * di sessione gia' decriptate, quindi decripta con l'RSA solo il primo messaggio di ogni sessione.
+ * <p>
+ * Ogni messaggio ha un IV casuale di 12 byte; dopo {@link #MAX_SESSION_MESSAGES} messaggi la sessione viene rinnovata.
+ * <p>
+ * {@link #decrypt(String)} accetta anche i messaggi criptati solo con l'RSA, che arrivano dai client che non usano
+ * la modalita' ibrida. Ogni istanza e' usata da un solo thread, il decriptatore del client.
+ * <p>
+ * I file vengono criptati a blocchi con {@link #encryptBlock}: ogni blocco ha il suo IV e il suo numero d'ordine come dati autenticati, 
+ * quindi il destinatario si accorge se dei blocchi vengono scambiati o tolti.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ * @see <a href="https://it.wikipedia.org/wiki/Galois/Counter_Mode">Wikipedia: Galois/Counter Mode</a>
+ */
+public class HybridCipher {
+    /** Prefisso dei messaggi criptati con la modalita' ibrida, non puo' comparire nei messaggi criptati solo con l'RSA. */
+    public static final String PREFIX = "3.";
+    /** Massimo numero di caratteri di un messaggio: anche in UTF-8 e in Base64 resta sotto la lunghezza massima di un frame. */
+    public static final int MAX_CHARS = 192 * 1024;
+    /** Numero di messaggi criptati con la stessa chiave di sessione prima di rinnovarla. */
+    public static final long MAX_SESSION_MESSAGES = 1L << 24;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_LENGTH = 32; //AES-256
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom(); //Non bloccante, condiviso da tutte le sessioni
+
+    /**
+     * Una chiave di sessione verso un destinatario, con la sua versione criptata con la chiave pubblica del destinatario.
+     * Non e' thread safe, e' usata solo dal thread principale del client.
+     */
+    public static final class Session {
+        private final SecretKey key;
+        private final String wrappedKey; //Chiave di sessione criptata con l'RSA
+        private final Cipher cipher;
+        private long messages = 0;       //Messaggi criptati con questa chiave
+
+        /**
+         * Genera una chiave di sessione nuova e la cripta con l'RSA.
+         * @param recipient La chiave pubblica del destinatario.
+         */
+        public Session(PublicKey recipient) {
+            byte[] keyBytes = new byte[KEY_LENGTH];
+            RANDOM.nextBytes(keyBytes);
+            this.key = new SecretKeySpec(keyBytes, "AES");
+            this.wrappedKey = RSA.encrypt(Base64.getEncoder().encodeToString(keyBytes), recipient);
+            this.cipher = newCipher();
+        }
+
+        /**
+         * @return La chiave di sessione criptata con la chiave pubblica del destinatario.
+         */
+        public String getWrappedKey() {
+            return wrappedKey;
+        }
+
+        /**
+         * @return {@code true} se la chiave ha criptato troppi messaggi e va rinnovata.
+         */
+        public boolean isExhausted() {
+            return messages >= MAX_SESSION_MESSAGES;
+        }
+    }
+
+    private final PrivateKey privateKey;
+    private final Map<String, SecretKey> sessions; //Chiavi di sessione decriptate, per chiave criptata, in ordine di accesso
+    private final Cipher cipher;
+
+    /**
+     * Costruttore di {@code HybridCipher}.
+     * @param privateKey La chiave privata del client.
+     * @param capacity Numero massimo di chiavi di sessione decriptate in cache, almeno 1.
+     */
+    public HybridCipher(PrivateKey privateKey, int capacity) {
+        int max = Math.max(1, capacity);
+        this.privateKey = privateKey;
+        this.sessions = new LinkedHashMap<String, SecretKey>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+                return size() > max;
+            }
+        };
+        this.cipher = newCipher();
+    }
+
+    /**
+     * Cripta un messaggio con una chiave di sessione.
+     * @param message Il messaggio da criptare, di qualsiasi lunghezza fino a {@link #MAX_CHARS}.
+     * @param session La sessione verso il destinatario.
+     * @return Il messaggio criptato.
+     */
+    public static String encrypt(String message, Session session) {
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        byte[] encrypted;
+        try {
+            session.cipher.init(Cipher.ENCRYPT_MODE, session.key, new GCMParameterSpec(TAG_BITS, iv));
+            encrypted = session.cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) { //AES-GCM e' sempre disponibile
+            throw new IllegalStateException(e);
+        }
+        session.messages++;
+        Base64.Encoder encoder = Base64.getEncoder();
+        return PREFIX + session.wrappedKey + "-" + encoder.encodeToString(iv) + "-" + encoder.encodeToString(encrypted);
+    }
+
+    /**
+     * Decripta un messaggio criptato con la modalita' ibrida o solo con l'RSA.
+     * @param encryptedMessage Il messaggio criptato.
+     * @return Il messaggio decriptato.
+     * @throws IllegalArgumentException Se il messaggio non e' valido o non e' stato criptato per questo client.
+     */
+    public String decrypt(String encryptedMessage) {
+        if(!encryptedMessage.startsWith(PREFIX))
+            return RSA.decrypt(encryptedMessage, privateKey);
+
+        String[] parts = encryptedMessage.substring(PREFIX.length()).split("-");
+        if(parts.length != 3)
+            throw new IllegalArgumentException("Invalid hybrid message");
+
+        //La chiave di sessione viene decriptata con l'RSA solo la prima volta
+        SecretKey key = sessions.get(parts[0]);
+        if(key == null) {
+            key = unwrapKey(parts[0], privateKey);
+            sessions.put(parts[0], key);
+        }
+
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, Base64.getDecoder().decode(parts[1])));
+            return new String(cipher.doFinal(Base64.getDecoder().decode(parts[2])), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException e) { //Messaggio modificato o chiave sbagliata
+            sessions.remove(parts[0]);
+            throw new IllegalArgumentException("Invalid hybrid message", e);
+        }
+    }
+
+    /**
+     * Decripta con l'RSA una chiave di sessione.
+     * @param wrappedKey La chiave di sessione criptata.
+     * @param privateKey La chiave privata del destinatario.
+     * @return La chiave di sessione.
+     * @throws IllegalArgumentException Se la chiave non e' valida o non e' stata criptata per questo client.
+     */
+    public static SecretKey unwrapKey(String wrappedKey, PrivateKey privateKey) {
+        byte[] keyBytes = Base64.getDecoder().decode(RSA.decrypt(wrappedKey, privateKey));
+        if(keyBytes.length != KEY_LENGTH)
+            throw new IllegalArgumentException("Invalid session key");
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+
+    /**
+     * Cripta un blocco di un file con la chiave di sessione.
+     * @param data I byte in chiaro.
+     * @param length Numero di byte di {@code data} da criptare, a partire dall'inizio.
+     * @param index Numero d'ordine del blocco nel file, autenticato insieme al blocco.
+     * @param session La sessione del file.
+     * @return IV e byte criptati, con il tag di autenticazione.
+     */
+    public static byte[] encryptBlock(byte[] data, int length, long index, Session session) {
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        byte[] block = new byte[IV_LENGTH + length + TAG_BITS / 8];
+        System.arraycopy(iv, 0, block, 0, IV_LENGTH);
+        try {
+            session.cipher.init(Cipher.ENCRYPT_MODE, session.key, new GCMParameterSpec(TAG_BITS, block, 0, IV_LENGTH));
+            session.cipher.updateAAD(indexBytes(index));
+            session.cipher.doFinal(data, 0, length, block, IV_LENGTH);
+        } catch (GeneralSecurityException e) { //AES-GCM e' sempre disponibile
+            throw new IllegalStateException(e);
+        }
+        session.messages++;
+        return block;
+    }
+
+    /**
+     * Decripta un blocco di un file criptato con {@link #encryptBlock}.
+     * @param block Buffer con il blocco.
+     * @param offset Posizione del blocco nel buffer.
+     * @param length Lunghezza del blocco, IV e tag compresi.
+     * @param index Numero d'ordine atteso del blocco nel file.
+     * @param key La chiave di sessione del file.
+     * @param cipher Un {@code Cipher} di {@link #newCipher()}, usato da un solo thread.
+     * @return I byte in chiaro.
+     * @throws IllegalArgumentException Se il blocco e' stato modificato, spostato o criptato con un'altra chiave.
+     */
+    public static byte[] decryptBlock(byte[] block, int offset, int length, long index, SecretKey key, Cipher cipher) {
+        if(length < IV_LENGTH + TAG_BITS / 8)
+            throw new IllegalArgumentException("Invalid block");
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, block, offset, IV_LENGTH));
+            cipher.updateAAD(indexBytes(index));
+            return cipher.doFinal(block, offset + IV_LENGTH, length - IV_LENGTH);
+        } catch (GeneralSecurityException e) { //Blocco modificato o chiave sbagliata
+            throw new IllegalArgumentException("Invalid block", e);
+        }
+    }
+
+    private static byte[] indexBytes(long index) {
+        byte[] bytes = new byte[8];
+        for(int i = 0; i < 8; i++)
+            bytes[i] = (byte) (index >>> (56 - 8 * i));
+        return bytes;
+    }
+
+    /**
+     * @return Un nuovo {@code Cipher} AES-GCM.
+     */
+    public static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) { //AES-GCM e' sempre disponibile
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.nio.charset.StandardCharsets;  //Codifica UTF-8 della chiave
+import java.security.MessageDigest;        //SHA-256 dell'impronta
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;                   //Troncamento dell'impronta
+import java.util.Base64;                   //Codifica dell'impronta
+import java.util.LinkedHashMap;            //Mappa in ordine di accesso
+import java.util.Map;
+
+/**
+ * La classe {@code KeyCache} contiene le chiavi pubbliche degli ultimi user a cui il client ha mandato messaggi, 
+ * con la loro impronta, cosi' il client non deve chiedere la chiave al server prima di ogni messaggio.
+ * <p>
+ * Quando la cache e' piena viene eliminata la chiave usata meno di recente. Il client invia i messaggi con {@code sendc} 
+ * insieme all'impronta della chiave usata: se nel frattempo il destinatario ha cambiato chiave il server risponde 
+ * con quella nuova, che sostituisce quella in cache.
+ * <p>
+ * Ogni chiave in cache tiene anche la chiave di sessione della modalita' ibrida verso quello user, 
+ * vedi {@link HybridCipher}, quindi la chiave di sessione viene criptata con l'RSA una volta per conversazione.
+ * <p>
+ * Non e' thread safe, e' usata solo dal thread principale del client.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class KeyCache {
+    /**
+     * Una chiave pubblica con la sua impronta, gia' decodificata.
+     */
+    public static final class Entry {
+        private final String key;
+        private final PublicKey publicKey;
+        private final String fingerprint;
+        private HybridCipher.Session session = null; //Chiave di sessione verso lo user, creata al primo messaggio
+
+        private Entry(String key) {
+            this.key = key;
+            this.publicKey = PublicKey.parse(key);
+            this.fingerprint = fingerprint(key);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public PublicKey getPublicKey() {
+            return publicKey;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * Ritorna la chiave di sessione verso lo user, creandone una nuova al primo messaggio o quando e' esaurita. 
+         * Quando lo user cambia chiave pubblica la sua entry viene sostituita, quindi anche la sessione.
+         * @return La sessione.
+         */
+        public HybridCipher.Session getSession() {
+            if(session == null || session.isExhausted())
+                session = new HybridCipher.Session(publicKey);
+            return session;
+        }
+    }
+
+    private Map<String, Entry> keys; //Chiavi per userName, in ordine di accesso
+
+    /**
+     * Costruisce una cache vuota.
+     * @param capacity Numero massimo di chiavi, almeno 1.
+     */
+    public KeyCache(int capacity) {
+        int max = Math.max(1, capacity);
+        this.keys = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /**
+     * @param userName UserName del destinatario.
+     * @return La chiave in cache, {@code null} se non c'e'.
+     */
+    public Entry get(String userName) {
+        return keys.get(userName);
+    }
+
+    /**
+     * Aggiunge o sostituisce la chiave di uno user.
+     * @param userName UserName dello user.
+     * @param key La sua chiave pubblica.
+     * @return La chiave aggiunta, con la sua impronta.
+     * @throws IllegalArgumentException Se la stringa non e' una chiave pubblica valida.
+     */
+    public Entry put(String userName, String key) {
+        Entry entry = new Entry(key);
+        keys.put(userName, entry);
+        return entry;
+    }
+
+    /**
+     * Elimina la chiave di uno user che non esiste piu'.
+     * @param userName UserName dello user.
+     */
+    public void remove(String userName) {
+        keys.remove(userName);
+    }
+
+    /**
+     * Calcola l'impronta di una chiave pubblica nello stesso modo del server: i primi 12 byte 
+     * dello SHA-256 della chiave in UTF-8, in Base64 URL senza padding.
+     * @param publicKey La chiave pubblica.
+     * @return L'impronta.
+     */
+    public static String fingerprint(String publicKey) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(publicKey.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, 12));
+        } catch (NoSuchAlgorithmException e) { //SHA-256 e' sempre disponibile
+            throw new IllegalStateException(e);
+        }
+    }
+}
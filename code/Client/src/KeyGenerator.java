@@ -26,21 +26,71 @@
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.Base64;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;  //Generazione in parallelo dei numeri primi
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * La classe {@code KeyGenerator} contiene un generatore di chiavi per l'algoritmo RSA.
  * <p>
- * Le chiavi sono rappresentate come un {@link KeyPair}. Ogni chiave viene memorizzata come:
- * <blockquote><pre>
- *    chiave = esponenteInBase64 + "-" + moduloInBase64;
- * </pre></blockquote>
+ * Le chiavi sono rappresentate come un {@link KeyPair} di {@link PublicKey} e {@link PrivateKey}, 
+ * nel formato compatto descritto in quelle classi. La chiave privata contiene anche i fattori del modulo e i valori 
+ * che servono a {@link RSA#decrypt} per decriptare con il teorema cinese del resto.
+ * <p>
+ * I numeri primi vengono cercati con un crivello incrementale: per ogni finestra di candidati dispari vengono scartati 
+ * i multipli dei primi piccoli, e solo i candidati rimasti vengono verificati con il test di Miller-Rabin. 
+ * I numeri primi di una chiave sono indipendenti, quindi vengono cercati in parallelo sul {@link ForkJoinPool} comune. 
+ * <p>
+ * Di default l'esponente pubblico e' quello standard, {@link PublicKey#STANDARD_EXPONENT}, che rende la criptazione 
+ * decine di volte piu' veloce di un esponente primo casuale a meta' dei bit del modulo, come nelle chiavi precedenti. 
+ * Con {@code generateKeys(numBits, true)} si possono ancora generare chiavi con l'esponente casuale. 
+ * Tutti i numeri casuali vengono da un unico generatore DRBG, che non si blocca in attesa di entropia.
  * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
  * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
  * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
  */
 public class KeyGenerator {
+    private static final int SIEVE_LIMIT = 1 << 15;        //Limite dei primi piccoli usati dal crivello
+    private static final int[] SMALL_PRIMES = smallPrimes(SIEVE_LIMIT); //Primi dispari minori di SIEVE_LIMIT
+    private static final SecureRandom RANDOM = newRandom(); //Generatore condiviso, e' thread-safe
+
+    /**
+     * Crea il generatore di numeri casuali condiviso: un DRBG se disponibile, altrimenti quello di default. 
+     * A differenza di {@link SecureRandom#getInstanceStrong()} nessuno dei due si blocca in attesa di entropia.
+     * @return Il generatore.
+     */
+    private static SecureRandom newRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    /**
+     * Calcola i primi dispari minori di {@code limit} con il crivello di Eratostene.
+     * @param limit Limite dei primi.
+     * @return I primi dispari in ordine crescente.
+     */
+    private static int[] smallPrimes(int limit) {
+        boolean[] composite = new boolean[limit];
+        int count = 0;
+        for(int i = 3; i < limit; i += 2) {
+            if(composite[i])
+                continue;
+            count++;
+            for(long j = (long) i * i; j < limit; j += 2 * i)
+                composite[(int) j] = true;
+        }
+        int[] primes = new int[count];
+        count = 0;
+        for(int i = 3; i < limit; i += 2) {
+            if(!composite[i])
+                primes[count++] = i;
+        }
+        return primes;
+    }
 
     /**
      * Genera un numero {@code BigInteger} casuale a {@code numBits} bits.
@@ -53,11 +103,7 @@ public class KeyGenerator {
         int numBytes = (int)(((long)numBits+7)/8);
         byte[] randomBits = new byte[numBytes];
         if (numBytes > 0) {
-            try {
-                SecureRandom.getInstanceStrong().nextBytes(randomBits); //riempie l'array di bytes casuali
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-            }
+            RANDOM.nextBytes(randomBits); //riempie l'array di bytes casuali
             int excessBits = 8*numBytes - numBits;
             randomBits[0] &= (1 << (8-excessBits)) - 1;
         }
@@ -90,12 +136,16 @@ public class KeyGenerator {
     }
     
     /**
+     * <b>Not implemented</b> <i>Questo metodo e' stato rimpiazzato nella generazione delle chiavi da {@code getFirstPrime}, 
+     * che scarta con un crivello i candidati divisibili per un primo piccolo e usa il test di Miller-Rabin. 
+     * Resta per confrontare le due ricerche in {@code KeyGeneratorBenchmark}.</i>
+     * <p>
      * Trova il numero primo maggiore e piu' vicino a {@code number} usando il piccolo teorema di Fermat per verificare la primalita'.
      * @param number Il numero di cui si vuole trovare il numero primo maggiore piu' vicino ad esso.
      * @return Il numero primo maggiore e piu' vicino a {@code number}.
      * @see <a href="https://it.wikipedia.org/wiki/Piccolo_teorema_di_Fermat">Wikipedia: Piccolo teorema di Fermat</a>
      */
-    public BigInteger getFirstPrime(BigInteger number) {
+    public BigInteger getFirstPrimeFermat(BigInteger number) {
         if(number.remainder(BigInteger.TWO) == BigInteger.ZERO)    
             number = number.add(BigInteger.ONE);
         while(BigInteger.TWO.modPow(number, number).compareTo(BigInteger.TWO) != 0)
@@ -103,30 +153,194 @@ public class KeyGenerator {
         return number;
     }
 
+    /**
+     * Trova il numero primo dispari maggiore e piu' vicino a {@code number}.
+     * <p>
+     * I candidati dispari vengono esaminati a finestre: per ogni primo piccolo viene calcolato una sola volta il resto 
+     * dell'inizio della finestra, che basta a segnare tutti i suoi multipli nella finestra e ad aggiornare il resto 
+     * per la finestra successiva senza altre divisioni tra {@code BigInteger}. Circa l'85% dei candidati viene scartato cosi', 
+     * gli altri vengono verificati con {@link #isProbablePrime}.
+     * @param number Il numero di cui si vuole trovare il numero primo maggiore piu' vicino ad esso.
+     * @return Il numero primo maggiore e piu' vicino a {@code number}.
+     * @see <a href="https://it.wikipedia.org/wiki/Crivello_di_Eratostene">Wikipedia: Crivello di Eratostene</a>
+     */
+    public BigInteger getFirstPrime(BigInteger number) {
+        if(number.compareTo(BigInteger.valueOf(3)) <= 0)
+            return BigInteger.valueOf(3);
+        if(!number.testBit(0))
+            number = number.add(BigInteger.ONE);
+
+        int window = Math.max(64, number.bitLength() * 8);                   //Candidati dispari per finestra
+        int rounds = millerRabinRounds(number.bitLength());
+        int[] residues = new int[SMALL_PRIMES.length];                        //Resto dell'inizio della finestra per ogni primo piccolo
+        for(int i = 0; i < SMALL_PRIMES.length; i++)
+            residues[i] = number.mod(BigInteger.valueOf(SMALL_PRIMES[i])).intValue();
+        boolean small = number.bitLength() <= 16;                             //La finestra puo' contenere dei primi piccoli
+        boolean[] composite = new boolean[window];                            //composite[i] e' il candidato number + 2i
+
+        while(true) {
+            //Segna i multipli di ogni primo piccolo: number + 2i = 0 (mod p) per i = (p - r) / 2 (mod p)
+            Arrays.fill(composite, false);
+            for(int j = 0; j < SMALL_PRIMES.length; j++) {
+                int prime = SMALL_PRIMES[j];
+                int r = residues[j];
+                long first = r == 0 ? 0 : (long) (prime - r) * ((prime + 1) / 2) % prime;
+                for(long i = first; i < window; i += prime) {
+                    if(small && number.add(BigInteger.valueOf(2 * i)).equals(BigInteger.valueOf(prime)))
+                        continue; //Il candidato e' il primo piccolo stesso
+                    composite[(int) i] = true;
+                }
+                residues[j] = (int) ((r + 2L * window) % prime); //Resto della finestra successiva
+            }
+
+            for(int i = 0; i < window; i++) {
+                if(composite[i])
+                    continue;
+                BigInteger candidate = number.add(BigInteger.valueOf(2L * i));
+                if(isProbablePrime(candidate, rounds))
+                    return candidate;
+            }
+            number = number.add(BigInteger.valueOf(2L * window));
+        }
+    }
+
+    /**
+     * Test di primalita' di Miller-Rabin con basi casuali. Un numero composto supera un giro con probabilita' 
+     * al massimo 1/4, e per candidati casuali grandi molto meno, quindi bastano i giri di {@link #millerRabinRounds}.
+     * @param n Il numero dispari da verificare, maggiore di 3.
+     * @param rounds Numero di basi da provare.
+     * @return {@code false} se {@code n} e' sicuramente composto, {@code true} se e' primo con alta probabilita'.
+     * @see <a href="https://it.wikipedia.org/wiki/Test_di_Miller-Rabin">Wikipedia: Test di Miller-Rabin</a>
+     */
+    public static boolean isProbablePrime(BigInteger n, int rounds) {
+        BigInteger nMinusOne = n.subtract(BigInteger.ONE);
+        int s = nMinusOne.getLowestSetBit(); //n - 1 = 2^s * d con d dispari
+        BigInteger d = nMinusOne.shiftRight(s);
+        BigInteger nMinusThree = n.subtract(BigInteger.valueOf(3));
+
+        for(int round = 0; round < rounds; round++) {
+            //La prima base e' 2, che scarta quasi tutti i composti, le altre sono casuali tra 2 e n - 2
+            BigInteger a = BigInteger.TWO;
+            if(round > 0) {
+                do {
+                    a = new BigInteger(n.bitLength(), RANDOM);
+                } while(a.compareTo(nMinusThree) > 0);
+                a = a.add(BigInteger.TWO);
+            }
+            BigInteger x = a.modPow(d, n);
+            if(x.equals(BigInteger.ONE) || x.equals(nMinusOne))
+                continue;
+            boolean witness = true; //a dimostra che n e' composto, se x non arriva mai a n - 1
+            for(int i = 1; i < s && witness; i++) {
+                x = x.multiply(x).mod(n);
+                if(x.equals(nMinusOne))
+                    witness = false;
+                else if(x.equals(BigInteger.ONE))
+                    break;
+            }
+            if(witness)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Numero di giri di Miller-Rabin per un candidato casuale, che danno una probabilita' di errore minore di 2^-80 
+     * (Handbook of Applied Cryptography, tabella 4.4), piu' un giro con base 2.
+     * @param bits Bit del candidato.
+     * @return Numero di giri.
+     */
+    private static int millerRabinRounds(int bits) {
+        int rounds;
+        if(bits >= 1300) rounds = 2;
+        else if(bits >= 850) rounds = 3;
+        else if(bits >= 650) rounds = 4;
+        else if(bits >= 550) rounds = 5;
+        else if(bits >= 450) rounds = 6;
+        else if(bits >= 400) rounds = 7;
+        else if(bits >= 350) rounds = 8;
+        else if(bits >= 300) rounds = 9;
+        else if(bits >= 250) rounds = 12;
+        else if(bits >= 200) rounds = 15;
+        else if(bits >= 150) rounds = 18;
+        else rounds = 27;
+        return rounds + 1;
+    }
+
+    /**
+     * Trova un numero primo casuale a {@code numBits} bits.
+     * @param numBits Numero di bit.
+     * @return Il numero primo.
+     */
+    private BigInteger randomPrime(int numBits) {
+        return getFirstPrime(getRandomBigIntegerBits(numBits));
+    }
+
+    /**
+     * Trova un numero primo casuale {@code p} a {@code numBits} bits con {@code p - 1} primo rispetto all'esponente standard, 
+     * cosi' l'esponente e' invertibile modulo {@code (p - 1) * (q - 1)}. Visto che l'esponente e' primo, 
+     * basta scartare i primi con {@code p mod e = 1}, circa uno su 65537.
+     * @param numBits Numero di bit.
+     * @return Il numero primo.
+     */
+    private BigInteger randomPrimeForStandardExponent(int numBits) {
+        BigInteger p;
+        do {
+            p = randomPrime(numBits);
+        } while(p.mod(PublicKey.STANDARD_EXPONENT).equals(BigInteger.ONE));
+        return p;
+    }
+
+    /**
+     * Genera una chiave pubblica e una privata con l'esponente pubblico standard, 
+     * per essere usati nella criptazione e decriptazione con l'algoritmo RSA.
+     * @param numBits Numero di bit del modulo delle chiavi. Assume numBits maggiore di 34, perche' il modulo sia maggiore dell'esponente.
+     * @return Un {@link KeyPair} con chiave pubblica e privata con modulo a {@code numBits} bits.
+     * @see {@link RSA}
+     */
+    public KeyPair generateKeys(int numBits) {
+        return generateKeys(numBits, false);
+    }
+
     /**
      * Genera una chiave pubblica e una privata per essere usati nella criptazione e decriptazione con l'algoritmo RSA.
+     * <p>
+     * {@code p}, {@code q} ed {@code e} vengono cercati in parallelo sul {@link ForkJoinPool} comune. 
+     * Nei rari casi in cui {@code q} e' uguale a {@code p} o {@code e} non e' primo rispetto a {@code (p - 1) * (q - 1)} 
+     * viene cercato un altro numero: con l'esponente standard vengono scartati {@code p} e {@code q}, 
+     * con quello casuale l'esponente.
      * @param numBits Numero di bit del modulo delle chiavi. Assume numBits maggiore di 1. Meglio se 16 o maggiore e pari.
+     * @param randomExponent {@code true} per un esponente primo casuale a meta' dei bit del modulo invece di quello standard. 
+     *                       La chiave pubblica viene scritta nella versione 2 del formato, letta anche dai client precedenti.
      * @return Un {@link KeyPair} con chiave pubblica e privata con modulo a {@code numBits} bits.
      * @see {@link RSA}
      */
-    public KeyPair generateKeys(int numBits) {
-        numBits = numBits / 2;
-        BigInteger p = getFirstPrime(getRandomBigIntegerBits(numBits)); //Numero primo p
-        BigInteger q = getFirstPrime(getRandomBigIntegerBits(numBits)); //Numero primo q
-        BigInteger e = getFirstPrime(getRandomBigIntegerBits(numBits)); //Esponente pubblico | più piccolo di N e primo rispetto a z
-        BigInteger n = p.multiply(q); //Modulo | N = p * q
+    public KeyPair generateKeys(int numBits, boolean randomExponent) {
+        final int primeBits = numBits / 2;
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        ForkJoinTask<BigInteger> pTask = pool.submit(() -> randomExponent ? randomPrime(primeBits) : randomPrimeForStandardExponent(primeBits));
+        ForkJoinTask<BigInteger> qTask = pool.submit(() -> randomExponent ? randomPrime(primeBits) : randomPrimeForStandardExponent(primeBits));
+        ForkJoinTask<BigInteger> eTask = randomExponent ? pool.submit(() -> randomPrime(primeBits)) : null;
+        BigInteger p = pTask.join(); //Numero primo p
+        BigInteger q = qTask.join(); //Numero primo q
+        while(q.equals(p))
+            q = randomExponent ? randomPrime(primeBits) : randomPrimeForStandardExponent(primeBits);
         BigInteger z = (p.subtract(BigInteger.ONE)).multiply((q.subtract(BigInteger.ONE))); //Funzione di Eulero di N | (p – 1) * (q – 1)
+        BigInteger e = PublicKey.STANDARD_EXPONENT; //Esponente pubblico | più piccolo di N e primo rispetto a z
+        if(randomExponent) {
+            e = eTask.join();
+            while(!e.gcd(z).equals(BigInteger.ONE))
+                e = randomPrime(primeBits);
+        }
+        BigInteger n = p.multiply(q); //Modulo | N = p * q
         BigInteger d = e.modInverse(z); //Esponente privato | tale che e * d –> 1mod((p – 1) * (q – 1))
+        BigInteger dP = d.mod(p.subtract(BigInteger.ONE)); //Esponente privato modulo p | d mod (p - 1)
+        BigInteger dQ = d.mod(q.subtract(BigInteger.ONE)); //Esponente privato modulo q | d mod (q - 1)
+        BigInteger qInv = q.modInverse(p);                 //Inverso di q modulo p | q * qInv –> 1mod(p)
 
-        //Codifica le parti delle chiavi in Base64
-        String nBase64 = Base64.getEncoder().encodeToString(n.toString().getBytes());   
-        String eBase64 = Base64.getEncoder().encodeToString(e.toString().getBytes());
-        String dBase64 = Base64.getEncoder().encodeToString(d.toString().getBytes());
+        PublicKey publicKey = new PublicKey(e, n);
+        PrivateKey privateKey = new PrivateKey(d, n, p, q, dP, dQ, qInv);
 
-        //Unisce le parti delle chiavi con un "-"
-        String publicKey = eBase64 + "-" + nBase64;
-        String privateKey = dBase64 + "-" + nBase64;
-        
         return new KeyPair(publicKey, privateKey);
     }
 }
@@ -25,30 +25,30 @@
 
 
 /**
- * La classe {@code KeyPair} rappresenta un paio di chiavi sotto forma di stringhe, una pubblica una privata.
+ * La classe {@code KeyPair} rappresenta un paio di chiavi gia' decodificate, una pubblica una privata.
  * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
  * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
  * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
  */
 public class KeyPair {
-    private String privateKey;
-    private String publicKey;
+    private PrivateKey privateKey;
+    private PublicKey publicKey;
 
     /**
      * Costruisce un nuovo paio di chiavi
      * @param publicKey chiave pubblica
      * @param privateKey chiave privata
      */
-    public KeyPair(String publicKey, String privateKey) {
+    public KeyPair(PublicKey publicKey, PrivateKey privateKey) {
         this.publicKey = publicKey;
         this.privateKey = privateKey;
     }
 
-    public String getPublicKey() {
+    public PublicKey getPublicKey() {
         return publicKey;
     }
     
-    public String getPrivateKey() {
+    public PrivateKey getPrivateKey() {
         return privateKey;
     }
 }
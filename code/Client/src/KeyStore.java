@@ -0,0 +1,216 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;               //Codifica dei file delle chiavi
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;                   //File del pool
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;    //File leggibili solo dal proprietario
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * La classe {@code KeyStore} salva su disco le chiavi del client, cosi' non devono essere generate ad ogni avvio.
+ * <p>
+ * Nella cartella del keystore ci sono:
+ * <ul>
+ *    <li>{@code identity.key} - La chiave usata ad ogni avvio, generata e salvata al primo avvio 
+ *        ({@code identity-random.key} per le chiavi con l'esponente pubblico casuale)</li>
+ *    <li>{@code pool/*.key} - Chiavi gia' generate per i client che vogliono una chiave nuova ad ogni avvio: 
+ *        ogni chiave viene usata una sola volta, e {@link #fillPool} ne genera altre in background</li>
+ * </ul>
+ * Ogni file contiene la chiave pubblica e quella privata, una per riga, nei formati di {@link PublicKey} e {@link PrivateKey}. 
+ * I file vengono scritti in un file temporaneo e poi rinominati, quindi un client non legge mai una chiave scritta a meta', 
+ * e dove possibile sono leggibili solo dal proprietario, perche' contengono la chiave privata.
+ * <p>
+ * Una chiave salvata con un altro numero di bit o un altro tipo di esponente pubblico non viene usata. 
+ * Le chiavi del pool sono di un solo tipo: quelle di tipo diverso vengono eliminate quando vengono lette.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class KeyStore {
+    /** Cartella di default del keystore. */
+    public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"), ".safjnest");
+
+    private static final String IDENTITY = "identity";
+    private static final String POOL = "pool";
+    private static final String SUFFIX = ".key";
+
+    private final Path directory;           //Cartella del keystore
+    private final KeyGenerator generator;
+    private final int numBits;              //Bit del modulo delle chiavi
+    private final boolean randomExponent;   //true per le chiavi con esponente pubblico casuale
+
+    /**
+     * Costruttore di {@code KeyStore}.
+     * @param directory Cartella del keystore, creata quando serve.
+     * @param generator Il generatore delle chiavi mancanti.
+     * @param numBits Bit del modulo delle chiavi.
+     * @param randomExponent {@code true} per le chiavi con esponente pubblico casuale, vedi {@link KeyGenerator#generateKeys(int, boolean)}.
+     */
+    public KeyStore(Path directory, KeyGenerator generator, int numBits, boolean randomExponent) {
+        this.directory = directory;
+        this.generator = generator;
+        this.numBits = numBits;
+        this.randomExponent = randomExponent;
+    }
+
+    /**
+     * Legge la chiave salvata, o la genera e la salva se non c'e' o non e' del tipo richiesto. 
+     * Se la chiave non puo' essere salvata viene usata solo per questa esecuzione.
+     * @return Le chiavi.
+     */
+    public KeyPair loadIdentity() {
+        Path path = directory.resolve(IDENTITY + (randomExponent ? "-random" : "") + SUFFIX);
+        KeyPair pair = read(path);
+        if(pair != null)
+            return pair;
+        pair = generate();
+        try {
+            write(path, pair);
+        } catch (IOException e) {
+            System.out.println("Impossibile salvare le chiavi in " + path + ": " + e.getMessage());
+        }
+        return pair;
+    }
+
+    /**
+     * Prende una chiave dal pool e la elimina, cosi' nessun altro client la usa. Se il pool e' vuoto genera una chiave.
+     * @return Le chiavi.
+     */
+    public KeyPair takeFromPool() {
+        Path pool = directory.resolve(POOL);
+        for(Path path : list(pool)) {
+            KeyPair pair = read(path);
+            try {
+                Files.delete(path); //Chi riesce ad eliminare il file si prende la chiave
+            } catch (NoSuchFileException e) {
+                continue; //Presa da un altro client
+            } catch (IOException e) {
+                continue;
+            }
+            if(pair != null)
+                return pair;
+        }
+        return generate();
+    }
+
+    /**
+     * Avvia un thread in background che genera chiavi finche' il pool non ne contiene {@code size}.
+     * @param size Chiavi da tenere nel pool.
+     * @return Il thread, gia' avviato.
+     */
+    public Thread fillPool(int size) {
+        Thread thread = new Thread(() -> {
+            Path pool = directory.resolve(POOL);
+            try {
+                while(list(pool).size() < size)
+                    write(pool.resolve(System.currentTimeMillis() + "-" + System.nanoTime() + SUFFIX), 
+                            generator.generateKeys(numBits, randomExponent));
+            } catch (IOException e) {
+                System.out.println("Impossibile salvare le chiavi in " + pool + ": " + e.getMessage());
+            }
+        }, "key-pool");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY); //Non deve rallentare il client
+        thread.start();
+        return thread;
+    }
+
+    private KeyPair generate() {
+        System.out.println("Generazioni delle chiavi RSA in corso...");
+        return generator.generateKeys(numBits, randomExponent);
+    }
+
+    /**
+     * Legge le chiavi da un file.
+     * @param path Il file.
+     * @return Le chiavi, {@code null} se il file non esiste, non e' valido o contiene chiavi di un altro tipo.
+     */
+    private KeyPair read(Path path) {
+        try {
+            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            if(lines.size() < 2)
+                return null;
+            PublicKey publicKey = PublicKey.parse(lines.get(0));
+            PrivateKey privateKey = PrivateKey.parse(lines.get(1));
+            int bitLength = publicKey.getModulus().bitLength();
+            if(!publicKey.getModulus().equals(privateKey.getModulus()) || bitLength < numBits - 1 || bitLength > numBits //n ha numBits o numBits - 1 bit
+                    || (publicKey.getVersion() == 3) == randomExponent)
+                return null;
+            return new KeyPair(publicKey, privateKey);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Scrive le chiavi in un file temporaneo nella stessa cartella e lo rinomina.
+     * @param path Il file.
+     * @param pair Le chiavi.
+     * @throws IOException Se non e' possibile scrivere il file.
+     */
+    private static void write(Path path, KeyPair pair) throws IOException {
+        Path parent = path.getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, "chiave-", ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                //File system senza permessi POSIX
+            }
+            Files.write(temp, (pair.getPublicKey() + "\n" + pair.getPrivateKey() + "\n").getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @param directory Una cartella.
+     * @return I file delle chiavi nella cartella, una lista vuota se la cartella non esiste.
+     */
+    private static List<Path> list(Path directory) {
+        List<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for(Path path : stream)
+                paths.add(path);
+        } catch (IOException e) {
+            //Cartella non ancora creata
+        }
+        return paths;
+    }
+}
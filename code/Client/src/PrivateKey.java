@@ -0,0 +1,145 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.math.BigInteger;
+
+/**
+ * La classe {@code PrivateKey} rappresenta una chiave privata RSA gia' decodificata. 
+ * Viene creata una volta per chiave, cosi' {@link RSA#decrypt(String, PrivateKey)} non deve dividere e decodificare la stringa 
+ * ad ogni messaggio.
+ * <p>
+ * Oltre a {@code d} e {@code n} puo' contenere i fattori del modulo e i valori per decriptare con il teorema cinese del resto:
+ * <blockquote><pre>
+ *    chiave = "2." + d + "-" + n + "-" + p + "-" + q + "-" + dP + "-" + dQ + "-" + qInv; //Formato compatto
+ *    chiave = d + "-" + n + "-" + p + "-" + q + "-" + dP + "-" + dQ + "-" + qInv;        //Vecchio formato
+ *    chiave = d + "-" + n;                                                               //Vecchio formato senza fattori
+ * </pre></blockquote>
+ * Le parti sono codificate come in {@link PublicKey}.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public final class PrivateKey {
+    private final BigInteger exponent; //Esponente privato d
+    private final BigInteger modulus;  //Modulo n
+    private final BigInteger p;        //Fattori del modulo e valori per il teorema cinese del resto, null se mancano
+    private final BigInteger q;
+    private final BigInteger dP;
+    private final BigInteger dQ;
+    private final BigInteger qInv;
+    private final String encoded;      //La chiave come stringa
+
+    /**
+     * Costruisce una chiave completa nel formato compatto.
+     * @param d Esponente privato.
+     * @param n Modulo.
+     * @param p Primo fattore del modulo.
+     * @param q Secondo fattore del modulo.
+     * @param dP {@code d mod (p - 1)}.
+     * @param dQ {@code d mod (q - 1)}.
+     * @param qInv Inverso di {@code q} modulo {@code p}.
+     */
+    public PrivateKey(BigInteger d, BigInteger n, BigInteger p, BigInteger q, BigInteger dP, BigInteger dQ, BigInteger qInv) {
+        this(new BigInteger[] {d, n, p, q, dP, dQ, qInv}, null);
+    }
+
+    private PrivateKey(BigInteger[] parts, String encoded) {
+        this.exponent = parts[0];
+        this.modulus = parts[1];
+        boolean crt = parts.length >= 7;
+        this.p = crt ? parts[2] : null;
+        this.q = crt ? parts[3] : null;
+        this.dP = crt ? parts[4] : null;
+        this.dQ = crt ? parts[5] : null;
+        this.qInv = crt ? parts[6] : null;
+        if(encoded == null) {
+            StringBuilder sb = new StringBuilder(RSA.COMPACT);
+            for(int i = 0; i < parts.length; i++)
+                sb.append(i > 0 ? "-" : "").append(RSA.encodeNumber(parts[i], true));
+            encoded = sb.toString();
+        }
+        this.encoded = encoded;
+    }
+
+    /**
+     * Decodifica una chiave privata in uno dei formati.
+     * @param key La chiave.
+     * @return La chiave decodificata.
+     * @throws IllegalArgumentException Se la stringa non e' una chiave privata valida.
+     */
+    public static PrivateKey parse(String key) {
+        boolean compact = key.startsWith(RSA.COMPACT);
+        String[] keyArray = (compact ? key.substring(RSA.COMPACT.length()) : key).split("-"); //Spezza la chiave nelle sue parti
+        if(keyArray.length != 2 && keyArray.length != 7)
+            throw new IllegalArgumentException("Invalid private key");
+        BigInteger[] parts = new BigInteger[keyArray.length];
+        for(int i = 0; i < keyArray.length; i++)
+            parts[i] = RSA.decodeNumber(keyArray[i], compact);
+        return new PrivateKey(parts, key);
+    }
+
+    /**
+     * @return {@code true} se la chiave contiene i valori per il teorema cinese del resto.
+     */
+    public boolean hasCrt() {
+        return p != null;
+    }
+
+    public BigInteger getExponent() {
+        return exponent;
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    public BigInteger getP() {
+        return p;
+    }
+
+    public BigInteger getQ() {
+        return q;
+    }
+
+    public BigInteger getDP() {
+        return dP;
+    }
+
+    public BigInteger getDQ() {
+        return dQ;
+    }
+
+    public BigInteger getQInv() {
+        return qInv;
+    }
+
+    /**
+     * @return La chiave come stringa.
+     */
+    @Override
+    public String toString() {
+        return encoded;
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.math.BigInteger;
+
+/**
+ * La classe {@code PublicKey} rappresenta una chiave pubblica RSA gia' decodificata: esponente e modulo come {@code BigInteger}.
+ * Viene creata una volta per chiave, cosi' {@link RSA#encrypt(String, PublicKey)} non deve dividere e decodificare la stringa 
+ * ad ogni messaggio.
+ * <p>
+ * Il prefisso della chiave e' la versione del formato, cosi' nella directory delle chiavi del server convivono chiavi diverse:
+ * <blockquote><pre>
+ *    chiave = "3." + nInBase64;                        //Versione 3: esponente standard {@value #STANDARD_EXPONENT_VALUE}, non scritto
+ *    chiave = "2." + eInBase64 + "-" + nInBase64;      //Versione 2, compatto: byte del numero in big-endian, codificati in Base64
+ *    chiave = eInBase64 + "-" + nInBase64;             //Versione 1, vecchio formato: cifre decimali del numero, codificate in Base64
+ * </pre></blockquote>
+ * Una chiave con l'esponente standard viene scritta sempre nella versione 3, che e' anche un terzo piu' corta. 
+ * Il formato della chiave del destinatario decide anche il formato dei messaggi criptati: con le versioni 2 e 3 quello compatto, 
+ * con la versione 1 quello vecchio, quindi un client che usa ancora il vecchio formato riceve messaggi che riesce a decriptare. 
+ * I client che conoscono solo la versione 1 non riescono a leggere le altre: per farsi scrivere da loro un client 
+ * pubblica la propria chiave con {@link #toLegacyString()}.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public final class PublicKey {
+    /** Valore dell'esponente pubblico standard, un primo di Fermat con solo due bit a 1. */
+    public static final int STANDARD_EXPONENT_VALUE = 65537;
+    /** Esponente pubblico standard: criptare costa 17 moltiplicazioni modulari invece di circa 1500 con un esponente casuale a 1024 bit. */
+    public static final BigInteger STANDARD_EXPONENT = BigInteger.valueOf(STANDARD_EXPONENT_VALUE);
+    /** Prefisso delle chiavi della versione 3, con l'esponente standard. */
+    public static final String STANDARD = "3.";
+
+    private final BigInteger exponent; //Esponente pubblico e
+    private final BigInteger modulus;  //Modulo n
+    private final int version;         //Versione del formato della chiave: 1, 2 o 3
+    private final String encoded;      //La chiave come stringa, nel formato in cui e' stata letta
+
+    /**
+     * Costruisce una chiave nel formato compatto: la versione 3 se l'esponente e' quello standard, altrimenti la versione 2.
+     * @param exponent Esponente pubblico.
+     * @param modulus Modulo.
+     */
+    public PublicKey(BigInteger exponent, BigInteger modulus) {
+        this(exponent, modulus, exponent.equals(STANDARD_EXPONENT) ? 3 : 2, exponent.equals(STANDARD_EXPONENT) 
+                ? STANDARD + RSA.encodeNumber(modulus, true) 
+                : RSA.COMPACT + RSA.encodeNumber(exponent, true) + "-" + RSA.encodeNumber(modulus, true));
+    }
+
+    private PublicKey(BigInteger exponent, BigInteger modulus, int version, String encoded) {
+        this.exponent = exponent;
+        this.modulus = modulus;
+        this.version = version;
+        this.encoded = encoded;
+    }
+
+    /**
+     * Decodifica una chiave pubblica in uno dei tre formati.
+     * @param key La chiave.
+     * @return La chiave decodificata.
+     * @throws IllegalArgumentException Se la stringa non e' una chiave pubblica valida.
+     */
+    public static PublicKey parse(String key) {
+        if(key.startsWith(STANDARD)) {
+            if(key.indexOf('-') >= 0)
+                throw new IllegalArgumentException("Invalid public key");
+            return new PublicKey(STANDARD_EXPONENT, RSA.decodeNumber(key.substring(STANDARD.length()), true), 3, key);
+        }
+        boolean compact = key.startsWith(RSA.COMPACT);
+        String[] keyArray = (compact ? key.substring(RSA.COMPACT.length()) : key).split("-"); //Spezza la chiave in esponente e modulo
+        if(keyArray.length != 2)
+            throw new IllegalArgumentException("Invalid public key");
+        return new PublicKey(RSA.decodeNumber(keyArray[0], compact), RSA.decodeNumber(keyArray[1], compact), compact ? 2 : 1, key);
+    }
+
+    public BigInteger getExponent() {
+        return exponent;
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    /**
+     * @return La versione del formato della chiave: 1, 2 o 3.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return {@code true} se la chiave e' in un formato compatto, quindi anche i messaggi criptati lo sono.
+     */
+    public boolean isCompact() {
+        return version >= 2;
+    }
+
+    /**
+     * Codifica la chiave nella versione 1 del formato, l'unica che conoscono i client piu' vecchi, qualunque sia l'esponente.
+     * @return La chiave come stringa nel vecchio formato.
+     */
+    public String toLegacyString() {
+        return RSA.encodeNumber(exponent, false) + "-" + RSA.encodeNumber(modulus, false);
+    }
+
+    /**
+     * @return La chiave come stringa, da inviare al server.
+     */
+    @Override
+    public String toString() {
+        return encoded;
+    }
+}
@@ -23,8 +23,9 @@
  * 
  */
 
-import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets; //Codifica UTF-8 dei messaggi
+import java.util.Arrays;  //Byte del numero senza il segno
 import java.util.Base64; //Codifica e decodifica base64
 
 /**
@@ -32,86 +33,157 @@ import java.util.Base64; //Codifica e decodifica base64
  * <p>
  * Inoltre e' presente una funzione per controllare, partendo da una chiave, il massimo numero di caratteri 
  * che una stringa puo' contenere per essere criptabile con l'algoritmo RSA.
+ * <p>
+ * I metodi lavorano su chiavi gia' decodificate, {@link PublicKey} e {@link PrivateKey}, create una volta per chiave. 
+ * Le versioni che ricevono la chiave come stringa la decodificano ad ogni chiamata.
+ * <p>
+ * Con una chiave nel formato compatto il messaggio criptato viene scritto come {@code "2."} seguito dai byte del numero 
+ * in Base64, circa la meta' dei caratteri del vecchio formato, le cifre decimali del numero in Base64. 
+ * Il formato viene scelto dalla chiave del destinatario e in decriptazione sono accettati entrambi.
+ * <p>
+ * Se la chiave privata contiene i fattori {@code p} e {@code q} del modulo, la decriptazione usa il teorema cinese del resto: 
+ * due elevamenti a potenza con moduli ed esponenti della meta' dei bit invece di uno su tutto il modulo, circa 3-4 volte piu' veloce. 
+ * Le chiavi private nel formato {@code d-n} vengono ancora decriptate con un solo elevamento a potenza.
  * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
  * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
  * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
  * @see <a href="https://it.wikipedia.org/wiki/RSA_(crittografia)">Wikipedia: RSA</a>
+ * @see <a href="https://it.wikipedia.org/wiki/Teorema_cinese_del_resto">Wikipedia: Teorema cinese del resto</a>
  */
 public class RSA {
+    /** Prefisso di chiavi e messaggi criptati nel formato compatto, non puo' comparire nel Base64 del vecchio formato. */
+    public static final String COMPACT = "2.";
+
     /** 
      * Partendo dalla chiave con cui si deve criptare il messaggio, ritorna il massimo numero di caratteri 
      * in una stringa per essere criptabile con l'RSA.
      * @param key La chiave di cui si vuole controllare il numero massimo di caratteri criptabili.
      * @return Il numero massimo di caratteri criptabili.
     */
+    public static int maxChars(PublicKey key){
+        return (key.getModulus().bitLength() / 8) - 1; //Calcola il numero massimo di byte e quindi di caratteri che si possono criptare
+    }
+
+    /** 
+     * Come {@link #maxChars(PublicKey)}, con la chiave come stringa.
+     * @param key La chiave di cui si vuole controllare il numero massimo di caratteri criptabili.
+     * @return Il numero massimo di caratteri criptabili.
+    */
     public static int maxChars(String key){
-        BigInteger modulus = new BigInteger(new String(Base64.getDecoder().decode(key.substring(key.indexOf("-") + 1)))); //Decifra e divide n dal resto 
-                                                                                                                          //della chiave
-        return (modulus.bitLength() / 8) - 1; //Calcola il numero massimo di byte e quindi di caratteri che si possono criptare
+        return maxChars(PublicKey.parse(key));
     }
     
     /**
      * Cripta una stringa con l'algoritmo RSA usando una chiave.
      * @param message Il messaggio da criptare.
      * @param key La chiave con cui si vuole criptare il messaggio.
-     * @return Il messaggio criptato, codificato in Base64.
+     * @return Il messaggio criptato, codificato in Base64 nel formato della chiave.
      * @throws ArithmeticException se {@code message} convertito in intero e' un numero piu' grande del {@code modulo - 1} preso da {@code key}.
      */
-    public static String encrypt(String message, String key){
-        String[] keyArray = key.split("-"); //Spezza la chiave in esponente e modulo
-
-        //Decodifica esponente e modulo da Base64 a BigInteger
-        BigInteger exponent = new BigInteger(new String(Base64.getDecoder().decode(keyArray[0])));
-        BigInteger modulus = new BigInteger(new String(Base64.getDecoder().decode(keyArray[1])));
-
+    public static String encrypt(String message, PublicKey key){
         //Converte la stringa message in un array di bytes dove sono concatenate le rappresentazioni binarie dei singoli caratteri della stringa
-        byte[] bytes = null;
-        try {
-            bytes = message.getBytes("UTF-8");
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
 
         BigInteger IntMessage = new BigInteger(bytes); //Converte l'array di byte in un numero, ovvero assume che nell'array di bytes ci sia un numero 
                                                        //e lo converte nella sua rappresentazione in base 10
         
-        if(IntMessage.compareTo(modulus.subtract(BigInteger.ONE)) >= 0) //Se il numero dato dalla conversione da stringa di message 
-                                                                        //e' piu' grande di N-1, ovvero del modulo usato per l'RSA, 
-                                                                        //l'algoritmo non puo' funzionare quindi lancia un eccezione
+        if(IntMessage.compareTo(key.getModulus().subtract(BigInteger.ONE)) >= 0) //Se il numero dato dalla conversione da stringa di message 
+                                                                                 //e' piu' grande di N-1, ovvero del modulo usato per l'RSA, 
+                                                                                 //l'algoritmo non puo' funzionare quindi lancia un eccezione
             throw new ArithmeticException("Message too long for key lenght");
 
-        BigInteger IntEncryptedMessage = IntMessage.modPow(exponent, modulus); //criptazione RSA
-        String encryptedMessageBase64 = Base64.getEncoder().encodeToString(IntEncryptedMessage.toString().getBytes()); //codifica il numero 
-                                                                                                                       //criptato in Base64
-        return encryptedMessageBase64;
+        BigInteger IntEncryptedMessage = IntMessage.modPow(key.getExponent(), key.getModulus()); //criptazione RSA
+        if(key.isCompact())
+            return COMPACT + encodeNumber(IntEncryptedMessage, true);
+        return encodeNumber(IntEncryptedMessage, false); //codifica il numero criptato in Base64
+    }
+
+    /**
+     * Come {@link #encrypt(String, PublicKey)}, con la chiave come stringa.
+     * @param message Il messaggio da criptare.
+     * @param key La chiave con cui si vuole criptare il messaggio.
+     * @return Il messaggio criptato, codificato in Base64 nel formato della chiave.
+     */
+    public static String encrypt(String message, String key){
+        return encrypt(message, PublicKey.parse(key));
     }
 
     /**
      * Decripta una stringa criptata con l'RSA e codificata in base 64 usando una chiave.
-     * @param encryptedMessageBase64 Il messaggio criptato con l'RSA e codificato in base 64.
+     * @param encryptedMessageBase64 Il messaggio criptato con l'RSA e codificato in base 64, in uno dei due formati.
      * @param key La chiave con cui si vuole decriptare il messaggio.
      * @return Il messaggio decriptato.
      */
-    public static String decrypt(String encryptedMessageBase64, String key){
-        String[] keyArray = key.split("-"); //Spezza la chiave in esponente e modulo
-
-        //Decodifica esponente e modulo da Base64 a BigInteger
-        BigInteger exponent = new BigInteger(new String(Base64.getDecoder().decode(keyArray[0])));
-        BigInteger modulus = new BigInteger(new String(Base64.getDecoder().decode(keyArray[1])));
+    public static String decrypt(String encryptedMessageBase64, PrivateKey key){
+        BigInteger IntEncryptedMessage; //Decodifica il numero criptato assumendo sia in base64
+        if(encryptedMessageBase64.startsWith(COMPACT))
+            IntEncryptedMessage = decodeNumber(encryptedMessageBase64.substring(COMPACT.length()), true);
+        else
+            IntEncryptedMessage = decodeNumber(encryptedMessageBase64, false);
 
-        BigInteger IntEncryptedMessage = new BigInteger(new String(Base64.getDecoder().decode(encryptedMessageBase64))); //Decodifica il numero criptato
-                                                                                                                         //assumendo sia in base64
-        BigInteger IntMessage = IntEncryptedMessage.modPow(exponent, modulus); //decriptazione RSA
+        BigInteger IntMessage;
+        if(key.hasCrt()) //La chiave contiene i fattori del modulo
+            IntMessage = decryptCrt(IntEncryptedMessage, key);
+        else
+            IntMessage = IntEncryptedMessage.modPow(key.getExponent(), key.getModulus()); //decriptazione RSA
 
         byte[] bytes = IntMessage.toByteArray(); //Converte il messaggio in un array di bytes
 
-        String message = null;
         //Converte ogni Byte dell'array in caratteri usando come codifica l'UTF-8 e li unisce in una stringa
-        try {
-            message = new String(bytes, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return message;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Come {@link #decrypt(String, PrivateKey)}, con la chiave come stringa.
+     * @param encryptedMessageBase64 Il messaggio criptato con l'RSA e codificato in base 64, in uno dei due formati.
+     * @param key La chiave con cui si vuole decriptare il messaggio, in uno dei formati di {@link PrivateKey}.
+     * @return Il messaggio decriptato.
+     */
+    public static String decrypt(String encryptedMessageBase64, String key){
+        return decrypt(encryptedMessageBase64, PrivateKey.parse(key));
+    }
+
+    /**
+     * Decriptazione RSA con il teorema cinese del resto. Calcola il messaggio modulo {@code p} e modulo {@code q} 
+     * e li ricombina con la formula di Garner.
+     * @param c Il messaggio criptato.
+     * @param key La chiave privata, con i fattori del modulo.
+     * @return Il messaggio decriptato, uguale a {@code c^d mod n}.
+     */
+    private static BigInteger decryptCrt(BigInteger c, PrivateKey key) {
+        BigInteger p = key.getP();
+        BigInteger q = key.getQ();
+        BigInteger m1 = c.mod(p).modPow(key.getDP(), p); //c^dP mod p
+        BigInteger m2 = c.mod(q).modPow(key.getDQ(), q); //c^dQ mod q
+        BigInteger h = key.getQInv().multiply(m1.subtract(m2)).mod(p); //(m1 - m2) * qInv mod p, sempre positivo
+        return m2.add(h.multiply(q)); //m = m2 + h * q
+    }
+
+    /**
+     * Codifica un numero positivo in Base64.
+     * @param number Il numero.
+     * @param compact {@code true} per i byte del numero in big-endian, {@code false} per le sue cifre decimali.
+     * @return Il numero codificato.
+     */
+    static String encodeNumber(BigInteger number, boolean compact) {
+        if(!compact)
+            return Base64.getEncoder().encodeToString(number.toString().getBytes(StandardCharsets.US_ASCII));
+        byte[] bytes = number.toByteArray();
+        int sign = bytes.length > 1 && bytes[0] == 0 ? 1 : 0; //Byte del segno aggiunto da toByteArray
+        return Base64.getEncoder().encodeToString(sign == 0 ? bytes : Arrays.copyOfRange(bytes, sign, bytes.length));
+    }
+
+    /**
+     * Decodifica un numero positivo codificato da {@link #encodeNumber}.
+     * @param part Il numero codificato.
+     * @param compact {@code true} se sono i byte del numero, {@code false} se sono le sue cifre decimali.
+     * @return Il numero.
+     * @throws IllegalArgumentException Se la stringa non e' un numero codificato valido.
+     */
+    static BigInteger decodeNumber(String part, boolean compact) {
+        byte[] bytes = Base64.getDecoder().decode(part);
+        if(compact)
+            return new BigInteger(1, bytes);
+        return new BigInteger(new String(bytes, StandardCharsets.US_ASCII)); //NumberFormatException e' una IllegalArgumentException
     }
 }
@@ -0,0 +1,298 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.IOException;               //Errori di I/O
+import java.io.EOFException;              //File di appoggio piu' corto del previsto
+import java.io.OutputStream;              //Flusso di byte verso il client
+import java.nio.ByteBuffer;               //Copia dei byte dei file
+import java.nio.channels.FileChannel;     //File di appoggio dei trasferimenti
+import java.nio.charset.StandardCharsets; //Codifica UTF-8
+import java.util.List;                    //Messaggi inviati insieme
+
+/**
+ * La classe {@code BinaryProtocolWriter} scrive verso il client con il {@link BinaryProtocol protocollo binario}: 
+ * ogni comando e' un frame con un opcode e un contenuto preceduto dalla sua lunghezza.
+ * <p>
+ * I messaggi vengono inviati come frame {@link BinaryProtocol#MESSAGE} con ora di invio, mandante e messaggio criptato 
+ * in campi separati, quindi il server non deve comporre la stringa formattata e il client non deve dividerla. 
+ * Di solito il frame e' gia' stato costruito all'invio del messaggio ({@link Message#getFrame()}) e viene copiato cosi' com'e'. 
+ * Piu' messaggi letti insieme vengono inviati in frame {@link BinaryProtocol#MESSAGES}, 
+ * ognuno grande al massimo {@link BinaryProtocol#MAX_FRAME_LENGTH}.
+ * <p>
+ * I byte dei file vengono scritti subito dopo l'intestazione del frame {@link BinaryProtocol#FILE_CHUNK}: 
+ * se il flusso e' un {@link FileRegionStream} passano dal file di appoggio al socket senza essere copiati nella heap.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class BinaryProtocolWriter implements ProtocolWriter {
+    private static final byte[] EMPTY = new byte[0]; //Contenuto dei frame senza contenuto
+
+    private OutputStream out;      //Flusso bufferizzato verso il client
+    private boolean error = false; //true dopo un errore di scrittura, da quel momento i frame vengono scartati
+
+    /**
+     * Costruttore di {@code BinaryProtocolWriter}.
+     * @param out Il flusso bufferizzato su cui scrivere i frame.
+     */
+    public BinaryProtocolWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public void text(String text) {
+        frame(BinaryProtocol.TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void input() {
+        frame(BinaryProtocol.INPUT, EMPTY);
+    }
+
+    public void inputCommand() {
+        frame(BinaryProtocol.INPUTC, EMPTY);
+    }
+
+    public void sendKey() {
+        frame(BinaryProtocol.SENDKEY, EMPTY);
+    }
+
+    public void quit() {
+        frame(BinaryProtocol.QUIT, EMPTY);
+    }
+
+    public void message(Message message) {
+        if(error)
+            return;
+        try {
+            //Il frame e' stato costruito all'invio per una sessione binaria, va scritto cosi' com'e'
+            if(message.isBinary()) {
+                out.write(message.getFrame());
+                return;
+            }
+            byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+            assert message.getSize() <= BinaryProtocol.maxMessageLength(sender.length) : "messaggio piu' lungo di un frame";
+            BinaryProtocol.writeHeader(out, BinaryProtocol.MESSAGE, 8 + 2 + sender.length + message.getSize());
+            writeLong(message.getSentAtMillis());
+            BinaryProtocol.writeShort(out, sender.length);
+            out.write(sender);
+            out.write(message.getFrame(), message.getMsgOffset(), message.getSize());
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    public void messages(List<Message> messages) {
+        if(error)
+            return;
+        //Codifica i mandanti dei frame di testo una volta sola, per conoscere la dimensione dei frame prima di scriverli
+        //Per i frame binari ora, mandante e messaggio vengono copiati dal frame gia' pronto
+        int count = messages.size();
+        byte[][] senders = new byte[count][];
+        for(int i = 0; i < count; i++) {
+            Message message = messages.get(i);
+            if(!message.isBinary())
+                senders[i] = message.getSender().getBytes(StandardCharsets.UTF_8);
+        }
+
+        try {
+            int first = 0;
+            while(first < count) {
+                //Prende i messaggi che entrano in un frame, almeno uno
+                int length = 2;
+                int last = first;
+                while(last < count && last - first < 0xFFFF) {
+                    Message message = messages.get(last);
+                    int fields = message.isBinary() ? message.getMsgOffset() - BinaryProtocol.HEADER_LENGTH : 8 + 2 + senders[last].length;
+                    int size = fields + 4 + message.getSize();
+                    if(last > first && length + size > BinaryProtocol.MAX_FRAME_LENGTH)
+                        break;
+                    //MessageBox rifiuta i messaggi che non entrerebbero da soli in un frame
+                    assert length + size <= BinaryProtocol.MAX_FRAME_LENGTH : "messaggio piu' lungo di un frame";
+                    length += size;
+                    last++;
+                }
+
+                BinaryProtocol.writeHeader(out, BinaryProtocol.MESSAGES, length);
+                BinaryProtocol.writeShort(out, last - first);
+                for(int i = first; i < last; i++) {
+                    Message message = messages.get(i);
+                    byte[] frame = message.getFrame();
+                    if(message.isBinary()) {
+                        out.write(frame, BinaryProtocol.HEADER_LENGTH, message.getMsgOffset() - BinaryProtocol.HEADER_LENGTH);
+                    }
+                    else {
+                        writeLong(message.getSentAtMillis());
+                        BinaryProtocol.writeShort(out, senders[i].length);
+                        out.write(senders[i]);
+                    }
+                    writeInt(message.getSize());
+                    out.write(frame, message.getMsgOffset(), message.getSize());
+                }
+                first = last;
+            }
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    public void key(String key) {
+        frame(BinaryProtocol.KEY, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void newKey(String key) {
+        frame(BinaryProtocol.NEWKEY, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void presence(String userName, boolean online) {
+        if(error)
+            return;
+        byte[] name = userName.getBytes(StandardCharsets.UTF_8);
+        try {
+            BinaryProtocol.writeHeader(out, BinaryProtocol.PRESENCE, 1 + name.length);
+            out.write(online ? 1 : 0);
+            out.write(name);
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    public void fileStart(FileTransfer transfer) {
+        if(error)
+            return;
+        byte[] sender = transfer.getSenderName().getBytes(StandardCharsets.UTF_8);
+        byte[] name = transfer.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] key = transfer.getWrappedKey().getBytes(StandardCharsets.UTF_8);
+        try {
+            BinaryProtocol.writeHeader(out, BinaryProtocol.FILE_START, 4 + 8 + 2 + sender.length + 2 + name.length + key.length);
+            writeInt(transfer.getId());
+            writeLong(transfer.getSize());
+            BinaryProtocol.writeShort(out, sender.length);
+            out.write(sender);
+            BinaryProtocol.writeShort(out, name.length);
+            out.write(name);
+            out.write(key);
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    public void fileChunk(int id, FileChannel file, long position, int count, Runnable done) {
+        if(error)
+            return;
+        try {
+            BinaryProtocol.writeHeader(out, BinaryProtocol.FILE_CHUNK, 4 + count);
+            writeInt(id);
+            if(out instanceof FileRegionStream) {
+                ((FileRegionStream) out).transferFrom(file, position, count, done);
+                return;
+            }
+            //Il flusso non sa inviare parti di file, quindi i byte passano dalla heap
+            ByteBuffer bytes = ByteBuffer.allocate(count);
+            while(bytes.hasRemaining()) {
+                if(file.read(bytes, position + bytes.position()) < 0)
+                    throw new EOFException();
+            }
+            out.write(bytes.array());
+            done.run();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    public void fileDone(int id) {
+        idFrame(BinaryProtocol.FILE_DONE, id);
+    }
+
+    public void fileCancel(int id) {
+        idFrame(BinaryProtocol.FILE_CANCEL, id);
+    }
+
+    public void fileCredit(int id, int credit) {
+        if(error)
+            return;
+        try {
+            BinaryProtocol.writeHeader(out, BinaryProtocol.FILE_CREDIT, 8);
+            writeInt(id);
+            writeInt(credit);
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    public void fileStop(int id) {
+        idFrame(BinaryProtocol.FILE_STOP, id);
+    }
+
+    public void flush() {
+        if(error)
+            return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        for(int shift = 56; shift >= 0; shift -= 8)
+            out.write((int) (value >>> shift));
+    }
+
+    private void writeInt(int value) throws IOException {
+        for(int shift = 24; shift >= 0; shift -= 8)
+            out.write(value >>> shift);
+    }
+
+    /**
+     * Scrive un frame che contiene solo l'id di un trasferimento.
+     * @param opcode Il tipo di frame.
+     * @param id L'id.
+     */
+    private void idFrame(byte opcode, int id) {
+        if(error)
+            return;
+        try {
+            BinaryProtocol.writeHeader(out, opcode, 4);
+            writeInt(id);
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    /**
+     * Scrive un frame con un solo campo.
+     * @param opcode Il tipo di frame.
+     * @param payload Il contenuto.
+     */
+    private void frame(byte opcode, byte[] payload) {
+        if(error)
+            return;
+        try {
+            BinaryProtocol.writeHeader(out, opcode, payload.length);
+            out.write(payload);
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+}
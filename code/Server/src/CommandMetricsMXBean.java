@@ -0,0 +1,54 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+/**
+ * Interfaccia JMX delle misure di un comando, registrata come {@code safjnest:type=Command,name=comando}. 
+ * Le latenze sono il tempo di esecuzione del comando nel server, in microsecondi.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public interface CommandMetricsMXBean {
+    /** @return Le esecuzioni del comando dall'avvio. */
+    long getCount();
+
+    /** @return Le esecuzioni del comando nell'ultimo secondo. */
+    double getRatePerSecond();
+
+    /** @return La latenza media. */
+    double getMeanMicros();
+
+    /** @return La mediana della latenza. */
+    long getP50Micros();
+
+    /** @return Il 99esimo percentile della latenza. */
+    long getP99Micros();
+
+    /** @return Il 99.9esimo percentile della latenza. */
+    long getP999Micros();
+
+    /** @return La latenza piu' alta. */
+    long getMaxMicros();
+}
@@ -0,0 +1,49 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.IOException;              //Errori di I/O
+import java.nio.channels.FileChannel;    //File da cui inviare i byte
+
+/**
+ * L'interfaccia {@code FileRegionStream} e' implementata dai flussi verso il client che sanno inviare una parte di un file 
+ * direttamente dal file al socket, con {@link FileChannel#transferTo}, senza copiare i byte nella heap.
+ * <p>
+ * E' usata da {@link BinaryProtocolWriter} per i byte dei file inoltrati da un {@link FileTransfer}: 
+ * se il flusso non la implementa i byte vengono letti dal file e scritti nel flusso.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public interface FileRegionStream {
+    /**
+     * Invia i byte gia' scritti nel flusso e poi una parte di un file.
+     * @param file Il file.
+     * @param position Posizione del primo byte nel file.
+     * @param count Numero di byte da inviare.
+     * @param done Azione eseguita quando tutti i byte sono stati scritti sul socket, anche in un secondo momento.
+     * @throws IOException Errori di I/O.
+     */
+    void transferFrom(FileChannel file, long position, long count, Runnable done) throws IOException;
+}
@@ -0,0 +1,128 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.IOException;                        //Errori di I/O
+import java.nio.channels.FileChannel;              //File di appoggio
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;     //Sessioni per userName
+import java.util.concurrent.atomic.AtomicInteger;  //Id dei trasferimenti
+
+/**
+ * La classe {@code FileRelay} contiene le sessioni che possono ricevere file e crea i {@link FileTransfer}, 
+ * uno per ogni file inviato con {@code sendfile}. E' condivisa da tutte le sessioni del server, come la {@link MessageBox}.
+ * <p>
+ * Un file puo' essere inviato solo ad uno user connesso con la versione 2 del {@link BinaryProtocol protocollo binario}, 
+ * perche' i byte vengono inoltrati mentre arrivano e non vengono tenuti nella sua mailbox.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class FileRelay {
+    /** Dimensione minima del buffer di un trasferimento, piu' grande di qualsiasi blocco criptato inviato dal client. */
+    public static final int MIN_WINDOW = 1 << 20;
+
+    private final int window;                 //Credito iniziale e dimensione dei segmenti del file di appoggio di ogni trasferimento
+    private final Path spoolDir;              //Cartella dei file di appoggio, null per la cartella temporanea di sistema
+    private final ConcurrentHashMap<String, ServerProtocol> sessions = new ConcurrentHashMap<String, ServerProtocol>(); //Sessioni per userName
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Costruttore di {@code FileRelay}.
+     * @param window Byte di ogni file che possono essere in attesa del destinatario, almeno {@link #MIN_WINDOW}.
+     * @param spoolDir Cartella dei file di appoggio, {@code null} per la cartella temporanea di sistema.
+     */
+    public FileRelay(int window, Path spoolDir) {
+        this.window = Math.max(MIN_WINDOW, window);
+        this.spoolDir = spoolDir;
+    }
+
+    /**
+     * @return Il credito iniziale di ogni trasferimento.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Registra la sessione di uno user che ha completato il log in.
+     * @param userName UserName dello user.
+     * @param session La sua sessione.
+     */
+    public void register(String userName, ServerProtocol session) {
+        sessions.put(userName, session);
+    }
+
+    /**
+     * Rimuove la sessione di uno user che si e' disconnesso.
+     * @param userName UserName dello user.
+     * @param session La sua sessione, rimossa solo se e' ancora quella registrata.
+     */
+    public void unregister(String userName, ServerProtocol session) {
+        sessions.remove(userName, session);
+    }
+
+    /**
+     * @param userName UserName dello user.
+     * @return La sessione dello user, {@code null} se non e' connesso.
+     */
+    public ServerProtocol getSession(String userName) {
+        return sessions.get(userName);
+    }
+
+    /**
+     * Crea un trasferimento con il primo segmento del suo file di appoggio.
+     * @param senderId Id scelto dal client del mandante.
+     * @param sender Sessione del mandante.
+     * @param receiver Sessione del destinatario.
+     * @param senderName UserName del mandante.
+     * @param name Nome del file.
+     * @param size Dimensione del file in chiaro.
+     * @param wrappedKey Chiave di sessione criptata con la chiave pubblica del destinatario.
+     * @return Il trasferimento.
+     * @throws IOException Se non e' possibile creare il file di appoggio.
+     */
+    public FileTransfer open(int senderId, ServerProtocol sender, ServerProtocol receiver, String senderName, String name, long size, 
+            String wrappedKey) throws IOException {
+        return new FileTransfer(nextId.incrementAndGet(), senderId, this, sender, receiver, senderName, name, size, wrappedKey, 
+                openSpool(), window);
+    }
+
+    /**
+     * Crea un nuovo segmento di file di appoggio, eliminato quando viene chiuso.
+     * @return Il segmento, vuoto.
+     * @throws IOException Se non e' possibile creare il file.
+     */
+    FileChannel openSpool() throws IOException {
+        Path path = spoolDir == null ? Files.createTempFile("transfer-", ".spool") : Files.createTempFile(spoolDir, "transfer-", ".spool");
+        try {
+            return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.IOException;             //Errori di I/O
+import java.nio.ByteBuffer;             //Byte ricevuti dal mandante
+import java.nio.channels.FileChannel;   //File di appoggio
+import java.util.ArrayList;             //Segmenti del file di appoggio
+import java.util.List;
+
+/**
+ * La classe {@code FileTransfer} rappresenta un file inoltrato da un mandante ad un destinatario, 
+ * entrambi connessi con il {@link BinaryProtocol protocollo binario}.
+ * <p>
+ * Il server non decripta il file: i byte ricevuti dal mandante vengono scritti in file di appoggio, 
+ * e da li' inviati al destinatario con {@link ProtocolWriter#fileChunk}, che quando possibile usa {@link FileChannel#transferTo}. 
+ * Quindi i byte del file non passano mai da stringhe o array nella heap e il server non tiene in memoria piu' di qualche buffer 
+ * per trasferimento.
+ * <p>
+ * Il controllo di flusso e' a credito: il mandante parte con {@code capacity} byte di credito e ogni byte inviato 
+ * al destinatario gli viene restituito con un frame {@link BinaryProtocol#FILE_CREDIT}. Un destinatario lento quindi rallenta 
+ * il mandante invece di far crescere i file di appoggio.
+ * <p>
+ * Il file di appoggio e' diviso in segmenti di {@code capacity} byte, ognuno in un file nuovo chiuso (ed eliminato) appena 
+ * tutti i suoi byte sono stati scritti sul socket. Un segmento non viene mai riscritto: dopo {@code transferTo} il sistema operativo 
+ * puo' ancora leggere le pagine del file mentre le invia, quindi un buffer circolare riscritto sul posto potrebbe inviare 
+ * al destinatario i byte nuovi al posto di quelli vecchi. Con il credito ci sono al massimo due segmenti aperti per trasferimento.
+ * <p>
+ * I byte vengono aggiunti solo dal thread della sessione del mandante e inviati solo sotto il lock delle scritture 
+ * del destinatario. I contatori e i segmenti sono protetti dal lock dell'oggetto.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class FileTransfer {
+    private static final int MAX_CHUNK = 256 * 1024; //Byte inviati al destinatario in un solo frame
+
+    private final int id;                  //Id del trasferimento verso il destinatario, scelto dal server
+    private final int senderId;            //Id del trasferimento verso il mandante, scelto dal client
+    private final ServerProtocol sender;
+    private final ServerProtocol receiver;
+    private final String senderName;
+    private final String name;             //Nome del file
+    private final long size;               //Dimensione del file in chiaro, indicata dal mandante
+    private final String wrappedKey;       //Chiave di sessione criptata con la chiave pubblica del destinatario
+    private final FileRelay relay;         //Crea i segmenti del file di appoggio
+    private final List<FileChannel> segments = new ArrayList<FileChannel>(); //Segmenti aperti, eliminati alla chiusura
+    private long firstSegment = 0;         //Indice del primo segmento aperto
+    private final int capacity;            //Dimensione di ogni segmento e credito iniziale del mandante
+
+    private long written = 0;              //Byte ricevuti dal mandante
+    private long queued = 0;               //Byte passati al writer del destinatario
+    private long delivered = 0;            //Byte scritti sul socket del destinatario
+    private int credit = 0;                //Byte consegnati non ancora restituiti al mandante
+    private boolean ended = false;         //true dopo la fine del file inviata dal mandante
+    private boolean aborted = false;       //true se il trasferimento e' stato annullato
+    private boolean closed = false;        //true dopo la chiusura di tutti i segmenti
+    private boolean announced = false;     //true dopo l'invio di FILE_START al destinatario, usato sotto il suo lock
+
+    /**
+     * Costruttore di {@code FileTransfer}, usato da {@link FileRelay#open}.
+     * @param id Id verso il destinatario.
+     * @param senderId Id verso il mandante.
+     * @param relay Il relay che crea i segmenti del file di appoggio.
+     * @param sender Sessione del mandante.
+     * @param receiver Sessione del destinatario.
+     * @param senderName UserName del mandante.
+     * @param name Nome del file.
+     * @param size Dimensione del file in chiaro.
+     * @param wrappedKey Chiave di sessione criptata.
+     * @param spool Primo segmento del file di appoggio, vuoto.
+     * @param capacity Dimensione di ogni segmento, ovvero il credito iniziale del mandante.
+     */
+    FileTransfer(int id, int senderId, FileRelay relay, ServerProtocol sender, ServerProtocol receiver, String senderName, String name, 
+            long size, String wrappedKey, FileChannel spool, int capacity) {
+        this.id = id;
+        this.senderId = senderId;
+        this.relay = relay;
+        this.sender = sender;
+        this.receiver = receiver;
+        this.senderName = senderName;
+        this.name = name;
+        this.size = size;
+        this.wrappedKey = wrappedKey;
+        this.segments.add(spool);
+        this.capacity = capacity;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public String getSenderName() {
+        return senderName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getWrappedKey() {
+        return wrappedKey;
+    }
+
+    boolean isAnnounced() {
+        return announced;
+    }
+
+    void setAnnounced() {
+        announced = true;
+    }
+
+    public synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Aggiunge i byte inviati dal mandante al file di appoggio e programma l'invio al destinatario. 
+     * Viene chiamato solo dal thread della sessione del mandante.
+     * @param data I byte, anche in un buffer diretto, che vengono consumati.
+     * @throws IOException Se il mandante ha superato il credito o il file di appoggio non e' scrivibile o e' gia' stato chiuso.
+     */
+    public void append(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        long start;
+        synchronized(this) {
+            if(aborted || ended)
+                return;
+            if(written - delivered + length > capacity)
+                throw new IOException("file credit exceeded");
+            start = written;
+        }
+
+        //I byte vanno dopo written, in una parte dei segmenti che il destinatario non ha ancora letto
+        long position = start;
+        while(data.hasRemaining()) {
+            int offset = (int) (position % capacity);
+            FileChannel segment = segment(position / capacity);
+            ByteBuffer part = data.slice();
+            part.limit(Math.min(part.remaining(), capacity - offset)); //Si ferma alla fine del segmento
+            while(part.hasRemaining())
+                segment.write(part, offset + part.position());
+            data.position(data.position() + part.limit());
+            position += part.limit();
+        }
+
+        synchronized(this) {
+            written = start + length;
+        }
+        receiver.scheduleFileWork();
+    }
+
+    /**
+     * Segna la fine del file, inviata dal mandante.
+     */
+    public void end() {
+        synchronized(this) {
+            ended = true;
+        }
+        release();
+        receiver.scheduleFileWork();
+    }
+
+    /**
+     * Annulla il trasferimento e avvisa entrambe le sessioni.
+     * @param receiverGone {@code true} se il destinatario si e' disconnesso, quindi i byte gia' passati al suo writer 
+     *                     non verranno piu' letti e il file di appoggio puo' essere chiuso subito.
+     */
+    public void abort(boolean receiverGone) {
+        synchronized(this) {
+            if(aborted)
+                return;
+            aborted = true;
+            if(receiverGone)
+                queued = delivered;
+        }
+        release();
+        sender.scheduleFileWork();
+        receiver.scheduleFileWork();
+    }
+
+    /**
+     * Passa al writer del destinatario i byte ricevuti e non ancora inviati. 
+     * Va chiamato tenendo il lock delle scritture del destinatario.
+     * @param out Il writer del destinatario.
+     * @return {@code true} se il file e' completo, quindi il destinatario deve ricevere la fine del file.
+     */
+    boolean writeTo(ProtocolWriter out) {
+        long from;
+        long to;
+        boolean complete;
+        synchronized(this) {
+            if(aborted)
+                return false;
+            from = queued;
+            to = written;
+            queued = to;
+            complete = ended; //Il mandante aggiunge byte solo prima della fine, quindi written e' definitivo
+        }
+        try {
+            while(from < to) {
+                int offset = (int) (from % capacity);
+                int count = (int) Math.min(Math.min(to - from, capacity - offset), MAX_CHUNK); //Un frame non supera la fine del segmento
+                out.fileChunk(id, segment(from / capacity), offset, count, () -> delivered(count));
+                from += count;
+            }
+        } catch (IOException e) { //Segmenti gia' chiusi, il trasferimento e' stato annullato nel frattempo
+            return false;
+        }
+        return complete;
+    }
+
+    /**
+     * Ritorna un segmento del file di appoggio, creandolo se il mandante e' arrivato alla sua prima posizione.
+     * @param index Indice del segmento.
+     * @return Il segmento.
+     * @throws IOException Se il trasferimento e' gia' chiuso o non e' possibile creare il segmento.
+     */
+    private synchronized FileChannel segment(long index) throws IOException {
+        if(closed)
+            throw new IOException("file transfer closed");
+        while(firstSegment + segments.size() <= index)
+            segments.add(relay.openSpool());
+        return segments.get((int) (index - firstSegment));
+    }
+
+    /**
+     * Registra i byte scritti sul socket del destinatario, che diventano credito per il mandante.
+     * @param count Numero di byte.
+     */
+    private void delivered(int count) {
+        List<FileChannel> done = new ArrayList<FileChannel>();
+        synchronized(this) {
+            delivered += count;
+            credit += count;
+            //I segmenti scritti tutti sul socket non vengono piu' letti ne' scritti
+            while(!closed && segments.size() > 1 && (firstSegment + 1) * capacity <= delivered) {
+                done.add(segments.remove(0));
+                firstSegment++;
+            }
+        }
+        close(done);
+        release();
+        sender.scheduleFileWork();
+    }
+
+    /**
+     * Ritorna il credito da restituire al mandante e lo azzera.
+     * @return Il credito.
+     */
+    synchronized int takeCredit() {
+        int c = credit;
+        credit = 0;
+        return c;
+    }
+
+    /**
+     * Chiude i segmenti del file di appoggio quando non servono piu': il file e' stato inviato tutto, 
+     * o il trasferimento e' stato annullato e non ci sono piu' byte in attesa di essere scritti sul socket.
+     */
+    private void release() {
+        List<FileChannel> done;
+        synchronized(this) {
+            if(closed || delivered != queued || !(aborted || (ended && delivered == written)))
+                return;
+            closed = true;
+            done = new ArrayList<FileChannel>(segments);
+            segments.clear();
+        }
+        close(done);
+    }
+
+    private static void close(List<FileChannel> done) {
+        for(FileChannel segment : done) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                //Il file viene comunque eliminato
+            }
+        }
+    }
+}
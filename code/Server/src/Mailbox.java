@@ -0,0 +1,199 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.nio.charset.StandardCharsets;           //Codifica UTF-8 della chiave
+import java.security.MessageDigest;                 //SHA-256 dell'impronta
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;                            //Troncamento dell'impronta
+import java.util.Base64;                            //Codifica dell'impronta
+import java.util.concurrent.atomic.AtomicBoolean;   //Utente online
+import java.util.concurrent.atomic.AtomicInteger;   //Numero di messaggi in coda
+import java.util.concurrent.atomic.AtomicLong;      //Byte in coda
+import java.util.concurrent.locks.ReentrantLock;    //Lock del consumatore
+
+/**
+ * La classe {@code Mailbox} rappresenta lo spazio di un utente nella {@link MessageBox}: 
+ * la coda dei messaggi ricevuti, la chiave pubblica e l'azione da eseguire quando arriva un messaggio in modalita' push.
+ * <p>
+ * Insieme alla chiave viene calcolata una volta sola la sua {@link #fingerprint(String) impronta}, 
+ * che i client usano per sapere se la chiave che hanno in cache e' ancora quella attuale.
+ * <p>
+ * La coda e' una {@link MpscQueue}: qualsiasi thread puo' aggiungere messaggi, mentre solo la sessione dell'utente li legge.
+ * Il numero di messaggi e di byte in coda viene tenuto in contatori atomici, per limitare la dimensione della coda senza lock.
+ * <p>
+ * Una mailbox resta nella {@link MessageBox} anche quando l'utente si disconnette ({@link #logout()}), 
+ * oppure viene creata per un utente non connesso con i messaggi recuperati dal {@link MessageLog}: 
+ * l'utente la riprende con {@link #claim(String)} quando fa il log in.
+ * <p>
+ * I messaggi in coda sono criptati con la chiave pubblica che la mailbox aveva quando sono stati inviati. 
+ * Se chi fa il log in presenta una chiave diversa, un'altra persona con lo stesso username o lo stesso utente 
+ * con una chiave nuova, non potrebbe decriptarli: la {@link MessageBox} li elimina prima di consegnare la mailbox, 
+ * li segna come consegnati nel {@link MessageLog} e li conta in {@link MessageBox#getStaleKeyMessages()}. 
+ * Le mailbox recuperate dal log non hanno una chiave, quindi i loro messaggi vengono consegnati al primo log in.
+ * <p>
+ * Chi legge dalla coda prende il {@link #getConsumerLock() lock del consumatore}. Di solito e' solo la sessione dell'utente, 
+ * quindi il lock non e' conteso, ma con {@link OverflowPolicy#DROP_OLDEST} anche i mandanti devono poter eliminare i messaggi piu' vecchi.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class Mailbox {
+    /**
+     * Una chiave pubblica con la sua impronta, che cambiano sempre insieme.
+     */
+    public static final class Key {
+        private final String value;
+        private final String fingerprint;
+
+        private Key(String value) {
+            this.value = value;
+            this.fingerprint = fingerprint(value);
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+    }
+
+    private MpscQueue<Message> messages = new MpscQueue<Message>(); //Coda dei messaggi ricevuti
+    private volatile Key key;                                        //Chiave pubblica dell'utente, null se non e' nota
+    private AtomicBoolean online;                                    //true se l'utente e' connesso
+    private volatile long lastSeen = System.currentTimeMillis();     //Ora in millisecondi dell'ultima disconnessione
+    private AtomicBoolean expiryScheduled = new AtomicBoolean();      //true se c'e' un timer per la scadenza del primo messaggio
+    private volatile Runnable listener = null;                       //Azione da eseguire quando arriva un messaggio, null se non in modalita' push
+    private volatile boolean binary = true;                          //Protocollo dell'ultima sessione dell'utente, in cui vengono preparati i messaggi.
+                                                                     //Quando non e' noto e' il binario, che il client negozia sempre
+    private AtomicInteger size = new AtomicInteger();                //Numero di messaggi in coda, compresi quelli riservati
+    private AtomicLong bytes = new AtomicLong();                     //Byte dei messaggi in coda, compresi quelli riservati
+    private ReentrantLock consumerLock = new ReentrantLock();         //Lock di chi legge o elimina messaggi dalla coda
+
+    /**
+     * Costruttore di {@code Mailbox}.
+     * @param publicKey Chiave pubblica dell'utente.
+     * @param online {@code true} se l'utente e' connesso.
+     */
+    public Mailbox(String publicKey, boolean online) {
+        this.key = publicKey == null ? null : new Key(publicKey);
+        this.online = new AtomicBoolean(online);
+    }
+
+    /**
+     * Assegna la mailbox ad un utente che fa il log in, se non e' gia' di un utente connesso. 
+     * Non elimina i messaggi in coda: se la chiave cambia lo fa {@link MessageBox#newUser(String, String, boolean)}.
+     * @param publicKey Chiave pubblica dell'utente.
+     * @return {@code true} se la mailbox era di un utente non connesso ed e' stata assegnata.
+     */
+    public boolean claim(String publicKey) {
+        if(!online.compareAndSet(false, true))
+            return false;
+        if(key == null || !key.getValue().equals(publicKey))
+            this.key = new Key(publicKey);
+        return true;
+    }
+
+    /**
+     * Segna l'utente come disconnesso, mantenendo messaggi e chiave pubblica.
+     */
+    public void logout() {
+        listener = null;
+        lastSeen = System.currentTimeMillis();
+        online.set(false);
+    }
+
+    public boolean isOnline() {
+        return online.get();
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public AtomicBoolean getExpiryScheduled() {
+        return expiryScheduled;
+    }
+
+    public MpscQueue<Message> getMessages() {
+        return messages;
+    }
+
+    public String getPublicKey() {
+        Key key = this.key;
+        return key == null ? null : key.getValue();
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    public AtomicInteger getSize() {
+        return size;
+    }
+
+    public AtomicLong getBytes() {
+        return bytes;
+    }
+
+    public ReentrantLock getConsumerLock() {
+        return consumerLock;
+    }
+
+    public Runnable getListener() {
+        return listener;
+    }
+
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return {@code true} se i messaggi per l'utente vanno preparati come frame del {@link BinaryProtocol protocollo binario}.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Calcola l'impronta di una chiave pubblica: i primi 12 byte dello SHA-256 della chiave in UTF-8, 
+     * in Base64 URL senza padding (16 caratteri). Il client usa lo stesso calcolo.
+     * @param publicKey La chiave pubblica.
+     * @return L'impronta.
+     */
+    public static String fingerprint(String publicKey) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(publicKey.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, 12));
+        } catch (NoSuchAlgorithmException e) { //SHA-256 e' sempre disponibile
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -23,68 +23,208 @@
  * 
  */
 
-import java.time.LocalDateTime; //Data e tempo
-import java.time.format.DateTimeFormatter; //Formattazione di data e tempo
+import java.nio.charset.StandardCharsets;  //Codifica UTF-8
+import java.time.Instant;                  //Ora di invio
+import java.time.ZoneId;                   //Fuso orario
+import java.time.format.DateTimeFormatter; //Formattazione dell'ora
 
 /**
- * La classe {@code Message} rappresenta un messaggio, memorizzandone il contenuto criptato, 
- * lo userName del mandante e la data e ora del momento di invio.
+ * La classe {@code Message} rappresenta un messaggio in attesa nella coda di un utente, 
+ * nella forma piu' compatta possibile: l'ora di invio in millisecondi, il riferimento allo userName del mandante 
+ * e un solo array di byte con il frame gia' pronto per il destinatario, che contiene anche il messaggio criptato.
+ * <p>
+ * Il frame viene costruito una sola volta all'invio, nel formato della sessione del destinatario 
+ * ({@link BinaryProtocol#MESSAGE} o le righe DECRYPT e {@code [HH:mm]<mandante> messaggio} del protocollo di testo), 
+ * e i writer lo copiano cosi' com'e' nel flusso verso il socket. Se il destinatario si riconnette con l'altro protocollo 
+ * i campi vengono letti dal frame e codificati di nuovo.
+ * <p>
+ * Il mandante non viene copiato: tutti i messaggi di una sessione puntano alla stessa stringa, 
+ * lo userName della sessione, di cui il server tiene la {@link String#intern() versione interna}.
  * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
  * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
  * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
  */
 public class Message {
-    private DateTimeFormatter dtf = DateTimeFormatter.ofPattern("HH:mm"); //Formattatore di data e ora
-                                                                          //ofpattern (HH:mm) = formatta in HH:mm
+    /** Formattatore dell'ora dei messaggi di testo, condiviso da tutti i messaggi. */
+    public static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+    /** Terminatore delle righe del protocollo di testo, lo stesso di {@link java.io.PrintWriter#println()}. */
+    public static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DECRYPT = ("DECRYPT" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    private static final int BINARY_FIELDS = BinaryProtocol.HEADER_LENGTH + 8 + 2; //Intestazione, ora e lunghezza del mandante
+    private static volatile TimePrefix lastPrefix = new TimePrefix(Long.MIN_VALUE, null); //Ultimo prefisso [HH:mm]< codificato
+
+    private final long sentAt;     //Ora di invio in millisecondi dall'epoch
+    private final String sender;   //Mandante
+    private final byte[] frame;    //Frame per il destinatario, con il messaggio criptato
+    private final int msgOffset;   //Posizione del messaggio criptato nel frame
+    private final boolean binary;  //true se il frame e' del protocollo binario
+    private long logOffset = -1;   //Offset del messaggio nel MessageLog, -1 se non e' stato scritto nel log
 
-    private String encryptedMsg;       //Messaggio criptato
-    private String sender;             //Mandante
-    private LocalDateTime sendingDate; //Data e tempo del momento di invio
-    
     /**
-     * Costruttore di {@code Message}.
+     * Costruttore di {@code Message}, che codifica il frame per il destinatario.
      * @param sender Mandante del messaggio.
      * @param msg Messaggio criptato.
-     * @param sendingDate Data e tempo del momento di invio.
+     * @param sentAt Ora di invio in millisecondi dall'epoch.
+     * @param binary {@code true} per preparare un frame del protocollo binario, {@code false} per le righe del protocollo di testo.
      */
-    public Message(String sender, String msg, LocalDateTime sendingDate) {
-        this.encryptedMsg = msg;
+    public Message(String sender, String msg, long sentAt, boolean binary) {
+        this.sentAt = sentAt;
         this.sender = sender;
-        this.sendingDate = sendingDate;
+        this.binary = binary;
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        //Il messaggio criptato e' in Base64, quindi ASCII: viene copiato direttamente nel frame senza un array intermedio
+        byte[] msgBytes = isAscii(msg) ? null : msg.getBytes(StandardCharsets.UTF_8);
+        int msgLength = msgBytes == null ? msg.length() : msgBytes.length;
+        if(binary) {
+            //Intestazione, ora di invio, mandante preceduto dalla lunghezza e messaggio, come BinaryProtocolWriter
+            frame = new byte[BINARY_FIELDS + senderBytes.length + msgLength];
+            int length = frame.length - BinaryProtocol.HEADER_LENGTH;
+            int i = writeInt(frame, 0, length);
+            frame[i++] = BinaryProtocol.MESSAGE;
+            for(int shift = 56; shift >= 0; shift -= 8)
+                frame[i++] = (byte)(sentAt >>> shift);
+            frame[i++] = (byte)(senderBytes.length >>> 8);
+            frame[i++] = (byte)senderBytes.length;
+            System.arraycopy(senderBytes, 0, frame, i, senderBytes.length);
+            msgOffset = i + senderBytes.length;
+        }
+        else {
+            //DECRYPT, poi [HH:mm]<mandante> messaggio
+            byte[] prefix = timePrefix(sentAt);
+            frame = new byte[DECRYPT.length + prefix.length + senderBytes.length + 2 + msgLength + LINE_SEPARATOR.length];
+            int i = DECRYPT.length;
+            System.arraycopy(DECRYPT, 0, frame, 0, i);
+            System.arraycopy(prefix, 0, frame, i, prefix.length);
+            i += prefix.length;
+            System.arraycopy(senderBytes, 0, frame, i, senderBytes.length);
+            i += senderBytes.length;
+            frame[i++] = '>';
+            frame[i++] = ' ';
+            msgOffset = i;
+            System.arraycopy(LINE_SEPARATOR, 0, frame, frame.length - LINE_SEPARATOR.length, LINE_SEPARATOR.length);
+        }
+        if(msgBytes != null) {
+            System.arraycopy(msgBytes, 0, frame, msgOffset, msgLength);
+        }
+        else {
+            for(int i = 0; i < msgLength; i++)
+                frame[msgOffset + i] = (byte)msg.charAt(i);
+        }
     }
 
+    /**
+     * @return Il messaggio criptato, letto dal frame.
+     */
     public String getMsg() {
-        return encryptedMsg;
+        return new String(frame, msgOffset, getSize(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Dimensione del messaggio usata per i limiti delle {@link Mailbox}, ovvero il numero di byte del messaggio criptato, 
+     * che essendo in Base64 coincide con il numero di caratteri.
+     * @return La dimensione del messaggio.
+     */
+    public int getSize() {
+        return frame.length - msgOffset - (binary ? 0 : LINE_SEPARATOR.length);
     }
 
     public String getSender() {
         return sender;
     }
 
-    public LocalDateTime getSendingDate() {
-        return sendingDate;
+    /**
+     * Ora di invio in millisecondi dall'epoch, usata per la scadenza dei messaggi.
+     * @return L'ora di invio.
+     */
+    public long getSentAtMillis() {
+        return sentAt;
+    }
+
+    /**
+     * @return {@code true} se il frame e' del protocollo binario.
+     */
+    public boolean isBinary() {
+        return binary;
     }
 
-    public void setMsg(String msg) {
-        this.encryptedMsg = msg;
+    /**
+     * Il frame gia' pronto per il destinatario: un {@link BinaryProtocol#MESSAGE} completo di intestazione se {@link #isBinary()}, 
+     * altrimenti le righe DECRYPT e {@code [HH:mm]<mandante> messaggio} con i terminatori. 
+     * L'array e' condiviso e non va modificato.
+     * @return Il frame.
+     */
+    public byte[] getFrame() {
+        return frame;
     }
 
-    public void setSender(String sender) {
-        this.sender = sender;
+    /**
+     * @return La posizione del messaggio criptato nel {@link #getFrame() frame}, lungo {@link #getSize()} byte.
+     */
+    public int getMsgOffset() {
+        return msgOffset;
+    }
+
+    public long getLogOffset() {
+        return logOffset;
     }
 
-    public void setSendingDate(LocalDateTime sendingDate) {
-        this.sendingDate = sendingDate;
+    public void setLogOffset(long logOffset) {
+        this.logOffset = logOffset;
     }
-    
+
     /**
      * Formatta il messaggio in:
      * <blockquote>
      *    [HH:mm]&#60;mandante.> Messaggio criptato
      * </blockquote>
+     * Con un frame di testo la riga viene letta dal frame, altrimenti viene composta con il {@link #TIME_FORMAT formattatore condiviso}.
      * @return Il messaggio formattato.
      */
     public String getFormattedMessage(){
-        return "[" + dtf.format(sendingDate) + "]" + "<" + sender + "> " + encryptedMsg;
+        if(!binary)
+            return new String(frame, DECRYPT.length, frame.length - DECRYPT.length - LINE_SEPARATOR.length, StandardCharsets.UTF_8);
+        return "[" + TIME_FORMAT.format(Instant.ofEpochMilli(sentAt)) + "]" + "<" + sender + "> " + getMsg();
+    }
+
+    /**
+     * Prefisso {@code [HH:mm]<} dei messaggi di testo. Cambia una volta al minuto, quindi viene formattato 
+     * solo al primo messaggio di ogni minuto e riusato dagli altri.
+     * @param sentAt Ora di invio in millisecondi dall'epoch.
+     * @return Il prefisso codificato in UTF-8, da non modificare.
+     */
+    private static byte[] timePrefix(long sentAt) {
+        long minute = Math.floorDiv(sentAt, 60_000L);
+        TimePrefix cached = lastPrefix;
+        if(cached.minute == minute)
+            return cached.bytes;
+        byte[] bytes = ("[" + TIME_FORMAT.format(Instant.ofEpochMilli(sentAt)) + "]<").getBytes(StandardCharsets.UTF_8);
+        lastPrefix = new TimePrefix(minute, bytes);
+        return bytes;
+    }
+
+    private static final class TimePrefix {
+        private final long minute;  //Minuti dall'epoch
+        private final byte[] bytes; //Prefisso codificato
+
+        private TimePrefix(long minute, byte[] bytes) {
+            this.minute = minute;
+            this.bytes = bytes;
+        }
+    }
+
+    private static boolean isAscii(String s) {
+        for(int i = 0; i < s.length(); i++) {
+            if(s.charAt(i) >= 0x80)
+                return false;
+        }
+        return true;
+    }
+
+    private static int writeInt(byte[] b, int i, int v) {
+        b[i++] = (byte)(v >>> 24);
+        b[i++] = (byte)(v >>> 16);
+        b[i++] = (byte)(v >>> 8);
+        b[i++] = (byte)v;
+        return i;
     }
 }
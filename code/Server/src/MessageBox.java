@@ -23,62 +23,346 @@
  * 
  */
 
-import java.util.HashMap;       //Mappe
-import java.util.LinkedList;    //Struttura dati LinkedList
-import java.util.Queue;         //Code
-import java.time.LocalDateTime; //Data e tempo
+import java.io.IOException;                         //Errori del log
+import java.nio.charset.StandardCharsets;           //Lunghezza del mandante in UTF-8
+import java.util.ArrayList;                         //Messaggi letti insieme
+import java.util.Collections;                       //Lista vuota
+import java.util.LinkedHashMap;                     //Code piu' lunghe in ordine
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;                     //Ricerca delle code piu' lunghe
+import java.util.concurrent.ConcurrentHashMap;      //Mappa concorrente
+import java.util.concurrent.TimeUnit;               //Unita' di tempo dell'attesa
+import java.util.concurrent.atomic.AtomicLong;      //Byte in coda in tutta la message box
+import java.util.concurrent.locks.LockSupport;      //Attesa dei mandanti con OverflowPolicy.BLOCK
 
 /**
- * La classe {@code MessageBox} rappresenta una Message Box, memorizzando la Messagge Box vera e propia come una {@code HashMap} 
- * con una {@code Queue} di {@code Message} come argomento e memorizzando la lista delle chiavi pubbliche come una {@code HashMap}.
+ * La classe {@code MessageBox} rappresenta una Message Box, memorizzando per ogni user una {@link Mailbox} 
+ * con la coda dei messaggi ricevuti e la chiave pubblica, in una {@code ConcurrentHashMap} con lo userName come indice.
+ * <p>
+ * L'invio non usa lock: la mappa degli user e' concorrente e ogni coda di messaggi e' una {@link MpscQueue}, 
+ * in cui piu' mandanti possono inserire contemporaneamente senza contendersi un lock comune. 
+ * Chi legge o elimina messaggi da una coda ({@link #getLastMessageFor(String)}, {@link #getMessagesFor(String, int)}, 
+ * la scadenza dei messaggi e {@link OverflowPolicy#DROP_OLDEST}) prende invece il lock del consumatore della mailbox, 
+ * {@link Mailbox#getConsumerLock()}, perche' la {@link MpscQueue} ammette un solo consumatore alla volta.
+ * <p>
+ * Ogni {@link Mailbox} puo' contenere al massimo un certo numero di messaggi e di byte, e tutte insieme 
+ * al massimo un budget globale di byte. Quando un messaggio non entra, la {@link OverflowPolicy} decide se rifiutarlo, 
+ * eliminare i messaggi piu' vecchi del ricevente o far aspettare il mandante. Il budget globale non elimina mai 
+ * messaggi di altri user: se e' esaurito il messaggio viene rifiutato, o il mandante aspetta con {@link OverflowPolicy#BLOCK}.
+ * <p>
+ * Quando uno user si disconnette ({@link #logout(String)}) la sua {@link Mailbox} e la sua chiave pubblica restano nella message box: 
+ * gli altri user possono continuare a mandargli messaggi, che ricevera' quando si riconnette con lo stesso userName. 
+ * Con {@link #startSweeper(long, long)} una {@link TimerWheel} elimina i messaggi scaduti e le mailbox degli user 
+ * disconnessi da troppo tempo. I timer sono uno per mailbox, non uno per messaggio: dato che i messaggi scadono 
+ * in ordine di arrivo, basta un timer per la scadenza del primo messaggio di ogni coda.
+ * <p>
+ * Se e' stato impostato un {@link MessageLog} con {@link #recover(MessageLog)}, ogni messaggio inviato viene scritto nel log 
+ * e ogni messaggio letto, scartato o eliminato viene segnato come consegnato.
+ * <p>
+ * Gli user connessi sono anche in una {@link UserDirectory}, ordinata per userName, che viene aggiornata insieme allo stato 
+ * della {@link Mailbox} e che il comando {@code list} legge a pagine senza scorrere tutte le mailbox.
  * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
  * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
  * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
  */
 public class MessageBox {
-    private HashMap<String, Queue<Message>> mb = new HashMap<String, Queue<Message>>(); //Mappa con userName del ricevente come indice 
-                                                                                        //e coda di messaggi come argomento
-    private HashMap<String, String> pk = new HashMap<String, String>();                 //Mappa con userName dello user come indice e 
-                                                                                        //chiave pubblica come argomento
+    /**
+     * Esito di {@link MessageBox#send}.
+     */
+    public enum SendResult {
+        /** Messaggio aggiunto alla coda del ricevente. */
+        OK,
+        /** Messaggio aggiunto alla coda di un ricevente non connesso, lo ricevera' quando si riconnette. */
+        OFFLINE,
+        /** Il ricevente non esiste. */
+        UNKNOWN_USER,
+        /** La coda del ricevente e' piena. */
+        MAILBOX_FULL,
+        /** Il budget di memoria di tutte le code e' esaurito. */
+        SERVER_FULL,
+        /** Il messaggio non entrerebbe in un frame del protocollo binario e non potrebbe essere consegnato. */
+        TOO_LARGE,
+        /** Non e' stato possibile scrivere il messaggio nel {@link MessageLog}. */
+        STORAGE_ERROR
+    }
+
+    private static final long MAX_BLOCK_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10); //Attesa massima tra due tentativi con OverflowPolicy.BLOCK
+
+    private ConcurrentHashMap<String, Mailbox> users = new ConcurrentHashMap<String, Mailbox>(); //Mappa con userName dello user come indice 
+                                                                                                  //e la sua Mailbox come argomento
+    private int maxMessages;              //Numero massimo di messaggi in una Mailbox
+    private long maxBytes;                //Numero massimo di byte in una Mailbox
+    private long memoryBudget;            //Numero massimo di byte in tutte le Mailbox
+    private OverflowPolicy policy;        //Cosa fare quando un messaggio non entra
+    private long blockTimeoutNanos;       //Attesa massima di un mandante con OverflowPolicy.BLOCK
+    private AtomicLong totalBytes = new AtomicLong(); //Byte in coda in tutte le Mailbox
+    private AtomicLong staleKeyMessages = new AtomicLong(); //Messaggi eliminati perche' criptati con una chiave sostituita al log in
+    private MessageLog log = null;        //Log su disco dei messaggi, null se i messaggi sono solo in memoria
+    private TimerWheel sweeper = null;    //Timer delle scadenze, null se messaggi e mailbox non scadono
+    private long messageTtl = 0;          //Durata di un messaggio non letto in millisecondi, 0 se non scade
+    private long mailboxTtl = 0;          //Durata della mailbox di uno user disconnesso in millisecondi, 0 se non scade
+    private UserDirectory directory = new UserDirectory(); //User connessi in ordine di userName
+
+    /**
+     * Costruisce una message box senza limiti di dimensione.
+     */
+    public MessageBox() {
+        this(Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, OverflowPolicy.REJECT, 0);
+    }
+
+    /**
+     * Costruisce una message box con code limitate.
+     * @param maxMessages Numero massimo di messaggi nella coda di uno user.
+     * @param maxBytes Numero massimo di byte nella coda di uno user.
+     * @param memoryBudget Numero massimo di byte nelle code di tutti gli user.
+     * @param policy Cosa fare quando un messaggio non entra.
+     * @param blockTimeoutMillis Attesa massima di un mandante con {@link OverflowPolicy#BLOCK}, in millisecondi.
+     */
+    public MessageBox(int maxMessages, long maxBytes, long memoryBudget, OverflowPolicy policy, long blockTimeoutMillis) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.memoryBudget = memoryBudget;
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
 
     /**
-     * Inserisce un nuovo user nella message box, aprendo uno spazio per i messaggi che gli verranno inviati. 
-     * Inserisce anche la sua chiave pubblica nella mappa di chiavi pubbliche.
+     * Inserisce un nuovo user nella message box, aprendo uno spazio per i messaggi che gli verranno inviati 
+     * e memorizzando la sua chiave pubblica.
      * <p>
-     * Questo metodo <b>e'</b> sincronizzato.
+     * Questo metodo <b>non</b> usa lock.
      * @param userName UserName dello user.
      * @param publicKey Chiave pubblica dello user.
+     * @return {@code false} se esiste gia' uno user con lo stesso userName, in quel caso non viene inserito.
      */
-    public synchronized void newUser(String userName, String publicKey) {
-        mb.put(userName, new LinkedList<>()); //Inizializza, nella mappa dei messaggi, la coda dei messaggi ricevuti dello user
-        pk.put(userName, publicKey);          //Inserisce, nella mappa delle chiavi, la chiave pubblica dello user
+    public boolean newUser(String userName, String publicKey) {
+        return newUser(userName, publicKey, false);
     }
 
     /**
-     * Rimuove uno user dalla mappa dei messaggi e dalla mappa delle chiavi pubbliche.
+     * Inserisce un nuovo user nella message box come {@link #newUser(String, String)}, indicando il protocollo della sua sessione: 
+     * i messaggi inviati allo user da quel momento vengono preparati come frame di quel protocollo.
      * <p>
-     * Questo metodo <b>e'</b> sincronizzato.
+     * Se lo user riprende la mailbox di un utente non connesso con una chiave pubblica diversa, i messaggi in coda, 
+     * criptati con la chiave precedente, vengono eliminati e contati in {@link #getStaleKeyMessages()}.
+     * <p>
+     * Questo metodo <b>non</b> usa lock.
      * @param userName UserName dello user.
+     * @param publicKey Chiave pubblica dello user.
+     * @param binary {@code true} se la sessione usa il {@link BinaryProtocol protocollo binario}.
+     * @return {@code false} se esiste gia' uno user con lo stesso userName, in quel caso non viene inserito.
      */
-    public synchronized void removeUser(String userName) {
-        if(mb.containsKey(userName)) {
-            mb.remove(userName);
-            pk.remove(userName);
+    public boolean newUser(String userName, String publicKey, boolean binary) {
+        boolean[] added = new boolean[1];
+        boolean[] keyChanged = new boolean[1];
+        //compute e' atomico per userName, quindi non puo' avvenire insieme all'eliminazione di una mailbox inattiva
+        Mailbox mailbox = users.compute(userName, (name, existing) -> {
+            if(existing == null) {
+                added[0] = true;
+                existing = new Mailbox(publicKey, true);
+            }
+            else {
+                String oldKey = existing.getPublicKey(); //Cambia solo in claim, che avviene dentro compute
+                added[0] = existing.claim(publicKey); //Se esiste gia' la mailbox di uno user non connesso la riprende
+                keyChanged[0] = added[0] && oldKey != null && !oldKey.equals(publicKey);
+            }
+            if(added[0]) {
+                existing.setBinary(binary);
+                directory.join(name);
+            }
+            return existing;
+        });
+        if(keyChanged[0]) {
+            //Fuori da compute, come le altre eliminazioni, perche' segna i messaggi come consegnati nel log
+            int discarded = drain(mailbox);
+            if(discarded > 0) {
+                staleKeyMessages.addAndGet(discarded);
+                System.out.println(userName + ": " + discarded + " messages discarded, encrypted with a previous key");
+            }
         }
-        else {
+        if(added[0])
+            directory.publish(userName);
+        return added[0];
+    }
+
+    /**
+     * Segna uno user come disconnesso. La sua {@link Mailbox} e la sua chiave pubblica restano nella message box, 
+     * finche' non scade la durata delle mailbox inattive.
+     * <p>
+     * Questo metodo <b>non</b> usa lock.
+     * @param userName UserName dello user.
+     */
+    public void logout(String userName) {
+        boolean[] left = new boolean[1];
+        //Come in newUser, lo user esce dalla directory in modo atomico rispetto ad un nuovo log in con lo stesso userName
+        Mailbox mailbox = users.computeIfPresent(userName, (name, existing) -> {
+            existing.logout();
+            left[0] = directory.leave(name);
+            return existing;
+        });
+        if(mailbox == null) {
             System.out.println("problema");
+            return;
         }
+        if(left[0])
+            directory.publish(userName);
+        scheduleEviction(userName, mailbox);
+    }
+
+    /**
+     * Avvia l'eliminazione in background dei messaggi scaduti e delle mailbox degli user disconnessi da troppo tempo.
+     * Va chiamato all'avvio del server, prima di {@link #recover(MessageLog)}.
+     * @param messageTtlMillis Durata di un messaggio non letto in millisecondi, 0 se non scade.
+     * @param mailboxTtlMillis Durata della mailbox di uno user disconnesso in millisecondi, 0 se non scade.
+     */
+    public void startSweeper(long messageTtlMillis, long mailboxTtlMillis) {
+        this.messageTtl = messageTtlMillis;
+        this.mailboxTtl = mailboxTtlMillis;
+        if(messageTtlMillis > 0 || mailboxTtlMillis > 0)
+            sweeper = new TimerWheel(3600, 1000, "mailbox-sweeper"); //Un giro della ruota ogni ora, un tick al secondo
+    }
+
+    /**
+     * Programma l'eliminazione della mailbox di uno user disconnesso.
+     * @param userName UserName dello user.
+     * @param mailbox La sua mailbox.
+     */
+    private void scheduleEviction(String userName, Mailbox mailbox) {
+        if(sweeper != null && mailboxTtl > 0)
+            sweeper.schedule(mailbox.getLastSeen() + mailboxTtl, () -> evictIfIdle(userName, mailbox));
+    }
+
+    /**
+     * Elimina la mailbox di uno user se e' ancora disconnesso dall'ora in cui e' stato programmato il timer.
+     * Se nel frattempo si e' riconnesso e disconnesso di nuovo c'e' gia' un timer piu' recente.
+     * @param userName UserName dello user.
+     * @param mailbox La mailbox per cui era stato programmato il timer.
+     */
+    private void evictIfIdle(String userName, Mailbox mailbox) {
+        long now = System.currentTimeMillis();
+        boolean[] evicted = new boolean[1];
+        users.computeIfPresent(userName, (name, current) -> {
+            if(current != mailbox || current.isOnline() || current.getLastSeen() + mailboxTtl > now)
+                return current;
+            evicted[0] = true;
+            return null;
+        });
+        if(evicted[0])
+            drain(mailbox); //Libera lo spazio dei messaggi non letti
+    }
+
+    /**
+     * Programma il timer di scadenza del primo messaggio di una mailbox, se non ce n'e' gia' uno.
+     * @param mailbox La mailbox.
+     * @param deadline Ora di scadenza del primo messaggio in millisecondi.
+     */
+    private void scheduleExpiry(Mailbox mailbox, long deadline) {
+        if(sweeper != null && messageTtl > 0 && mailbox.getExpiryScheduled().compareAndSet(false, true))
+            sweeper.schedule(deadline, () -> expire(mailbox));
+    }
+
+    /**
+     * Elimina i messaggi scaduti all'inizio di una mailbox e programma il timer per il prossimo.
+     * Il costo dipende solo dal numero di messaggi scaduti.
+     * @param mailbox La mailbox.
+     */
+    private void expire(Mailbox mailbox) {
+        long now = System.currentTimeMillis();
+        long next = 0; //Scadenza del primo messaggio rimasto, 0 se la coda e' vuota
+        while(true) {
+            Message message;
+            mailbox.getConsumerLock().lock();
+            try {
+                message = mailbox.getMessages().peek();
+                if(message != null && message.getSentAtMillis() + messageTtl > now) {
+                    next = message.getSentAtMillis() + messageTtl;
+                    break;
+                }
+                if(message == null)
+                    break;
+                mailbox.getMessages().poll();
+            } finally {
+                mailbox.getConsumerLock().unlock();
+            }
+            discarded(mailbox, message);
+        }
+
+        mailbox.getExpiryScheduled().set(false);
+        if(next > 0)
+            scheduleExpiry(mailbox, next);
+        else if(mailbox.getSize().get() > 0) //Un messaggio arrivato mentre la coda risultava vuota
+            scheduleExpiry(mailbox, now + messageTtl);
+    }
+
+    /**
+     * Imposta il log su disco dei messaggi, dopo aver rimesso in coda i messaggi non ancora consegnati che contiene. 
+     * I messaggi recuperati vengono aggiunti anche se superano i limiti delle code e vanno in mailbox di user non connessi, 
+     * che li riceveranno al log in.
+     * <p>
+     * Va chiamato all'avvio del server, prima di accettare connessioni.
+     * @param log Il log su disco.
+     * @return Il numero di messaggi recuperati.
+     * @throws IOException Errori di lettura del log.
+     */
+    public int recover(MessageLog log) throws IOException {
+        int count = 0;
+        for(MessageLog.PendingMessage pending : log.recover()) {
+            Mailbox mailbox = users.computeIfAbsent(pending.getReceiver(), userName -> new Mailbox(null, false));
+            Message message = pending.getMessage();
+            mailbox.getSize().incrementAndGet();
+            mailbox.getBytes().addAndGet(message.getSize());
+            totalBytes.addAndGet(message.getSize());
+            mailbox.getMessages().offer(message);
+            scheduleExpiry(mailbox, message.getSentAtMillis() + messageTtl);
+            count++;
+        }
+        users.forEach((userName, mailbox) -> {
+            if(!mailbox.isOnline())
+                scheduleEviction(userName, mailbox);
+        });
+        this.log = log;
+        return count;
+    }
+
+    /**
+     * Rimuove definitivamente uno user e la sua {@link Mailbox} dalla message box, eliminando i messaggi non letti.
+     * <p>
+     * Questo metodo <b>non</b> usa lock.
+     * @param userName UserName dello user.
+     */
+    public void removeUser(String userName) {
+        Mailbox mailbox = users.remove(userName);
+        if(mailbox == null) {
+            System.out.println("problema");
+            return;
+        }
+        drain(mailbox); //Libera lo spazio dei messaggi non letti nel budget globale
+    }
+
+    /**
+     * Elimina tutti i messaggi di una {@link Mailbox}, liberandone lo spazio.
+     * @param mailbox La mailbox.
+     * @return Il numero di messaggi eliminati.
+     */
+    private int drain(Mailbox mailbox) {
+        int count = 0;
+        int n;
+        while((n = pollAll(mailbox, Integer.MAX_VALUE).size()) > 0) //Ripete per i messaggi arrivati durante lo svuotamento
+            count += n;
+        return count;
     }
 
     /**
      * Controlla se uno user ha dei messaggi da ricevere.
      * <p>
-     * Questo metodo <b>non e'</b> sincronizzato.
+     * Questo metodo <b>non</b> usa lock e va chiamato solo dalla sessione di {@code userName}.
      * @param userName UserName dello user.
      * @return {@code true} se {@code userName} ha dei messaggi da ricevere.
      */
     public boolean hasMessageFor(String userName) {
-        if((!mb.containsKey(userName)) || (mb.get(userName).isEmpty())) //Se il destinatario non e' presente, o la sua coda di messaggi e' vuota
+        Mailbox mailbox = users.get(userName);
+        if((mailbox == null) || (mailbox.getSize().get() == 0)) //Se il destinatario non e' presente, o la sua coda di messaggi e' vuota
             return false;
         return true;
     }
@@ -86,65 +370,357 @@ public class MessageBox {
     /**
      * Legge ed elimina l'ultimo messaggio dalla coda dei messaggi ricevuti dallo user.
      * <p>
-     * Questo metodo <b>e'</b> sincronizzato.
+     * Questo metodo prende il lock del consumatore della mailbox e va chiamato solo dalla sessione di {@code userName}.
+     * @param userName UserName dello user.
+     * @return L'ultimo messaggio nella coda di {@code userName}, {@code null} se non ce ne sono.
+     */
+    public Message getLastMessageFor(String userName) {
+        Mailbox mailbox = users.get(userName);
+        return mailbox == null ? null : poll(mailbox);
+    }
+
+    /**
+     * Legge ed elimina i messaggi dalla coda dei messaggi ricevuti dallo user, dal piu' vecchio, 
+     * prendendo il lock del consumatore della mailbox una sola volta invece che una volta per messaggio.
+     * <p>
+     * Questo metodo va chiamato solo dalla sessione di {@code userName}.
+     * @param userName UserName dello user.
+     * @param maxMessages Numero massimo di messaggi da leggere.
+     * @return I messaggi letti in ordine di arrivo, una lista vuota se non ce ne sono.
+     */
+    public List<Message> getMessagesFor(String userName, int maxMessages) {
+        Mailbox mailbox = users.get(userName);
+        return mailbox == null ? Collections.emptyList() : pollAll(mailbox, maxMessages);
+    }
+
+    /**
+     * Legge ed elimina i primi messaggi di una {@link Mailbox} con una sola acquisizione del lock del consumatore, 
+     * poi ne libera lo spazio con un solo aggiornamento dei contatori.
+     * @param mailbox La mailbox.
+     * @param maxMessages Numero massimo di messaggi da leggere.
+     * @return I messaggi letti in ordine di arrivo.
+     */
+    private List<Message> pollAll(Mailbox mailbox, int maxMessages) {
+        int pending = mailbox.getSize().get();
+        if(pending <= 0)
+            return Collections.emptyList();
+        List<Message> messages = new ArrayList<Message>(Math.min(pending, maxMessages));
+        long bytes = 0;
+        mailbox.getConsumerLock().lock();
+        try {
+            Message message;
+            while(messages.size() < maxMessages && (message = mailbox.getMessages().poll()) != null) {
+                messages.add(message);
+                bytes += message.getSize();
+            }
+        } finally {
+            mailbox.getConsumerLock().unlock();
+        }
+        if(!messages.isEmpty()) {
+            release(mailbox, messages.size(), bytes);
+            for(Message message : messages)
+                acknowledge(message);
+        }
+        return messages;
+    }
+
+    /**
+     * Legge ed elimina il primo messaggio di una {@link Mailbox}, liberandone lo spazio.
+     * @param mailbox La mailbox.
+     * @return Il primo messaggio, {@code null} se la coda e' vuota.
+     */
+    private Message poll(Mailbox mailbox) {
+        Message message;
+        mailbox.getConsumerLock().lock();
+        try {
+            message = mailbox.getMessages().poll();
+        } finally {
+            mailbox.getConsumerLock().unlock();
+        }
+        if(message != null)
+            discarded(mailbox, message);
+        return message;
+    }
+
+    /**
+     * Libera lo spazio di un messaggio uscito dalla coda e lo segna come consegnato nel log.
+     * @param mailbox La mailbox da cui e' uscito.
+     * @param message Il messaggio.
+     */
+    private void discarded(Mailbox mailbox, Message message) {
+        release(mailbox, 1, message.getSize());
+        acknowledge(message);
+    }
+
+    /**
+     * Segna un messaggio come consegnato nel log, se ne e' stato impostato uno.
+     * @param message Il messaggio.
+     */
+    private void acknowledge(Message message) {
+        if(log != null && message.getLogOffset() >= 0) {
+            try {
+                log.ack(message.getLogOffset());
+            } catch (IOException e) {
+                System.out.println("Exception caught when writing to the message log");
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Prova a riservare lo spazio per un messaggio nella coda di {@code mailbox} e nel budget globale.
+     * @param mailbox La mailbox del ricevente.
+     * @param size La dimensione del messaggio.
+     * @return {@link SendResult#OK} se lo spazio e' stato riservato, altrimenti il motivo per cui non e' stato possibile.
+     */
+    private SendResult reserve(Mailbox mailbox, int size) {
+        if(mailbox.getSize().incrementAndGet() > maxMessages) {
+            mailbox.getSize().decrementAndGet();
+            return SendResult.MAILBOX_FULL;
+        }
+        if(mailbox.getBytes().addAndGet(size) > maxBytes) {
+            mailbox.getSize().decrementAndGet();
+            mailbox.getBytes().addAndGet(-size);
+            return SendResult.MAILBOX_FULL;
+        }
+        if(totalBytes.addAndGet(size) > memoryBudget) {
+            release(mailbox, 1, size);
+            return SendResult.SERVER_FULL;
+        }
+        return SendResult.OK;
+    }
+
+    /**
+     * Libera lo spazio di uno o piu' messaggi usciti dalla coda di {@code mailbox}.
+     * @param mailbox La mailbox.
+     * @param count Il numero di messaggi.
+     * @param size La dimensione totale dei messaggi.
+     */
+    private void release(Mailbox mailbox, int count, long size) {
+        mailbox.getSize().addAndGet(-count);
+        mailbox.getBytes().addAndGet(-size);
+        totalBytes.addAndGet(-size);
+    }
+
+    /**
+     * @return La {@link UserDirectory} con gli user connessi, da cui leggere la lista degli utenti online.
+     */
+    public UserDirectory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Conta i messaggi in coda in tutte le mailbox, compresi quelli riservati da mandanti che li stanno ancora aggiungendo.
+     * <p>
+     * Questo metodo <b>non</b> usa lock e scorre tutte le mailbox, quindi non va chiamato ad ogni messaggio.
+     * @return Il numero di messaggi in coda.
+     */
+    public long getQueuedMessages() {
+        long total = 0;
+        for(Mailbox mailbox : users.values())
+            total += mailbox.getSize().get();
+        return total;
+    }
+
+    /**
+     * @return I byte dei messaggi in coda in tutte le mailbox.
+     */
+    public long getQueuedBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * @return I messaggi eliminati dall'avvio perche' lo user li ha ripresi con una chiave pubblica diversa.
+     */
+    public long getStaleKeyMessages() {
+        return staleKeyMessages.get();
+    }
+
+    /**
      * @param userName UserName dello user.
-     * @return L'ultimo messaggio nella cosa di {@code userName}.
+     * @return Il numero di messaggi nella coda dello user, 0 se non esiste.
      */
-    public synchronized Message getLastMessageFor(String userName) {
-        return mb.get(userName).poll();
+    public int getQueueDepth(String userName) {
+        Mailbox mailbox = users.get(userName);
+        return mailbox == null ? 0 : mailbox.getSize().get();
     }
 
     /**
-     * Prende la rappresentazione in stringa della lista degli utenti online.
-     * <blockquote><pre>
-     *    [userName1, userName2, ...]
-     * </pre></blockquote>
+     * Trova le mailbox con piu' messaggi in coda.
      * <p>
-     * Questo metodo <b>non e'</b> sincronizzato.
-     * @return Lista degli utenti online.
+     * Questo metodo <b>non</b> usa lock e scorre tutte le mailbox, quindi non va chiamato ad ogni messaggio.
+     * @param limit Numero massimo di mailbox restituite.
+     * @return Il numero di messaggi in coda per userName, dalla coda piu' lunga, solo per le code non vuote.
      */
-    public String listUsers() {
-        return mb.keySet().toString();
+    public Map<String, Integer> getLargestQueues(int limit) {
+        PriorityQueue<Map.Entry<String, Integer>> largest = new PriorityQueue<Map.Entry<String, Integer>>(Map.Entry.comparingByValue());
+        users.forEach((userName, mailbox) -> {
+            int size = mailbox.getSize().get();
+            if(size == 0 || limit <= 0)
+                return;
+            if(largest.size() < limit) {
+                largest.add(Map.entry(userName, size));
+            }
+            else if(largest.peek().getValue() < size) {
+                largest.poll();
+                largest.add(Map.entry(userName, size));
+            }
+        });
+        List<Map.Entry<String, Integer>> sorted = new ArrayList<Map.Entry<String, Integer>>(largest);
+        sorted.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for(Map.Entry<String, Integer> entry : sorted)
+            result.put(entry.getKey(), entry.getValue());
+        return result;
     }
 
     /**
-     * Aggiunge un messaggio alla lista del ricevitore.
+     * Aggiunge un messaggio alla lista del ricevitore, rispettando i limiti delle code.
      * <p>
-     * Questo metodo <b>e'</b> sincronizzato.
+     * Questo metodo <b>non</b> usa lock, puo' essere chiamato da piu' mandanti contemporaneamente. 
+     * Solo con {@link OverflowPolicy#DROP_OLDEST} il mandante prende il lock del consumatore della coda piena.
      * @param receiver Ricevente del messaggio.
      * @param sender Mandante del messaggio.
      * @param msg Contenuto del messaggio.
-     * @return {@code true} se l'invio e' andato a buon fine.
+     * @param canBlock {@code false} se il thread chiamante non puo' aspettare, ad esempio un event loop: 
+     *                 in quel caso {@link OverflowPolicy#BLOCK} rifiuta subito il messaggio.
+     * @return L'esito dell'invio.
      */
-    public synchronized boolean send(String receiver, String sender, String msg) {
-        if(!mb.containsKey(receiver)) { //Se non è presente il ricevente a cui si fa riferimento
-            return false;
+    public SendResult send(String receiver, String sender, String msg, boolean canBlock) {
+        Mailbox mailbox = users.get(receiver);
+        if(mailbox == null) { //Se non è presente il ricevente a cui si fa riferimento
+            return SendResult.UNKNOWN_USER;
         }
-        mb.get(receiver).add(new Message(sender, msg, LocalDateTime.now())); //Aggiunge un nuovo messaggio alla coda dei messaggi del ricevente
-        return true;
+
+        Message message = new Message(sender, msg, System.currentTimeMillis(), mailbox.isBinary()); //Frame pronto per la sessione del ricevente
+        //Il destinatario puo' riconnettersi con il protocollo binario, quindi il limite vale anche per le sessioni di testo. 
+        //Un carattere e' al massimo 3 byte in UTF-8: lo userName viene codificato solo per i messaggi vicini al limite
+        int size = message.getSize();
+        if(size > BinaryProtocol.maxMessageLength(3 * sender.length()) 
+                && size > BinaryProtocol.maxMessageLength(sender.getBytes(StandardCharsets.UTF_8).length))
+            return SendResult.TOO_LARGE;
+        SendResult result = reserve(mailbox, message.getSize());
+        if(result != SendResult.OK)
+            result = handleOverflow(mailbox, message.getSize(), result, canBlock);
+        if(result != SendResult.OK)
+            return result;
+
+        if(log != null) { //Scrive il messaggio nel log prima di renderlo visibile al ricevente
+            try {
+                message.setLogOffset(log.append(receiver, message));
+            } catch (IOException e) {
+                release(mailbox, 1, message.getSize());
+                System.out.println("Exception caught when writing to the message log");
+                System.out.println(e.getMessage());
+                return SendResult.STORAGE_ERROR;
+            }
+        }
+        mailbox.getMessages().offer(message); //Aggiunge un nuovo messaggio alla coda dei messaggi del ricevente
+        if(users.get(receiver) != mailbox) { //Se nel frattempo la mailbox del ricevente e' stata eliminata
+            drain(mailbox);
+            return SendResult.UNKNOWN_USER;
+        }
+        scheduleExpiry(mailbox, message.getSentAtMillis() + messageTtl);
+        Runnable listener = mailbox.getListener();
+        if(listener != null) //Se il ricevente e' in modalita' push lo avvisa
+            listener.run();
+        return mailbox.isOnline() ? SendResult.OK : SendResult.OFFLINE;
+    }
+
+    /**
+     * Aggiunge un messaggio alla lista del ricevitore, aspettando se necessario.
+     * @param receiver Ricevente del messaggio.
+     * @param sender Mandante del messaggio.
+     * @param msg Contenuto del messaggio.
+     * @return L'esito dell'invio.
+     * @see #send(String, String, String, boolean)
+     */
+    public SendResult send(String receiver, String sender, String msg) {
+        return send(receiver, sender, msg, true);
+    }
+
+    /**
+     * Applica la {@link OverflowPolicy} quando un messaggio non entra.
+     * @param mailbox La mailbox del ricevente.
+     * @param size La dimensione del messaggio.
+     * @param result Il motivo per cui il messaggio non e' entrato.
+     * @param canBlock {@code false} se il thread chiamante non puo' aspettare.
+     * @return {@link SendResult#OK} se alla fine lo spazio e' stato riservato, altrimenti il motivo del rifiuto.
+     */
+    private SendResult handleOverflow(Mailbox mailbox, int size, SendResult result, boolean canBlock) {
+        switch (policy) {
+            //Elimina i messaggi piu' vecchi della coda piena, finche' ce ne sono
+            case DROP_OLDEST:
+                while(result == SendResult.MAILBOX_FULL && poll(mailbox) != null)
+                    result = reserve(mailbox, size);
+            break;
+
+            //Riprova con attese sempre piu' lunghe fino al tempo massimo
+            case BLOCK:
+                if(!canBlock)
+                    break;
+                long deadline = System.nanoTime() + blockTimeoutNanos;
+                long park = 1000;
+                while(result != SendResult.OK && System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(park);
+                    park = Math.min(park * 2, MAX_BLOCK_PARK_NANOS);
+                    result = reserve(mailbox, size);
+                }
+            break;
+
+            case REJECT:
+            break;
+        }
+        return result;
+    }
+
+    /**
+     * Imposta l'azione da eseguire ogni volta che {@code userName} riceve un messaggio, usata dalla modalita' push.
+     * L'azione viene eseguita dal thread del mandante, quindi deve solo programmare la consegna e ritornare subito.
+     * <p>
+     * Questo metodo <b>non</b> usa lock.
+     * @param userName UserName dello user.
+     * @param listener Azione da eseguire, {@code null} per tornare alla modalita' normale.
+     */
+    public void setListener(String userName, Runnable listener) {
+        Mailbox mailbox = users.get(userName);
+        if(mailbox != null)
+            mailbox.setListener(listener);
     }
     
     /**
      * Controlla se esiste gia' un utente nella mappa con lo stesso username.
      * <p>
-     * Questo metodo <b>non e'</b> sincronizzato.
+     * Questo metodo <b>non</b> usa lock.
      * @param userName UserName che si vuole controllare.
      * @return {@code true} se esiste gia' quello userName.
      */
     public boolean contains(String userName) {
-        if(mb.containsKey(userName)) //Se esiste gia' un utente nella mappa con lo stesso username
-            return true;
-        return false;
+        Mailbox mailbox = users.get(userName);
+        return mailbox != null && mailbox.isOnline();
     }
 
     /**
-     * Ottiene la chiave pubblica di {@code userName}.
+     * Ottiene la chiave pubblica di {@code userName}, anche se non e' connesso.
      * <p>
-     * Questo metodo <b>non e'</b> sincronizzato.
+     * Questo metodo <b>non</b> usa lock.
      * @param userName userName la quale chiave pubblica si vuole ottenere.
-     * @return La chiave pubblica di {@code userName}.
+     * @return La chiave pubblica di {@code userName}, {@code null} se non esiste.
      */
     public String getKey(String userName) {
-        return pk.get(userName);
+        Mailbox mailbox = users.get(userName);
+        return mailbox == null ? null : mailbox.getPublicKey();
+    }
+
+    /**
+     * Ottiene la chiave pubblica di {@code userName} insieme alla sua impronta, anche se non e' connesso.
+     * <p>
+     * Questo metodo <b>non</b> usa lock.
+     * @param userName userName la quale chiave pubblica si vuole ottenere.
+     * @return La chiave pubblica con l'impronta, {@code null} se lo user non esiste o la sua chiave non e' nota.
+     */
+    public Mailbox.Key getKeyEntry(String userName) {
+        Mailbox mailbox = users.get(userName);
+        return mailbox == null ? null : mailbox.getKey();
     }
 }
@@ -0,0 +1,410 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.IOException;                             //Errori di I/O
+import java.nio.MappedByteBuffer;                       //Segmenti mappati in memoria
+import java.nio.channels.FileChannel;                   //Mappatura dei file
+import java.nio.charset.StandardCharsets;               //Codifica UTF-8
+import java.nio.file.*;                                 //Files|Path|StandardOpenOption|DirectoryStream
+import java.util.ArrayList;                             //Liste
+import java.util.LinkedHashMap;                         //Messaggi non consegnati in ordine di invio
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;      //Segmenti ordinati per offset
+import java.util.concurrent.TimeUnit;                   //Intervallo di sincronizzazione
+import java.util.concurrent.atomic.AtomicInteger;       //Messaggi non consegnati in un segmento
+import java.util.concurrent.locks.ReentrantLock;        //Lock delle scritture e delle sincronizzazioni
+import java.util.zip.CRC32;                             //Controllo dei record
+
+/**
+ * La classe {@code MessageLog} e' un log su disco dei messaggi della {@link MessageBox}, 
+ * che permette di recuperare i messaggi non ancora consegnati quando il server viene riavviato.
+ * <p>
+ * Il log e' diviso in segmenti di dimensione fissa, file mappati in memoria con {@link FileChannel#map}. 
+ * Ogni invio aggiunge un record SEND e ogni messaggio letto da un ricevente aggiunge un record ACK con l'offset del SEND. 
+ * L'offset di un record e' l'offset del segmento piu' la posizione del record nel segmento. 
+ * I segmenti vengono eliminati solo dal piu' vecchio: un segmento viene eliminato quando tutti i suoi messaggi 
+ * sono stati consegnati e tutti i segmenti precedenti sono gia' stati eliminati. Un segmento contiene anche gli ACK 
+ * dei messaggi dei segmenti precedenti, che devono restare finche' quei messaggi sono sul disco.
+ * <p>
+ * Formato di un record: lunghezza del corpo (int), CRC32 del corpo (int), corpo. Una lunghezza 0 segna la fine dei record 
+ * del segmento. Il primo byte del corpo e' il tipo del record.
+ * <p>
+ * Le scritture su un file mappato sopravvivono alla chiusura improvvisa del processo. 
+ * Per sopravvivere anche allo spegnimento della macchina i segmenti vanno sincronizzati su disco, secondo il {@link SyncMode}:
+ * con {@link SyncMode#ALWAYS} ogni invio aspetta la sincronizzazione, ma invii contemporanei vengono sincronizzati insieme.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class MessageLog {
+    /**
+     * Quando i segmenti vengono sincronizzati su disco.
+     */
+    public enum SyncMode {
+        /** Dopo ogni invio, prima di rispondere al mandante. */
+        ALWAYS,
+        /** Ad intervalli regolari, da un thread in background. */
+        BATCH,
+        /** Mai esplicitamente, lo decide il sistema operativo. */
+        NONE
+    }
+
+    private static final byte SEND = 1;         //Tipo del record di invio
+    private static final byte ACK = 2;          //Tipo del record di consegna
+    private static final int HEADER_SIZE = 8;   //Lunghezza e CRC32 di un record
+
+    /**
+     * Un segmento del log, mappato in memoria.
+     */
+    private static class Segment {
+        private long base;                                  //Offset del primo byte del segmento
+        private Path path;                                  //File del segmento
+        private MappedByteBuffer buffer;                    //Contenuto del segmento
+        private int position = 0;                           //Posizione del prossimo record
+        private AtomicInteger pending = new AtomicInteger(); //Messaggi del segmento non ancora consegnati
+
+        Segment(long base, Path path, MappedByteBuffer buffer) {
+            this.base = base;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Un messaggio recuperato dal log e non ancora consegnato.
+     */
+    public static class PendingMessage {
+        private String receiver;
+        private Message message;
+
+        PendingMessage(String receiver, Message message) {
+            this.receiver = receiver;
+            this.message = message;
+        }
+
+        public String getReceiver() {
+            return receiver;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+    }
+
+    private Path dir;                       //Cartella dei segmenti
+    private int segmentSize;                //Dimensione di un segmento in byte
+    private SyncMode syncMode;
+    private ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>(); //Segmenti con il loro offset come indice
+    private volatile Segment active = null; //Segmento in cui vengono aggiunti i record
+    private ReentrantLock appendLock = new ReentrantLock(); //Lock delle scritture
+    private ReentrantLock syncLock = new ReentrantLock();   //Lock delle sincronizzazioni
+    private volatile long written = 0;      //Offset della fine dell'ultimo record scritto
+    private volatile long synced = 0;       //Offset fino a cui il log e' sincronizzato su disco
+
+    /**
+     * Apre il log nella cartella indicata, creandola se non esiste. 
+     * I record gia' presenti vanno letti con {@link #recover()} prima di aggiungerne altri.
+     * @param dir Cartella dei segmenti.
+     * @param segmentSize Dimensione di un segmento in byte.
+     * @param syncMode Quando sincronizzare i segmenti su disco.
+     * @param syncIntervalMillis Intervallo di sincronizzazione con {@link SyncMode#BATCH}, in millisecondi.
+     * @throws IOException Se non e' possibile creare la cartella.
+     */
+    public MessageLog(Path dir, int segmentSize, SyncMode syncMode, long syncIntervalMillis) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncMode = syncMode;
+        Files.createDirectories(dir);
+
+        if(syncMode == SyncMode.BATCH) {
+            Thread syncer = new Thread(() -> {
+                while(true) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(syncIntervalMillis);
+                        sync(written);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "message-log-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    /**
+     * Legge tutti i segmenti presenti e ritorna i messaggi inviati ma non consegnati, in ordine di invio.
+     * I segmenti piu' vecchi che non contengono piu' messaggi da consegnare vengono eliminati, fino al primo che ne contiene.
+     * Un record incompleto o corrotto, ad esempio scritto mentre il processo veniva terminato, chiude la lettura del suo segmento.
+     * @return I messaggi da consegnare.
+     * @throws IOException Errori di lettura dei segmenti.
+     */
+    public List<PendingMessage> recover() throws IOException {
+        LinkedHashMap<Long, PendingMessage> pending = new LinkedHashMap<Long, PendingMessage>(); //Messaggi con il loro offset come indice
+        long end = 0;
+
+        List<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*.log")) {
+            for(Path path : stream)
+                paths.add(path);
+        }
+        paths.sort(null); //Gli offset nel nome hanno lunghezza fissa, quindi l'ordine dei nomi e' l'ordine degli offset
+
+        for(Path path : paths) {
+            String name = path.getFileName().toString();
+            long base = Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+            Segment segment = new Segment(base, path, map(path, (int)Files.size(path)));
+            segments.put(base, segment);
+
+            MappedByteBuffer buffer = segment.buffer;
+            int position = 0;
+            while(position + HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if(length <= 0 || position + HEADER_SIZE + length > buffer.capacity())
+                    break;
+                byte[] body = new byte[length];
+                buffer.get(position + HEADER_SIZE, body);
+                if(crc(body) != buffer.getInt(position + 4)) //Record scritto a meta'
+                    break;
+
+                long offset = base + position;
+                if(body[0] == SEND)
+                    pending.put(offset, decodeSend(body));
+                else if(body[0] == ACK)
+                    pending.remove(readLong(body, 1));
+                position += HEADER_SIZE + length;
+            }
+            end = Math.max(end, base + buffer.capacity());
+        }
+
+        //Conta i messaggi da consegnare di ogni segmento ed elimina i segmenti vuoti all'inizio del log
+        for(Long offset : pending.keySet())
+            segments.floorEntry(offset).getValue().pending.incrementAndGet();
+        trim();
+
+        //I nuovi record vengono scritti in un nuovo segmento, dopo tutti quelli letti
+        written = end;
+        synced = end;
+        List<PendingMessage> result = new ArrayList<PendingMessage>(pending.size());
+        for(Map.Entry<Long, PendingMessage> entry : pending.entrySet()) {
+            entry.getValue().getMessage().setLogOffset(entry.getKey());
+            result.add(entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Aggiunge al log l'invio di un messaggio e, con {@link SyncMode#ALWAYS}, aspetta che sia sincronizzato su disco.
+     * @param receiver Ricevente del messaggio.
+     * @param message Il messaggio.
+     * @return L'offset del record, da passare a {@link #ack(long)} quando il messaggio viene consegnato.
+     * @throws IOException Errori di scrittura, o messaggio piu' grande di un segmento.
+     */
+    public long append(String receiver, Message message) throws IOException {
+        byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] to = receiver.getBytes(StandardCharsets.UTF_8);
+        byte[] body = new byte[1 + 8 + 4 + sender.length + 4 + to.length + 4 + message.getSize()];
+        int i = 0;
+        body[i++] = SEND;
+        i = writeLong(body, i, message.getSentAtMillis());
+        i = writeBytes(body, i, sender, 0, sender.length);
+        i = writeBytes(body, i, to, 0, to.length);
+        writeBytes(body, i, message.getFrame(), message.getMsgOffset(), message.getSize()); //Il messaggio criptato viene copiato dal frame
+
+        long offset = write(body);
+        if(syncMode == SyncMode.ALWAYS)
+            sync(offset + HEADER_SIZE + body.length);
+        return offset;
+    }
+
+    /**
+     * Aggiunge al log la consegna di un messaggio. Il segmento del messaggio viene eliminato 
+     * quando tutti i suoi messaggi sono stati consegnati, se e' il piu' vecchio del log.
+     * @param offset L'offset ritornato da {@link #append(String, Message)}.
+     * @throws IOException Errori di scrittura.
+     */
+    public void ack(long offset) throws IOException {
+        byte[] body = new byte[1 + 8];
+        body[0] = ACK;
+        writeLong(body, 1, offset);
+        write(body);
+
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if(entry != null && entry.getValue().pending.decrementAndGet() == 0)
+            trim();
+    }
+
+    /**
+     * Scrive un record nel segmento attivo, creandone uno nuovo se non c'e' spazio.
+     * @param body Il corpo del record.
+     * @return L'offset del record.
+     * @throws IOException Errori di scrittura, o record piu' grande di un segmento.
+     */
+    private long write(byte[] body) throws IOException {
+        int size = HEADER_SIZE + body.length;
+        if(size + 4 > segmentSize)
+            throw new IOException("record too large for a log segment");
+
+        appendLock.lock();
+        try {
+            if(active == null || active.position + size + 4 > segmentSize)
+                roll();
+            Segment segment = active;
+            int position = segment.position;
+            segment.buffer.put(position + HEADER_SIZE, body);
+            segment.buffer.putInt(position + 4, crc(body));
+            segment.buffer.putInt(position, body.length); //La lunghezza per ultima, cosi' un record a meta' non sembra valido
+            segment.position += size;
+            if(body[0] == SEND)
+                segment.pending.incrementAndGet();
+            written = segment.base + segment.position;
+            return segment.base + position;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Chiude il segmento attivo e ne crea uno nuovo. Va chiamato tenendo {@link #appendLock}.
+     * @throws IOException Errori di creazione del file.
+     */
+    private void roll() throws IOException {
+        long base = written;
+        Segment previous = active;
+        if(previous != null) {
+            base = previous.base + segmentSize;
+            if(syncMode != SyncMode.NONE)
+                previous.buffer.force(); //Il vecchio segmento non verra' piu' sincronizzato da sync()
+        }
+        Path path = dir.resolve(String.format("segment-%020d.log", base));
+        active = new Segment(base, path, map(path, segmentSize));
+        segments.put(base, active);
+        trim();
+    }
+
+    /**
+     * Elimina i segmenti all'inizio del log i cui messaggi sono stati tutti consegnati, fermandosi al primo 
+     * che ha ancora messaggi da consegnare o al segmento attivo. Un segmento in mezzo al log non viene mai eliminato, 
+     * perche' puo' contenere gli ACK dei messaggi di un segmento precedente ancora sul disco.
+     * <p>
+     * Puo' essere chiamato da piu' thread insieme: i messaggi di un segmento non attivo possono solo diminuire 
+     * e ogni segmento viene eliminato una volta sola.
+     */
+    private void trim() {
+        for(Segment segment : segments.values()) {
+            if(segment == active || segment.pending.get() > 0)
+                return;
+            delete(segment);
+        }
+    }
+
+    /**
+     * Sincronizza su disco il log almeno fino ad {@code offset}. 
+     * Se un altro thread sta gia' sincronizzando, aspetta e controlla se la sua sincronizzazione basta.
+     * @param offset L'offset fino a cui il log deve essere sincronizzato.
+     */
+    private void sync(long offset) {
+        if(synced >= offset)
+            return;
+        syncLock.lock();
+        try {
+            if(synced >= offset) //Sincronizzato da un altro thread mentre si aspettava il lock
+                return;
+            long target = written;
+            Segment segment = active;
+            if(segment != null)
+                segment.buffer.force();
+            synced = target;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void delete(Segment segment) {
+        if(!segments.remove(segment.base, segment)) //Gia' eliminato da un altro thread
+            return;
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            //Su alcuni sistemi un file mappato non puo' essere eliminato, verra' eliminato al prossimo avvio
+        }
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static PendingMessage decodeSend(byte[] body) {
+        int i = 1;
+        long millis = readLong(body, i);
+        i += 8;
+        String sender = readString(body, i);
+        i += 4 + readInt(body, i);
+        String receiver = readString(body, i);
+        i += 4 + readInt(body, i);
+        String msg = readString(body, i);
+        //Il mandante viene condiviso con i suoi altri messaggi e con la sua sessione, che usa la stessa versione interna
+        return new PendingMessage(receiver, new Message(sender.intern(), msg, millis, true));
+    }
+
+    private static int crc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int)crc.getValue();
+    }
+
+    private static int writeLong(byte[] b, int i, long v) {
+        for(int shift = 56; shift >= 0; shift -= 8)
+            b[i++] = (byte)(v >>> shift);
+        return i;
+    }
+
+    private static int writeBytes(byte[] b, int i, byte[] src, int offset, int n) {
+        b[i++] = (byte)(n >>> 24);
+        b[i++] = (byte)(n >>> 16);
+        b[i++] = (byte)(n >>> 8);
+        b[i++] = (byte)n;
+        System.arraycopy(src, offset, b, i, n);
+        return i + n;
+    }
+
+    private static long readLong(byte[] b, int i) {
+        long v = 0;
+        for(int k = 0; k < 8; k++)
+            v = (v << 8) | (b[i + k] & 0xff);
+        return v;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+    }
+
+    private static String readString(byte[] b, int i) {
+        return new String(b, i + 4, readInt(b, i), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.util.concurrent.atomic.AtomicReference; //Ultimo nodo della coda, conteso dai produttori
+
+/**
+ * La classe {@code MpscQueue} rappresenta una coda FIFO senza lock con piu' produttori e un solo consumatore.
+ * <p>
+ * I produttori aggiungono un nodo con un unico {@code getAndSet} sull'ultimo nodo e poi lo collegano al precedente, 
+ * quindi non si bloccano mai tra loro. Il consumatore legge seguendo i collegamenti dal primo nodo senza 
+ * operazioni atomiche. Un nodo appena scambiato ma non ancora collegato non e' visibile al consumatore 
+ * finche' il produttore non termina {@link #offer(Object)}.
+ * <p>
+ * {@link #poll()}, {@link #peek()} e {@link #isEmpty()} devono essere chiamati da un solo thread alla volta.
+ * @param <E> Tipo degli elementi della coda.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ * @see <a href="https://www.1024cores.net/home/lock-free-algorithms/queues/non-intrusive-mpsc-node-based-queue">1024cores: Non-intrusive MPSC node-based queue</a>
+ */
+public class MpscQueue<E> {
+    /**
+     * Un nodo della coda.
+     */
+    private static class Node<E> {
+        private E value;
+        private volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    private AtomicReference<Node<E>> last; //Ultimo nodo inserito, usato dai produttori
+    private Node<E> first;                 //Nodo gia' consumato che precede il primo elemento, usato dal consumatore
+
+    /**
+     * Costruisce una coda vuota.
+     */
+    public MpscQueue() {
+        Node<E> stub = new Node<E>(null);
+        last = new AtomicReference<Node<E>>(stub);
+        first = stub;
+    }
+
+    /**
+     * Aggiunge un elemento in fondo alla coda. Puo' essere chiamato da piu' thread contemporaneamente.
+     * @param value L'elemento da aggiungere.
+     */
+    public void offer(E value) {
+        Node<E> node = new Node<E>(value);
+        Node<E> previous = last.getAndSet(node); //Si prenota il posto in fondo alla coda
+        previous.next = node;                    //Rende il nodo visibile al consumatore
+    }
+
+    /**
+     * Legge e rimuove il primo elemento della coda. Solo per il consumatore.
+     * @return Il primo elemento, {@code null} se la coda e' vuota.
+     */
+    public E poll() {
+        Node<E> next = first.next;
+        if(next == null)
+            return null;
+        E value = next.value;
+        next.value = null; //Il nodo diventa il nuovo nodo gia' consumato
+        first = next;
+        return value;
+    }
+
+    /**
+     * Legge senza rimuoverlo il primo elemento della coda. Solo per il consumatore.
+     * @return Il primo elemento, {@code null} se la coda e' vuota.
+     */
+    public E peek() {
+        Node<E> next = first.next;
+        return next == null ? null : next.value;
+    }
+
+    /**
+     * Controlla se la coda e' vuota. Solo per il consumatore.
+     * @return {@code true} se non ci sono elementi visibili al consumatore.
+     */
+    public boolean isEmpty() {
+        return first.next == null;
+    }
+}
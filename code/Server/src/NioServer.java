@@ -0,0 +1,503 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.ByteArrayOutputStream;               //Accumulo delle risposte
+import java.io.IOException;                         //Errori di I/O
+import java.nio.ByteBuffer;                         //Buffer di byte
+import java.nio.channels.*;                         //Selector|SelectionKey|SocketChannel|FileChannel
+import java.nio.charset.StandardCharsets;           //Codifica UTF-8
+import java.util.ArrayDeque;                        //Coda dei buffer da scrivere
+import java.util.HashMap;                           //Mappe
+import java.util.Iterator;                          //Iterazione delle chiavi selezionate
+import java.util.Queue;                             //Code
+import java.util.concurrent.ConcurrentLinkedQueue;  //Coda dei task degli event loop
+import java.util.concurrent.atomic.AtomicInteger;   //Contatore delle connessioni assegnate
+
+/**
+ * La classe {@code NioServer} e' un motore alternativo a {@link ServerThread} per servire i client.
+ * <p>
+ * Le connessioni accettate da {@link Server} vengono assegnate a turno con {@link #register(SocketChannel)}.
+ * Invece di un thread per ogni connessione, usa un piccolo numero di event loop, ognuno con il proprio {@link Selector}, 
+ * che gestiscono in modo non bloccante tutti i {@link SocketChannel} a loro assegnati. 
+ * Le righe ricevute da ogni client vengono passate ad un {@link ServerProtocol}, quindi i comandi 
+ * disponibili e le risposte sono gli stessi del motore a thread, compreso il {@link BinaryProtocol protocollo binario}.
+ * <p>
+ * I byte dei file in invio vengono passati al protocollo direttamente dal buffer di lettura, che e' un buffer diretto, 
+ * e quelli dei file in arrivo vengono scritti dal file di appoggio al canale con {@link FileChannel#transferTo}: 
+ * in nessuno dei due versi passano dalla heap.
+ * <p>
+ * Le risposte che il client non legge restano nella coda della sua sessione. Quando la coda supera 
+ * {@link #WRITE_HIGH_WATER_MARK} byte la sessione smette di leggere dal canale e di eseguire comandi, 
+ * e riprende quando il client ha letto abbastanza da farla scendere sotto {@link #WRITE_LOW_WATER_MARK}: 
+ * un client che invia comandi senza leggere le risposte non puo' far crescere la heap del server senza limiti.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;     //Byte letti dal socket ad ogni lettura
+    private static final int MAX_LINE_LENGTH = BinaryProtocol.MAX_FRAME_LENGTH; //Lunghezza massima di una riga o di un frame inviati dal client
+    /** Byte di risposte in coda oltre i quali una sessione smette di leggere i comandi del client. */
+    public static final int WRITE_HIGH_WATER_MARK = 1 << 20;
+    /** Byte di risposte in coda sotto i quali una sessione sospesa riprende a leggere. */
+    public static final int WRITE_LOW_WATER_MARK = 256 << 10;
+
+    private MessageBox mBox;                     //MessageBox contenente mappe di messaggi e chiavi pubbliche per ogni User
+    private FileRelay relay;                     //Sessioni che possono ricevere file
+    private ServerMetrics metrics;               //Misure del server
+    private HashMap<String, String> commandList; //Mappa delle descrizione dei comandi
+    private int receiveBatch;                    //Numero massimo di messaggi inviati insieme
+    private EventLoop[] loops;                   //Event loop tra cui vengono distribuite le connessioni
+    private AtomicInteger nextLoop = new AtomicInteger(); //Contatore per assegnare a turno le connessioni agli event loop
+
+    /**
+     * Costruttore di {@code NioServer}.
+     * @param mBox Una {@code MessageBox} contenente messaggi e chiavi pubbliche degli user.
+     * @param relay Il {@code FileRelay} con le sessioni che possono ricevere file.
+     * @param metrics Le {@code ServerMetrics} in cui contare i byte e i comandi.
+     * @param commandList Una {@code HashMap} contenente i comandi che il client puo' utilizzare con le loro descrizioni.
+     * @param numLoops Numero di event loop, almeno 1.
+     * @param receiveBatch Numero massimo di messaggi letti dalla coda e inviati insieme.
+     * @throws IOException Se non e' possibile aprire un {@code Selector}.
+     */
+    public NioServer(MessageBox mBox, FileRelay relay, ServerMetrics metrics, HashMap<String, String> commandList, 
+            int numLoops, int receiveBatch) throws IOException {
+        this.mBox = mBox;
+        this.relay = relay;
+        this.metrics = metrics;
+        this.commandList = commandList;
+        this.receiveBatch = receiveBatch;
+        this.loops = new EventLoop[Math.max(1, numLoops)];
+        for(int i = 0; i < loops.length; i++)
+            loops[i] = new EventLoop(i);
+    }
+
+    /**
+     * Avvia i thread degli event loop.
+     */
+    public void start() {
+        for(EventLoop loop : loops)
+            loop.thread.start();
+    }
+
+    /**
+     * Assegna una connessione appena accettata al prossimo event loop, a turno.
+     * Puo' essere chiamato da piu' acceptor contemporaneamente.
+     * @param channel Il canale della connessione.
+     */
+    public void register(SocketChannel channel) {
+        loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(channel);
+    }
+
+    /**
+     * Un event loop, eseguito da un proprio thread, che gestisce le letture e le scritture di piu' sessioni con un {@link Selector}.
+     * <p>
+     * Le operazioni richieste da altri thread vengono messe in coda con {@link #execute(Runnable)} 
+     * ed eseguite dal thread dell'event loop.
+     */
+    private class EventLoop implements Runnable {
+        private Selector selector;
+        private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>(); //Operazioni da eseguire nel thread dell'event loop
+        private Thread thread;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-loop-" + index);
+        }
+
+        /**
+         * Mette in coda un'operazione da eseguire nel thread dell'event loop e risveglia il selector.
+         * @param task Operazione da eseguire.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Assegna una nuova connessione all'event loop.
+         * @param channel Il canale della connessione appena accettata.
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    NioSession session = new NioSession(channel, this);
+                    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                    session.protocol.start();
+                } catch (IOException e) {
+                    System.out.println("Exception caught when registering a connection");
+                    System.out.println(e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        public void run() {
+            while(true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.out.println(thread.getName() + ": " + e.getMessage());
+                    return;
+                }
+
+                //Esegue le operazioni in coda
+                Runnable task;
+                while((task = tasks.poll()) != null)
+                    task.run();
+
+                //Gestisce i canali pronti
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioSession session = (NioSession) key.attachment();
+                    try {
+                        if(key.isValid() && key.isWritable())
+                            session.write();
+                        if(key.isValid() && key.isReadable())
+                            session.read();
+                    } catch (IOException e) { //Problemi di connessione, probabilmente il client che si scollega
+                        System.out.println(session.protocol.getUserName() + ": " + e.getMessage());
+                        session.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Una sessione con un client gestita da un {@link EventLoop}.
+     * <p>
+     * Raccoglie i byte letti dal canale fino ad ottenere righe o frame completi, li passa al {@link ServerProtocol}
+     * e mette in coda le risposte, che vengono scritte quando il canale e' pronto. 
+     * Nella coda delle risposte ci sono {@link ByteBuffer} e {@link FileRegion}.
+     */
+    private class NioSession {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private byte[] lineBuffer = new byte[256];                   //Byte della riga o del contenuto del frame in corso di lettura
+        private int lineLength = 0;
+        private ByteBuffer header = ByteBuffer.allocate(BinaryProtocol.HEADER_LENGTH); //Intestazione del frame in corso di lettura
+        private int frameLength = -1;                                //Lunghezza del contenuto del frame in corso di lettura, -1 se manca l'intestazione
+        private boolean fileData = false;                            //true se il frame in corso di lettura e' un FILE_DATA
+        private int fileId;                                          //Id del FILE_DATA in corso di lettura
+        private Queue<Object> pending = new ArrayDeque<Object>();    //Risposte in attesa di essere scritte
+        private long pendingBytes = 0;                               //Byte dei ByteBuffer in coda, le FileRegion restano su disco
+        private boolean readPaused = false;                          //true se la coda ha superato WRITE_HIGH_WATER_MARK
+        private EventLoop loop;
+        private ServerProtocol protocol;
+        private boolean closed = false;
+
+        NioSession(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            //Le consegne in modalita' push vengono eseguite dal thread dell'event loop, come le scritture
+            //L'event loop serve anche altre sessioni, quindi non puo' aspettare che si liberi spazio nella coda di un ricevente
+            this.protocol = new ServerProtocol(mBox, relay, metrics, commandList, new ChannelOutputStream(), loop::execute, false, receiveBatch);
+        }
+
+        /**
+         * Legge i byte disponibili e passa al protocollo ogni riga o frame completi.
+         * @throws IOException Errori di connessione socket.
+         */
+        void read() throws IOException {
+            int n = channel.read(readBuffer);
+            if(n < 0) { //Il client si e' disconnesso
+                close();
+                return;
+            }
+            metrics.bytesIn(n);
+            readBuffer.flip();
+            process();
+        }
+
+        /**
+         * Passa al protocollo le righe e i frame completi di {@link #readBuffer}, finche' la lettura non viene sospesa. 
+         * I byte non ancora elaborati restano nel buffer per quando la lettura riprende.
+         * @throws IOException Errori di connessione socket.
+         */
+        private void process() throws IOException {
+            while(readBuffer.hasRemaining() && !closed && !readPaused) {
+                //La modalita' puo' cambiare dopo ogni riga, quando il client negozia il protocollo binario
+                if(protocol.isBinary())
+                    readFrame();
+                else
+                    readLine();
+            }
+            readBuffer.compact();
+        }
+
+        /**
+         * Riprende la lettura dopo che la coda delle risposte e' scesa sotto {@link #WRITE_LOW_WATER_MARK}, 
+         * elaborando prima i byte rimasti nel buffer. Viene eseguito come operazione dell'event loop, 
+         * non dentro {@link #write()}, per non eseguire un comando mentre si stanno scrivendo le risposte di un altro.
+         */
+        private void resume() {
+            if(closed || readPaused)
+                return;
+            try {
+                readBuffer.flip();
+                process();
+            } catch (IOException e) {
+                System.out.println(protocol.getUserName() + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Consuma i byte di {@link #readBuffer} fino alla fine di una riga, che passa al protocollo.
+         * @throws IOException Se la riga e' troppo lunga.
+         */
+        private void readLine() throws IOException {
+            while(readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if(b == '\n') {
+                    int length = lineLength;
+                    if(length > 0 && lineBuffer[length - 1] == '\r')
+                        length--;
+                    String line = new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+                    lineLength = 0;
+                    protocol.handleLine(line);
+                    return;
+                }
+                if(lineLength == lineBuffer.length)
+                    grow(lineLength * 2);
+                lineBuffer[lineLength++] = b;
+            }
+        }
+
+        /**
+         * Consuma i byte di {@link #readBuffer} fino alla fine di un frame, che passa al protocollo.
+         * Il contenuto viene accumulato nello stesso buffer delle righe.
+         * @throws IOException Se il frame e' troppo lungo.
+         */
+        private void readFrame() throws IOException {
+            if(frameLength < 0) { //Intestazione non ancora completa
+                while(header.hasRemaining() && readBuffer.hasRemaining())
+                    header.put(readBuffer.get());
+                if(header.hasRemaining())
+                    return;
+                frameLength = header.getInt(0);
+                if(frameLength < 0 || frameLength > MAX_LINE_LENGTH)
+                    throw new IOException("frame too long");
+                fileData = header.get(4) == BinaryProtocol.FILE_DATA && frameLength >= 4;
+                if(frameLength > lineBuffer.length && !fileData)
+                    grow(frameLength);
+                lineLength = 0;
+            }
+            if(fileData) {
+                readFileData();
+                return;
+            }
+            int n = Math.min(frameLength - lineLength, readBuffer.remaining());
+            readBuffer.get(lineBuffer, lineLength, n);
+            lineLength += n;
+            if(lineLength == frameLength) {
+                int length = frameLength;
+                header.clear();
+                frameLength = -1;
+                lineLength = 0;
+                protocol.handleFrame(header.get(4), lineBuffer, length);
+            }
+        }
+
+        /**
+         * Consuma i byte di {@link #readBuffer} di un frame {@link BinaryProtocol#FILE_DATA}: dopo l'id, 
+         * i byte vengono passati al protocollo man mano che arrivano, come parte del buffer diretto, senza copiarli.
+         */
+        private void readFileData() {
+            if(lineLength < 4) { //Id non ancora completo
+                int n = Math.min(4 - lineLength, readBuffer.remaining());
+                readBuffer.get(lineBuffer, lineLength, n);
+                lineLength += n;
+                if(lineLength < 4)
+                    return;
+                fileId = ((lineBuffer[0] & 0xFF) << 24) | ((lineBuffer[1] & 0xFF) << 16) | ((lineBuffer[2] & 0xFF) << 8) | (lineBuffer[3] & 0xFF);
+            }
+            int n = Math.min(frameLength - lineLength, readBuffer.remaining());
+            if(n > 0) {
+                ByteBuffer data = readBuffer.slice(readBuffer.position(), n);
+                readBuffer.position(readBuffer.position() + n);
+                lineLength += n;
+                protocol.handleFileData(fileId, data);
+            }
+            if(lineLength == frameLength) {
+                header.clear();
+                frameLength = -1;
+                lineLength = 0;
+                fileData = false;
+            }
+        }
+
+        /**
+         * Sostituisce il buffer delle righe con uno piu' grande, mantenendo i byte gia' letti.
+         * @param size Nuova dimensione.
+         * @throws IOException Se si supera la lunghezza massima.
+         */
+        private void grow(int size) throws IOException {
+            if(size > MAX_LINE_LENGTH)
+                throw new IOException("line too long");
+            byte[] bigger = new byte[size];
+            System.arraycopy(lineBuffer, 0, bigger, 0, lineLength);
+            lineBuffer = bigger;
+        }
+
+        /**
+         * Scrive le risposte in coda finche' il canale le accetta. 
+         * Se rimangono dati da scrivere si registra per essere avvisato quando il canale e' di nuovo scrivibile. 
+         * Sospende la lettura quando la coda supera {@link #WRITE_HIGH_WATER_MARK} e la riprende 
+         * quando scende sotto {@link #WRITE_LOW_WATER_MARK}.
+         * @throws IOException Errori di connessione socket.
+         */
+        void write() throws IOException {
+            Object next;
+            while((next = pending.peek()) != null) {
+                if(next instanceof ByteBuffer) {
+                    ByteBuffer buffer = (ByteBuffer) next;
+                    int n = channel.write(buffer);
+                    pendingBytes -= n;
+                    metrics.bytesOut(n);
+                    if(buffer.hasRemaining())
+                        break;
+                }
+                else if(!((FileRegion) next).transferTo(channel, metrics)) {
+                    break;
+                }
+                pending.poll();
+            }
+
+            if(!readPaused && pendingBytes > WRITE_HIGH_WATER_MARK) {
+                readPaused = true;
+            }
+            else if(readPaused && pendingBytes <= WRITE_LOW_WATER_MARK) {
+                readPaused = false;
+                if(readBuffer.position() > 0) //Comandi gia' letti e non ancora eseguiti
+                    loop.execute(this::resume);
+            }
+            key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (pending.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+
+        /**
+         * Aggiunge dei byte alla coda delle risposte e prova a scriverli subito.
+         * @param buffer I byte da scrivere, un {@link ByteBuffer} o una {@link FileRegion}.
+         */
+        void enqueue(Object buffer) {
+            if(closed)
+                return;
+            pending.add(buffer);
+            if(buffer instanceof ByteBuffer)
+                pendingBytes += ((ByteBuffer) buffer).remaining();
+            try {
+                write();
+            } catch (IOException e) {
+                System.out.println(protocol.getUserName() + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Chiude la connessione e la sessione del protocollo.
+         */
+        void close() {
+            if(closed)
+                return;
+            closed = true;
+            if(key != null)
+                key.cancel();
+            closeQuietly(channel);
+            protocol.close();
+        }
+
+        /**
+         * Flusso che accumula i byte scritti dal protocollo e ad ogni flush li mette nella coda delle risposte. 
+         * Le parti dei file vengono messe in coda come {@link FileRegion}, dopo i byte gia' scritti.
+         */
+        private class ChannelOutputStream extends ByteArrayOutputStream implements FileRegionStream {
+            public void transferFrom(FileChannel file, long position, long count, Runnable done) {
+                flush();
+                enqueue(new FileRegion(file, position, count, done));
+            }
+
+            public void flush() {
+                if(count == 0)
+                    return;
+                enqueue(ByteBuffer.wrap(toByteArray()));
+                reset();
+            }
+
+            public void close() {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Una parte di un file da scrivere sul canale con {@link FileChannel#transferTo}, nella coda delle risposte di una {@link NioSession}.
+     */
+    private static class FileRegion {
+        private FileChannel file;
+        private long position;
+        private long remaining;
+        private Runnable done; //Eseguita quando tutti i byte sono stati scritti
+
+        FileRegion(FileChannel file, long position, long count, Runnable done) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+            this.done = done;
+        }
+
+        /**
+         * Scrive sul canale quanti piu' byte possibile.
+         * @param channel Il canale.
+         * @param metrics Le misure in cui contare i byte scritti.
+         * @return {@code true} se tutti i byte sono stati scritti.
+         * @throws IOException Errori di connessione socket o di lettura del file.
+         */
+        boolean transferTo(SocketChannel channel, ServerMetrics metrics) throws IOException {
+            while(remaining > 0) {
+                long n = file.transferTo(position, remaining, channel);
+                if(n <= 0)
+                    return false; //Il canale e' pieno
+                position += n;
+                remaining -= n;
+                metrics.bytesOut(n);
+            }
+            done.run();
+            return true;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //Il canale e' gia' inutilizzabile
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+/**
+ * L'enum {@code OverflowPolicy} indica cosa fa la {@link MessageBox} quando un messaggio non entra nella {@link Mailbox} del ricevente.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public enum OverflowPolicy {
+    /** Rifiuta il messaggio, il mandante riceve un errore. */
+    REJECT,
+    /** Elimina i messaggi piu' vecchi del ricevente finche' il nuovo messaggio non entra. */
+    DROP_OLDEST,
+    /** Fa aspettare il mandante finche' si libera spazio, per un tempo massimo, poi rifiuta il messaggio. */
+    BLOCK;
+
+    /**
+     * Converte il nome usato negli argomenti della linea di comando ({@code reject}, {@code drop-oldest}, {@code block}).
+     * @param name Il nome della politica.
+     * @return La politica corrispondente.
+     * @throws IllegalArgumentException Se il nome non corrisponde a nessuna politica.
+     */
+    public static OverflowPolicy fromArgument(String name) {
+        return valueOf(name.toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.nio.channels.FileChannel; //File di appoggio dei trasferimenti
+import java.util.List; //Messaggi inviati insieme
+
+/**
+ * L'interfaccia {@code ProtocolWriter} rappresenta il modo in cui {@link ServerProtocol} scrive verso il client, 
+ * indipendente dal formato usato sulla connessione.
+ * <p>
+ * Ogni metodo corrisponde ad un comando del protocollo o ad una risposta. Le implementazioni accumulano i byte 
+ * e li inviano solo con {@link #flush()}, quindi le risposte ad un comando partono tutte insieme.
+ * Come {@link java.io.PrintWriter} i metodi non lanciano eccezioni: gli errori della connessione 
+ * vengono scoperti da chi legge dal socket.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ * @see TextProtocolWriter
+ * @see BinaryProtocolWriter
+ */
+public interface ProtocolWriter {
+    /**
+     * Invia del testo da mostrare all'utente.
+     * @param text Il testo.
+     */
+    void text(String text);
+
+    /**
+     * Chiede al client di inviare un input dell'utente.
+     */
+    void input();
+
+    /**
+     * Chiede al client di inviare un comando.
+     */
+    void inputCommand();
+
+    /**
+     * Chiede al client di inviare la sua chiave pubblica.
+     */
+    void sendKey();
+
+    /**
+     * Conferma al client l'uscita dal programma.
+     */
+    void quit();
+
+    /**
+     * Invia un messaggio criptato, che il client deve decriptare.
+     * @param message Il messaggio.
+     */
+    void message(Message message);
+
+    /**
+     * Invia piu' messaggi criptati insieme, in ordine.
+     * @param messages I messaggi.
+     */
+    void messages(List<Message> messages);
+
+    /**
+     * Invia la chiave pubblica di uno user, chiesta con {@code getkey}.
+     * @param key La chiave pubblica.
+     */
+    void key(String key);
+
+    /**
+     * Avvisa il client che un invio condizionato non e' stato eseguito perche' la chiave del destinatario e' cambiata, 
+     * inviandogli quella nuova.
+     * @param key La chiave pubblica attuale del destinatario.
+     */
+    void newKey(String key);
+
+    /**
+     * Avvisa un client iscritto con {@code presence on} che un utente si e' connesso o disconnesso.
+     * @param userName UserName dell'utente.
+     * @param online {@code true} se l'utente e' online.
+     */
+    void presence(String userName, boolean online);
+
+    /**
+     * Avvisa il destinatario di un file che sta per riceverlo.
+     * @param transfer Il trasferimento.
+     */
+    void fileStart(FileTransfer transfer);
+
+    /**
+     * Invia una parte dei byte criptati di un file, letti dal file di appoggio.
+     * @param id Id del trasferimento verso il destinatario.
+     * @param file Il file di appoggio.
+     * @param position Posizione del primo byte nel file di appoggio.
+     * @param count Numero di byte.
+     * @param done Azione eseguita quando i byte sono stati scritti sul socket.
+     */
+    void fileChunk(int id, FileChannel file, long position, int count, Runnable done);
+
+    /**
+     * Avvisa il destinatario che il file e' completo.
+     * @param id Id del trasferimento verso il destinatario.
+     */
+    void fileDone(int id);
+
+    /**
+     * Avvisa il destinatario che il file e' stato annullato.
+     * @param id Id del trasferimento verso il destinatario.
+     */
+    void fileCancel(int id);
+
+    /**
+     * Restituisce al mandante di un file il credito dei byte gia' consegnati.
+     * @param id Id del trasferimento scelto dal mandante.
+     * @param credit Byte che il mandante puo' inviare in piu'.
+     */
+    void fileCredit(int id, int credit);
+
+    /**
+     * Avvisa il mandante di un file che deve smettere di inviarlo.
+     * @param id Id del trasferimento scelto dal mandante.
+     */
+    void fileStop(int id);
+
+    /**
+     * Invia al client tutto quello che e' stato scritto.
+     */
+    void flush();
+}
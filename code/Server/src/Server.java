@@ -24,28 +24,45 @@
  */
 
 import java.net.*;        //Socket
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap; //Mappe
-import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.io.IOException;
+import java.nio.file.Paths;
 
 /**
  * La classe {@code Server} serve ad intercettare le connessioni dei client.
  * ed avviare un {@link ServerThread} quando la connessione viene accettata.
  * <p>
- * Vengono memorizzati i thread avviati dal server, la mappa dei messaggi e la mappa delle descrizioni dei comandi che possono essere eseguiti dal client.
+ * Con l'argomento {@code --engine=virtual} i {@link ServerThread} vengono eseguiti su virtual thread, 
+ * mentre con {@code --engine=nio} le connessioni sono servite da un {@link NioServer}.
+ * <p>
+ * Vengono memorizzate le sessioni avviate dal server, la mappa dei messaggi e la mappa delle descrizioni dei comandi che possono essere eseguiti dal client.
  * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
  * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
  * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
  */
 public class Server {
-    private static ArrayList<ServerThread> threads = new ArrayList<ServerThread>();     //Arraylist di thread
-    private static MessageBox mBox = new MessageBox();                                  //MessageBox contenente mappe di messaggi e chiavi pubbliche per ogni User
+    private static final int MIN_ACCEPT_BACKOFF_MILLIS = 5;                              //Attesa dopo il primo errore di accept
+    private static final int MAX_ACCEPT_BACKOFF_MILLIS = 200;                            //Attesa massima tra due accept falliti di seguito
+    private static Set<ServerThread> threads = ConcurrentHashMap.newKeySet();           //Insieme delle sessioni attive, modificato dai thread delle sessioni
+    private static MessageBox mBox;                                                     //MessageBox contenente mappe di messaggi e chiavi pubbliche per ogni User
+    private static FileRelay relay;                                                     //Sessioni che possono ricevere file
+    private static ServerMetrics metrics;                                               //Misure del server, esposte via JMX e con il comando stats
     private static HashMap<String, String> commandList = new HashMap<String, String>(); //Mappa delle descrizioni dei comandi che possono essere eseguiti dal client
                                                                                         //L'indice e' il nome del comando, l'argomento e' la descrizione del comando
+    private static ExecutorService executor = null;                                     //Executor delle sessioni con il motore virtual
+    private static NioServer nioServer = null;                                          //Event loop delle sessioni con il motore nio
+    private static int receiveBatch = Integer.MAX_VALUE;                                //Numero massimo di messaggi inviati insieme al client
 
     /**
-     * Rimuove un istanza del {@link ServerThread} dall' {@link Server#threads Arraylist dei thread}.
-     * @param s istanza di {@link ServerThread} da rimuovere dall'{@link Server#threads Arraylist dei thread}.
+     * Rimuove un istanza del {@link ServerThread} dall' {@link Server#threads insieme delle sessioni}.
+     * @param s istanza di {@link ServerThread} da rimuovere dall'{@link Server#threads insieme delle sessioni}.
      */
     public static void close(ServerThread s) {
         threads.remove(s);
@@ -53,32 +70,272 @@ public class Server {
 
     /**
      * Crea il socket del server e accetta le richieste di connessione.
+     * <p>
+     * Argomenti accettati:
+     * <ul>
+     *    <li>{@code --engine=thread|virtual|nio} - Motore con cui servire i client: un {@link ServerThread} per connessione 
+     *        su un thread di piattaforma (default) o su un virtual thread, oppure un {@link NioServer} con pochi event loop</li>
+     *    <li>{@code --loops=N} - Numero di event loop del motore {@code nio} (default: numero di processori)</li>
+     *    <li>{@code --port=N} - Porta su cui il server e' in ascolto (default: 65535)</li>
+     *    <li>{@code --backlog=N} - Lunghezza della coda delle connessioni in attesa di essere accettate (default: 1024)</li>
+     *    <li>{@code --acceptors=N} - Numero di thread che accettano le connessioni (default: 1)</li>
+     *    <li>{@code --reuseport} - Ogni acceptor apre il proprio socket sulla stessa porta con {@code SO_REUSEPORT} (solo Linux e alcuni BSD)</li>
+     *    <li>{@code --mailbox-messages=N} - Numero massimo di messaggi in attesa per ogni user (default: nessun limite)</li>
+     *    <li>{@code --mailbox-bytes=N} - Numero massimo di byte in attesa per ogni user (default: nessun limite)</li>
+     *    <li>{@code --memory-budget=N} - Numero massimo di byte in attesa per tutti gli user insieme (default: nessun limite)</li>
+     *    <li>{@code --overflow=reject|drop-oldest|block} - Cosa fare quando un messaggio non entra, vedi {@link OverflowPolicy} (default: reject). 
+     *        Con il motore {@code nio} {@code block} rifiuta subito il messaggio, perche' un event loop non puo' aspettare</li>
+     *    <li>{@code --block-timeout=MS} - Attesa massima del mandante con {@code --overflow=block} (default: 1000)</li>
+     *    <li>{@code --wal-dir=CARTELLA} - Scrive i messaggi in un {@link MessageLog} nella cartella indicata 
+     *        e all'avvio recupera quelli non consegnati (default: messaggi solo in memoria)</li>
+     *    <li>{@code --wal-segment-size=N} - Dimensione in byte di un segmento del log (default: 67108864)</li>
+     *    <li>{@code --wal-sync=always|batch|none} - Quando sincronizzare il log su disco, vedi {@link MessageLog.SyncMode} (default: batch)</li>
+     *    <li>{@code --wal-sync-interval=MS} - Intervallo di sincronizzazione con {@code --wal-sync=batch} (default: 10)</li>
+     *    <li>{@code --receive-batch=N} - Numero massimo di messaggi letti dalla coda e inviati al client insieme (default: nessun limite)</li>
+     *    <li>{@code --message-ttl=S} - Secondi dopo i quali un messaggio non letto viene eliminato, 0 per non eliminarlo mai (default: 86400)</li>
+     *    <li>{@code --mailbox-ttl=S} - Secondi dopo i quali la mailbox di uno user disconnesso viene eliminata, 
+     *        0 per non eliminarla mai (default: 86400)</li>
+     *    <li>{@code --file-window=N} - Byte di ogni file inviato con {@code sendfile} che il server tiene in attesa del destinatario, 
+     *        ovvero il credito del mandante, vedi {@link FileTransfer} (default: 4194304, minimo 1048576)</li>
+     *    <li>{@code --spool-dir=CARTELLA} - Cartella dei file di appoggio dei trasferimenti (default: cartella temporanea di sistema)</li>
+     *    <li>{@code --admin-token=TOKEN} - Abilita il comando {@code stats TOKEN}, che mostra le {@link ServerMetrics} 
+     *        a chi conosce il token (default: comando disabilitato). Le misure sono comunque esposte via JMX come {@code safjnest:*}</li>
+     *    <li>{@code --list-page=N} - Numero massimo di utenti inviati da un comando {@code list}, 
+     *        gli altri si leggono a pagine con il cursore (default: 100)</li>
+     * </ul>
      * @param args Argomenti della linea di comando.
      * @throws IOException Errori di connessione socket.
      */
     public static void main(String[] args) throws IOException {
         int portNumber = 65535;
+        String engine = "thread";
+        int loops = Runtime.getRuntime().availableProcessors();
+        int backlog = 1024;
+        int acceptors = 1;
+        boolean reusePort = false;
+        int mailboxMessages = Integer.MAX_VALUE;
+        long mailboxBytes = Long.MAX_VALUE;
+        long memoryBudget = Long.MAX_VALUE;
+        OverflowPolicy overflow = OverflowPolicy.REJECT;
+        long blockTimeout = 1000;
+        String walDir = null;
+        int walSegmentSize = 64 << 20;
+        MessageLog.SyncMode walSync = MessageLog.SyncMode.BATCH;
+        long walSyncInterval = 10;
+        long messageTtl = 86400;
+        long mailboxTtl = 86400;
+        int fileWindow = 4 << 20;
+        String spoolDir = null;
+        String adminToken = null;
+        int listPage = UserDirectory.DEFAULT_PAGE_SIZE;
+
+        //Legge gli argomenti nel formato --nome=valore
+        for(String arg : args) {
+            String argArray[] = arg.split("=", 2);
+            String value = argArray.length > 1 ? argArray[1] : "";
+            switch (argArray[0]) {
+                case "--engine":
+                    engine = value;
+                break;
+
+                case "--loops":
+                    loops = Integer.parseInt(value);
+                break;
+
+                case "--port":
+                    portNumber = Integer.parseInt(value);
+                break;
+
+                case "--backlog":
+                    backlog = Integer.parseInt(value);
+                break;
+
+                case "--acceptors":
+                    acceptors = Math.max(1, Integer.parseInt(value));
+                break;
+
+                case "--reuseport":
+                    reusePort = true;
+                break;
+
+                case "--mailbox-messages":
+                    mailboxMessages = Integer.parseInt(value);
+                break;
+
+                case "--mailbox-bytes":
+                    mailboxBytes = Long.parseLong(value);
+                break;
+
+                case "--memory-budget":
+                    memoryBudget = Long.parseLong(value);
+                break;
+
+                case "--overflow":
+                    overflow = OverflowPolicy.fromArgument(value);
+                break;
+
+                case "--block-timeout":
+                    blockTimeout = Long.parseLong(value);
+                break;
+
+                case "--wal-dir":
+                    walDir = value;
+                break;
+
+                case "--wal-segment-size":
+                    walSegmentSize = Integer.parseInt(value);
+                break;
+
+                case "--wal-sync":
+                    walSync = MessageLog.SyncMode.valueOf(value.toUpperCase());
+                break;
+
+                case "--wal-sync-interval":
+                    walSyncInterval = Long.parseLong(value);
+                break;
+
+                case "--receive-batch":
+                    receiveBatch = Integer.parseInt(value);
+                break;
+
+                case "--message-ttl":
+                    messageTtl = Long.parseLong(value);
+                break;
+
+                case "--mailbox-ttl":
+                    mailboxTtl = Long.parseLong(value);
+                break;
+
+                case "--file-window":
+                    fileWindow = Integer.parseInt(value);
+                break;
+
+                case "--spool-dir":
+                    spoolDir = value;
+                break;
+
+                case "--admin-token":
+                    adminToken = value;
+                break;
+
+                case "--list-page":
+                    listPage = Integer.parseInt(value);
+                break;
+
+                default:
+                    System.out.println("Argomento non riconosciuto: " + arg);
+                break;
+            }
+        }
+
+        mBox = new MessageBox(mailboxMessages, mailboxBytes, memoryBudget, overflow, blockTimeout);
+        mBox.startSweeper(messageTtl * 1000, mailboxTtl * 1000);
+        mBox.getDirectory().setPageSize(listPage);
+        relay = new FileRelay(fileWindow, spoolDir == null ? null : Paths.get(spoolDir));
+        metrics = new ServerMetrics(mBox, adminToken);
+        metrics.start();
+
+        //Recupera i messaggi non consegnati prima dell'ultimo arresto del server
+        if(walDir != null) {
+            try {
+                int recovered = mBox.recover(new MessageLog(Paths.get(walDir), walSegmentSize, walSync, walSyncInterval));
+                System.out.println("Recuperati " + recovered + " messaggi dal log");
+            } catch (IOException e) {
+                System.out.println("Exception caught when opening the message log in " + walDir);
+                System.out.println(e.getMessage());
+                return;
+            }
+        }
 
         //Aggiunge le descrizioni dei comandi disponibili alla mappa dei comandi
-        commandList.put("list", "Visualizza la lista dei possibili riceventi\r\n\r\nLIST");
+        commandList.put("list", "Visualizza la lista dei possibili riceventi, a pagine in ordine alfabetico\r\n\r\nLIST [prefisso] [cursore]\r\n\r\n\tprefisso - mostra solo gli utenti il cui username inizia con il prefisso, * per tutti\r\n\tcursore - mostra gli utenti dopo il cursore, indicato dal server alla fine della pagina precedente");
         commandList.put("send", "Visualizza la lista degli utenti online\r\n\r\nSEND [destinatario] [messaggio]\r\n\r\n\tdestinatario - username di un utente online\r\n\tmessaggio - messaggio da inviare");
         commandList.put("receive", "Scrive i messaggi indirizzati a te\r\n\r\nRECEIVE");
-        commandList.put("getkey", "Scrive la chiave pubblica dell'utente specificato\r\n\r\nGETKEY");
+        commandList.put("getkey", "Scrive la chiave pubblica dell'utente specificato\r\n\r\nGETKEY [username] [impronta]\r\n\r\n\timpronta - se corrisponde alla chiave attuale la chiave non viene inviata");
+        commandList.put("sendc", "Invia un messaggio solo se la chiave del destinatario non e' cambiata, usato dal client\r\n\r\nSENDC [destinatario] [impronta] [messaggio]\r\n\r\n\timpronta - impronta della chiave con cui e' stato criptato il messaggio");
+        commandList.put("push", "Attiva o disattiva la consegna immediata dei messaggi, senza doverli chiedere con RECEIVE\r\n\r\nPUSH [on|off]");
+        commandList.put("sendfile", "Invia un file criptato alla persona indicata, che deve essere online, usato dal client\r\n\r\nSENDFILE [destinatario] [percorso]\r\n\r\n\tpercorso - file da inviare, viene salvato dal destinatario nella sua cartella dei file ricevuti");
+        commandList.put("presence", "Attiva o disattiva gli avvisi degli utenti che si connettono e si disconnettono, senza dover chiedere ogni volta la lista con LIST\r\n\r\nPRESENCE [on|off]");
         commandList.put("quit", "Esce dal programma\r\n\r\nQUIT");
         commandList.put("help", "Fornisce la guida per i comandi\r\n\r\nHELP [comando]\r\n\r\n\tcomando - visualizza informazioni di guida per il comando.");
+        if(metrics.isStatsEnabled())
+            commandList.put("stats", "Mostra le misure del server, riservato agli amministratori\r\n\r\nSTATS [token]\r\n\r\n\ttoken - il token di amministrazione indicato all'avvio del server");
         
-        System.out.println("Server started");
+        System.out.println("Server started (" + engine + ")");
+        try {
+            //Con il motore nio le connessioni vengono passate agli event loop del NioServer
+            if(engine.equals("nio")) {
+                nioServer = new NioServer(mBox, relay, metrics, commandList, loops, receiveBatch);
+                nioServer.start();
+            }
+            //Con il motore virtual ogni sessione viene eseguita su un nuovo virtual thread
+            else if(engine.equals("virtual")) {
+                executor = Executors.newVirtualThreadPerTaskExecutor();
+            }
+
+            //Crea i socket del server, che restano aperti per tutta la vita del server
+            //Con --reuseport ogni acceptor ha il proprio socket sulla stessa porta e il kernel distribuisce le connessioni,
+            //altrimenti gli acceptor condividono un unico socket
+            ServerSocketChannel[] listeners = new ServerSocketChannel[reusePort ? acceptors : 1];
+            for(int i = 0; i < listeners.length; i++) {
+                listeners[i] = ServerSocketChannel.open();
+                if(reusePort)
+                    listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                listeners[i].bind(new InetSocketAddress(portNumber), backlog);
+            }
+
+            //Avvia gli acceptor, l'ultimo viene eseguito dal thread principale
+            for(int i = 0; i < acceptors - 1; i++) {
+                ServerSocketChannel listener = listeners[i % listeners.length];
+                new Thread(() -> accept(listener), "acceptor-" + i).start();
+            }
+            accept(listeners[(acceptors - 1) % listeners.length]);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("Exception caught when trying to listen on port " + portNumber + " or listening for a connection");
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Ciclo di un acceptor: accetta le connessioni dal socket del server e le passa al motore scelto all'avvio.
+     * Termina quando il socket del server viene chiuso.
+     * <p>
+     * Se {@code accept} fallisce, ad esempio perche' il processo ha finito i file descriptor (EMFILE) durante 
+     * un'ondata di riconnessioni, l'acceptor aspetta prima di riprovare, raddoppiando l'attesa ad ogni errore di seguito 
+     * fino a {@link #MAX_ACCEPT_BACKOFF_MILLIS}, invece di ripetere subito la chiamata che fallisce occupando tutta la CPU.
+     * @param listener Il socket del server da cui accettare le connessioni.
+     */
+    private static void accept(ServerSocketChannel listener) {
+        int backoff = 0; //Attesa dopo l'ultimo errore in millisecondi, 0 se l'ultimo accept e' riuscito
         while(true) {
-            try (
-                ServerSocket serverSocket = new ServerSocket(portNumber); //Crea il socket del server
-            ) {
-                Socket s = serverSocket.accept();
-                threads.add(new ServerThread(s, mBox, commandList)); //Aggiunge il thread alla lista
-                threads.get(threads.size()-1).start(); //Avvia l'ultimo thread
-            } catch (IOException e) {
-                System.out.println("Exception caught when trying to listen on port " + portNumber + " or listening for a connection");
-                System.out.println(e.getMessage());
-                break;
+            try {
+                SocketChannel channel = listener.accept(); //Accetta in modo bloccante
+                backoff = 0;
+                metrics.accepted();
+                if(nioServer != null) {
+                    nioServer.register(channel);
+                }
+                else {
+                    ServerThread session = new ServerThread(channel.socket(), mBox, relay, metrics, commandList, receiveBatch);
+                    threads.add(session); //Aggiunge la sessione all'insieme
+                    if(executor != null)
+                        executor.execute(session);
+                    else
+                        new Thread(session).start();
+                }
+            } catch (ClosedChannelException e) { //Il socket del server e' stato chiuso
+                return;
+            } catch (IOException e) { //Errore su una singola connessione, l'acceptor continua dopo una breve attesa
+                if(backoff == 0) { //Stampa solo il primo errore di una serie
+                    System.out.println("Exception caught when listening for a connection");
+                    System.out.println(e.getMessage());
+                }
+                backoff = backoff == 0 ? MIN_ACCEPT_BACKOFF_MILLIS : Math.min(backoff * 2, MAX_ACCEPT_BACKOFF_MILLIS);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
             }
         }
     }
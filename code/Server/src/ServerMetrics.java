@@ -0,0 +1,429 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.lang.management.ManagementFactory;      //MBeanServer della piattaforma
+import java.nio.charset.StandardCharsets;           //Confronto del token
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;                     //Comandi in ordine
+import java.util.Map;
+import java.util.concurrent.Executors;              //Thread del campionamento
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator; //Massimi
+import java.util.concurrent.atomic.LongAdder;       //Contatori a celle separate per thread
+import javax.management.JMException;                //Errori di registrazione degli MBean
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * La classe {@code ServerMetrics} raccoglie le misure del server: sessioni attive, connessioni accettate, 
+ * esecuzioni e latenza di ogni comando, byte ricevuti e inviati, code della {@link MessageBox} e tempo di inoltro dei messaggi, 
+ * ovvero il tempo tra l'invio e la consegna al destinatario, che non comprende la crittografia perche' il server non la esegue.
+ * <p>
+ * Le misure restano sempre attive, quindi la registrazione costa poco: ogni contatore e ogni bucket degli istogrammi 
+ * e' un {@link LongAdder}, che sotto contesa distribuisce gli incrementi su celle diverse, e nessuna registrazione prende lock. 
+ * Le code della {@link MessageBox} non vengono registrate, ma lette dalle mailbox solo quando vengono chieste.
+ * <p>
+ * Le misure sono esposte via JMX con {@link #start()} e come testo con il comando {@code stats} ({@link #format()}), 
+ * riservato a chi conosce il token di amministrazione indicato all'avvio del server.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    /** Comandi misurati separatamente, gli altri sono contati insieme come {@link #OTHER}. */
+    public static final String[] COMMANDS = {"list", "send", "receive", "getkey", "sendc", "push", "presence", "sendfile", "help", "quit", "stats"};
+    /** Nome delle misure dei comandi non riconosciuti. */
+    public static final String OTHER = "other";
+    /** Numero di mailbox restituite da {@link #getLargestQueues()}. */
+    public static final int LARGEST_QUEUES = 10;
+
+    private final MessageBox mBox;
+    private final byte[] adminToken;                                    //Token del comando stats, null se il comando e' disabilitato
+    private final LongAdder sessionsOpened = new LongAdder();
+    private final LongAdder sessionsClosed = new LongAdder();
+    private final Rate accepted = new Rate();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final Histogram relay = new Histogram();                    //Microsecondi tra invio e consegna
+    private final Map<String, CommandMetrics> commands = new LinkedHashMap<String, CommandMetrics>(); //Non modificata dopo il costruttore
+    private ScheduledExecutorService sampler = null;                    //Calcola le frequenze ogni secondo
+
+    /**
+     * Costruttore di {@code ServerMetrics}.
+     * @param mBox La {@code MessageBox} di cui leggere le code.
+     * @param adminToken Il token richiesto dal comando {@code stats}, {@code null} per disabilitarlo.
+     */
+    public ServerMetrics(MessageBox mBox, String adminToken) {
+        this.mBox = mBox;
+        this.adminToken = adminToken == null || adminToken.isEmpty() ? null : adminToken.getBytes(StandardCharsets.UTF_8);
+        for(String command : COMMANDS)
+            commands.put(command, new CommandMetrics());
+        commands.put(OTHER, new CommandMetrics());
+    }
+
+    /**
+     * Registra gli MBean nel server JMX della piattaforma e avvia il campionamento delle frequenze.
+     * Senza questa chiamata le misure vengono comunque raccolte, ma le frequenze restano a zero.
+     */
+    public synchronized void start() {
+        if(sampler != null)
+            return;
+        sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName("safjnest:type=Server"));
+            for(Map.Entry<String, CommandMetrics> command : commands.entrySet())
+                server.registerMBean(command.getValue(), new ObjectName("safjnest:type=Command,name=" + command.getKey()));
+        } catch (JMException e) {
+            System.out.println("Exception caught when registering the metrics MBeans");
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Aggiorna le frequenze dell'ultimo secondo.
+     */
+    private void sample() {
+        accepted.sample();
+        for(CommandMetrics command : commands.values())
+            command.rate.sample();
+    }
+
+    /**
+     * Conta una connessione accettata.
+     */
+    public void accepted() {
+        accepted.count.increment();
+    }
+
+    /**
+     * Conta una sessione aperta.
+     */
+    public void sessionOpened() {
+        sessionsOpened.increment();
+    }
+
+    /**
+     * Conta una sessione chiusa.
+     */
+    public void sessionClosed() {
+        sessionsClosed.increment();
+    }
+
+    /**
+     * @param bytes Byte ricevuti da un client.
+     */
+    public void bytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * @param bytes Byte inviati a un client.
+     */
+    public void bytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Registra l'esecuzione di un comando.
+     * @param command Il nome del comando, quelli non presenti in {@link #COMMANDS} vengono contati come {@link #OTHER}.
+     * @param nanos La durata dell'esecuzione in nanosecondi.
+     */
+    public void command(String command, long nanos) {
+        CommandMetrics metrics = command == null ? null : commands.get(command);
+        (metrics == null ? commands.get(OTHER) : metrics).record(nanos);
+    }
+
+    /**
+     * Registra la consegna di un messaggio.
+     * @param millis Millisecondi passati dall'invio del messaggio.
+     */
+    public void relayed(long millis) {
+        relay.record(TimeUnit.MILLISECONDS.toMicros(millis));
+    }
+
+    /**
+     * Controlla il token del comando {@code stats} in tempo costante.
+     * @param token Il token inviato dal client.
+     * @return {@code true} se il comando e' abilitato e il token e' corretto.
+     */
+    public boolean isAdmin(String token) {
+        return adminToken != null && token != null && MessageDigest.isEqual(adminToken, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return {@code true} se il comando {@code stats} e' abilitato.
+     */
+    public boolean isStatsEnabled() {
+        return adminToken != null;
+    }
+
+    /**
+     * @param command Il nome di un comando di {@link #COMMANDS} o {@link #OTHER}.
+     * @return Le sue misure, {@code null} se non e' misurato.
+     */
+    public CommandMetricsMXBean getCommand(String command) {
+        return commands.get(command);
+    }
+
+    public long getActiveSessions() {
+        //Prima le chiusure, cosi' una sessione aperta e chiusa tra le due letture non rende il totale negativo
+        long closed = sessionsClosed.sum();
+        return sessionsOpened.sum() - closed;
+    }
+
+    public long getAcceptedConnections() {
+        return accepted.count.sum();
+    }
+
+    public double getAcceptsPerSecond() {
+        return accepted.perSecond;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getQueuedMessages() {
+        return mBox.getQueuedMessages();
+    }
+
+    public long getQueuedBytes() {
+        return mBox.getQueuedBytes();
+    }
+
+    public long getStaleKeyMessages() {
+        return mBox.getStaleKeyMessages();
+    }
+
+    public Map<String, Integer> getLargestQueues() {
+        return mBox.getLargestQueues(LARGEST_QUEUES);
+    }
+
+    public int queueDepth(String userName) {
+        return mBox.getQueueDepth(userName);
+    }
+
+    public long getRelayedMessages() {
+        return relay.count();
+    }
+
+    public long getRelayP50Micros() {
+        return relay.percentile(50);
+    }
+
+    public long getRelayP99Micros() {
+        return relay.percentile(99);
+    }
+
+    public long getRelayP999Micros() {
+        return relay.percentile(99.9);
+    }
+
+    public long getRelayMaxMicros() {
+        return relay.max.get();
+    }
+
+    /**
+     * Formatta tutte le misure come testo per il comando {@code stats}.
+     * @return Le misure, una per riga.
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Sessioni attive: %d, connessioni accettate: %d (%.1f/s)\r\n", 
+                getActiveSessions(), getAcceptedConnections(), getAcceptsPerSecond()));
+        sb.append(String.format("Byte ricevuti: %d, byte inviati: %d\r\n", getBytesIn(), getBytesOut()));
+        sb.append(String.format("Messaggi in coda: %d (%d byte)", getQueuedMessages(), getQueuedBytes()));
+        Map<String, Integer> largest = getLargestQueues();
+        if(!largest.isEmpty())
+            sb.append(", code piu' lunghe: ").append(largest.toString(), 1, largest.toString().length() - 1);
+        if(getStaleKeyMessages() > 0)
+            sb.append(", eliminati per chiave cambiata: ").append(getStaleKeyMessages());
+        sb.append(String.format("\r\nMessaggi inoltrati: %d, tempo nel server: p50 %s, p99 %s, p99.9 %s, max %s\r\n", 
+                getRelayedMessages(), millis(getRelayP50Micros()), millis(getRelayP99Micros()), 
+                millis(getRelayP999Micros()), millis(getRelayMaxMicros())));
+        sb.append(String.format("%-10s %10s %8s %10s %10s %10s %10s %10s", "comando", "totale", "al sec", "media", "p50", "p99", "p99.9", "max"));
+        for(Map.Entry<String, CommandMetrics> entry : commands.entrySet()) {
+            CommandMetrics c = entry.getValue();
+            if(c.getCount() == 0)
+                continue;
+            sb.append(String.format("\r\n%-10s %10d %8.1f %10s %10s %10s %10s %10s", entry.getKey(), c.getCount(), c.getRatePerSecond(), 
+                    millis((long) c.getMeanMicros()), millis(c.getP50Micros()), millis(c.getP99Micros()), 
+                    millis(c.getP999Micros()), millis(c.getMaxMicros())));
+        }
+        return sb.toString();
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.3fms", micros / 1000.0);
+    }
+
+    /**
+     * Le misure di un comando.
+     */
+    private static class CommandMetrics implements CommandMetricsMXBean {
+        private final Rate rate = new Rate();
+        private final LongAdder totalNanos = new LongAdder();
+        private final Histogram latency = new Histogram(); //Microsecondi
+
+        void record(long nanos) {
+            rate.count.increment();
+            totalNanos.add(nanos);
+            latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+
+        public long getCount() {
+            return rate.count.sum();
+        }
+
+        public double getRatePerSecond() {
+            return rate.perSecond;
+        }
+
+        public double getMeanMicros() {
+            long count = getCount();
+            return count == 0 ? 0 : totalNanos.sum() / 1000.0 / count;
+        }
+
+        public long getP50Micros() {
+            return latency.percentile(50);
+        }
+
+        public long getP99Micros() {
+            return latency.percentile(99);
+        }
+
+        public long getP999Micros() {
+            return latency.percentile(99.9);
+        }
+
+        public long getMaxMicros() {
+            return latency.max.get();
+        }
+    }
+
+    /**
+     * Un contatore con la sua frequenza nell'ultimo secondo, aggiornata dal campionamento.
+     */
+    private static class Rate {
+        private final LongAdder count = new LongAdder();
+        private long last = 0;
+        private long lastTime = System.nanoTime();
+        private volatile double perSecond = 0;
+
+        /**
+         * Chiamato solo dal thread del campionamento.
+         */
+        void sample() {
+            long now = System.nanoTime();
+            long total = count.sum();
+            perSecond = (total - last) * 1e9 / Math.max(1, now - lastTime);
+            last = total;
+            lastTime = now;
+        }
+    }
+
+    /**
+     * Istogramma di valori non negativi con quattro bucket per ogni potenza di due, quindi con un errore 
+     * sotto il 19% del valore. Ogni bucket e' un {@link LongAdder}, per registrare da piu' thread senza contesa.
+     */
+    static class Histogram {
+        private static final int SUB_BITS = 2;                  //Bit dopo il piu' significativo che scelgono il bucket
+        private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for(int i = 0; i < BUCKETS; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        void record(long value) {
+            value = Math.max(0, value);
+            buckets[index(value)].increment();
+            max.accumulate(value);
+        }
+
+        long count() {
+            long count = 0;
+            for(LongAdder bucket : buckets)
+                count += bucket.sum();
+            return count;
+        }
+
+        /**
+         * @param percentile Il percentile, da 0 a 100.
+         * @return Il valore piu' alto del bucket che contiene il percentile, al massimo il valore piu' alto registrato.
+         */
+        long percentile(double percentile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for(int i = 0; i < BUCKETS; i++)
+                total += counts[i] = buckets[i].sum();
+            if(total == 0)
+                return 0;
+            long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if(seen >= target)
+                    return Math.min(highest(i), max.get());
+            }
+            return max.get();
+        }
+
+        /**
+         * I valori sotto {@code 2^(SUB_BITS+1)} hanno un bucket ciascuno, gli altri sono divisi in base 
+         * alla posizione del bit piu' significativo e ai {@link #SUB_BITS} bit successivi.
+         */
+        private static int index(long value) {
+            if(value < (1 << (SUB_BITS + 1)))
+                return (int) value;
+            int msb = 63 - Long.numberOfLeadingZeros(value);
+            int shift = msb - SUB_BITS;
+            return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & ((1 << SUB_BITS) - 1));
+        }
+
+        private static long highest(int index) {
+            if(index < (1 << (SUB_BITS + 1)))
+                return index;
+            int shift = (index >>> SUB_BITS) - 1;
+            long top = (1L << SUB_BITS) | (index & ((1 << SUB_BITS) - 1));
+            return ((top + 1) << shift) - 1;
+        }
+    }
+}
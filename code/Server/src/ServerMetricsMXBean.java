@@ -0,0 +1,83 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.util.Map; //Code piu' lunghe per userName
+
+/**
+ * Interfaccia JMX di {@link ServerMetrics}, registrata come {@code safjnest:type=Server}. 
+ * Le latenze sono in microsecondi.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public interface ServerMetricsMXBean {
+    /** @return Le sessioni aperte, anche quelle che non hanno ancora completato il log in. */
+    long getActiveSessions();
+
+    /** @return Le connessioni accettate dall'avvio. */
+    long getAcceptedConnections();
+
+    /** @return Le connessioni accettate nell'ultimo secondo. */
+    double getAcceptsPerSecond();
+
+    /** @return I byte ricevuti dai client. */
+    long getBytesIn();
+
+    /** @return I byte inviati ai client, compresi quelli dei file. */
+    long getBytesOut();
+
+    /** @return I messaggi in coda in tutte le mailbox. */
+    long getQueuedMessages();
+
+    /** @return I byte dei messaggi in coda in tutte le mailbox. */
+    long getQueuedBytes();
+
+    /** @return I messaggi eliminati perche' criptati con una chiave pubblica sostituita al log in. */
+    long getStaleKeyMessages();
+
+    /** @return Le mailbox con piu' messaggi in coda, al massimo {@link ServerMetrics#LARGEST_QUEUES}. */
+    Map<String, Integer> getLargestQueues();
+
+    /**
+     * @param userName Uno username.
+     * @return I messaggi in coda per lo user, 0 se non esiste.
+     */
+    int queueDepth(String userName);
+
+    /** @return I messaggi consegnati dall'avvio. */
+    long getRelayedMessages();
+
+    /** @return Mediana del tempo passato da un messaggio nel server, dall'invio alla consegna. */
+    long getRelayP50Micros();
+
+    /** @return 99esimo percentile del tempo passato da un messaggio nel server. */
+    long getRelayP99Micros();
+
+    /** @return 99.9esimo percentile del tempo passato da un messaggio nel server. */
+    long getRelayP999Micros();
+
+    /** @return Tempo piu' lungo passato da un messaggio nel server. */
+    long getRelayMaxMicros();
+}
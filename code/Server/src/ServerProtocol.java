@@ -0,0 +1,928 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.IOException;                          //Errori dei file di appoggio
+import java.io.OutputStream;                         //Flusso di byte verso il client
+import java.nio.ByteBuffer;                         //Byte dei file
+import java.nio.charset.StandardCharsets;           //Codifica UTF-8
+import java.util.HashMap;                           //Mappe
+import java.util.Iterator;                          //Scorrimento dei trasferimenti
+import java.util.List;                              //Messaggi letti insieme
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;      //Utenti cambiati, aggiunti dai thread delle altre sessioni
+import java.util.concurrent.ConcurrentLinkedQueue;  //File in arrivo, aggiunti dai thread dei mandanti
+import java.util.concurrent.Executor;               //Esecuzione delle consegne in modalita' push
+import java.util.concurrent.atomic.AtomicBoolean;   //Consegna gia' programmata
+import java.util.concurrent.locks.ReentrantLock;    //Lock delle scritture verso il client
+import java.util.function.Consumer;                 //Iscrizione ai cambi di presenza
+
+/**
+ * La classe {@code ServerProtocol} contiene la logica di una sessione con un client, indipendente dal modo 
+ * in cui le righe vengono lette dal socket.
+ * <p>
+ * E' usata sia da {@link ServerThread}, che legge le righe in modo bloccante, sia da {@link NioServer}, 
+ * che le riceve da un event loop. Per ogni riga inviata dal client viene chiamato {@link #handleLine(String)}, 
+ * che in base allo stato della sessione esegue il log in, registra la chiave pubblica o esegue un comando.
+ * <p>
+ * Se come prima riga il client chiede il {@link BinaryProtocol protocollo binario}, la sessione passa ai frame: 
+ * da quel momento {@link #isBinary()} restituisce {@code true}, chi legge dal socket deve chiamare 
+ * {@link #handleFrame(byte, byte[], int)} e le risposte vengono scritte con un {@link BinaryProtocolWriter}.
+ * <p>
+ * Il protocollo per la comunicazione tra server e client usato prevede che all'invio di specifici comandi 
+ * da parte del server, il client risponda in un certo modo.
+ * I comandi sono:
+ * <ul>
+ *    <li>INPUT - Chiede al client di inviargli un input dell'utente</li>
+ *    <li>INPUTC - Chiede al client di inviargli un comando</li>
+ *    <li>DECRYPT - Segnala al client che il prossimo messaggio che gli verra' inviato sara' criptato</li>
+ *    <li>SENDKEY - Chiede al client di inviargli la sua chiave pubblica</li>
+ * </ul>
+ * <p>
+ * Per non chiedere la chiave del destinatario prima di ogni messaggio, il client puo' inviare {@code sendc destinatario impronta messaggio}: 
+ * il messaggio viene inviato solo se l'{@link Mailbox#fingerprint(String) impronta} corrisponde alla chiave attuale del destinatario, 
+ * altrimenti il server risponde con NEWKEY e la chiave nuova, con cui il client cripta di nuovo il messaggio. 
+ * Allo stesso modo {@code getkey user impronta} invia la chiave solo se e' cambiata.
+ * <p>
+ * Con il comando {@code push on} il client chiede di ricevere i messaggi appena arrivano: ad ogni {@link MessageBox#send} 
+ * verso questo user viene programmata su un {@link Executor} una consegna, che scrive le coppie DECRYPT e messaggio 
+ * senza aspettare un comando {@code receive}. Tutte le scritture verso il client avvengono sotto lo stesso lock, 
+ * quindi le consegne non si mescolano con le risposte ai comandi.
+ * <p>
+ * La lista degli utenti online viene letta dalla {@link UserDirectory} a pagine: {@code list [prefisso] [cursore]} invia al piu' 
+ * {@link UserDirectory#getPageSize()} utenti che iniziano con il prefisso ({@code *} per tutti) e, se ce ne sono altri, 
+ * il comando per leggere la pagina successiva. Con {@code presence on} il client riceve invece solo i cambi: 
+ * ad ogni log in o disconnessione viene programmata sullo stesso {@link Executor} delle consegne una scrittura delle righe PRESENCE. 
+ * Per avere una lista sempre aggiornata il client attiva prima {@code presence on} e poi legge la lista con {@code list}.
+ * <p>
+ * Con la versione 2 del protocollo binario il client puo' inviare file ad uno user connesso: il frame {@link BinaryProtocol#FILE_OFFER} 
+ * crea un {@link FileTransfer} e i frame {@link BinaryProtocol#FILE_DATA} che seguono, senza risposta, vengono inoltrati al destinatario 
+ * mentre arrivano. Il lavoro dei file (inizio, byte, fine e annullamento verso il destinatario, credito e interruzione verso il mandante) 
+ * viene programmato sullo stesso {@link Executor} delle consegne, quindi ogni sessione scrive solo verso il proprio client 
+ * e non tiene mai il lock delle scritture di un'altra sessione.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class ServerProtocol {
+    /**
+     * Stati della sessione, ovvero cosa il server si aspetta come prossima riga dal client.
+     */
+    private enum State {
+        USERNAME,    //Lo username scelto dall'utente
+        KEY,         //La chiave pubblica del client
+        COMMAND,     //Un comando
+        QUIT_CONFIRM //La conferma dell'uscita (s/n)
+    }
+
+    private MessageBox mBox;                     //MessageBox contenente mappe di messaggi e chiavi pubbliche per ogni User
+    private UserDirectory directory;             //User online in ordine di userName
+    private FileRelay relay;                     //Sessioni che possono ricevere file
+    private ServerMetrics metrics;               //Misure del server
+    private HashMap<String, String> commandList; //Mappa delle descrizione dei comandi
+    private OutputStream stream;                 //Flusso bufferizzato verso il client
+    private ProtocolWriter out;                  //Scrive le risposte nel formato della sessione
+    private Executor deliveryExecutor;           //Esegue le consegne in modalita' push
+    private boolean canBlock;                    //false se il thread della sessione non puo' aspettare che si liberi spazio
+    private int receiveBatch;                    //Numero massimo di messaggi letti dalla coda con una sola operazione
+    private ReentrantLock writeLock = new ReentrantLock();            //Lock delle scritture verso il client
+    private AtomicBoolean deliveryScheduled = new AtomicBoolean();    //true se una consegna e' gia' in coda sull'executor
+    private AtomicBoolean fileWorkScheduled = new AtomicBoolean();    //true se il lavoro dei file e' gia' in coda sull'executor
+    private AtomicBoolean presenceScheduled = new AtomicBoolean();    //true se la scrittura dei cambi di presenza e' gia' in coda sull'executor
+    private Set<String> changedUsers = ConcurrentHashMap.newKeySet(); //Utenti connessi o disconnessi dall'ultima scrittura, con presence on
+    private Consumer<String> presenceListener = null;                 //Iscrizione alla UserDirectory, null senza presence on. 
+                                                                      //Usata sotto il lock delle scritture
+    private HashMap<Integer, FileTransfer> outgoing = new HashMap<Integer, FileTransfer>(); //File in invio per id del client, 
+                                                                                          //usata sotto il lock delle scritture
+    private Queue<FileTransfer> incoming = new ConcurrentLinkedQueue<FileTransfer>();      //File in arrivo
+
+    private State state = State.USERNAME;
+    private String userName = null;
+    private String clientKey = null;
+    private boolean loggedIn = false;
+    private volatile boolean closed = false;
+    private volatile boolean binary = false;     //true dopo la negoziazione del protocollo binario
+    private volatile int version = 0;            //Versione del protocollo binario negoziata
+
+    /**
+     * Costruttore di {@code ServerProtocol}.
+     * @param mBox Una {@code MessageBox} contenente messaggi e chiavi pubbliche degli user.
+     * @param relay Il {@code FileRelay} con le sessioni che possono ricevere file.
+     * @param metrics Le {@code ServerMetrics} in cui registrare comandi e consegne.
+     * @param commandList Una {@code HashMap} contenente i comandi che il client puo' utilizzare con le loro descrizioni.
+     * @param stream Il flusso bufferizzato su cui scrivere le risposte per il client, inviate ad ogni flush. 
+     *               Se e' un {@link FileRegionStream} i file vengono inoltrati senza copiarli nella heap.
+     * @param deliveryExecutor L'{@code Executor} su cui eseguire le consegne in modalita' push.
+     * @param canBlock {@code false} se il thread che chiama {@link #handleLine(String)} non puo' aspettare, come un event loop.
+     * @param receiveBatch Numero massimo di messaggi letti dalla coda e inviati insieme, almeno 1.
+     */
+    public ServerProtocol(MessageBox mBox, FileRelay relay, ServerMetrics metrics, HashMap<String, String> commandList, 
+            OutputStream stream, Executor deliveryExecutor, boolean canBlock, int receiveBatch) {
+        this.mBox = mBox;
+        this.directory = mBox.getDirectory();
+        this.relay = relay;
+        this.metrics = metrics;
+        this.commandList = commandList;
+        this.stream = stream;
+        this.out = new TextProtocolWriter(stream);
+        this.deliveryExecutor = deliveryExecutor;
+        this.canBlock = canBlock;
+        this.receiveBatch = Math.max(1, receiveBatch);
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * @return {@code true} se il client ha negoziato il protocollo binario, quindi invia frame invece di righe.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Inizia la procedura di log in chiedendo al client lo username.
+     */
+    public void start() {
+        metrics.sessionOpened();
+        writeLock.lock();
+        try {
+            askUserName();
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Gestisce una riga inviata dal client in base allo stato della sessione.
+     * @param line La riga inviata dal client, senza terminatore di riga.
+     */
+    public void handleLine(String line) {
+        writeLock.lock();
+        try {
+            handleLineLocked(line);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Gestisce un frame inviato dal client con il protocollo binario.
+     * @param opcode Il tipo di frame.
+     * @param payload Buffer con il contenuto del frame a partire dall'inizio, che puo' essere riutilizzato dopo la chiamata.
+     * @param length La lunghezza del contenuto.
+     */
+    public void handleFrame(byte opcode, byte[] payload, int length) {
+        writeLock.lock();
+        try {
+            handleFrameLocked(opcode, payload, length);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Gestisce una parte dei byte di un frame {@link BinaryProtocol#FILE_DATA}, senza l'id. 
+     * Permette a chi legge dal socket di passare i byte di un file mentre arrivano, anche da un buffer diretto, 
+     * senza aspettare il frame completo.
+     * @param id Id del trasferimento scelto dal client.
+     * @param data I byte, che vengono consumati.
+     */
+    public void handleFileData(int id, ByteBuffer data) {
+        writeLock.lock();
+        try {
+            fileData(id, data);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void handleFrameLocked(byte opcode, byte[] payload, int length) {
+        //I frame dei file in invio non hanno risposta e possono arrivare anche durante la conferma dell'uscita
+        if(opcode == BinaryProtocol.FILE_DATA || opcode == BinaryProtocol.FILE_END || opcode == BinaryProtocol.FILE_ABORT) {
+            if(loggedIn && length >= 4)
+                handleFileFrame(opcode, readInt(payload, 0), ByteBuffer.wrap(payload, 4, length - 4));
+            return;
+        }
+
+        //Fuori dai comandi (log in e conferma dell'uscita) il client risponde solo con righe
+        if(opcode == BinaryProtocol.LINE || state != State.COMMAND) {
+            handleLineLocked(new String(payload, 0, length, StandardCharsets.UTF_8));
+            return;
+        }
+
+        long start = System.nanoTime();
+        switch (opcode) {
+            //Il destinatario e il messaggio sono campi separati, quindi il messaggio puo' contenere qualsiasi carattere
+            case BinaryProtocol.SEND:
+                int receiverLength = length < 2 ? -1 : ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+                System.out.println(userName + " -> send"); //Stampa comando sul server
+                if(receiverLength < 0 || 2 + receiverLength > length) {
+                    out.text("<Server> sintassi errata");
+                }
+                else {
+                    String receiver = new String(payload, 2, receiverLength, StandardCharsets.UTF_8);
+                    String msg = new String(payload, 2 + receiverLength, length - 2 - receiverLength, StandardCharsets.UTF_8);
+                    send(receiver, msg);
+                }
+            break;
+
+            //Come SEND, con l'impronta della chiave del destinatario tra destinatario e messaggio
+            case BinaryProtocol.SEND_CHECKED:
+                System.out.println(userName + " -> sendc"); //Stampa comando sul server
+                receiverLength = length < 2 ? -1 : ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+                int fingerprintStart = 2 + receiverLength + 2;
+                int fingerprintLength = receiverLength < 0 || fingerprintStart > length ? -1 
+                        : ((payload[fingerprintStart - 2] & 0xFF) << 8) | (payload[fingerprintStart - 1] & 0xFF);
+                if(fingerprintLength < 0 || fingerprintStart + fingerprintLength > length) {
+                    out.text("<Server> sintassi errata");
+                }
+                else {
+                    String receiver = new String(payload, 2, receiverLength, StandardCharsets.UTF_8);
+                    String fingerprint = new String(payload, fingerprintStart, fingerprintLength, StandardCharsets.UTF_8);
+                    int msgStart = fingerprintStart + fingerprintLength;
+                    sendChecked(receiver, fingerprint, new String(payload, msgStart, length - msgStart, StandardCharsets.UTF_8));
+                }
+            break;
+
+            case BinaryProtocol.RECEIVE:
+                System.out.println(userName + " -> receive"); //Stampa comando sul server
+                receive();
+            break;
+
+            //Destinatario, impronta e nome preceduti dalla lunghezza, poi id, dimensione e chiave di sessione criptata
+            case BinaryProtocol.FILE_OFFER:
+                System.out.println(userName + " -> sendfile"); //Stampa comando sul server
+                String[] fields = new String[3];
+                int i = 0;
+                for(int n = 0; n < fields.length && i >= 0; n++) {
+                    int fieldLength = i + 2 > length ? -1 : ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+                    if(fieldLength < 0 || i + 2 + fieldLength > length) {
+                        i = -1;
+                        break;
+                    }
+                    fields[n] = new String(payload, i + 2, fieldLength, StandardCharsets.UTF_8);
+                    i += 2 + fieldLength;
+                }
+                if(version < 2 || i < 0 || i + 12 > length) {
+                    out.text("<Server> sintassi errata");
+                }
+                else {
+                    String wrappedKey = new String(payload, i + 12, length - i - 12, StandardCharsets.UTF_8);
+                    offerFile(fields[0], fields[1], fields[2], readInt(payload, i), readLong(payload, i + 4), wrappedKey);
+                }
+            break;
+
+            //Se non esiste il frame inviato
+            default:
+                out.text("<Server> comando non trovato");
+            break;
+        }
+        out.inputCommand();
+        metrics.command(frameCommand(opcode), System.nanoTime() - start);
+    }
+
+    /**
+     * @param opcode Un frame di comando del protocollo binario.
+     * @return Il comando di testo equivalente, {@code null} se il frame non e' un comando.
+     */
+    private static String frameCommand(byte opcode) {
+        switch (opcode) {
+            case BinaryProtocol.SEND:
+                return "send";
+            case BinaryProtocol.SEND_CHECKED:
+                return "sendc";
+            case BinaryProtocol.RECEIVE:
+                return "receive";
+            case BinaryProtocol.FILE_OFFER:
+                return "sendfile";
+            default:
+                return null;
+        }
+    }
+
+    private void handleLineLocked(String line) {
+        switch (state) {
+            //Procedura di log in, con solo uno username
+            //Lo username deve essere senza spazi e non già presente nel Server
+            //Come prima riga il client puo' chiedere il protocollo binario
+            case USERNAME:
+                int version = binary ? 0 : BinaryProtocol.negotiate(line);
+                if(version > 0) {
+                    //Risponde ancora con una riga di testo, poi passa ai frame e ripete la richiesta dello username
+                    out.text(BinaryProtocol.HELLO + " " + version);
+                    out.flush();
+                    out = new BinaryProtocolWriter(stream);
+                    this.version = version;
+                    binary = true;
+                    askUserName();
+                }
+                else if(line.contains(" ") || mBox.contains(line) || line.equals("Server")) {
+                    askUserName();
+                }
+                else {
+                    userName = line.intern(); //Tutti i messaggi dello user, anche quelli recuperati dal log, puntano alla stessa stringa
+                    //Chiede al client di mandargli la sua chiave pubblica
+                    out.sendKey();
+                    state = State.KEY;
+                }
+            break;
+
+            case KEY:
+                clientKey = line;
+
+                //Aggiunge lo user (userName e chiave pubblica) alla MessageBox completando la procedura di log in
+                //Se nel frattempo un altro client ha preso lo stesso username lo richiede
+                if(!mBox.newUser(userName, clientKey, binary)) { //I messaggi per lo user vengono preparati nel protocollo della sessione
+                    out.text("<Server> username gia' in uso");
+                    askUserName();
+                    state = State.USERNAME;
+                    break;
+                }
+                loggedIn = true;
+                relay.register(userName, this);
+
+                //Invia il benvenuto all'utente
+                System.out.println(userName + " connected");
+                out.text("<Server> Benvenuto " + userName);
+                out.text("Digitare help per aiuto");
+                if(mBox.hasMessageFor(userName)) //Messaggi arrivati mentre era disconnesso
+                    out.text("<Server> hai messaggi in attesa, digitare receive per leggerli");
+                out.inputCommand();
+                state = State.COMMAND;
+            break;
+
+            case COMMAND:
+                executeCommand(line);
+            break;
+
+            case QUIT_CONFIRM:
+                if(line.length() > 0 && line.charAt(0) == 's') //Se la risposta inizia con s
+                    out.quit();
+                out.inputCommand();
+                state = State.COMMAND;
+            break;
+        }
+    }
+
+    /**
+     * Chiude la sessione, rimuovendo le informazioni dell'utente dalla {@code MessageBox} se aveva completato il log in.
+     */
+    public void close() {
+        writeLock.lock();
+        try {
+            closed = true;
+            //Annulla i file ancora in corso, in invio e in arrivo
+            for(FileTransfer transfer : outgoing.values())
+                transfer.abort(false);
+            outgoing.clear();
+            FileTransfer transfer;
+            while((transfer = incoming.poll()) != null)
+                transfer.abort(true);
+            if(presenceListener != null) {
+                directory.unsubscribe(presenceListener);
+                presenceListener = null;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        System.out.println(userName + " disconnected");
+        metrics.sessionClosed();
+        if(loggedIn) {
+            relay.unregister(userName, this);
+            mBox.logout(userName); //La mailbox resta, per i messaggi che arriveranno mentre e' disconnesso
+            loggedIn = false;
+        }
+    }
+
+    /**
+     * Programma una consegna dei messaggi in attesa, se non ce n'e' gia' una in coda.
+     * E' l'azione registrata nella {@code MessageBox} in modalita' push, quindi viene chiamata dal thread del mandante.
+     */
+    private void scheduleDelivery() {
+        if(deliveryScheduled.compareAndSet(false, true))
+            deliveryExecutor.execute(this::deliverPending);
+    }
+
+    /**
+     * Invia al client tutti i messaggi in attesa.
+     */
+    private void deliverPending() {
+        deliveryScheduled.set(false); //I messaggi che arrivano da qui in poi programmano una nuova consegna
+        writeLock.lock();
+        try {
+            if(!closed) {
+                writeMessages();
+                out.flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Segna un utente connesso o disconnesso e programma la scrittura dei cambi, se non ce n'e' gia' una in coda.
+     * E' l'azione iscritta alla {@link UserDirectory} con {@code presence on}, quindi viene chiamata dal thread dell'altra sessione.
+     * @param changed UserName dell'utente.
+     */
+    private void presenceChanged(String changed) {
+        changedUsers.add(changed);
+        if(presenceScheduled.compareAndSet(false, true))
+            deliveryExecutor.execute(this::deliverPresence);
+    }
+
+    /**
+     * Invia al client lo stato attuale degli utenti cambiati.
+     */
+    private void deliverPresence() {
+        presenceScheduled.set(false); //I cambi che arrivano da qui in poi programmano una nuova scrittura
+        writeLock.lock();
+        try {
+            if(!closed && presenceListener != null) {
+                writePresence();
+                out.flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Scrive una riga PRESENCE per ogni utente cambiato, con il suo stato letto dalla {@link UserDirectory} al momento della scrittura: 
+     * se un utente si e' connesso e disconnesso piu' volte viene scritto una volta sola, con l'ultimo stato. 
+     * Va chiamato tenendo il {@link #writeLock lock delle scritture}.
+     */
+    private void writePresence() {
+        Iterator<String> it = changedUsers.iterator();
+        while(it.hasNext()) {
+            String changed = it.next();
+            it.remove(); //Rimosso prima di leggere lo stato, quindi un cambio successivo lo aggiunge di nuovo
+            out.presence(changed, directory.isOnline(changed));
+        }
+    }
+
+    /**
+     * Programma il lavoro dei file di questa sessione, se non e' gia' in coda. 
+     * Viene chiamato dai {@link FileTransfer} quando ci sono byte, credito o un annullamento da inviare al client.
+     */
+    void scheduleFileWork() {
+        if(fileWorkScheduled.compareAndSet(false, true))
+            deliveryExecutor.execute(this::deliverFiles);
+    }
+
+    /**
+     * Esegue il lavoro dei file in attesa.
+     */
+    private void deliverFiles() {
+        fileWorkScheduled.set(false); //Il lavoro che arriva da qui in poi viene programmato di nuovo
+        writeLock.lock();
+        try {
+            if(!closed) {
+                writeFiles();
+                out.flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Scrive verso il client il credito e le interruzioni dei file in invio, e l'inizio, i byte, la fine 
+     * e gli annullamenti dei file in arrivo. Va chiamato tenendo il {@link #writeLock lock delle scritture}.
+     */
+    private void writeFiles() {
+        Iterator<FileTransfer> it = outgoing.values().iterator();
+        while(it.hasNext()) {
+            FileTransfer transfer = it.next();
+            if(transfer.isAborted()) { //Il destinatario si e' disconnesso
+                out.fileStop(transfer.getSenderId());
+                it.remove();
+                continue;
+            }
+            int credit = transfer.takeCredit();
+            if(credit > 0)
+                out.fileCredit(transfer.getSenderId(), credit);
+        }
+
+        it = incoming.iterator();
+        while(it.hasNext()) {
+            FileTransfer transfer = it.next();
+            if(transfer.isAborted()) { //Il mandante si e' disconnesso o ha annullato l'invio
+                if(transfer.isAnnounced())
+                    out.fileCancel(transfer.getId());
+                it.remove();
+                continue;
+            }
+            if(!transfer.isAnnounced()) {
+                out.fileStart(transfer);
+                transfer.setAnnounced();
+            }
+            if(transfer.writeTo(out)) { //File completo
+                out.fileDone(transfer.getId());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} se lo user puo' ricevere file: ha completato il log in con la versione 2 del protocollo binario.
+     */
+    boolean acceptsFiles() {
+        return binary && version >= 2 && loggedIn && !closed;
+    }
+
+    /**
+     * Aggiunge un file in arrivo per questa sessione. Viene chiamato dal thread del mandante.
+     * @param transfer Il trasferimento.
+     */
+    private void addIncoming(FileTransfer transfer) {
+        incoming.add(transfer);
+        if(closed) //La sessione si e' chiusa nel frattempo, quindi close() potrebbe non averlo visto
+            transfer.abort(true);
+        scheduleFileWork();
+    }
+
+    /**
+     * Crea il trasferimento di un file, se il destinatario puo' riceverlo e la chiave usata dal client e' quella attuale, 
+     * e concede al client il credito iniziale.
+     * @param receiver Il destinatario.
+     * @param fingerprint L'impronta della chiave con cui il client ha criptato la chiave di sessione.
+     * @param name Nome del file.
+     * @param id Id del trasferimento scelto dal client.
+     * @param size Dimensione del file in chiaro.
+     * @param wrappedKey Chiave di sessione criptata.
+     */
+    private void offerFile(String receiver, String fingerprint, String name, int id, long size, String wrappedKey) {
+        Mailbox.Key key = mBox.getKeyEntry(receiver);
+        ServerProtocol target = relay.getSession(receiver);
+        if(key == null) { //Se non esiste il destinatario
+            out.text("<Server> username non trovato");
+        }
+        else if(!key.getFingerprint().equals(fingerprint)) { //Se il client ha una chiave vecchia
+            out.newKey(key.getValue());
+        }
+        else if(target == null || !target.acceptsFiles()) { //Se il destinatario non e' connesso o usa un client vecchio
+            out.text("<Server> " + receiver + " non puo' ricevere file, deve essere online con un client aggiornato");
+        }
+        else if(outgoing.containsKey(id)) {
+            out.text("<Server> sintassi errata");
+        }
+        else {
+            FileTransfer transfer;
+            try {
+                transfer = relay.open(id, this, target, userName, name, size, wrappedKey);
+            } catch (IOException e) {
+                System.out.println(userName + ": " + e.getMessage());
+                out.text("<Server> si e' verificato un errore con l'invio");
+                return;
+            }
+            outgoing.put(id, transfer);
+            out.fileCredit(id, relay.getWindow());
+            target.addIncoming(transfer);
+        }
+    }
+
+    /**
+     * Gestisce un frame di un file in invio.
+     * @param opcode Il tipo di frame.
+     * @param id Id del trasferimento scelto dal client.
+     * @param data Il contenuto del frame dopo l'id.
+     */
+    private void handleFileFrame(byte opcode, int id, ByteBuffer data) {
+        FileTransfer transfer;
+        switch (opcode) {
+            case BinaryProtocol.FILE_DATA:
+                fileData(id, data);
+            break;
+
+            case BinaryProtocol.FILE_END:
+                if((transfer = outgoing.remove(id)) != null)
+                    transfer.end();
+            break;
+
+            case BinaryProtocol.FILE_ABORT:
+                if((transfer = outgoing.remove(id)) != null)
+                    transfer.abort(false);
+            break;
+
+            default:
+            break;
+        }
+    }
+
+    /**
+     * Aggiunge dei byte ad un file in invio. Se il client ha superato il credito il file viene annullato.
+     * Va chiamato tenendo il {@link #writeLock lock delle scritture}.
+     * @param id Id del trasferimento scelto dal client.
+     * @param data I byte.
+     */
+    private void fileData(int id, ByteBuffer data) {
+        FileTransfer transfer = outgoing.get(id);
+        if(transfer == null) //File gia' interrotto, i byte ancora in viaggio vengono scartati
+            return;
+        try {
+            transfer.append(data);
+        } catch (IOException e) { //Credito superato o file di appoggio non scrivibile
+            System.out.println(userName + ": " + e.getMessage());
+            outgoing.remove(id);
+            transfer.abort(false);
+            out.fileStop(id);
+        }
+    }
+
+    private static int readInt(byte[] payload, int i) {
+        return ((payload[i] & 0xFF) << 24) | ((payload[i + 1] & 0xFF) << 16) | ((payload[i + 2] & 0xFF) << 8) | (payload[i + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] payload, int i) {
+        return ((long) readInt(payload, i) << 32) | (readInt(payload, i + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Finchè ci sono messaggi per lo user li invia al client, a gruppi di al massimo {@link #receiveBatch} messaggi: 
+     * ogni gruppo viene letto dalla coda con una sola operazione e scritto in un solo frame. 
+     * I byte vengono inviati tutti insieme con il flush finale.
+     * Va chiamato tenendo il {@link #writeLock lock delle scritture}.
+     * @return {@code true} se e' stato inviato almeno un messaggio.
+     */
+    private boolean writeMessages() {
+        boolean sent = false;
+        while(mBox.hasMessageFor(userName)) {
+            List<Message> messages = mBox.getMessagesFor(userName, receiveBatch);
+            if(messages.isEmpty())
+                break;
+            long now = System.currentTimeMillis();
+            for(Message message : messages) //Tempo passato nel server, dall'invio alla consegna
+                metrics.relayed(now - message.getSentAtMillis());
+            if(messages.size() == 1)
+                out.message(messages.get(0));
+            else
+                out.messages(messages);
+            sent = true;
+        }
+        return sent;
+    }
+
+    /**
+     * Chiede al client di inviare lo username.
+     */
+    private void askUserName() {
+        out.text("<Server> Scegli lo username (no spazi): ");
+        out.input();
+    }
+
+    /**
+     * Invia un messaggio e in caso di errore lo comunica al client.
+     * @param receiver Il destinatario.
+     * @param msg Il messaggio criptato.
+     */
+    private void send(String receiver, String msg) {
+        switch (mBox.send(receiver, userName, msg, canBlock)) {
+            case OK:
+            break;
+
+            case OFFLINE: //Se il destinatario non e' connesso
+                out.text("<Server> " + receiver + " non e' online, ricevera' il messaggio al prossimo accesso");
+            break;
+
+            case MAILBOX_FULL: //Se la coda del destinatario e' piena
+                out.text("<Server> la casella di " + receiver + " e' piena, messaggio non inviato");
+            break;
+
+            case SERVER_FULL: //Se la memoria per i messaggi del server e' esaurita
+                out.text("<Server> il server non ha spazio per altri messaggi, messaggio non inviato");
+            break;
+
+            case TOO_LARGE: //Se il messaggio non entra in un frame del protocollo binario
+                out.text("<Server> messaggio troppo lungo, messaggio non inviato");
+            break;
+
+            default: //Se non riesce ad inviare il messaggio
+                out.text("<Server> si e' verificato un errore con l'invio");
+            break;
+        }
+    }
+
+    /**
+     * Invia un messaggio solo se la chiave del destinatario ha ancora l'impronta indicata dal client, 
+     * altrimenti invia al client la chiave attuale.
+     * @param receiver Il destinatario.
+     * @param fingerprint L'impronta della chiave con cui il client ha criptato il messaggio.
+     * @param msg Il messaggio criptato.
+     */
+    private void sendChecked(String receiver, String fingerprint, String msg) {
+        Mailbox.Key key = mBox.getKeyEntry(receiver);
+        if(key == null) //Se non esiste il destinatario
+            out.text("<Server> username non trovato");
+        else if(!key.getFingerprint().equals(fingerprint)) //Se il client ha una chiave vecchia
+            out.newKey(key.getValue());
+        else
+            send(receiver, msg);
+    }
+
+    /**
+     * Invia al client una pagina della lista degli utenti online, nel formato {@code [userName1, userName2, ...]}. 
+     * Se ci sono altri utenti invia anche il comando che legge la pagina successiva.
+     * @param prefix Prefisso degli userName, vuoto per tutti gli utenti.
+     * @param after Ultimo utente della pagina precedente, {@code null} per la prima pagina.
+     */
+    private void list(String prefix, String after) {
+        UserDirectory.Page page = directory.page(prefix, after, directory.getPageSize());
+        out.text(page.getUsers().toString());
+        if(page.getNext() != null)
+            out.text("<Server> altri utenti con LIST " + (prefix.isEmpty() ? "*" : prefix) + " " + page.getNext());
+    }
+
+    /**
+     * Invia al client i messaggi ricevuti, o un avviso se non ce ne sono.
+     */
+    private void receive() {
+        if(!writeMessages()) //Se non ci sono messaggi per quello user
+            out.text("<Server> nessun nuovo messaggio :(");
+    }
+
+    /**
+     * Esegue un comando inviato dal client e in caso manda una risposta al client.
+     * @param line La riga con il comando e i suoi argomenti.
+     */
+    private void executeCommand(String line) {
+        String lineArray[] = line.split(" ", 3); //Divide la stringa inviata dal client ad ogni spazio per massimo 3 volte
+        if(lineArray[0].equalsIgnoreCase("sendc"))
+            lineArray = line.split(" ", 4); //Destinatario, impronta e messaggio
+        System.out.println(userName + " -> " + lineArray[0]); //Stampa comando sul server
+        String command = lineArray[0].toLowerCase();
+        long start = System.nanoTime();
+        try {
+            executeCommand(command, lineArray);
+        } finally {
+            metrics.command(command, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Esegue un comando gia' diviso nei suoi argomenti.
+     * @param command Il nome del comando in minuscolo.
+     * @param lineArray Il comando e i suoi argomenti.
+     */
+    private void executeCommand(String command, String[] lineArray) {
+        //Controlla se il comando immesso dallo user esiste, se esiste lo esegue
+        switch (command) {
+            //Invia al client la lista degli utenti online
+            case "list":
+                list(lineArray.length > 1 && !lineArray[1].equals("*") ? lineArray[1] : "", lineArray.length > 2 ? lineArray[2] : null);
+            break;
+
+            //Invia il messaggio al suo destinatario
+            case "send":
+            if(lineArray.length < 3) { //Se l'utente non ha scritto il comando nel formato [comando destinatario messaggio]    
+                out.text("<Server> sintassi errata");
+            }
+            else {
+                send(lineArray[1], lineArray[2]);
+            }
+            break;
+
+            //Invia al client i messaggi ricevuti
+            case "receive":
+                receive();
+            break;
+
+            //Invia il messaggio se la chiave del destinatario non e' cambiata
+            case "sendc":
+                if(lineArray.length < 4) { //Se l'utente non ha scritto il comando nel formato [comando destinatario impronta messaggio]
+                    out.text("<Server> sintassi errata");
+                }
+                else {
+                    sendChecked(lineArray[1], lineArray[2], lineArray[3]);
+                }
+            break;
+
+            //Attiva o disattiva la consegna immediata dei messaggi
+            case "push":
+                if(lineArray.length < 2 || lineArray[1].equalsIgnoreCase("on")) {
+                    mBox.setListener(userName, this::scheduleDelivery);
+                    out.text("<Server> push attivato");
+                    writeMessages(); //Consegna i messaggi arrivati prima dell'attivazione
+                }
+                else if(lineArray[1].equalsIgnoreCase("off")) {
+                    mBox.setListener(userName, null);
+                    out.text("<Server> push disattivato");
+                }
+                else {
+                    out.text("<Server> sintassi errata");
+                }
+            break;
+
+            //Attiva o disattiva l'invio degli utenti che si connettono e si disconnettono
+            case "presence":
+                if(lineArray.length < 2 || lineArray[1].equalsIgnoreCase("on")) {
+                    if(presenceListener == null) {
+                        presenceListener = this::presenceChanged;
+                        directory.subscribe(presenceListener);
+                    }
+                    out.text("<Server> presenza attivata");
+                }
+                else if(lineArray[1].equalsIgnoreCase("off")) {
+                    if(presenceListener != null) {
+                        directory.unsubscribe(presenceListener);
+                        presenceListener = null;
+                        changedUsers.clear();
+                    }
+                    out.text("<Server> presenza disattivata");
+                }
+                else {
+                    out.text("<Server> sintassi errata");
+                }
+            break;
+
+            //Invia al client la chiave pubblica dell'utente richiesto
+            case "getkey":
+                if(lineArray.length < 2) { //Se l'utente non ha scritto nel formato [comando username]  
+                    out.text("<Server> sintassi errata");
+                }
+                else if(mBox.getKeyEntry(lineArray[1]) != null) { //Se esiste lo username del quale si richiede la chiave
+                    Mailbox.Key key = mBox.getKeyEntry(lineArray[1]);
+                    if(lineArray.length > 2 && key.getFingerprint().equals(lineArray[2])) //Se il client ha gia' la chiave attuale
+                        out.text("<Server> chiave invariata");
+                    else
+                        out.key(key.getValue()); //Invia la chiave
+                }
+                else {
+                    out.text("<Server> username non trovato");
+                }
+            break;
+
+            //Invia al client la guida dei comandi
+            case "help":
+                if(lineArray.length < 2) { //Se l'utente ha inserito solo help
+                    out.text("Per ulteriori informazioni su uno specifico comando, digitare HELP nome comando.\r\n"
+                            + "LIST\tVisualizza la lista degli utenti online, a pagine\r\n"
+                            + "SEND\tInvia un messaggio criptato alla persona indicata\r\n"
+                            + "RECEIVE\tScrive i messaggi indirizzati a te\r\n"
+                            + "GETKEY\tScrive la chiave dell'utente specificato\r\n"
+                            + "PUSH\tAttiva o disattiva la consegna immediata dei messaggi\r\n"
+                            + "PRESENCE\tAttiva o disattiva gli avvisi degli utenti che si connettono e si disconnettono\r\n"
+                            + "SENDFILE\tInvia un file criptato alla persona indicata, che deve essere online\r\n"
+                            + "QUIT\tEsce dal programma\r\n"
+                            + "HELP\tFornisce la guida per i comandi");
+                }
+                else if (commandList.get(lineArray[1]) != null) { //Se il comando esiste
+                    out.text(commandList.get(lineArray[1].toLowerCase())); //Prende la descrizione del comando inserito
+                }
+                else {
+                    out.text("Comando non supportato dalla utilità di Guida");
+                }
+            break;
+
+            //Invia al client le misure del server, solo con il token di amministrazione
+            case "stats":
+                if(!metrics.isStatsEnabled())
+                    out.text("<Server> comando non trovato");
+                else if(lineArray.length < 2 || !metrics.isAdmin(lineArray[1]))
+                    out.text("<Server> accesso negato");
+                else
+                    out.text(metrics.format());
+            break;
+
+            //Esce dal programma, dopo aver chiesto conferma
+            case "quit":
+                out.text("sei sicuro? (s/n)");
+                out.input();
+                state = State.QUIT_CONFIRM;
+            return;
+
+            //Se non esiste il comando inserito
+            default:
+                out.text("<Server> comando non trovato");
+            break;
+        }
+        out.inputCommand();
+    }
+}
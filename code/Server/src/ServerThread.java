@@ -24,174 +24,240 @@
  */
 
 import java.net.*;        //Socket
-import java.io.*;         //PrintWriter|BufferedReader|InputStreamReader|IOException
+import java.io.*;         //BufferedInputStream|BufferedOutputStream|DataInputStream|IOException
+import java.nio.channels.FileChannel;     //File di appoggio dei trasferimenti
+import java.nio.channels.SocketChannel;   //Canale del socket, per l'invio dei file
+import java.nio.charset.StandardCharsets; //Codifica UTF-8
 import java.util.HashMap; //Mappe
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * La classe {@code ServerThread} rappresenta un thread di esecuzione di {@link Server}.
+ * La classe {@code ServerThread} rappresenta una sessione di {@link Server} con un client, eseguita da un thread 
+ * di piattaforma o da un virtual thread a seconda del motore scelto all'avvio del server.
  * Contiene il riferimento alla {@code MessageBox} e alla Mappa dei comandi di {@code Server}.
  * <p>
- * Il thread esegue il log in di uno user utilizzando solo uno userName, prende la chiave pubblica del client e aggiunge lo user alla {@code MessageBox}.
- * Il programma poi entra in un ciclo di risposta ai comandi inviati dal client che finisce con il comando {@code quit}.
+ * Il thread legge in modo bloccante le righe inviate dal client e le passa a un {@link ServerProtocol}, 
+ * che esegue il log in e risponde ai comandi. Se il client negozia il {@link BinaryProtocol protocollo binario} 
+ * il thread passa a leggere frame dallo stesso flusso. Il ciclo finisce quando il client si disconnette.
+ * <p>
+ * I file inoltrati al client passano dal file di appoggio al socket con {@link FileChannel#transferTo}, 
+ * senza essere copiati nella heap.
  * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
  * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
  * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
  */
-public class ServerThread extends Thread{
+public class ServerThread implements Runnable {
+    private static ExecutorService deliveries = Executors.newVirtualThreadPerTaskExecutor(); //Esegue le consegne in modalita' push, 
+                                                                                             //dato che il thread della sessione e' bloccato in lettura
     private Socket s;                            //Socket con la connessione ad un client
     private MessageBox mBox;                     //MessageBox contenente mappe di messaggi e chiavi pubbliche per ogni User       
+    private FileRelay relay;                     //Sessioni che possono ricevere file
+    private ServerMetrics metrics;               //Misure del server
     private HashMap<String, String> commandList; //Mappa delle descrizione dei comandi
+    private int receiveBatch;                    //Numero massimo di messaggi inviati insieme
+    private byte[] buffer = new byte[256];       //Byte della riga o del contenuto del frame in corso di lettura
+    private int frameLength;                     //Lunghezza del contenuto dell'ultimo frame letto
 
-    private String userName = null;
-    private String clientKey = null;
-    
     /**
      * Costruttore di {@code ServerThread}.
      * @param s Un {@code Socket} con la connessione ad un client.
      * @param mBox Una {@code MessageBox} contenente messaggi e chiavi pubbliche degli user.
+     * @param relay Il {@code FileRelay} con le sessioni che possono ricevere file.
+     * @param metrics Le {@code ServerMetrics} in cui contare i byte e i comandi.
      * @param commandList Una {@code HashMap} contenente i comandi che il client puo' utilizzare con le loro descrizioni.
+     * @param receiveBatch Numero massimo di messaggi letti dalla coda e inviati insieme.
      */
-    public ServerThread(Socket s, MessageBox mBox, HashMap<String, String> commandList) {
+    public ServerThread(Socket s, MessageBox mBox, FileRelay relay, ServerMetrics metrics, HashMap<String, String> commandList, int receiveBatch) {
         this.s = s;
         this.mBox = mBox;
+        this.relay = relay;
+        this.metrics = metrics;
         this.commandList = commandList;
+        this.receiveBatch = receiveBatch;
     }
 
     /**
      * La parte del server che legge e risponde ad un client.
      * <p>
-     * Esegue il log in utilizzando solo uno userName, prende la chiave pubblica del client e aggiunge lo user alla {@code MessageBox}.
-     * Poi il programma entra in un ciclo di risposta ai comandi inviati dal client che finisce quando il client si disconnette.
-     * <p>
-     * Il protocollo per la comunicazione tra server e client usato prevede che all'invio di specifici comandi 
-     * da parte del server, il client risponda in un certo modo.
-     * I comandi sono:
-     * <ul>
-     *    <li>INPUT - Chiede al client di inviargli un input dell'utente</li>
-     *    <li>INPUTC - Chiede al client di inviargli un comando</li>
-     *    <li>DECRYPT - Segnala al client che il prossimo messaggio che gli verra' inviato sara' criptato</li>
-     *    <li>SENDKEY - Chiede al client di inviargli la sua chiave pubblica</li>
-     * </ul>
+     * Legge le righe o i frame inviati dal client e li passa a un {@link ServerProtocol}, che esegue il log in 
+     * e risponde ai comandi. Il ciclo finisce quando il client si disconnette.
      */
     public void run() {
         String line = null;
+        ServerProtocol protocol = null;
 
         try(
-            PrintWriter out = new PrintWriter(s.getOutputStream(), true); //Scrive nel Buffer del Client
-            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream())); //Legge il Buffer del Server
+            BufferedOutputStream out = s.getChannel() != null ? new SocketOutputStream(s, metrics) 
+                    : new BufferedOutputStream(new CountingOutputStream(s.getOutputStream(), metrics)); //Scrive nel Buffer del Client
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new CountingInputStream(s.getInputStream(), metrics))); //Legge il Buffer del Server
         ) {
-            //Procedura di log in, con solo uno username
-            //Lo username deve essere senza spazi e non già presente nel Server
-            do {                                                                        
-                out.println("<Server> Scegli lo username (no spazi): ");
-                out.println("INPUT");
-                userName = in.readLine();
-            }while(userName.contains(" ") || mBox.contains(userName) || userName.equals("Server"));
-
-            //Chiede al client di mandargli la sua chiave pubblica
-            out.println("SENDKEY");
-            clientKey = in.readLine();
-
-            //Aggiunge lo user (userName e chiave pubblica) alla MessageBox completando la procedura di log in
-            mBox.newUser(userName, clientKey);
-
-            //Invia il benvenuto all'utente
-            System.out.println(userName + " connected");
-            out.println("<Server> Benvenuto " + userName);
-            out.println("Digitare help per aiuto");
-            out.println("INPUTC");
-
-            //Ciclo in cui il client invia un comando e il server lo compie e in caso manda una risposta al client
-            //Termina quando riceve null ovvero quando l'utente si disconnette
-            while((line = in.readLine()) != null) {
-                String lineArray[] = line.split(" ", 3); //Divide la stringa inviata dal client ad ogni spazio per massimo 3 volte
-                System.out.println(userName + " -> " + lineArray[0]); //Stampa comando sul server
-
-                //Controlla se il comando immesso dallo user esiste, se esiste lo esegue
-                switch (lineArray[0].toLowerCase()) {
-                    //Invia al client la lista degli utenti online
-                    case "list":
-                        out.println(mBox.listUsers());
-                    break;
-
-                    //Invia il messaggio al suo destinatario
-                    case "send":
-                    if(lineArray.length < 3) { //Se l'utente non ha scritto il comando nel formato [comando destinatario messaggio]    
-                        out.println("<Server> sintassi errata");
-                    }
-                    else if(!mBox.send(lineArray[1], userName, lineArray[2])) { //Se non riesce ad inviare il messaggio
-                        out.println("<Server> si e' verificato un errore con l'invio");
-                    }
-                    break;
-
-                    //Invia al client i messaggi ricevuti
-                    case "receive":
-                        if(mBox.hasMessageFor(userName)) { //Se ci sono messaggi per quello user
-                            //Finchè ci sono messaggi per quello user invia al client l'ultimo messaggio ricevuto dal corrispetivo utente
-                            do {            
-                                out.println("DECRYPT");
-                                out.println(mBox.getLastMessageFor(userName).getFormattedMessage());
-                            }while(mBox.hasMessageFor(userName));
-                        }
-                        else
-                            out.println("<Server> nessun nuovo messaggio :(");
-                    break;
-
-                    //Invia al client la chiave pubblica dell'utente richiesto
-                    case "getkey":
-                        if(lineArray.length < 2) { //Se l'utente non ha scritto nel formato [comando username]  
-                            out.println("<Server> sintassi errata");
-                        }
-                        else if(mBox.getKey(lineArray[1]) != null) { //Se esiste lo username del quale si richiede la chiave
-                            out.println(mBox.getKey(lineArray[1])); //Invia la chiave
-                        }
-                        else {
-                            out.println("<Server> username non trovato");
-                        }
-                    break;
-
-                    //Invia al client la guida dei comandi
-                    case "help":
-                        if(lineArray.length < 2) { //Se l'utente ha inserito solo help
-                            out.println("Per ulteriori informazioni su uno specifico comando, digitare HELP nome comando.\r\n"
-                                    + "LIST\tVisualizza la lista degli utenti online\r\n"
-                                    + "SEND\tInvia un messaggio criptato alla persona indicata\r\n"
-                                    + "RECEIVE\tScrive i messaggi indirizzati a te\r\n"
-                                    + "GETKEY\tScrive la chiave dell'utente specificato\r\n"
-                                    + "QUIT\tEsce dal programma\r\n"
-                                    + "HELP\tFornisce la guida per i comandi");
-                        }
-                        else if (commandList.get(lineArray[1]) != null) { //Se il comando esiste
-                            out.println(commandList.get(lineArray[1].toLowerCase())); //Prende la descrizione del comando inserito
-                        }
-                        else {
-                            out.println("Comando non supportato dalla utilità di Guida");
-                        }
-                    break;
-
-                    //Esce dal programma
-                    case "quit":
-                        out.println("sei sicuro? (s/n)");
-                        out.println("INPUT");
-                        if(in.readLine().charAt(0) == 's') //Se la risposta inizia con s
-                            out.println("QUIT");
-                    break;
-
-                    //Se non esiste il comando inserito
-                    default:
-                        out.println("<Server> comando non trovato");
-                    break;
+            protocol = new ServerProtocol(mBox, relay, metrics, commandList, out, deliveries, true, receiveBatch);
+            protocol.start();
+
+            //Ciclo in cui il client invia una riga o un frame e il protocollo li gestisce
+            //Termina quando il flusso finisce ovvero quando l'utente si disconnette
+            while(true) {
+                if(protocol.isBinary()) {
+                    int opcode = readFrame(in);
+                    if(opcode < 0)
+                        break;
+                    protocol.handleFrame((byte) opcode, buffer, frameLength);
+                }
+                else {
+                    if((line = readLine(in)) == null)
+                        break;
+                    protocol.handleLine(line);
                 }
-                out.println("INPUTC");      
             }
         } catch(IOException e) { //Problemi di connessione, probabilmente il client che si scollega
-            System.out.println(userName + ": Exception caught when trying to listen on port " + s.getPort() + " or listening for a connection");
-            System.out.println(userName + ": " + e.getMessage());
+            System.out.println(getUserName(protocol) + ": Exception caught when trying to listen on port " + s.getPort() + " or listening for a connection");
+            System.out.println(getUserName(protocol) + ": " + e.getMessage());
         }
 
-        //Quando il client si disconnette rimuove le informazioni dell'utente e termina il thread
-        System.out.println(userName + " disconnected");
-        mBox.removeUser(userName);
+        //Quando il client si disconnette rimuove le informazioni dell'utente e termina la sessione
+        if(protocol != null)
+            protocol.close();
         Server.close(this);
     }
+
+    /**
+     * Legge una riga, byte per byte dal flusso bufferizzato, togliendo il terminatore di riga.
+     * Non legge byte oltre la fine della riga, quindi dopo la negoziazione lo stesso flusso puo' essere usato per i frame.
+     * @param in Il flusso del client.
+     * @return La riga letta, {@code null} se il client si e' disconnesso.
+     * @throws IOException Errori di connessione socket o riga troppo lunga.
+     */
+    private String readLine(InputStream in) throws IOException {
+        int length = 0;
+        int b;
+        while((b = in.read()) != '\n') {
+            if(b < 0) {
+                if(length == 0)
+                    return null;
+                break;
+            }
+            if(length == buffer.length)
+                grow(length * 2, length);
+            buffer[length++] = (byte) b;
+        }
+        if(length > 0 && buffer[length - 1] == '\r')
+            length--;
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Legge un frame e ne mette il contenuto all'inizio di {@link #buffer}, con la lunghezza in {@link #frameLength}.
+     * @param in Il flusso del client.
+     * @return L'opcode del frame, -1 se il client si e' disconnesso.
+     * @throws IOException Errori di connessione socket o frame troppo lungo.
+     */
+    private int readFrame(DataInputStream in) throws IOException {
+        int first = in.read();
+        if(first < 0)
+            return -1;
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        int opcode = in.readUnsignedByte();
+        if(length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH)
+            throw new IOException("frame too long");
+        if(length > buffer.length)
+            grow(length, 0);
+        in.readFully(buffer, 0, length);
+        frameLength = length;
+        return opcode;
+    }
+
+    /**
+     * Sostituisce {@link #buffer} con uno piu' grande, mantenendo i byte gia' letti.
+     * @param size Nuova dimensione.
+     * @param used Byte gia' letti da copiare.
+     * @throws IOException Se si supera la lunghezza massima di un frame.
+     */
+    private void grow(int size, int used) throws IOException {
+        if(size > BinaryProtocol.MAX_FRAME_LENGTH)
+            throw new IOException("line too long");
+        byte[] bigger = new byte[size];
+        System.arraycopy(buffer, 0, bigger, 0, used);
+        buffer = bigger;
+    }
+
+    /**
+     * Flusso bufferizzato verso il client che invia le parti dei file direttamente dal file al canale del socket, 
+     * che e' in modalita' bloccante, quindi {@link #transferFrom} ritorna quando i byte sono stati scritti.
+     */
+    private static class SocketOutputStream extends BufferedOutputStream implements FileRegionStream {
+        private SocketChannel channel;
+        private ServerMetrics metrics;
+
+        SocketOutputStream(Socket s, ServerMetrics metrics) throws IOException {
+            super(new CountingOutputStream(s.getOutputStream(), metrics));
+            this.channel = s.getChannel();
+            this.metrics = metrics;
+        }
+
+        public void transferFrom(FileChannel file, long position, long count, Runnable done) throws IOException {
+            flush(); //Prima i byte gia' scritti, come l'intestazione del frame
+            while(count > 0) {
+                long n = file.transferTo(position, count, channel);
+                if(n <= 0)
+                    throw new EOFException();
+                position += n;
+                count -= n;
+                metrics.bytesOut(n);
+            }
+            done.run();
+        }
+    }
+
+    /**
+     * Flusso che conta i byte letti dal socket. Sta sotto il buffer, quindi conta una volta per ogni lettura dal socket.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private ServerMetrics metrics;
+
+        CountingInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if(b >= 0)
+                metrics.bytesIn(1);
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if(n > 0)
+                metrics.bytesIn(n);
+            return n;
+        }
+    }
+
+    /**
+     * Flusso che conta i byte scritti sul socket. Sta sotto il buffer, quindi conta una volta per ogni scrittura sul socket.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private ServerMetrics metrics;
+
+        CountingOutputStream(OutputStream out, ServerMetrics metrics) {
+            super(out);
+            this.metrics = metrics;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            metrics.bytesOut(1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len); //FilterOutputStream scriverebbe un byte alla volta
+            metrics.bytesOut(len);
+        }
+    }
+
+    private static String getUserName(ServerProtocol protocol) {
+        return protocol == null ? null : protocol.getUserName();
+    }
 }
@@ -0,0 +1,154 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.io.IOException;               //Errori di scrittura
+import java.io.OutputStream;              //Flusso di byte verso il client
+import java.nio.channels.FileChannel;     //File di appoggio dei trasferimenti
+import java.nio.charset.StandardCharsets; //Codifica UTF-8
+import java.util.List;                    //Messaggi inviati insieme
+
+/**
+ * La classe {@code TextProtocolWriter} scrive verso il client con il protocollo a righe di testo, 
+ * in cui i comandi del protocollo sono righe come INPUT e INPUTC e ogni messaggio criptato e' preceduto da una riga DECRYPT. 
+ * Allo stesso modo una chiave cambiata e' preceduta da una riga NEWKEY e un cambio di presenza da una riga PRESENCE, 
+ * seguita dallo userName preceduto da + se l'utente si e' connesso o da - se si e' disconnesso.
+ * Le righe vengono scritte in UTF-8 direttamente sul flusso, quindi le righe dei messaggi preparate all'invio 
+ * ({@link Message#getFrame()}) vengono copiate senza essere ricomposte.
+ * E' il formato usato dai client che non negoziano il {@link BinaryProtocol protocollo binario}.
+ * <p>
+ * Con il protocollo di testo non si possono inviare ne' ricevere file, quindi i metodi dei file non scrivono nulla.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class TextProtocolWriter implements ProtocolWriter {
+    private OutputStream out;      //Flusso bufferizzato verso il client
+    private boolean error = false; //true dopo un errore di scrittura, da quel momento le righe vengono scartate
+
+    /**
+     * Costruttore di {@code TextProtocolWriter}.
+     * @param out Il flusso su cui scrivere le righe.
+     */
+    public TextProtocolWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public void text(String text) {
+        line(text);
+    }
+
+    public void input() {
+        line("INPUT");
+    }
+
+    public void inputCommand() {
+        line("INPUTC");
+    }
+
+    public void sendKey() {
+        line("SENDKEY");
+    }
+
+    public void quit() {
+        line("QUIT");
+    }
+
+    public void message(Message message) {
+        //Il frame costruito all'invio per una sessione di testo contiene gia' le due righe
+        if(message.isBinary()) {
+            line("DECRYPT");
+            line(message.getFormattedMessage());
+        }
+        else {
+            write(message.getFrame());
+        }
+    }
+
+    public void messages(List<Message> messages) {
+        for(Message message : messages)
+            message(message);
+    }
+
+    public void key(String key) {
+        line(key);
+    }
+
+    public void newKey(String key) {
+        line("NEWKEY");
+        line(key);
+    }
+
+    public void presence(String userName, boolean online) {
+        line("PRESENCE");
+        line((online ? "+" : "-") + userName);
+    }
+
+    public void fileStart(FileTransfer transfer) {
+    }
+
+    public void fileChunk(int id, FileChannel file, long position, int count, Runnable done) {
+    }
+
+    public void fileDone(int id) {
+    }
+
+    public void fileCancel(int id) {
+    }
+
+    public void fileCredit(int id, int credit) {
+    }
+
+    public void fileStop(int id) {
+    }
+
+    public void flush() {
+        if(error)
+            return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    /**
+     * Scrive una riga in UTF-8 con il terminatore di {@link java.io.PrintWriter#println()}.
+     * @param line La riga.
+     */
+    private void line(String line) {
+        write(line.getBytes(StandardCharsets.UTF_8));
+        write(Message.LINE_SEPARATOR);
+    }
+
+    private void write(byte[] bytes) {
+        if(error)
+            return;
+        try {
+            out.write(bytes);
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.util.ArrayList;   //Timer non ancora scaduti
+import java.util.List;
+
+/**
+ * La classe {@code TimerWheel} esegue delle azioni ad una certa ora, con una precisione di un tick.
+ * <p>
+ * E' una ruota di timer: un array circolare di slot, ognuno per un tick. Un timer viene inserito nello slot 
+ * del tick in cui scade, modulo il numero di slot, e ad ogni tick il thread della ruota controlla solo lo slot corrente. 
+ * I timer che scadono in un giro successivo della ruota vengono rimessi nello slot. 
+ * Il costo di un tick dipende quindi dal numero di timer nello slot, non dal numero totale di timer.
+ * <p>
+ * Ogni slot e' una {@link MpscQueue}: qualsiasi thread puo' programmare un timer senza lock, mentre solo il thread della ruota li legge.
+ * Un timer programmato proprio mentre il suo slot viene controllato puo' essere eseguito con un giro di ritardo.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class TimerWheel {
+    /**
+     * Un timer: l'azione da eseguire e quando eseguirla.
+     */
+    private static class Timeout {
+        private long deadline;  //Ora di scadenza in millisecondi
+        private Runnable task;  //Azione da eseguire
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    private MpscQueue<Timeout>[] slots;  //Slot della ruota
+    private long tickMillis;             //Durata di un tick in millisecondi
+    private volatile long currentTick;   //Tick che il thread della ruota sta controllando
+
+    /**
+     * Costruisce una ruota di timer e avvia il suo thread.
+     * @param numSlots Numero di slot, ovvero di tick in un giro della ruota.
+     * @param tickMillis Durata di un tick in millisecondi.
+     * @param name Nome del thread della ruota.
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(int numSlots, long tickMillis, String name) {
+        this.slots = (MpscQueue<Timeout>[]) new MpscQueue<?>[numSlots];
+        for(int i = 0; i < numSlots; i++)
+            slots[i] = new MpscQueue<Timeout>();
+        this.tickMillis = tickMillis;
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Programma un'azione. L'azione viene eseguita dal thread della ruota, quindi deve essere breve.
+     * @param deadline Ora in millisecondi a cui eseguire l'azione.
+     * @param task Azione da eseguire.
+     */
+    public void schedule(long deadline, Runnable task) {
+        long tick = Math.max(deadline / tickMillis, currentTick + 1); //Un timer gia' scaduto va nel prossimo tick
+        slots[(int)(tick % slots.length)].offer(new Timeout(deadline, task));
+    }
+
+    /**
+     * Ciclo del thread della ruota: aspetta la fine di ogni tick ed esegue i timer scaduti del suo slot.
+     */
+    private void run() {
+        List<Timeout> later = new ArrayList<Timeout>(); //Timer dello slot che scadono in un giro successivo
+        while(true) {
+            long wait = (currentTick + 1) * tickMillis - System.currentTimeMillis();
+            if(wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+            MpscQueue<Timeout> slot = slots[(int)(currentTick % slots.length)];
+            Timeout timeout;
+            while((timeout = slot.poll()) != null) {
+                if(timeout.deadline > now) {
+                    later.add(timeout);
+                    continue;
+                }
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) { //Un timer che fallisce non deve fermare la ruota
+                    System.out.println(Thread.currentThread().getName() + ": " + e);
+                }
+            }
+            for(Timeout t : later)
+                slot.offer(t);
+            later.clear();
+            currentTick++;
+        }
+    }
+}
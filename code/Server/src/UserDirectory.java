@@ -0,0 +1,189 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2021 Leonardo Panichi
+
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+
+import java.util.ArrayList;                                 //Utenti di una pagina
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;          //Indice ordinato e concorrente degli utenti online
+import java.util.concurrent.CopyOnWriteArrayList;           //Iscritti ai cambi di presenza
+import java.util.concurrent.atomic.AtomicInteger;           //Numero di utenti online
+import java.util.function.Consumer;                         //Avviso di un cambio di presenza
+
+/**
+ * La classe {@code UserDirectory} rappresenta l'elenco degli utenti online, in ordine di userName, 
+ * in un {@link ConcurrentSkipListSet} che puo' essere letto e modificato da piu' thread senza lock.
+ * <p>
+ * Il comando {@code list} legge l'elenco a {@link #page(String, String, int) pagine}: 
+ * solo gli utenti che iniziano con un prefisso e solo quelli dopo un cursore, ovvero l'ultimo userName della pagina precedente. 
+ * Ogni pagina costa quanto la ricerca del suo primo utente piu' gli utenti che contiene, 
+ * indipendentemente da quanti utenti sono online, e il cursore resta valido anche se nel frattempo quell'utente si e' disconnesso.
+ * <p>
+ * Le sessioni che vogliono seguire gli utenti online senza chiedere ogni volta la lista si {@link #subscribe(Consumer) iscrivono}: 
+ * ad ogni log in e disconnessione ricevono lo userName dell'utente cambiato e al momento di scrivere al client 
+ * leggono lo stato attuale con {@link #isOnline(String)}. In questo modo gli avvisi possono arrivare in qualsiasi ordine 
+ * e piu' cambi dello stesso utente prima di una scrittura diventano un solo aggiornamento.
+ * <p>
+ * Lo stato degli utenti e' della {@link MessageBox}, che chiama {@link #join(String)} e {@link #leave(String)} 
+ * insieme al cambio di stato della {@link Mailbox}, e solo dopo {@link #publish(String)} per avvisare gli iscritti.
+ * @author <a href="https://github.com/Leon412">Leonardo Panichi</a>
+ * @author <a href="https://github.com/sebastianomazzaferro">Sebastiano Mazzaferro</a>
+ * @author <a href="https://github.com/adrianopesaresi">Adriano Pesaresi</a>
+ */
+public class UserDirectory {
+    /** Numero di utenti di una pagina di {@code list} se non viene indicato all'avvio del server. */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * Una pagina dell'elenco degli utenti online.
+     */
+    public static final class Page {
+        private final List<String> users;
+        private final String next;
+
+        private Page(List<String> users, String next) {
+            this.users = users;
+            this.next = next;
+        }
+
+        /**
+         * @return Gli utenti della pagina, in ordine.
+         */
+        public List<String> getUsers() {
+            return users;
+        }
+
+        /**
+         * @return Il cursore della pagina successiva, ovvero l'ultimo utente di questa pagina, {@code null} se e' l'ultima pagina.
+         */
+        public String getNext() {
+            return next;
+        }
+    }
+
+    private ConcurrentSkipListSet<String> online = new ConcurrentSkipListSet<String>();                  //Utenti online in ordine di userName
+    private AtomicInteger size = new AtomicInteger();                                                   //Numero di utenti online, 
+                                                                                                        //perche' size() dell'indice li conta tutti
+    private CopyOnWriteArrayList<Consumer<String>> subscribers = new CopyOnWriteArrayList<Consumer<String>>(); //Sessioni iscritte ai cambi di presenza
+    private int pageSize = DEFAULT_PAGE_SIZE;                                                           //Numero massimo di utenti di una pagina di list
+
+    /**
+     * Aggiunge un utente all'elenco degli utenti online, senza avvisare gli iscritti.
+     * Va chiamato mentre la {@link MessageBox} segna lo user come connesso, in modo atomico rispetto alla sua disconnessione.
+     * @param userName UserName dell'utente.
+     * @return {@code true} se l'utente non era gia' nell'elenco.
+     */
+    public boolean join(String userName) {
+        if(!online.add(userName))
+            return false;
+        size.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Toglie un utente dall'elenco degli utenti online, senza avvisare gli iscritti.
+     * Va chiamato mentre la {@link MessageBox} segna lo user come disconnesso, in modo atomico rispetto ad un nuovo log in.
+     * @param userName UserName dell'utente.
+     * @return {@code true} se l'utente era nell'elenco.
+     */
+    public boolean leave(String userName) {
+        if(!online.remove(userName))
+            return false;
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Avvisa gli iscritti che lo stato di un utente e' cambiato.
+     * @param userName UserName dell'utente.
+     */
+    public void publish(String userName) {
+        for(Consumer<String> subscriber : subscribers)
+            subscriber.accept(userName);
+    }
+
+    public boolean isOnline(String userName) {
+        return online.contains(userName);
+    }
+
+    /**
+     * @return Il numero di utenti online.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Legge una pagina dell'elenco degli utenti online.
+     * <p>
+     * Questo metodo <b>non</b> usa lock: gli utenti che si connettono o si disconnettono durante la lettura 
+     * possono esserci o non esserci nella pagina.
+     * @param prefix Prefisso degli userName da cercare, vuoto per tutti gli utenti.
+     * @param after Cursore restituito dalla pagina precedente, {@code null} per la prima pagina.
+     * @param limit Numero massimo di utenti della pagina, almeno 1.
+     * @return La pagina.
+     */
+    public Page page(String prefix, String after, int limit) {
+        limit = Math.max(1, limit);
+        //La pagina inizia dal primo utente con il prefisso, o dal primo dopo il cursore se viene piu' avanti
+        Iterable<String> from = after == null || after.compareTo(prefix) < 0 ? online.tailSet(prefix, true) : online.tailSet(after, false);
+        List<String> users = new ArrayList<String>(Math.min(limit, 16));
+        for(String userName : from) {
+            if(!userName.startsWith(prefix)) //Gli utenti con lo stesso prefisso sono tutti di seguito
+                break;
+            if(users.size() == limit) //C'e' almeno un altro utente, quindi un'altra pagina
+                return new Page(users, users.get(limit - 1));
+            users.add(userName);
+        }
+        return new Page(users, null);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Imposta il numero massimo di utenti di una pagina di {@code list}. Va chiamato all'avvio del server, prima delle sessioni.
+     * @param pageSize Il numero di utenti, almeno 1.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    /**
+     * Iscrive una sessione ai cambi di presenza. L'azione viene eseguita dal thread che ha connesso o disconnesso l'utente, 
+     * quindi non deve bloccarsi.
+     * @param subscriber Azione da eseguire con lo userName di ogni utente che si connette o si disconnette.
+     */
+    public void subscribe(Consumer<String> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Annulla l'iscrizione di una sessione.
+     * @param subscriber La stessa azione passata a {@link #subscribe(Consumer)}.
+     */
+    public void unsubscribe(Consumer<String> subscriber) {
+        subscribers.remove(subscriber);
+    }
+}